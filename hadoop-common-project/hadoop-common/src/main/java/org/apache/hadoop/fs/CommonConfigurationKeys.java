@@ -56,6 +56,11 @@ public class CommonConfigurationKeys extends CommonConfigurationKeysPublic {
   public static final String  IPC_CLIENT_PING_KEY = "ipc.client.ping";
   /** Default value of IPC_CLIENT_PING_KEY */
   public static final boolean IPC_CLIENT_PING_DEFAULT = true;
+  /** Number of connections of a client to each server */
+  public static final String  IPC_CLIENT_CONNECTIONS_PER_REMOTE_KEY =
+    "ipc.client.connections.per.remote";
+  /** Default value for IPC_CLIENT_CONNECTIONS_PER_REMOTE_KEY */
+  public static final int     IPC_CLIENT_CONNECTIONS_PER_REMOTE_DEFAULT = 1;
   /** Responses larger than this will be logged */
   public static final String  IPC_SERVER_RPC_MAX_RESPONSE_SIZE_KEY =
     "ipc.server.max.response.size";
@@ -73,6 +78,38 @@ public class CommonConfigurationKeys extends CommonConfigurationKeysPublic {
     "ipc.server.handler.queue.size";
   /** Default value for IPC_SERVER_HANDLER_QUEUE_SIZE_KEY */
   public static final int     IPC_SERVER_HANDLER_QUEUE_SIZE_DEFAULT = 100;
+  /** The class of the queue of the calls waiting for a handler */
+  public static final String  IPC_SERVER_CALLQUEUE_IMPL_KEY =
+    "ipc.server.callqueue.impl";
+  /** Reject the calls which do not fit in the call queue */
+  public static final String  IPC_SERVER_CALLQUEUE_BACKOFF_ENABLE_KEY =
+    "ipc.server.callqueue.backoff.enable";
+  /** Default value for IPC_SERVER_CALLQUEUE_BACKOFF_ENABLE_KEY */
+  public static final boolean IPC_SERVER_CALLQUEUE_BACKOFF_ENABLE_DEFAULT =
+    false;
+  /** Number of priority levels of the fair call queue */
+  public static final String  IPC_SERVER_CALLQUEUE_FAIR_LEVELS_KEY =
+    "ipc.server.callqueue.fair.levels";
+  /** Default value for IPC_SERVER_CALLQUEUE_FAIR_LEVELS_KEY */
+  public static final int     IPC_SERVER_CALLQUEUE_FAIR_LEVELS_DEFAULT = 4;
+  /** Number of calls taken from each level of the fair call queue in turn */
+  public static final String  IPC_SERVER_CALLQUEUE_FAIR_WEIGHTS_KEY =
+    "ipc.server.callqueue.fair.weights";
+  /** Period of the decay of the call counts of the users */
+  public static final String  IPC_SERVER_CALLQUEUE_DECAY_PERIOD_MS_KEY =
+    "ipc.server.callqueue.decay.period.ms";
+  /** Default value for IPC_SERVER_CALLQUEUE_DECAY_PERIOD_MS_KEY */
+  public static final long    IPC_SERVER_CALLQUEUE_DECAY_PERIOD_MS_DEFAULT =
+    5000;
+  /** Factor by which the call counts of the users decay every period */
+  public static final String  IPC_SERVER_CALLQUEUE_DECAY_FACTOR_KEY =
+    "ipc.server.callqueue.decay.factor";
+  /** Default value for IPC_SERVER_CALLQUEUE_DECAY_FACTOR_KEY */
+  public static final float   IPC_SERVER_CALLQUEUE_DECAY_FACTOR_DEFAULT =
+    0.5f;
+  /** Shares of the calls, in percent, above which a user is demoted */
+  public static final String  IPC_SERVER_CALLQUEUE_DECAY_THRESHOLDS_KEY =
+    "ipc.server.callqueue.decay.thresholds";
 
   /** Internal buffer size for Lzo compressor/decompressors */
   public static final String  IO_COMPRESSION_CODEC_LZO_BUFFERSIZE_KEY =
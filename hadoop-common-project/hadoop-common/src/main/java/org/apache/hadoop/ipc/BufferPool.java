@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+
+/**
+ * Pools of the buffers the {@link Server} reads requests into and
+ * serializes responses into, so that they are not allocated for every call.
+ *
+ * The request buffers are pooled by size, in powers of two, up to
+ * {@link #MAX_POOLED_REQUEST_SIZE}; larger requests get their own buffer.
+ * The response buffers grow with the responses written into them, and the
+ * ones which grew beyond the given maximum size are dropped.  A pool keeps
+ * at most the given number of buffers of each size, the others are left
+ * to the garbage collector.
+ *
+ * This class is thread safe.
+ */
+class BufferPool {
+  static final int MIN_REQUEST_SIZE = 1024;
+  static final int MAX_POOLED_REQUEST_SIZE = 64 * 1024;
+  private static final int NUM_REQUEST_SIZES = Integer.numberOfTrailingZeros(
+      MAX_POOLED_REQUEST_SIZE / MIN_REQUEST_SIZE) + 1;
+
+  /** A bounded pool of buffers. */
+  private static class Pool<T> {
+    private final ConcurrentLinkedQueue<T> buffers =
+        new ConcurrentLinkedQueue<T>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int maxSize;
+
+    Pool(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    T poll() {
+      final T b = buffers.poll();
+      if (b != null) {
+        size.decrementAndGet();
+      }
+      return b;
+    }
+
+    void offer(T b) {
+      if (size.incrementAndGet() <= maxSize) {
+        buffers.offer(b);
+      } else {
+        size.decrementAndGet();
+      }
+    }
+  }
+
+  private final Pool<ByteBuffer>[] requestBuffers;
+  private final Pool<DataOutputBuffer> responseBuffers;
+  private final int initialResponseSize;
+  private final int maxResponseSize;
+
+  /**
+   * @param maxBuffers the maximum number of pooled buffers of each size
+   * @param initialResponseSize the initial size of the response buffers
+   * @param maxResponseSize the maximum size of a pooled response buffer
+   */
+  @SuppressWarnings("unchecked")
+  BufferPool(int maxBuffers, int initialResponseSize, int maxResponseSize) {
+    requestBuffers = new Pool[NUM_REQUEST_SIZES];
+    for(int i = 0; i < requestBuffers.length; i++) {
+      requestBuffers[i] = new Pool<ByteBuffer>(maxBuffers);
+    }
+    responseBuffers = new Pool<DataOutputBuffer>(maxBuffers);
+    this.initialResponseSize = initialResponseSize;
+    this.maxResponseSize = maxResponseSize;
+  }
+
+  /** @return the index of the smallest pooled size not less than size. */
+  private static int getSizeIndex(int size) {
+    return size <= MIN_REQUEST_SIZE? 0
+        : Integer.SIZE - Integer.numberOfLeadingZeros((size - 1) / MIN_REQUEST_SIZE);
+  }
+
+  /**
+   * @return a heap buffer, with the position at zero and the limit at the
+   *         given size.  Its backing array may be larger than the size.
+   */
+  ByteBuffer getRequestBuffer(int size) {
+    if (size > MAX_POOLED_REQUEST_SIZE) {
+      return ByteBuffer.allocate(size);
+    }
+    final int i = getSizeIndex(size);
+    ByteBuffer b = requestBuffers[i].poll();
+    if (b == null) {
+      b = ByteBuffer.allocate(MIN_REQUEST_SIZE << i);
+    }
+    b.clear();
+    b.limit(size);
+    return b;
+  }
+
+  /** Return a buffer from {@link #getRequestBuffer(int)} to the pool. */
+  void returnRequestBuffer(ByteBuffer b) {
+    final int capacity = b.capacity();
+    if (capacity <= MAX_POOLED_REQUEST_SIZE) {
+      final int i = getSizeIndex(capacity);
+      if (capacity == MIN_REQUEST_SIZE << i) {
+        requestBuffers[i].offer(b);
+      }
+    }
+  }
+
+  /** @return an empty buffer. */
+  DataOutputBuffer getResponseBuffer() {
+    final DataOutputBuffer b = responseBuffers.poll();
+    return b != null? b: new DataOutputBuffer(initialResponseSize);
+  }
+
+  /** Return a buffer from {@link #getResponseBuffer()} to the pool. */
+  void returnResponseBuffer(DataOutputBuffer b) {
+    if (b.getData().length <= maxResponseSize) {
+      b.reset();
+      responseBuffers.offer(b);
+    }
+  }
+}
@@ -38,6 +38,10 @@ import java.util.Iterator;
 import java.util.Random;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -48,6 +52,7 @@ import org.apache.commons.logging.*;
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
 import org.apache.hadoop.ipc.RpcPayloadHeader.*;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.Text;
@@ -85,11 +90,14 @@ public class Client {
   final private Configuration conf;
 
   private SocketFactory socketFactory;           // how to create sockets
+  private final int connectionsPerRemote;        // connections per ConnectionId
   private int refCount = 1;
   
   final static String PING_INTERVAL_NAME = "ipc.ping.interval";
   final static int DEFAULT_PING_INTERVAL = 60000; // 1 min
   final static int PING_CALL_ID = -1;
+  /** The maximum size of the send buffer kept by a connection */
+  final static int MAX_SEND_BUFFER_SIZE = 64 * 1024;
   
   /**
    * set the ping interval value in configuration
@@ -176,7 +184,8 @@ public class Client {
      * value or error are available.  Notifies by default.  */
     protected synchronized void callComplete() {
       this.done = true;
-      notify();                                 // notify caller
+      // notify the callers: several threads may wait for an AsyncCall
+      notifyAll();
     }
 
     /** Set the exception when there is an error.
@@ -204,6 +213,67 @@ public class Client {
     }
   }
 
+  /**
+   * A call whose caller does not wait for its result, but gets it later
+   * from the call, as a {@link Future}.
+   */
+  private class AsyncCall extends Call implements Future<Writable> {
+    private final ConnectionId remoteId;
+
+    AsyncCall(RpcKind rpcKind, Writable param, ConnectionId remoteId) {
+      super(rpcKind, param);
+      this.remoteId = remoteId;
+    }
+
+    /** A call which has been sent cannot be cancelled. */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+      return done;
+    }
+
+    @Override
+    public synchronized Writable get()
+        throws InterruptedException, ExecutionException {
+      while (!done) {
+        wait();
+      }
+      return getResult();
+    }
+
+    @Override
+    public synchronized Writable get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      final long deadline = System.nanoTime() + unit.toNanos(timeout);
+      while (!done) {
+        final long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          throw new TimeoutException("Call #" + id + " to "
+              + remoteId.getAddress() + " has not completed");
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+      return getResult();
+    }
+
+    private Writable getResult() throws ExecutionException {
+      try {
+        return getCallResult(this, remoteId);
+      } catch (IOException e) {
+        throw new ExecutionException(e);
+      }
+    }
+  }
+
   /** Thread that reads responses and notifies callers.  Each connection owns a
    * socket connected to a remote address.  Calls are multiplexed through this
    * socket: responses may be delivered out of order. */
@@ -220,6 +290,8 @@ public class Client {
     private Socket socket = null;                 // connected socket
     private DataInputStream in;
     private DataOutputStream out;
+    // the buffer the calls are serialized into, guarded by out
+    private DataOutputBuffer sendBuffer = new DataOutputBuffer();
     private int rpcTimeout;
     private int maxIdleTime; //connections will be culled if it was idle for 
     //maxIdleTime msecs
@@ -784,31 +856,36 @@ public class Client {
         return;
       }
 
-      DataOutputBuffer d=null;
       try {
         synchronized (this.out) {
           if (LOG.isDebugEnabled())
             LOG.debug(getName() + " sending #" + call.id);
           
-          //for serializing the
-          //data to be written
-          d = new DataOutputBuffer();
+          // serialize the call after a placeholder for its length, so that
+          // the length and the data are written to the stream at once
+          final DataOutputBuffer d = sendBuffer;
+          d.reset();
+          d.writeInt(0);
           RpcPayloadHeader header = new RpcPayloadHeader(
               call.rpcKind, RpcPayloadOperation.RPC_FINAL_PAYLOAD, call.id);
           header.write(d);
           call.rpcRequest.write(d);
           byte[] data = d.getData();
-          int dataLength = d.getLength();
-          out.writeInt(dataLength);      //first put the data length
-          out.write(data, 0, dataLength);//write the data
+          int dataLength = d.getLength() - 4;
+          data[0] = (byte)(dataLength >>> 24);  //first put the data length
+          data[1] = (byte)(dataLength >>> 16);
+          data[2] = (byte)(dataLength >>> 8);
+          data[3] = (byte)dataLength;
+          out.write(data, 0, d.getLength());    //write the length and data
           out.flush();
+
+          // Discard the large buffer to free up heap
+          if (data.length > MAX_SEND_BUFFER_SIZE) {
+            sendBuffer = new DataOutputBuffer();
+          }
         }
       } catch(IOException e) {
         markClosed(e);
-      } finally {
-        //the buffer is just an in-memory buffer, but it is still polite to
-        // close early
-        IOUtils.closeStream(d);
       }
     }  
 
@@ -955,6 +1032,14 @@ public class Client {
     this.valueClass = valueClass;
     this.conf = conf;
     this.socketFactory = factory;
+    this.connectionsPerRemote = conf.getInt(
+        CommonConfigurationKeys.IPC_CLIENT_CONNECTIONS_PER_REMOTE_KEY,
+        CommonConfigurationKeys.IPC_CLIENT_CONNECTIONS_PER_REMOTE_DEFAULT);
+    if (connectionsPerRemote < 1) {
+      throw new IllegalArgumentException(
+          CommonConfigurationKeys.IPC_CLIENT_CONNECTIONS_PER_REMOTE_KEY
+          + " = " + connectionsPerRemote + " < 1");
+    }
   }
 
   /**
@@ -1130,7 +1215,41 @@ public class Client {
         // set the interrupt flag now that we are done waiting
         Thread.currentThread().interrupt();
       }
+      return getCallResult(call, remoteId);
+    }
+  }
+
+  /**
+   * Make a call, passing <code>rpcRequest</code>, to the IPC server defined by
+   * <code>remoteId</code>, without waiting for the rpc response.
+   * The call is sent before this method returns, and the calls made to
+   * the same server are pipelined on the same connection, so a thread can
+   * have many calls in progress at once.
+   *
+   * @param rpcKind
+   * @param rpcRequest -  contains serialized method and method parameters
+   * @param remoteId - the target rpc server
+   * @return the future rpc response.  Its {@link Future#get()} throws an
+   *         {@link ExecutionException} caused by the exception of the call
+   *         if there are network problems or if the remote code threw an
+   *         exception.  The call cannot be cancelled.
+   * @throws IOException if the call cannot be sent
+   */
+  public Future<Writable> callAsync(RpcKind rpcKind, Writable rpcRequest,
+      ConnectionId remoteId) throws InterruptedException, IOException {
+    AsyncCall call = new AsyncCall(rpcKind, rpcRequest, remoteId);
+    Connection connection = getConnection(remoteId, call);
+    connection.sendParam(call);                 // send the parameter
+    return call;
+  }
 
+  /**
+   * @return the rpc response of a call which is done.
+   * @throws IOException the exception of the call, if any.
+   */
+  private static Writable getCallResult(Call call, ConnectionId remoteId)
+      throws IOException {
+    synchronized (call) {
       if (call.error != null) {
         if (call.error instanceof RemoteException) {
           call.error.fillInStackTrace();
@@ -1216,7 +1335,9 @@ public class Client {
   }
   
   /** Get a connection from the pool, or create a new one and add it to the
-   * pool.  Connections to a given ConnectionId are reused. */
+   * pool.  Connections to a given ConnectionId are reused.  If there are
+   * several connections per ConnectionId, the calls are spread over them
+   * by their id. */
   private Connection getConnection(ConnectionId remoteId,
                                    Call call)
                                    throws IOException, InterruptedException {
@@ -1224,6 +1345,10 @@ public class Client {
       // the client is stopped
       throw new IOException("The client is stopped");
     }
+    if (connectionsPerRemote > 1) {
+      remoteId = remoteId.getIndexed(
+          (call.id & Integer.MAX_VALUE) % connectionsPerRemote);
+    }
     Connection connection;
     /* we could avoid this allocation for each RPC by having a  
      * connectionsId object and with set() method. We need to manage the
@@ -1266,6 +1391,8 @@ public class Client {
     private boolean tcpNoDelay; // if T then disable Nagle's Algorithm
     private boolean doPing; //do we need to send ping message
     private int pingInterval; // how often sends ping to the server in msecs
+    // the index of the connection, when there are several per remote
+    private int connectionIndex = 0;
     
     ConnectionId(InetSocketAddress address, Class<?> protocol, 
                  UserGroupInformation ticket, int rpcTimeout,
@@ -1323,6 +1450,18 @@ public class Client {
     int getPingInterval() {
       return pingInterval;
     }
+
+    /** @return a copy of this ConnectionId for the indexed connection. */
+    ConnectionId getIndexed(int index) {
+      if (index == connectionIndex) {
+        return this;
+      }
+      final ConnectionId indexed = new ConnectionId(address, protocol, ticket,
+          rpcTimeout, serverPrincipal, maxIdleTime, maxRetries, tcpNoDelay,
+          doPing, pingInterval);
+      indexed.connectionIndex = index;
+      return indexed;
+    }
     
     /**
      * Returns a ConnectionId object. 
@@ -1387,7 +1526,8 @@ public class Client {
             && this.rpcTimeout == that.rpcTimeout
             && isEqual(this.serverPrincipal, that.serverPrincipal)
             && this.tcpNoDelay == that.tcpNoDelay
-            && isEqual(this.ticket, that.ticket);
+            && isEqual(this.ticket, that.ticket)
+            && this.connectionIndex == that.connectionIndex;
       }
       return false;
     }
@@ -1406,6 +1546,7 @@ public class Client {
           + ((serverPrincipal == null) ? 0 : serverPrincipal.hashCode());
       result = PRIME * result + (tcpNoDelay ? 1231 : 1237);
       result = PRIME * result + ((ticket == null) ? 0 : ticket.hashCode());
+      result = PRIME * result + connectionIndex;
       return result;
     }
   }  
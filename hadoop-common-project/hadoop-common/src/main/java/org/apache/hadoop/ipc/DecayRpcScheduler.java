@@ -0,0 +1,202 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.security.UserGroupInformation;
+
+/**
+ * Prioritizes the calls by the share of the recent calls made by their
+ * user: the more calls a user makes, the lower the priority of its calls.
+ *
+ * The scheduler counts the calls of each user.  Every decay period, the
+ * counts are multiplied by the decay factor, so that older calls weigh
+ * less, and the priority level of each user is recomputed from its share
+ * of the total count: each level but the first has a threshold, and a
+ * user gets the last level whose threshold its share is above.  Until the
+ * next decay, the calls of a new user get the highest priority.  The counts
+ * are updated without locking, so they are approximate when calls are
+ * scheduled during a decay.
+ */
+@InterfaceStability.Evolving
+public class DecayRpcScheduler implements RpcScheduler {
+  /** The identity of the calls without a user. */
+  private static final String UNKNOWN_IDENTITY = "Unknown";
+
+  private final int numLevels;
+  private final long decayPeriodMillis;
+  private final double decayFactor;
+  /** The shares of the total count above which a user is demoted. */
+  private final double[] thresholds;
+
+  private final ConcurrentHashMap<Object, AtomicLong> callCounts =
+      new ConcurrentHashMap<Object, AtomicLong>();
+  private final AtomicLong totalCalls = new AtomicLong();
+  private final AtomicLong lastDecayTime;
+  /** The priority levels computed at the last decay. */
+  private volatile Map<Object, Integer> levels = Collections.emptyMap();
+
+  public DecayRpcScheduler(int numLevels, Configuration conf) {
+    if (numLevels < 1) {
+      throw new IllegalArgumentException("numLevels = " + numLevels + " < 1");
+    }
+    this.numLevels = numLevels;
+    this.decayPeriodMillis = conf.getLong(
+        CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_DECAY_PERIOD_MS_KEY,
+        CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_DECAY_PERIOD_MS_DEFAULT);
+    if (decayPeriodMillis <= 0) {
+      throw new IllegalArgumentException(
+          CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_DECAY_PERIOD_MS_KEY
+          + " = " + decayPeriodMillis + " <= 0");
+    }
+    this.decayFactor = conf.getFloat(
+        CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_DECAY_FACTOR_KEY,
+        CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_DECAY_FACTOR_DEFAULT);
+    if (decayFactor <= 0 || decayFactor >= 1) {
+      throw new IllegalArgumentException(
+          CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_DECAY_FACTOR_KEY
+          + " = " + decayFactor + " is not in (0, 1)");
+    }
+    this.thresholds = parseThresholds(numLevels, conf);
+    this.lastDecayTime = new AtomicLong(System.currentTimeMillis());
+  }
+
+  /**
+   * The thresholds are configured in percent.  By default, they halve
+   * from one level to the next higher one: with four levels, the users
+   * with more than 50% of the calls get level 3, those with more than 25%
+   * level 2, those with more than 12.5% level 1 and the others level 0.
+   */
+  private static double[] parseThresholds(int numLevels, Configuration conf) {
+    final String[] percents = conf.getTrimmedStrings(
+        CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_DECAY_THRESHOLDS_KEY);
+    final double[] thresholds = new double[numLevels - 1];
+    if (percents.length == 0) {
+      for(int i = 0; i < thresholds.length; i++) {
+        thresholds[i] = 1.0 / (1L << (thresholds.length - i));
+      }
+      return thresholds;
+    }
+
+    if (percents.length != thresholds.length) {
+      throw new IllegalArgumentException(
+          CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_DECAY_THRESHOLDS_KEY
+          + " has " + percents.length + " values but there are "
+          + numLevels + " levels");
+    }
+    for(int i = 0; i < thresholds.length; i++) {
+      thresholds[i] = Double.parseDouble(percents[i]) / 100;
+    }
+    return thresholds;
+  }
+
+  private static Object getIdentity(Schedulable obj) {
+    final UserGroupInformation ugi = obj.getUserGroupInformation();
+    return ugi == null? UNKNOWN_IDENTITY: ugi.getUserName();
+  }
+
+  @Override
+  public int getPriorityLevel(Schedulable obj) {
+    decayIfNeeded(System.currentTimeMillis());
+
+    final Object identity = getIdentity(obj);
+    AtomicLong count = callCounts.get(identity);
+    if (count == null) {
+      final AtomicLong created = new AtomicLong();
+      count = callCounts.putIfAbsent(identity, created);
+      if (count == null) {
+        count = created;
+      }
+    }
+    count.incrementAndGet();
+    totalCalls.incrementAndGet();
+
+    final Integer level = levels.get(identity);
+    return level == null? 0: level;
+  }
+
+  /** Decay the counts if a decay period has passed since the last decay. */
+  void decayIfNeeded(long now) {
+    final long last = lastDecayTime.get();
+    final long periods = (now - last) / decayPeriodMillis;
+    if (periods > 0
+        && lastDecayTime.compareAndSet(last, last + periods * decayPeriodMillis)) {
+      decay(Math.pow(decayFactor, periods));
+    }
+  }
+
+  /** Multiply the counts by the factor and recompute the levels. */
+  private void decay(double factor) {
+    long total = 0;
+    for(Iterator<AtomicLong> i = callCounts.values().iterator(); i.hasNext(); ) {
+      final AtomicLong count = i.next();
+      final long decayed = (long)(count.get() * factor);
+      count.set(decayed);
+      if (decayed == 0) {
+        i.remove();
+      }
+      total += decayed;
+    }
+    totalCalls.set(total);
+
+    final Map<Object, Integer> newLevels = new HashMap<Object, Integer>();
+    if (total > 0) {
+      for(Map.Entry<Object, AtomicLong> e : callCounts.entrySet()) {
+        final int level = computeLevel((double)e.getValue().get() / total);
+        if (level > 0) {
+          newLevels.put(e.getKey(), level);
+        }
+      }
+    }
+    levels = newLevels;
+  }
+
+  private int computeLevel(double share) {
+    for(int i = thresholds.length - 1; i >= 0; i--) {
+      if (share > thresholds[i]) {
+        return i + 1;
+      }
+    }
+    return 0;
+  }
+
+  /** @return the number of priority levels. */
+  public int getNumLevels() {
+    return numLevels;
+  }
+
+  /** @return the decayed call count of the user, for testing. */
+  long getCallCount(String user) {
+    final AtomicLong count = callCounts.get(user);
+    return count == null? 0: count.get();
+  }
+
+  /** @return the total decayed call count, for testing. */
+  long getTotalCallCount() {
+    return totalCalls.get();
+  }
+}
@@ -0,0 +1,362 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.metrics2.MetricsCollector;
+import org.apache.hadoop.metrics2.MetricsInfo;
+import org.apache.hadoop.metrics2.MetricsRecordBuilder;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.lib.Interns;
+
+/**
+ * A call queue which shares the handlers fairly between the users.
+ *
+ * The queue has several priority levels, each with its own FIFO queue.
+ * A {@link DecayRpcScheduler} decides the level of each call from the
+ * recent calls of its user, so that the calls of the users making the
+ * most calls get the lowest priority.  The handlers take the calls from
+ * the levels in a weighted round robin: by default, a level is given
+ * twice as many turns as the next lower one, so that the calls of the
+ * lower levels are delayed but not starved.
+ *
+ * When the FIFO queue of its level is full, a call goes to the first
+ * lower level with room.  If all of them are full, {@link #put} blocks
+ * and {@link #offer} fails, which lets the server signal the client to
+ * back off; see
+ * {@link CommonConfigurationKeys#IPC_SERVER_CALLQUEUE_BACKOFF_ENABLE_KEY}.
+ *
+ * The iterator of the queue goes over the levels from the highest
+ * priority to the lowest, and over the calls of a level in FIFO order.
+ * Like the iterators of the queues of the levels, it is weakly consistent:
+ * it does not throw {@link java.util.ConcurrentModificationException},
+ * and may or may not see the calls put or taken after it is created.
+ *
+ * @param <E> the type of the calls
+ */
+@InterfaceStability.Evolving
+public class FairCallQueue<E extends Schedulable> extends AbstractQueue<E>
+    implements BlockingQueue<E>, MetricsSource {
+  private final List<BlockingQueue<E>> queues;
+  private final RpcScheduler scheduler;
+  /** The number of calls taken from each level in its turn. */
+  private final int[] weights;
+  /** Has as many permits as there are calls in the queues. */
+  private final Semaphore available = new Semaphore(0);
+
+  // The state of the round robin, guarded by this object
+  private int currentLevel = 0;
+  private int takenAtCurrentLevel = 0;
+
+  /** The number of calls put at each level. */
+  private final AtomicLongArray callsQueued;
+  private final MetricsInfo[] queueSizeInfo;
+  private final MetricsInfo[] callsQueuedInfo;
+
+  /**
+   * @param capacity the total capacity of the queue,
+   *        divided equally between the levels
+   * @param conf the configuration
+   */
+  public FairCallQueue(int capacity, Configuration conf) {
+    this(capacity, conf, new DecayRpcScheduler(getNumLevels(conf), conf));
+  }
+
+  /** Create a queue which uses the given scheduler, for testing. */
+  FairCallQueue(int capacity, Configuration conf, RpcScheduler scheduler) {
+    final int numLevels = getNumLevels(conf);
+    this.scheduler = scheduler;
+    this.weights = parseWeights(numLevels, conf);
+
+    final int levelCapacity = Math.max(1, capacity / numLevels);
+    this.queues = new ArrayList<BlockingQueue<E>>(numLevels);
+    this.callsQueued = new AtomicLongArray(numLevels);
+    this.queueSizeInfo = new MetricsInfo[numLevels];
+    this.callsQueuedInfo = new MetricsInfo[numLevels];
+    for(int i = 0; i < numLevels; i++) {
+      queues.add(new LinkedBlockingQueue<E>(levelCapacity));
+      queueSizeInfo[i] = Interns.info("QueueSizeLevel" + i,
+          "Number of calls waiting at priority level " + i);
+      callsQueuedInfo[i] = Interns.info("CallsQueuedLevel" + i,
+          "Number of calls queued at priority level " + i);
+    }
+  }
+
+  private static int getNumLevels(Configuration conf) {
+    final int numLevels = conf.getInt(
+        CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_FAIR_LEVELS_KEY,
+        CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_FAIR_LEVELS_DEFAULT);
+    if (numLevels < 1) {
+      throw new IllegalArgumentException(
+          CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_FAIR_LEVELS_KEY
+          + " = " + numLevels + " < 1");
+    }
+    return numLevels;
+  }
+
+  /** By default, each level has twice the weight of the next lower one. */
+  private static int[] parseWeights(int numLevels, Configuration conf) {
+    final String[] values = conf.getTrimmedStrings(
+        CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_FAIR_WEIGHTS_KEY);
+    final int[] weights = new int[numLevels];
+    if (values.length == 0) {
+      for(int i = 0; i < numLevels; i++) {
+        weights[i] = 1 << Math.min(numLevels - 1 - i, 30);
+      }
+      return weights;
+    }
+
+    if (values.length != numLevels) {
+      throw new IllegalArgumentException(
+          CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_FAIR_WEIGHTS_KEY
+          + " has " + values.length + " values but there are "
+          + numLevels + " levels");
+    }
+    for(int i = 0; i < numLevels; i++) {
+      weights[i] = Integer.parseInt(values[i]);
+      if (weights[i] < 1) {
+        throw new IllegalArgumentException(
+            CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_FAIR_WEIGHTS_KEY
+            + " has weight " + weights[i] + " < 1");
+      }
+    }
+    return weights;
+  }
+
+  /** @return the level to take a call from first, and advance the turn. */
+  private synchronized int getAndAdvanceLevel() {
+    final int level = currentLevel;
+    if (++takenAtCurrentLevel >= weights[level]) {
+      currentLevel = (level + 1) % weights.length;
+      takenAtCurrentLevel = 0;
+    }
+    return level;
+  }
+
+  /**
+   * Remove a call, once a permit is acquired.  The queues have at least
+   * as many calls as the permits acquired, so the loop ends even if other
+   * threads take calls concurrently.
+   */
+  private E removeNext() {
+    final int first = getAndAdvanceLevel();
+    for(;;) {
+      for(int i = 0; i < queues.size(); i++) {
+        final E e = queues.get((first + i) % queues.size()).poll();
+        if (e != null) {
+          return e;
+        }
+      }
+    }
+  }
+
+  private int getLevel(E e) {
+    final int level = scheduler.getPriorityLevel(e);
+    return Math.max(0, Math.min(level, queues.size() - 1));
+  }
+
+  /** Offer the call to its level and the lower ones. */
+  private boolean offerFrom(int level, E e) {
+    for(int i = level; i < queues.size(); i++) {
+      if (queues.get(i).offer(e)) {
+        queued(i);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void queued(int level) {
+    callsQueued.incrementAndGet(level);
+    available.release();
+  }
+
+  @Override
+  public void put(E e) throws InterruptedException {
+    final int level = getLevel(e);
+    if (!offerFrom(level, e)) {
+      queues.get(level).put(e);
+      queued(level);
+    }
+  }
+
+  @Override
+  public boolean offer(E e, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    final int level = getLevel(e);
+    if (offerFrom(level, e)) {
+      return true;
+    }
+    if (queues.get(level).offer(e, timeout, unit)) {
+      queued(level);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public boolean offer(E e) {
+    return offerFrom(getLevel(e), e);
+  }
+
+  @Override
+  public E take() throws InterruptedException {
+    available.acquire();
+    return removeNext();
+  }
+
+  @Override
+  public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+    return available.tryAcquire(timeout, unit)? removeNext(): null;
+  }
+
+  @Override
+  public E poll() {
+    return available.tryAcquire()? removeNext(): null;
+  }
+
+  /** @return a call at the first non-empty level, or null. */
+  @Override
+  public E peek() {
+    for(BlockingQueue<E> q : queues) {
+      final E e = q.peek();
+      if (e != null) {
+        return e;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for(BlockingQueue<E> q : queues) {
+      size += q.size();
+    }
+    return size;
+  }
+
+  @Override
+  public int remainingCapacity() {
+    int remaining = 0;
+    for(BlockingQueue<E> q : queues) {
+      remaining += q.remainingCapacity();
+    }
+    return remaining;
+  }
+
+  @Override
+  public int drainTo(Collection<? super E> c, int maxElements) {
+    int n = 0;
+    for(; n < maxElements && available.tryAcquire(); n++) {
+      c.add(removeNext());
+    }
+    return n;
+  }
+
+  @Override
+  public int drainTo(Collection<? super E> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public Iterator<E> iterator() {
+    return new Iterator<E>() {
+      private int level = 0;
+      private Iterator<E> levelIterator = queues.get(0).iterator();
+      /** The call last returned by next(), and its level */
+      private E last = null;
+      private int lastLevel;
+
+      @Override
+      public boolean hasNext() {
+        while (!levelIterator.hasNext() && level < queues.size() - 1) {
+          levelIterator = queues.get(++level).iterator();
+        }
+        return levelIterator.hasNext();
+      }
+
+      @Override
+      public E next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        last = levelIterator.next();
+        lastLevel = level;
+        return last;
+      }
+
+      /**
+       * Remove the call last returned, unless it has been taken meanwhile.
+       * Like take() and poll(), acquire a permit first: without a permit,
+       * all the calls left are being taken.
+       */
+      @Override
+      public void remove() {
+        if (last == null) {
+          throw new IllegalStateException();
+        }
+        if (available.tryAcquire()) {
+          if (!queues.get(lastLevel).remove(last)) {
+            available.release();
+          }
+        }
+        last = null;
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[size=" + size() + "]";
+  }
+
+  /** @return the number of calls waiting at the level. */
+  public int getQueueSize(int level) {
+    return queues.get(level).size();
+  }
+
+  /** @return the number of calls queued at the level so far. */
+  public long getCallsQueued(int level) {
+    return callsQueued.get(level);
+  }
+
+  @Override
+  public void getMetrics(MetricsCollector collector, boolean all) {
+    final MetricsRecordBuilder rb = collector.addRecord("FairCallQueue")
+        .setContext("rpc");
+    for(int i = 0; i < queues.size(); i++) {
+      rb.addGauge(queueSizeInfo[i], getQueueSize(i))
+        .addCounter(callsQueuedInfo[i], getCallsQueued(i));
+    }
+  }
+}
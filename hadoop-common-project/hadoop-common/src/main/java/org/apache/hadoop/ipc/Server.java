@@ -23,6 +23,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
 import java.net.BindException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -63,6 +65,7 @@ import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.CommonConfigurationKeys;
 import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableUtils;
@@ -72,6 +75,8 @@ import org.apache.hadoop.ipc.RpcPayloadHeader.RpcKind;
 import org.apache.hadoop.ipc.RpcPayloadHeader.RpcPayloadOperation;
 import org.apache.hadoop.ipc.metrics.RpcDetailedMetrics;
 import org.apache.hadoop.ipc.metrics.RpcMetrics;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
 import org.apache.hadoop.net.NetUtils;
 import org.apache.hadoop.security.AccessControlException;
 import org.apache.hadoop.security.SaslRpcServer;
@@ -248,6 +253,66 @@ public abstract class Server {
     return CurCall.get() != null;
   }
 
+  /**
+   * A response postponed by {@link Server#postponeResponse()}.
+   */
+  public interface PostponedResponse {
+    /**
+     * Allow the response to be sent. It is sent once the call has returned
+     * and all the postponements of it have been released.
+     * Must be called exactly once.
+     */
+    void release();
+  }
+
+  /**
+   * Postpone sending the response to the RPC call handled by the current
+   * thread until the returned {@link PostponedResponse} is released.
+   * This allows the handler to go on serving other calls while the response
+   * waits for some event, such as the outcome of the call being persisted.
+   *
+   * @return the postponed response, or null if not invoked inside an RPC
+   */
+  public static PostponedResponse postponeResponse() {
+    final Call call = CurCall.get();
+    final Server server = SERVER.get();
+    if (call == null || server == null) {
+      return null;
+    }
+    synchronized (call.connection.responseQueue) {
+      call.responseWaitCount++;
+    }
+    return server.new CallResponse(call);
+  }
+
+  /** Sends the response to a postponed call once released. */
+  private class CallResponse implements PostponedResponse {
+    private final Call call;
+
+    CallResponse(Call call) {
+      this.call = call;
+    }
+
+    @Override
+    public void release() {
+      try {
+        synchronized (call.connection.responseQueue) {
+          if (--call.responseWaitCount == 0) {
+            // the handler has returned and saved the outcome of the call
+            final DataOutputBuffer buf = bufferPool.getResponseBuffer();
+            setupResponse(buf, call, call.status, call.value,
+                call.errorClass, call.error);
+            call.responseBuffer = buf;
+            call.value = null;
+            responder.doRespond(call);
+          }
+        }
+      } catch (IOException ioe) {
+        LOG.info("Failed to send postponed response for " + call, ioe);
+      }
+    }
+  }
+
   private String bindAddress; 
   private int port;                               // port we listen on
   private int handlerCount;                       // number of handler threads
@@ -272,11 +337,15 @@ public abstract class Server {
 
   private int maxQueueSize;
   private final int maxRespSize;
+  /** The pooled buffers for the requests and the responses. */
+  private final BufferPool bufferPool;
   private int socketSendBufferSize;
   private final boolean tcpNoDelay; // if T then disable Nagle's Algorithm
 
   volatile private boolean running = true;         // true while server runs
   private BlockingQueue<Call> callQueue; // queued calls
+  // if T then reject the calls which do not fit in the call queue
+  private final boolean backoffEnabled;
 
   private List<Connection> connectionList = 
     Collections.synchronizedList(new LinkedList<Connection>());
@@ -334,15 +403,29 @@ public abstract class Server {
   }
 
   /** A call queued for handling. */
-  private static class Call {
+  private static class Call implements Schedulable {
     private final int callId;             // the client's call id
     private final Writable rpcRequest;    // Serialized Rpc request from client
     private final Connection connection;  // connection to client
     private long timestamp;               // time received when response is null
                                           // time served when response is not null
     private ByteBuffer rpcResponse;       // the response for this call
+    // the pooled buffer backing rpcResponse, released once it is sent
+    private DataOutputBuffer responseBuffer;
     private final RpcKind rpcKind;
 
+    // The following are guarded by connection.responseQueue.
+    // The response is sent when responseWaitCount drops to zero:
+    // it is decremented when the handler returns and when each
+    // postponement of the response is released.
+    private int responseWaitCount = 1;
+    // the outcome of the call, saved by the handler if the response
+    // is postponed
+    private Status status;
+    private Writable value;
+    private String errorClass;
+    private String error;
+
     public Call(int id, Writable param, Connection connection) {
       this( id,  param,  connection, RpcKind.RPC_BUILTIN );    
     }
@@ -363,6 +446,11 @@ public abstract class Server {
     public void setResponse(ByteBuffer response) {
       this.rpcResponse = response;
     }
+
+    @Override
+    public UserGroupInformation getUserGroupInformation() {
+      return connection.user;
+    }
   }
 
   /** Listens on the socket. Creates jobs for the handler threads*/
@@ -853,9 +941,9 @@ public abstract class Server {
             return true;              // no more data for this channel.
           }
           //
-          // Extract the first call
+          // The calls stay in the queue until they are fully sent
           //
-          call = responseQueue.removeFirst();
+          call = responseQueue.getFirst();
           SocketChannel channel = call.connection.channel;
           if (LOG.isDebugEnabled()) {
             LOG.debug(getName() + ": responding to #" + call.callId + " from " +
@@ -864,28 +952,28 @@ public abstract class Server {
           //
           // Send as much data as we can in the non-blocking fashion
           //
-          int numBytes = channelWrite(channel, call.rpcResponse);
+          int numBytes = writeResponses(channel, responseQueue);
           if (numBytes < 0) {
             return true;
           }
-          if (!call.rpcResponse.hasRemaining()) {
-            call.connection.decRpcCount();
-            if (numElements == 1) {    // last call fully processes.
-              done = true;             // no more data for this channel.
-            } else {
-              done = false;            // more calls pending to be sent.
-            }
+          while (!responseQueue.isEmpty()
+              && !responseQueue.getFirst().rpcResponse.hasRemaining()) {
+            final Call sent = responseQueue.removeFirst();
+            sent.connection.decRpcCount();
+            releaseResponse(sent);
             if (LOG.isDebugEnabled()) {
-              LOG.debug(getName() + ": responding to #" + call.callId + " from " +
-                        call.connection + " Wrote " + numBytes + " bytes.");
+              LOG.debug(getName() + ": responding to #" + sent.callId + " from " +
+                        sent.connection + " Wrote " + numBytes + " bytes.");
             }
+          }
+          if (responseQueue.isEmpty()) {
+            done = true;               // no more data for this channel.
           } else {
+            call = responseQueue.getFirst();
             //
             // If we were unable to write the entire response out, then 
             // insert in Selector queue. 
             //
-            call.connection.responseQueue.addFirst(call);
-            
             if (inHandler) {
               // set the serve time when the response has to be sent later
               call.timestamp = System.currentTimeMillis();
@@ -921,6 +1009,51 @@ public abstract class Server {
       return done;
     }
 
+    /**
+     * Write the queued responses to the channel.  The responses which are
+     * small enough are gathered into a single write, so that a connection
+     * with many outstanding calls is not written to once per call.
+     * @return the number of bytes written, or -1 at the end of the stream.
+     */
+    private int writeResponses(SocketChannel channel,
+        LinkedList<Call> responseQueue) throws IOException {
+      final ByteBuffer first = responseQueue.getFirst().rpcResponse;
+      if (responseQueue.size() == 1
+          || first.remaining() >= NIO_BUFFER_LIMIT) {
+        return channelWrite(channel, first);
+      }
+
+      final ByteBuffer[] buffers = new ByteBuffer[
+          Math.min(responseQueue.size(), MAX_GATHERED_RESPONSES)];
+      int n = 0;
+      int remaining = 0;
+      for(Call c : responseQueue) {
+        if (n == buffers.length
+            || remaining + c.rpcResponse.remaining() > NIO_BUFFER_LIMIT) {
+          break;
+        }
+        buffers[n++] = c.rpcResponse;
+        remaining += c.rpcResponse.remaining();
+      }
+      if (n == 1) {
+        return channelWrite(channel, first);
+      }
+      final int count = (int)channel.write(buffers, 0, n);
+      if (count > 0) {
+        rpcMetrics.incrSentBytes(count);
+      }
+      return count;
+    }
+
+    /** Return the buffer of a sent response to the pool. */
+    private void releaseResponse(Call call) {
+      if (call.responseBuffer != null) {
+        bufferPool.returnResponseBuffer(call.responseBuffer);
+        call.responseBuffer = null;
+      }
+      call.rpcResponse = null;
+    }
+
     //
     // Enqueue a response from the application.
     //
@@ -957,6 +1090,8 @@ public abstract class Server {
 
     private SocketChannel channel;
     private ByteBuffer data;
+    // whether data is from the buffer pool
+    private boolean dataPooled;
     private ByteBuffer dataLengthBuffer;
     private LinkedList<Call> responseQueue;
     private volatile int rpcCount = 0; // number of outstanding rpcs
@@ -987,7 +1122,7 @@ public abstract class Server {
     private static final int AUTHORIZATION_FAILED_CALLID = -1;
     private final Call authFailedCall = 
       new Call(AUTHORIZATION_FAILED_CALLID, null, this);
-    private ByteArrayOutputStream authFailedResponse = new ByteArrayOutputStream();
+    private DataOutputBuffer authFailedResponse = new DataOutputBuffer();
     // Fake 'call' for SASL context setup
     private static final int SASL_CALLID = -33;
     
@@ -1179,7 +1314,7 @@ public abstract class Server {
               + " for processing by saslServer.unwrap()");
         
         if (!useWrap) {
-          processOneRpc(saslToken);
+          processOneRpc(saslToken, saslToken.length);
         } else {
           byte[] plaintextData = saslServer.unwrap(saslToken, 0,
               saslToken.length);
@@ -1304,7 +1439,11 @@ public abstract class Server {
             LOG.warn("Unexpected data length " + dataLength + "!! from " + 
                 getHostAddress());
           }
-          data = ByteBuffer.allocate(dataLength);
+          // the SASL tokens are passed on as whole arrays,
+          // so only the other requests are read into pooled buffers
+          dataPooled = !useSasl;
+          data = dataPooled? bufferPool.getRequestBuffer(dataLength)
+              : ByteBuffer.allocate(dataLength);
         }
         
         count = channelRead(channel, data);
@@ -1313,17 +1452,20 @@ public abstract class Server {
           dataLengthBuffer.clear();
           data.flip();
           if (skipInitialSaslHandshake) {
-            data = null;
+            releaseData();
             skipInitialSaslHandshake = false;
             continue;
           }
           boolean isHeaderRead = headerRead;
-          if (useSasl) {
-            saslReadAndProcess(data.array());
-          } else {
-            processOneRpc(data.array());
+          try {
+            if (useSasl) {
+              saslReadAndProcess(data.array());
+            } else {
+              processOneRpc(data.array(), data.limit());
+            }
+          } finally {
+            releaseData();
           }
-          data = null;
           if (!isHeaderRead) {
             continue;
           }
@@ -1332,6 +1474,19 @@ public abstract class Server {
       }
     }
 
+    /**
+     * Drop the request buffer, returning it to the pool if it is pooled.
+     * The requests are deserialized before they are queued,
+     * so the buffer is no longer used once the request is processed.
+     */
+    private void releaseData() {
+      if (data != null && dataPooled) {
+        bufferPool.returnRequestBuffer(data);
+      }
+      data = null;
+      dataPooled = false;
+    }
+
     /**
      * Try to set up the response to indicate that the client version
      * is incompatible with the server. This can contain special-case
@@ -1343,7 +1498,7 @@ public abstract class Server {
     private void setupBadVersionResponse(int clientVersion) throws IOException {
       String errMsg = "Server IPC version " + CURRENT_VERSION +
       " cannot communicate with client version " + clientVersion;
-      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      DataOutputBuffer buffer = new DataOutputBuffer();
       
       if (clientVersion >= 3) {
         Call fakeCall =  new Call(-1, null, this);
@@ -1360,7 +1515,8 @@ public abstract class Server {
         out.writeBoolean(true); // error
         WritableUtils.writeString(out, VersionMismatch.class.getName());
         WritableUtils.writeString(out, errMsg);
-        fakeCall.setResponse(ByteBuffer.wrap(buffer.toByteArray()));
+        fakeCall.setResponse(
+            ByteBuffer.wrap(buffer.getData(), 0, buffer.getLength()));
         
         responder.doRespond(fakeCall);
       }
@@ -1374,9 +1530,9 @@ public abstract class Server {
     }
 
     /// Reads the connection header following version
-    private void processHeader(byte[] buf) throws IOException {
+    private void processHeader(byte[] buf, int length) throws IOException {
       DataInputStream in =
-        new DataInputStream(new ByteArrayInputStream(buf));
+        new DataInputStream(new ByteArrayInputStream(buf, 0, length));
       header.readFields(in);
       protocolName = header.getProtocol();
 
@@ -1447,18 +1603,19 @@ public abstract class Server {
         if (unwrappedData.remaining() == 0) {
           unwrappedDataLengthBuffer.clear();
           unwrappedData.flip();
-          processOneRpc(unwrappedData.array());
+          processOneRpc(unwrappedData.array(), unwrappedData.limit());
           unwrappedData = null;
         }
       }
     }
     
-    private void processOneRpc(byte[] buf) throws IOException,
+    /** Process the RPC in the first length bytes of buf. */
+    private void processOneRpc(byte[] buf, int length) throws IOException,
         InterruptedException {
       if (headerRead) {
-        processData(buf);
+        processData(buf, length);
       } else {
-        processHeader(buf);
+        processHeader(buf, length);
         headerRead = true;
         if (!authorizeConnection()) {
           throw new AccessControlException("Connection from " + this
@@ -1468,9 +1625,10 @@ public abstract class Server {
       }
     }
     
-    private void processData(byte[] buf) throws  IOException, InterruptedException {
+    private void processData(byte[] buf, int length)
+        throws IOException, InterruptedException {
       DataInputStream dis =
-        new DataInputStream(new ByteArrayInputStream(buf));
+        new DataInputStream(new ByteArrayInputStream(buf, 0, length));
       RpcPayloadHeader header = new RpcPayloadHeader();
       header.readFields(dis);           // Read the RpcPayload header
         
@@ -1490,7 +1648,7 @@ public abstract class Server {
             " from client " + getHostAddress());
         final Call readParamsFailedCall = 
             new Call(header.getCallId(), null, this);
-        ByteArrayOutputStream responseBuffer = new ByteArrayOutputStream();
+        DataOutputBuffer responseBuffer = new DataOutputBuffer();
 
         setupResponse(responseBuffer, readParamsFailedCall, Status.FATAL, null,
             IOException.class.getName(),
@@ -1508,7 +1666,7 @@ public abstract class Server {
             this.protocolName + " for rpcKind " + header.getkind(),  t);
         final Call readParamsFailedCall = 
             new Call(header.getCallId(), null, this);
-        ByteArrayOutputStream responseBuffer = new ByteArrayOutputStream();
+        DataOutputBuffer responseBuffer = new DataOutputBuffer();
 
         setupResponse(responseBuffer, readParamsFailedCall, Status.FATAL, null,
             t.getClass().getName(),
@@ -1518,8 +1676,18 @@ public abstract class Server {
       }
         
       Call call = new Call(header.getCallId(), rpcRequest, this, header.getkind());
-      callQueue.put(call);              // queue the call; maybe blocked here
       incRpcCount();  // Increment the rpc count
+      if (!backoffEnabled) {
+        callQueue.put(call);              // queue the call; maybe blocked here
+      } else if (!callQueue.offer(call)) {
+        // the queue is full, tell the client to retry later
+        rpcMetrics.incrCallsBackedOff();
+        DataOutputBuffer responseBuffer = new DataOutputBuffer();
+        setupResponse(responseBuffer, call, Status.ERROR, null,
+            ServerTooBusyException.class.getName(),
+            "Server too busy, " + callQueue.size() + " calls queued");
+        responder.doRespond(call);
+      }
     }
 
     private boolean authorizeConnection() throws IOException {
@@ -1550,6 +1718,7 @@ public abstract class Server {
     private synchronized void close() throws IOException {
       disposeSasl();
       data = null;
+      dataPooled = false;
       dataLengthBuffer = null;
       if (!channel.isOpen())
         return;
@@ -1574,8 +1743,6 @@ public abstract class Server {
     public void run() {
       LOG.debug(getName() + ": starting");
       SERVER.set(Server.this);
-      ByteArrayOutputStream buf = 
-        new ByteArrayOutputStream(INITIAL_RESP_BUF_SIZE);
       while (running) {
         try {
           final Call call = callQueue.take(); // pop the queue; maybe blocked here
@@ -1634,15 +1801,25 @@ public abstract class Server {
             // responder.doResponse() since setupResponse may use
             // SASL to encrypt response data and SASL enforces
             // its own message ordering.
-            setupResponse(buf, call, (error == null) ? Status.SUCCESS
-                : Status.ERROR, value, errorClass, error);
-            
-            // Discard the large buf and reset it back to smaller size 
-            // to free up heap
-            if (buf.size() > maxRespSize) {
-              LOG.warn("Large response size " + buf.size() + " for call "
+            final Status status = (error == null) ? Status.SUCCESS
+                : Status.ERROR;
+            if (--call.responseWaitCount > 0) {
+              // the response is postponed, save the outcome for later
+              call.status = status;
+              call.value = value;
+              call.errorClass = errorClass;
+              call.error = error;
+              continue;
+            }
+            // The response is sent from the buffer, which is returned
+            // to the pool once the response is sent.  The pool discards
+            // the large buffers to free up heap.
+            final DataOutputBuffer buf = bufferPool.getResponseBuffer();
+            setupResponse(buf, call, status, value, errorClass, error);
+            call.responseBuffer = buf;
+            if (buf.getLength() > maxRespSize) {
+              LOG.warn("Large response size " + buf.getLength() + " for call "
                   + call.toString());
-              buf = new ByteArrayOutputStream(INITIAL_RESP_BUF_SIZE);
             }
             responder.doRespond(call);
           }
@@ -1703,6 +1880,8 @@ public abstract class Server {
     this.maxRespSize = conf.getInt(
         CommonConfigurationKeys.IPC_SERVER_RPC_MAX_RESPONSE_SIZE_KEY,
         CommonConfigurationKeys.IPC_SERVER_RPC_MAX_RESPONSE_SIZE_DEFAULT);
+    this.bufferPool = new BufferPool(2 * handlerCount, INITIAL_RESP_BUF_SIZE,
+        maxRespSize);
     if (numReaders != -1) {
       this.readThreads = numReaders;
     } else {
@@ -1710,7 +1889,10 @@ public abstract class Server {
           CommonConfigurationKeys.IPC_SERVER_RPC_READ_THREADS_KEY,
           CommonConfigurationKeys.IPC_SERVER_RPC_READ_THREADS_DEFAULT);      
     }
-    this.callQueue  = new LinkedBlockingQueue<Call>(maxQueueSize); 
+    this.callQueue = createCallQueue(maxQueueSize, conf);
+    this.backoffEnabled = conf.getBoolean(
+        CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_BACKOFF_ENABLE_KEY,
+        CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_BACKOFF_ENABLE_DEFAULT);
     this.maxIdleTime = 2*conf.getInt("ipc.client.connection.maxidletime", 1000);
     this.maxConnectionsToNuke = conf.getInt("ipc.client.kill.max", 10);
     this.thresholdIdleConnections = conf.getInt("ipc.client.idlethreshold", 4000);
@@ -1725,6 +1907,10 @@ public abstract class Server {
     this.port = listener.getAddress().getPort();    
     this.rpcMetrics = RpcMetrics.create(this);
     this.rpcDetailedMetrics = RpcDetailedMetrics.create(this.port);
+    if (callQueue instanceof MetricsSource) {
+      DefaultMetricsSystem.instance().register(getCallQueueSourceName(),
+          "Call queue metrics", (MetricsSource)callQueue);
+    }
     this.tcpNoDelay = conf.getBoolean("ipc.server.tcpnodelay", false);
 
     // Create the responder here
@@ -1735,6 +1921,35 @@ public abstract class Server {
     }
   }
 
+  /**
+   * Create the call queue, of the class configured by
+   * {@link CommonConfigurationKeys#IPC_SERVER_CALLQUEUE_IMPL_KEY}.
+   * The class must have a constructor taking the capacity and the
+   * configuration, or one taking the capacity only.
+   */
+  @SuppressWarnings("unchecked")
+  private static BlockingQueue<Call> createCallQueue(int capacity,
+      Configuration conf) {
+    final Class<? extends BlockingQueue> queueClass = conf.getClass(
+        CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_IMPL_KEY,
+        LinkedBlockingQueue.class, BlockingQueue.class);
+    try {
+      Constructor<? extends BlockingQueue> ctor;
+      try {
+        ctor = queueClass.getConstructor(int.class, Configuration.class);
+        return ctor.newInstance(capacity, conf);
+      } catch (NoSuchMethodException e) {
+        ctor = queueClass.getConstructor(int.class);
+        return ctor.newInstance(capacity);
+      }
+    } catch (InvocationTargetException e) {
+      throw new RuntimeException("Failed to create " + queueClass,
+          e.getCause());
+    } catch (Exception e) {
+      throw new RuntimeException("Failed to create " + queueClass, e);
+    }
+  }
+
   private void closeConnection(Connection connection) {
     synchronized (connectionList) {
       if (connectionList.remove(connection))
@@ -1757,7 +1972,7 @@ public abstract class Server {
    * @param error error message, if the call failed
    * @throws IOException
    */
-  private void setupResponse(ByteArrayOutputStream response, 
+  private void setupResponse(DataOutputBuffer response, 
                              Call call, Status status, 
                              Writable rv, String errorClass, String error) 
   throws IOException {
@@ -1786,17 +2001,20 @@ public abstract class Server {
     if (call.connection.useWrap) {
       wrapWithSasl(response, call);
     }
-    call.setResponse(ByteBuffer.wrap(response.toByteArray()));
+    // the response is sent from the buffer without copying it
+    call.setResponse(ByteBuffer.wrap(response.getData(), 0,
+        response.getLength()));
   }
   
-  private void wrapWithSasl(ByteArrayOutputStream response, Call call)
+  private void wrapWithSasl(DataOutputBuffer response, Call call)
       throws IOException {
     if (call.connection.useSasl) {
-      byte[] token = response.toByteArray();
+      byte[] token;
       // synchronization may be needed since there can be multiple Handler
       // threads using saslServer to wrap responses.
       synchronized (call.connection.saslServer) {
-        token = call.connection.saslServer.wrap(token, 0, token.length);
+        token = call.connection.saslServer.wrap(response.getData(), 0,
+            response.getLength());
       }
       if (LOG.isDebugEnabled())
         LOG.debug("Adding saslServer wrapped token of size " + token.length
@@ -1858,6 +2076,15 @@ public abstract class Server {
     if (this.rpcDetailedMetrics != null) {
       this.rpcDetailedMetrics.shutdown();
     }
+    if (callQueue instanceof MetricsSource) {
+      DefaultMetricsSystem.instance().unregisterSource(
+          getCallQueueSourceName());
+    }
+  }
+
+  /** @return the name of the metrics source of the call queue */
+  String getCallQueueSourceName() {
+    return "CallQueueForPort" + port;
   }
 
   /** Wait for the server to be stopped.
@@ -1964,6 +2191,9 @@ public abstract class Server {
    * be smaller.
    */
   private static int NIO_BUFFER_LIMIT = 8*1024; //should not be more than 64KB.
+
+  /** The maximum number of responses gathered into a single write. */
+  private static final int MAX_GATHERED_RESPONSES = 16;
   
   /**
    * This is a wrapper around {@link WritableByteChannel#write(ByteBuffer)}.
@@ -69,6 +69,8 @@ public class RpcMetrics {
   MutableCounterInt rpcAuthorizationFailures;
   @Metric("Number of authorization sucesses")
   MutableCounterInt rpcAuthorizationSuccesses;
+  @Metric("Number of calls rejected because the call queue was full")
+  MutableCounterLong rpcCallsBackedOff;
 
   @Metric("Number of open connections") public int numOpenConnections() {
     return server.getNumOpenConnections();
@@ -115,6 +117,14 @@ public class RpcMetrics {
     rpcAuthorizationFailures.incr();
   }
 
+  /**
+   * One call rejected because the call queue was full
+   */
+  //@Override
+  public void incrCallsBackedOff() {
+    rpcCallsBackedOff.incr();
+  }
+
   /**
    * Shutdown the instrumentation for the process
    */
@@ -54,6 +54,12 @@ public abstract class MetricsSystem implements MetricsSystemMXBean {
     return register(null, null, source);
   }
 
+  /**
+   * Unregister a metrics source
+   * @param name  of the source. This is the name you use to call register()
+   */
+  public abstract void unregisterSource(String name);
+
   /**
    * @param name  of the metrics source
    * @return the metrics source (potentially wrapped) object
@@ -0,0 +1,241 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.security.UserGroupInformation;
+
+/**
+ * FairCallQueueBenchmark measures the latency of the calls of well-behaved
+ * users while another user floods the server with calls, with the default
+ * FIFO call queue and with {@link FairCallQueue}.
+ *
+ * The abusive user makes calls back to back from many threads.  Each
+ * well-behaved user makes a call from a single thread, then pauses.
+ * Every call keeps a handler busy for the given time.
+ *
+ * Input arguments:
+ * <ul>
+ * <li>seconds - duration of each run, default 20</li>
+ * <li>handlers - number of handler threads of the server, default 4</li>
+ * <li>abusiveThreads - number of threads of the abusive user, default 64</li>
+ * <li>users - number of well-behaved users, default 4</li>
+ * <li>callMillis - time a call keeps a handler busy, default 1</li>
+ * <li>pauseMillis - pause between two calls of a well-behaved user,
+ * default 20</li>
+ * </ul>
+ */
+public class FairCallQueueBenchmark {
+  public interface BenchmarkProtocol extends VersionedProtocol {
+    public static final long versionID = 1L;
+
+    void work(long millis) throws IOException;
+  }
+
+  static class BenchmarkImpl implements BenchmarkProtocol {
+    @Override
+    public long getProtocolVersion(String protocol, long clientVersion) {
+      return versionID;
+    }
+
+    @Override
+    public ProtocolSignature getProtocolSignature(String protocol,
+        long clientVersion, int hashcode) {
+      return new ProtocolSignature(versionID, null);
+    }
+
+    @Override
+    public void work(long millis) {
+      try {
+        Thread.sleep(millis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private final int seconds;
+  private final int handlers;
+  private final int abusiveThreads;
+  private final int users;
+  private final long callMillis;
+  private final long pauseMillis;
+
+  FairCallQueueBenchmark(int seconds, int handlers, int abusiveThreads,
+      int users, long callMillis, long pauseMillis) {
+    this.seconds = seconds;
+    this.handlers = handlers;
+    this.abusiveThreads = abusiveThreads;
+    this.users = users;
+    this.callMillis = callMillis;
+    this.pauseMillis = pauseMillis;
+  }
+
+  /** A client thread making calls as a user. */
+  private class Caller extends Thread {
+    private final UserGroupInformation ugi;
+    private final InetSocketAddress addr;
+    private final Configuration conf;
+    private final AtomicBoolean running;
+    private final long pause;
+    /** Latencies of the calls in milliseconds, if they are recorded. */
+    private final List<Long> latencies;
+    private final AtomicLong failures;
+
+    Caller(String user, InetSocketAddress addr, Configuration conf,
+        AtomicBoolean running, long pause, List<Long> latencies,
+        AtomicLong failures) {
+      this.ugi = UserGroupInformation.createRemoteUser(user);
+      this.addr = addr;
+      this.conf = conf;
+      this.running = running;
+      this.pause = pause;
+      this.latencies = latencies;
+      this.failures = failures;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        final BenchmarkProtocol proxy = ugi.doAs(
+            new PrivilegedExceptionAction<BenchmarkProtocol>() {
+              @Override
+              public BenchmarkProtocol run() throws IOException {
+                return (BenchmarkProtocol)RPC.getProxy(BenchmarkProtocol.class,
+                    BenchmarkProtocol.versionID, addr, conf);
+              }
+            });
+        try {
+          while (running.get()) {
+            final long start = System.currentTimeMillis();
+            try {
+              proxy.work(callMillis);
+              if (latencies != null) {
+                latencies.add(System.currentTimeMillis() - start);
+              }
+            } catch (IOException e) {
+              failures.incrementAndGet();
+            }
+            if (pause > 0) {
+              Thread.sleep(pause);
+            }
+          }
+        } finally {
+          RPC.stopProxy(proxy);
+        }
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /**
+   * Run the benchmark with the configuration.
+   * @return the latencies of the calls of the well-behaved users
+   */
+  long[] run(Configuration conf) throws Exception {
+    final Server server = RPC.getServer(BenchmarkProtocol.class,
+        new BenchmarkImpl(), "0.0.0.0", 0, handlers, false, conf, null);
+    server.start();
+    final InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final AtomicLong failures = new AtomicLong();
+    final List<Long> latencies =
+        Collections.synchronizedList(new ArrayList<Long>());
+    final List<Caller> callers = new ArrayList<Caller>();
+    try {
+      for (int i = 0; i < abusiveThreads; i++) {
+        callers.add(new Caller("abusive", addr, conf, running, 0, null,
+            failures));
+      }
+      for (int i = 0; i < users; i++) {
+        callers.add(new Caller("user" + i, addr, conf, running, pauseMillis,
+            latencies, failures));
+      }
+      for (Caller c : callers) {
+        c.start();
+      }
+      Thread.sleep(seconds * 1000L);
+    } finally {
+      running.set(false);
+      for (Caller c : callers) {
+        c.join();
+      }
+      server.stop();
+    }
+
+    final long[] result = new long[latencies.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = latencies.get(i);
+    }
+    if (failures.get() > 0) {
+      System.out.println("Failed calls: " + failures.get());
+    }
+    return result;
+  }
+
+  static void printLatencies(String name, long[] latencies) {
+    Arrays.sort(latencies);
+    if (latencies.length == 0) {
+      System.out.println(name + ": no calls");
+      return;
+    }
+    long sum = 0;
+    for (long l : latencies) {
+      sum += l;
+    }
+    System.out.println(name + ": calls = " + latencies.length
+        + ", mean = " + (sum / latencies.length) + " ms"
+        + ", median = " + latencies[latencies.length / 2] + " ms"
+        + ", p99 = " + latencies[(int)(latencies.length * 0.99)] + " ms"
+        + ", max = " + latencies[latencies.length - 1] + " ms");
+  }
+
+  public static void main(String[] args) throws Exception {
+    final int[] values = {20, 4, 64, 4, 1, 20};
+    for (int i = 0; i < args.length && i < values.length; i++) {
+      values[i] = Integer.parseInt(args[i]);
+    }
+    final FairCallQueueBenchmark bench = new FairCallQueueBenchmark(
+        values[0], values[1], values[2], values[3], values[4], values[5]);
+
+    final Configuration fifo = new Configuration();
+    printLatencies("FIFO call queue", bench.run(fifo));
+
+    final Configuration fair = new Configuration();
+    fair.setClass(CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_IMPL_KEY,
+        FairCallQueue.class, BlockingQueue.class);
+    fair.setLong(
+        CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_DECAY_PERIOD_MS_KEY, 1000);
+    printLatencies("Fair call queue", bench.run(fair));
+  }
+}
@@ -0,0 +1,141 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.ipc.RpcPayloadHeader.RpcKind;
+import org.apache.hadoop.net.NetUtils;
+
+/**
+ * RPCAllocationBenchmark measures the heap allocated per call by the IPC
+ * client and server, which echoes the parameter of the calls.
+ *
+ * The allocation is measured with the per-thread allocation counters of
+ * the JVM, summed over all the threads, so the benchmark needs a JVM which
+ * supports them.  The measurement includes the allocation of the
+ * serialization of the parameters and of the results.
+ *
+ * Input arguments:
+ * <ul>
+ * <li>calls - number of measured calls, default 100000</li>
+ * <li>size - size of the parameter of a call in bytes, default 100</li>
+ * <li>clients - number of client threads, default 1</li>
+ * <li>handlers - number of handler threads of the server, default 1</li>
+ * </ul>
+ */
+public class RPCAllocationBenchmark {
+  private static class EchoServer extends Server {
+    EchoServer(int handlerCount, Configuration conf) throws IOException {
+      super("0.0.0.0", 0, BytesWritable.class, handlerCount, conf);
+    }
+
+    @Override
+    public Writable call(RpcKind rpcKind, String protocol, Writable param,
+        long receiveTime) throws IOException {
+      return param;
+    }
+  }
+
+  /** @return the heap allocated so far by all the live threads. */
+  private static long getAllocatedBytes() {
+    final com.sun.management.ThreadMXBean bean =
+        (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long total = 0;
+    for(long bytes : bean.getThreadAllocatedBytes(bean.getAllThreadIds())) {
+      if (bytes > 0) {
+        total += bytes;
+      }
+    }
+    return total;
+  }
+
+  private static void makeCalls(final Client client,
+      final InetSocketAddress addr, final Configuration conf,
+      int numThreads, final int numCalls, int size) throws Exception {
+    final byte[] bytes = new byte[size];
+    new Random().nextBytes(bytes);
+    final Thread[] threads = new Thread[numThreads];
+    final Exception[] errors = new Exception[numThreads];
+    for(int t = 0; t < numThreads; t++) {
+      final int id = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          final BytesWritable param = new BytesWritable(bytes);
+          try {
+            for(int i = 0; i < numCalls; i++) {
+              client.call(param, addr, null, null, 0, conf);
+            }
+          } catch(Exception e) {
+            errors[id] = e;
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for(int t = 0; t < numThreads; t++) {
+      threads[t].join();
+      if (errors[t] != null) {
+        throw errors[t];
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    final int numCalls = args.length > 0? Integer.parseInt(args[0]): 100000;
+    final int size = args.length > 1? Integer.parseInt(args[1]): 100;
+    final int numClients = args.length > 2? Integer.parseInt(args[2]): 1;
+    final int numHandlers = args.length > 3? Integer.parseInt(args[3]): 1;
+
+    final Configuration conf = new Configuration();
+    final Server server = new EchoServer(numHandlers, conf);
+    server.start();
+    final Client client = new Client(BytesWritable.class, conf);
+    try {
+      final InetSocketAddress addr = NetUtils.getConnectAddress(server);
+      final int callsPerClient = numCalls / numClients;
+
+      // warm up the connections, the JIT and the buffer pools
+      makeCalls(client, addr, conf, numClients, callsPerClient / 10 + 1, size);
+
+      final long startBytes = getAllocatedBytes();
+      final long startTime = System.nanoTime();
+      makeCalls(client, addr, conf, numClients, callsPerClient, size);
+      final long millis = (System.nanoTime() - startTime) / 1000000;
+      final long bytes = getAllocatedBytes() - startBytes;
+
+      final long calls = (long)callsPerClient * numClients;
+      System.out.println("calls = " + calls + ", size = " + size
+          + ", clients = " + numClients + ", handlers = " + numHandlers);
+      System.out.println("time = " + millis + " ms, "
+          + (calls * 1000 / Math.max(millis, 1)) + " calls/s");
+      System.out.println("allocated = " + bytes + " bytes, "
+          + (bytes / calls) + " bytes/call");
+    } finally {
+      client.stop();
+      server.stop();
+    }
+  }
+}
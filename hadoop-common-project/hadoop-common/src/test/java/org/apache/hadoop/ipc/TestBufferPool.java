@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.Test;
+
+/**
+ * Test for {@link BufferPool} class
+ */
+public class TestBufferPool {
+  @Test
+  public void testRequestBuffers() {
+    BufferPool pool = new BufferPool(2, 1024, 4096);
+    int[] sizes = {0, 1, 1024, 1025, 2048, 5000, 65536};
+    int[] capacities = {1024, 1024, 1024, 2048, 2048, 8192, 65536};
+    for (int i = 0; i < sizes.length; i++) {
+      ByteBuffer b = pool.getRequestBuffer(sizes[i]);
+      assertEquals(0, b.position());
+      assertEquals(sizes[i], b.limit());
+      assertEquals(capacities[i], b.capacity());
+      b.put(new byte[sizes[i]]);
+      pool.returnRequestBuffer(b);
+      // the buffer is reused for the requests of the same size class
+      assertSame(b, pool.getRequestBuffer(sizes[i]));
+    }
+
+    // the large requests are not pooled
+    ByteBuffer large = pool.getRequestBuffer(65537);
+    assertEquals(65537, large.capacity());
+    pool.returnRequestBuffer(large);
+    assertNotSame(large, pool.getRequestBuffer(65537));
+  }
+
+  @Test
+  public void testPoolIsBounded() {
+    BufferPool pool = new BufferPool(2, 1024, 4096);
+    ByteBuffer[] buffers = new ByteBuffer[3];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = pool.getRequestBuffer(100);
+    }
+    for (ByteBuffer b : buffers) {
+      pool.returnRequestBuffer(b);
+    }
+    assertSame(buffers[0], pool.getRequestBuffer(100));
+    assertSame(buffers[1], pool.getRequestBuffer(100));
+    assertNotSame(buffers[2], pool.getRequestBuffer(100));
+  }
+
+  @Test
+  public void testResponseBuffers() throws Exception {
+    BufferPool pool = new BufferPool(2, 1024, 4096);
+    DataOutputBuffer b = pool.getResponseBuffer();
+    assertEquals(0, b.getLength());
+    b.write(new byte[100]);
+    pool.returnResponseBuffer(b);
+    assertSame(b, pool.getResponseBuffer());
+    assertEquals(0, b.getLength());
+
+    // the buffers which grew too large are discarded
+    b.write(new byte[10000]);
+    pool.returnResponseBuffer(b);
+    assertNotSame(b, pool.getResponseBuffer());
+  }
+}
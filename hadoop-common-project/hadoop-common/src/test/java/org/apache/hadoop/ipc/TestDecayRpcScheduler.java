@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import static org.junit.Assert.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.junit.Test;
+
+public class TestDecayRpcScheduler {
+  private static final long PERIOD = 60000;
+
+  private static Schedulable call(String user) {
+    final UserGroupInformation ugi = UserGroupInformation.createRemoteUser(user);
+    return new Schedulable() {
+      @Override
+      public UserGroupInformation getUserGroupInformation() {
+        return ugi;
+      }
+    };
+  }
+
+  private static Configuration newConf() {
+    Configuration conf = new Configuration();
+    conf.setLong(CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_DECAY_PERIOD_MS_KEY,
+        PERIOD);
+    return conf;
+  }
+
+  private static void schedule(DecayRpcScheduler scheduler, String user,
+      int calls) {
+    Schedulable c = call(user);
+    for (int i = 0; i < calls; i++) {
+      scheduler.getPriorityLevel(c);
+    }
+  }
+
+  @Test
+  public void testLevels() {
+    DecayRpcScheduler scheduler = new DecayRpcScheduler(4, newConf());
+    schedule(scheduler, "heavy", 600);
+    schedule(scheduler, "medium", 300);
+    schedule(scheduler, "light", 100);
+    // no level before the first decay
+    assertEquals(0, scheduler.getPriorityLevel(call("heavy")));
+    assertEquals(1001, scheduler.getTotalCallCount());
+
+    scheduler.decayIfNeeded(System.currentTimeMillis() + PERIOD);
+    assertEquals(300, scheduler.getCallCount("heavy"));
+    assertEquals(150, scheduler.getCallCount("medium"));
+    assertEquals(50, scheduler.getCallCount("light"));
+    assertEquals(500, scheduler.getTotalCallCount());
+    // above 50%, 25% and 12.5% of the calls
+    assertEquals(3, scheduler.getPriorityLevel(call("heavy")));
+    assertEquals(2, scheduler.getPriorityLevel(call("medium")));
+    assertEquals(0, scheduler.getPriorityLevel(call("light")));
+    assertEquals(0, scheduler.getPriorityLevel(call("new")));
+  }
+
+  @Test
+  public void testDecay() {
+    DecayRpcScheduler scheduler = new DecayRpcScheduler(2, newConf());
+    schedule(scheduler, "a", 8);
+    schedule(scheduler, "b", 1);
+    long now = System.currentTimeMillis();
+    scheduler.decayIfNeeded(now + PERIOD / 2);
+    assertEquals(8, scheduler.getCallCount("a"));
+
+    // two periods at once
+    scheduler.decayIfNeeded(now + 2 * PERIOD);
+    assertEquals(2, scheduler.getCallCount("a"));
+    // the count of b is dropped
+    assertEquals(0, scheduler.getCallCount("b"));
+    assertEquals(2, scheduler.getTotalCallCount());
+    assertEquals(1, scheduler.getPriorityLevel(call("a")));
+  }
+
+  @Test
+  public void testConfiguredThresholds() {
+    Configuration conf = newConf();
+    conf.set(CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_DECAY_THRESHOLDS_KEY,
+        "10, 90");
+    DecayRpcScheduler scheduler = new DecayRpcScheduler(3, conf);
+    schedule(scheduler, "a", 80);
+    schedule(scheduler, "b", 20);
+    scheduler.decayIfNeeded(System.currentTimeMillis() + PERIOD);
+    assertEquals(1, scheduler.getPriorityLevel(call("a")));
+    assertEquals(1, scheduler.getPriorityLevel(call("b")));
+
+    conf.set(CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_DECAY_THRESHOLDS_KEY,
+        "10");
+    try {
+      new DecayRpcScheduler(3, conf);
+      fail("The number of thresholds does not match the levels");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
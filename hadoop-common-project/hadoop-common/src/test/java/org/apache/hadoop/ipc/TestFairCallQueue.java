@@ -0,0 +1,267 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.ipc.RpcPayloadHeader.RpcKind;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.junit.Test;
+
+public class TestFairCallQueue {
+  /** A call of a user, which the scheduler puts at the level in its name. */
+  static class TestCall implements Schedulable {
+    final UserGroupInformation ugi;
+    final int level;
+    final int id;
+
+    TestCall(int level, int id) {
+      this.ugi = UserGroupInformation.createRemoteUser("user" + level);
+      this.level = level;
+      this.id = id;
+    }
+
+    @Override
+    public UserGroupInformation getUserGroupInformation() {
+      return ugi;
+    }
+
+    @Override
+    public String toString() {
+      return level + "." + id;
+    }
+  }
+
+  private static final RpcScheduler LEVEL_SCHEDULER = new RpcScheduler() {
+    @Override
+    public int getPriorityLevel(Schedulable obj) {
+      return ((TestCall)obj).level;
+    }
+  };
+
+  private static FairCallQueue<TestCall> newQueue(int capacity, int levels,
+      String weights) {
+    Configuration conf = new Configuration();
+    conf.setInt(CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_FAIR_LEVELS_KEY,
+        levels);
+    if (weights != null) {
+      conf.set(CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_FAIR_WEIGHTS_KEY,
+          weights);
+    }
+    return new FairCallQueue<TestCall>(capacity, conf, LEVEL_SCHEDULER);
+  }
+
+  @Test
+  public void testFifoWithinLevel() throws Exception {
+    FairCallQueue<TestCall> queue = newQueue(40, 4, null);
+    List<TestCall> calls = new ArrayList<TestCall>();
+    for (int i = 0; i < 5; i++) {
+      calls.add(new TestCall(2, i));
+      queue.put(calls.get(i));
+    }
+    assertEquals(5, queue.size());
+    assertEquals(5, queue.getQueueSize(2));
+    assertEquals(5, queue.getCallsQueued(2));
+    for (TestCall c : calls) {
+      assertSame(c, queue.take());
+    }
+    assertEquals(0, queue.size());
+    assertNull(queue.poll());
+    assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testWeightedRoundRobin() throws Exception {
+    FairCallQueue<TestCall> queue = newQueue(20, 2, "2,1");
+    for (int i = 0; i < 6; i++) {
+      queue.put(new TestCall(0, i));
+      queue.put(new TestCall(1, i));
+    }
+    StringBuilder order = new StringBuilder();
+    for (int i = 0; i < 12; i++) {
+      order.append(queue.take()).append(' ');
+    }
+    // two calls of level 0 for each call of level 1,
+    // then the remaining calls of level 1
+    assertEquals("0.0 0.1 1.0 0.2 0.3 1.1 0.4 0.5 1.2 1.3 1.4 1.5 ",
+        order.toString());
+  }
+
+  @Test
+  public void testDefaultWeights() throws Exception {
+    FairCallQueue<TestCall> queue = newQueue(400, 3, null);
+    for (int i = 0; i < 70; i++) {
+      for (int level = 0; level < 3; level++) {
+        queue.put(new TestCall(level, i));
+      }
+    }
+    int[] taken = new int[3];
+    for (int i = 0; i < 70; i++) {
+      taken[queue.take().level]++;
+    }
+    // weights 4, 2, 1
+    assertArrayEquals(new int[] {40, 20, 10}, taken);
+  }
+
+  @Test
+  public void testOverflowToLowerLevels() throws Exception {
+    FairCallQueue<TestCall> queue = newQueue(3, 3, null);
+    assertEquals(3, queue.remainingCapacity());
+    assertTrue(queue.offer(new TestCall(1, 0)));
+    // level 1 is full, the call goes to level 2
+    assertTrue(queue.offer(new TestCall(1, 1)));
+    assertEquals(1, queue.getQueueSize(1));
+    assertEquals(1, queue.getQueueSize(2));
+    // no room at level 1 or below
+    assertFalse(queue.offer(new TestCall(1, 2)));
+    assertFalse(queue.offer(new TestCall(2, 0), 10, TimeUnit.MILLISECONDS));
+    // there is room at level 0
+    assertTrue(queue.offer(new TestCall(0, 0)));
+    assertEquals(0, queue.remainingCapacity());
+
+    List<TestCall> drained = new ArrayList<TestCall>();
+    assertEquals(3, queue.drainTo(drained));
+    assertEquals("[0.0, 1.0, 1.1]", drained.toString());
+  }
+
+  /**
+   * The iterator goes over the levels in priority order, and the
+   * collection methods built on it work.
+   */
+  @Test(timeout=10000)
+  public void testIterator() throws Exception {
+    FairCallQueue<TestCall> queue = newQueue(30, 3, null);
+    List<TestCall> calls = new ArrayList<TestCall>();
+    for (int i = 0; i < 2; i++) {
+      for (int level = 2; level >= 0; level--) {
+        TestCall call = new TestCall(level, i);
+        calls.add(call);
+        queue.put(call);
+      }
+    }
+    List<TestCall> iterated = new ArrayList<TestCall>();
+    for (Iterator<TestCall> i = queue.iterator(); i.hasNext(); ) {
+      iterated.add(i.next());
+    }
+    assertEquals("[0.0, 0.1, 1.0, 1.1, 2.0, 2.1]", iterated.toString());
+    assertEquals(iterated, Arrays.asList(queue.toArray()));
+    assertEquals(6, queue.toArray(new TestCall[0]).length);
+    assertTrue(queue.containsAll(calls));
+    assertFalse(queue.contains(new TestCall(1, 0)));
+
+    // a call removed is no longer taken
+    TestCall removed = calls.get(1);
+    assertTrue(queue.remove(removed));
+    assertFalse(queue.contains(removed));
+    assertFalse(queue.remove(removed));
+    assertEquals(5, queue.size());
+    List<TestCall> drained = new ArrayList<TestCall>();
+    assertEquals(5, queue.drainTo(drained));
+    assertFalse(drained.contains(removed));
+    assertNull(queue.poll());
+
+    // the iterator is weakly consistent
+    queue.put(new TestCall(0, 2));
+    queue.put(new TestCall(1, 2));
+    Iterator<TestCall> i = queue.iterator();
+    assertEquals(0, i.next().level);
+    assertEquals(2, queue.drainTo(drained));
+    assertFalse(i.hasNext());
+    try {
+      i.next();
+      fail("Iterated past the last call");
+    } catch (NoSuchElementException e) {
+      // expected
+    }
+  }
+
+  @Test(timeout=10000)
+  public void testTakeWaitsForPut() throws Exception {
+    final FairCallQueue<TestCall> queue = newQueue(10, 2, null);
+    final TestCall call = new TestCall(1, 0);
+    Thread putter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+          queue.put(call);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    putter.start();
+    assertSame(call, queue.take());
+    putter.join();
+  }
+
+  @Test(timeout=10000)
+  public void testPutWaitsForTake() throws Exception {
+    final FairCallQueue<TestCall> queue = newQueue(2, 2, null);
+    queue.put(new TestCall(1, 0));
+    Thread putter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          queue.put(new TestCall(1, 1));
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    putter.start();
+    Thread.sleep(100);
+    assertTrue(putter.isAlive());
+    assertEquals(0, queue.take().id);
+    putter.join();
+    assertEquals(1, queue.take().id);
+  }
+
+  /** The metrics source of the call queue of a server goes with it. */
+  @Test(timeout=10000)
+  public void testMetricsSourceUnregisteredOnStop() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setClass(CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_IMPL_KEY,
+        FairCallQueue.class, BlockingQueue.class);
+    Server server = new Server("0.0.0.0", 0, LongWritable.class, 1, conf) {
+      @Override
+      public Writable call(RpcKind rpcKind, String protocol, Writable param,
+          long receiveTime) {
+        return param;
+      }
+    };
+    String name = server.getCallQueueSourceName();
+    server.start();
+    assertNotNull(DefaultMetricsSystem.instance().getSource(name));
+    server.stop();
+    assertNull(DefaultMetricsSystem.instance().getSource(name));
+  }
+}
@@ -27,6 +27,8 @@ import org.apache.hadoop.ipc.RpcPayloadHeader.RpcKind;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.net.NetUtils;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
@@ -38,6 +40,8 @@ import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import javax.net.SocketFactory;
 
 import org.junit.Test;
@@ -45,6 +49,7 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
 import org.junit.Assume;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
@@ -215,6 +220,108 @@ public class TestIPC {
     }
     server.stop();
   }
+
+  /** Many calls in progress at once from a single thread. */
+  @Test(timeout=60000)
+  public void testAsyncCalls() throws Exception {
+    testAsyncCalls(conf, 1);
+    Configuration pooledConf = new Configuration(conf);
+    pooledConf.setInt(
+        CommonConfigurationKeys.IPC_CLIENT_CONNECTIONS_PER_REMOTE_KEY, 3);
+    testAsyncCalls(pooledConf, 3);
+  }
+
+  private void testAsyncCalls(Configuration conf, int numConnections)
+      throws Exception {
+    Server server = new TestServer(5, false);
+    InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    server.start();
+    Client client = new Client(LongWritable.class, conf);
+    try {
+      Client.ConnectionId remoteId =
+          Client.ConnectionId.getConnectionId(addr, null, null, 0, conf);
+      List<Future<Writable>> results = new ArrayList<Future<Writable>>();
+      for (int i = 0; i < 1000; i++) {
+        results.add(client.callAsync(RpcKind.RPC_BUILTIN,
+            new LongWritable(i), remoteId));
+      }
+      for (int i = 0; i < results.size(); i++) {
+        assertEquals(new LongWritable(i), results.get(i).get());
+        assertTrue(results.get(i).isDone());
+      }
+      assertEquals(numConnections, client.getConnectionIds().size());
+    } finally {
+      client.stop();
+      server.stop();
+    }
+  }
+
+  /** All the threads waiting for an asynchronous call get its result. */
+  @Test(timeout=60000)
+  public void testAsyncCallSeveralWaiters() throws Exception {
+    // the server sleeps, so that the waiters wait for the call
+    Server server = new TestServer(1, true);
+    InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    server.start();
+    Client client = new Client(LongWritable.class, conf);
+    try {
+      Client.ConnectionId remoteId =
+          Client.ConnectionId.getConnectionId(addr, null, null, 0, conf);
+      final Future<Writable> result = client.callAsync(RpcKind.RPC_BUILTIN,
+          new LongWritable(7), remoteId);
+      final Writable[] values = new Writable[5];
+      Thread[] waiters = new Thread[values.length];
+      for (int i = 0; i < waiters.length; i++) {
+        final int waiter = i;
+        waiters[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              values[waiter] = result.get();
+            } catch (Exception e) {
+              LOG.warn("Waiter " + waiter + " failed", e);
+            }
+          }
+        };
+        waiters[i].start();
+      }
+      for (Thread waiter : waiters) {
+        waiter.join();
+      }
+      for (Writable value : values) {
+        assertEquals(new LongWritable(7), value);
+      }
+    } finally {
+      client.stop();
+      server.stop();
+    }
+  }
+
+  /** The errors of an asynchronous call are thrown by the future. */
+  @Test(timeout=60000)
+  public void testAsyncCallError() throws Exception {
+    Server server = new TestServer(1, false);
+    InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    server.start();
+    Client client = new Client(LongWritable.class, conf);
+    try {
+      Client.ConnectionId remoteId =
+          Client.ConnectionId.getConnectionId(addr, null, null, 0, conf);
+      Future<Writable> result = client.callAsync(RpcKind.RPC_BUILTIN,
+          new IOEOnWriteWritable(), remoteId);
+      try {
+        result.get();
+        fail("Expected an exception");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IOException);
+      }
+      assertTrue(result.isDone());
+      assertFalse(result.cancel(true));
+    } finally {
+      client.stop();
+      server.stop();
+    }
+  }
 	
   @Test
   public void testParallel() throws Exception {
@@ -259,6 +366,71 @@ public class TestIPC {
     }
   }
 	
+  /**
+   * A server which postpones the responses to its calls
+   * until a given number of calls have been received.
+   */
+  private static class PostponingServer extends Server {
+    private final int numCalls;
+    private final List<PostponedResponse> postponed =
+        new ArrayList<PostponedResponse>();
+
+    PostponingServer(int numCalls) throws IOException {
+      super(ADDRESS, 0, LongWritable.class, 1, conf);
+      this.numCalls = numCalls;
+    }
+
+    @Override
+    public Writable call(RpcKind rpcKind, String protocol, Writable param,
+        long receiveTime) throws IOException {
+      final PostponedResponse response = Server.postponeResponse();
+      assertNotNull(response);
+      synchronized (postponed) {
+        postponed.add(response);
+        if (postponed.size() == numCalls) {
+          new Thread() {
+            @Override
+            public void run() {
+              synchronized (postponed) {
+                for (PostponedResponse r : postponed) {
+                  r.release();
+                }
+              }
+            }
+          }.start();
+        }
+      }
+      return param;
+    }
+  }
+
+  /**
+   * A single handler serves further calls while the responses
+   * to earlier calls are postponed, and the responses are sent
+   * once released.
+   */
+  @Test(timeout=60000)
+  public void testPostponedResponse() throws Exception {
+    final int callerCount = 5;
+    Server server = new PostponingServer(callerCount);
+    InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    server.start();
+    assertNull(Server.postponeResponse());
+
+    Client client = new Client(LongWritable.class, conf);
+    SerialCaller[] callers = new SerialCaller[callerCount];
+    for (int i = 0; i < callerCount; i++) {
+      callers[i] = new SerialCaller(client, addr, 1);
+      callers[i].start();
+    }
+    for (int i = 0; i < callerCount; i++) {
+      callers[i].join();
+      assertFalse(callers[i].failed);
+    }
+    client.stop();
+    server.stop();
+  }
+
   @Test
   public void testStandAloneClient() throws Exception {
     testParallel(10, false, 2, 4, 2, 4, 100);
@@ -118,6 +118,18 @@ public class TestMetricsSystemImpl {
     assertNotSame(s1, s2);
   }
 
+  @Test public void testUnregisterSource() {
+    MetricsSystem ms = new MetricsSystemImpl();
+    TestSource ts1 = new TestSource("ts1");
+    ms.register("ts1", "", ts1);
+    assertNotNull(ms.getSource("ts1"));
+    ms.unregisterSource("ts1");
+    assertNull(ms.getSource("ts1"));
+    // the name can be used again
+    ms.register("ts1", "", ts1);
+    assertNotNull(ms.getSource("ts1"));
+  }
+
   @Test(expected=MetricsException.class) public void testRegisterDupError() {
     MetricsSystem ms = new MetricsSystemImpl("test");
     TestSource ts = new TestSource("ts");
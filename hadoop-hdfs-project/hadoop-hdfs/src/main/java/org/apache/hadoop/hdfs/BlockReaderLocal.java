@@ -58,6 +58,11 @@ import org.apache.hadoop.util.DataChecksum;
  * <li>Client uses kerberos authentication to connect to the datanode over RPC,
  * if security is enabled.</li>
  * </ul>
+ * If {@link DFSConfigKeys#DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_KEY} is set,
+ * the files of the blocks the namenode reports complete are mapped into
+ * memory and the mappings are cached, see {@link MappedBlock}.  The data is then read without copying it
+ * into intermediate buffers, and the checksum of each chunk is verified once
+ * for all the readers of the block.
  */
 class BlockReaderLocal implements BlockReader {
   private static final Log LOG = LogFactory.getLog(DFSClient.class);
@@ -66,6 +71,8 @@ class BlockReaderLocal implements BlockReader {
   private static class LocalDatanodeInfo {
     private ClientDatanodeProtocol proxy = null;
     private final Map<ExtendedBlock, BlockLocalPathInfo> cache;
+    /** The mapped blocks by block id, created on first use. */
+    private Map<Long, MappedBlock> mappedBlocks = null;
 
     LocalDatanodeInfo() {
       final int cacheSize = 10000;
@@ -112,6 +119,41 @@ class BlockReaderLocal implements BlockReader {
     private void removeBlockLocalPathInfo(ExtendedBlock b) {
       cache.remove(b);
     }
+
+    /**
+     * Get the mapping of a block from the cache, or map the block.
+     * @return the mapped block, or null if the block cannot be mapped.
+     */
+    private synchronized MappedBlock getMappedBlock(ExtendedBlock b,
+        BlockLocalPathInfo info, boolean verifyChecksum, Configuration conf)
+        throws IOException {
+      if (mappedBlocks == null) {
+        final int cacheSize = conf.getInt(
+            DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_CACHE_SIZE_KEY,
+            DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_CACHE_SIZE_DEFAULT);
+        mappedBlocks = new LinkedHashMap<Long, MappedBlock>(16, 0.75f, true) {
+          private static final long serialVersionUID = 1;
+
+          @Override
+          protected boolean removeEldestEntry(
+              Map.Entry<Long, MappedBlock> eldest) {
+            return size() > cacheSize;
+          }
+        };
+      }
+
+      MappedBlock mapped = mappedBlocks.get(b.getBlockId());
+      // a block is remapped if it has changed, e.g. by an append,
+      // or if its checksums are needed but were not mapped.
+      if (mapped == null || !mapped.isMappingOf(b)
+          || (verifyChecksum && !mapped.isVerifyingChecksum())) {
+        mapped = MappedBlock.map(b, info, verifyChecksum);
+        if (mapped != null) {
+          mappedBlocks.put(b.getBlockId(), mapped);
+        }
+      }
+      return mapped;
+    }
   }
   
   // Multiple datanodes could be running on the local machine. Store proxies in
@@ -121,6 +163,11 @@ class BlockReaderLocal implements BlockReader {
   private final FileInputStream dataIn; // reader for the data file
   private FileInputStream checksumIn;   // reader for the checksum file
 
+  /** The mapped block, or null if the block is read from the streams. */
+  private final MappedBlock mapped;
+  /** The position in the mapped block. */
+  private int mappedPos;
+
   private int offsetFromChunkBoundary;
   
   private byte[] skipBuf = null;
@@ -140,10 +187,15 @@ class BlockReaderLocal implements BlockReader {
   
   /**
    * The only way this object can be instantiated.
+   * @param blockComplete whether the namenode reports the block complete.
+   *        Only the files of complete blocks are mapped, since the replica
+   *        of a block being written or recovered may be truncated, and a
+   *        read of a truncated mapping faults.
    */
   static BlockReaderLocal newBlockReader(Configuration conf, String file,
       ExtendedBlock blk, Token<BlockTokenIdentifier> token, DatanodeInfo node,
-      int socketTimeout, long startOffset, long length) throws IOException {
+      int socketTimeout, long startOffset, long length, boolean blockComplete)
+      throws IOException {
 
     LocalDatanodeInfo localDatanodeInfo = getLocalDatanodeInfo(node
         .getIpcPort());
@@ -164,6 +216,21 @@ class BlockReaderLocal implements BlockReader {
     BlockReaderLocal localBlockReader = null;
     boolean skipChecksumCheck = skipChecksumCheck(conf);
     try {
+      if (blockComplete && mapBlocks(conf)) {
+        final MappedBlock mappedBlock = localDatanodeInfo.getMappedBlock(blk,
+            pathinfo, !skipChecksumCheck, conf);
+        if (mappedBlock != null) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("New mapped BlockReaderLocal for " + blk
+                + " startOffset " + startOffset + " length " + length
+                + " short circuit checksum " + skipChecksumCheck);
+          }
+          localBlockReader = new BlockReaderLocal(file, mappedBlock,
+              startOffset);
+          return localBlockReader;
+        }
+      }
+
       // get a local file system
       File blkfile = new File(pathinfo.getBlockPath());
       dataIn = new FileInputStream(blkfile);
@@ -254,6 +321,25 @@ class BlockReaderLocal implements BlockReader {
         DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_SKIP_CHECKSUM_KEY,
         DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_SKIP_CHECKSUM_DEFAULT);
   }
+
+  private static boolean mapBlocks(Configuration conf) {
+    return conf.getBoolean(
+        DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_KEY,
+        DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_DEFAULT);
+  }
+
+  /** Read a mapped block, starting at the given offset. */
+  private BlockReaderLocal(String hdfsfile, MappedBlock mapped,
+      long startOffset) {
+    this.filename = hdfsfile;
+    this.mapped = mapped;
+    this.mappedPos = (int)Math.min(Math.max(startOffset, 0),
+        mapped.getLength());
+    this.startOffset = mappedPos;
+    // the checksums are verified by the mapped block
+    this.verifyChecksum = false;
+    this.dataIn = null;
+  }
   
   private BlockReaderLocal(Configuration conf, String hdfsfile,
       ExtendedBlock block, Token<BlockTokenIdentifier> token, long startOffset,
@@ -270,6 +356,7 @@ class BlockReaderLocal implements BlockReader {
       boolean verifyChecksum, FileInputStream dataIn, long firstChunkOffset,
       FileInputStream checksumIn) throws IOException {
     this.filename = hdfsfile;
+    this.mapped = null;
     this.checksum = checksum;
     this.verifyChecksum = verifyChecksum;
     this.startOffset = Math.max(startOffset, 0);
@@ -324,12 +411,44 @@ class BlockReaderLocal implements BlockReader {
     return bytesRead;
   }
   
+  /** @return true if the block is mapped into memory. */
+  boolean isMapped() {
+    return mapped != null;
+  }
+
+  /**
+   * Read from the mapped block without copying the data.
+   * @return a read-only view of the next at most maxLength bytes of the
+   *         block, or null at the end of the block.
+   */
+  synchronized ByteBuffer readMapped(int maxLength) throws IOException {
+    if (mapped == null) {
+      throw new IOException("Block of " + filename + " is not mapped");
+    }
+    if (mappedPos >= mapped.getLength()) {
+      return null;
+    }
+    final int n = Math.min(Math.max(maxLength, 0),
+        mapped.getLength() - mappedPos);
+    final ByteBuffer data = mapped.getData(mappedPos, n, filename);
+    mappedPos += n;
+    return data;
+  }
+
   @Override
   public synchronized int read(byte[] buf, int off, int len) throws IOException {
     if (LOG.isDebugEnabled()) {
       LOG.info("read off " + off + " len " + len);
     }
-    if (!verifyChecksum) {
+    if (mapped != null) {
+      final ByteBuffer data = readMapped(len);
+      if (data == null) {
+        return -1;
+      }
+      final int n = data.remaining();
+      data.get(buf, off, n);
+      return n;
+    } else if (!verifyChecksum) {
       return dataIn.read(buf, off, len);
     } else {
       int dataRead = -1;
@@ -370,6 +489,12 @@ class BlockReaderLocal implements BlockReader {
     if (LOG.isDebugEnabled()) {
       LOG.debug("skip " + n);
     }
+    if (mapped != null) {
+      final int skipped = (int)Math.min(Math.max(n, 0),
+          mapped.getLength() - mappedPos);
+      mappedPos += skipped;
+      return skipped;
+    }
     if (!verifyChecksum) {
       return dataIn.skip(n);
     }
@@ -394,7 +519,9 @@ class BlockReaderLocal implements BlockReader {
 
   @Override
   public synchronized void close() throws IOException {
-    dataIn.close();
+    if (dataIn != null) {
+      dataIn.close();
+    }
     if (checksumIn != null) {
       checksumIn.close();
     }
@@ -30,6 +30,7 @@ import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -515,15 +516,17 @@ public class DFSClient implements java.io.Closeable {
 
   /**
    * Get {@link BlockReader} for short circuited local reads.
+   * @param blockComplete whether the namenode reports the block complete,
+   *        so that its replica is finalized and may be mapped.
    */
   static BlockReader getLocalBlockReader(Configuration conf,
       String src, ExtendedBlock blk, Token<BlockTokenIdentifier> accessToken,
-      DatanodeInfo chosenNode, int socketTimeout, long offsetIntoBlock)
-      throws InvalidToken, IOException {
+      DatanodeInfo chosenNode, int socketTimeout, long offsetIntoBlock,
+      boolean blockComplete) throws InvalidToken, IOException {
     try {
       return BlockReaderLocal.newBlockReader(conf, src, blk, accessToken,
           chosenNode, socketTimeout, offsetIntoBlock, blk.getNumBytes()
-              - offsetIntoBlock);
+              - offsetIntoBlock, blockComplete);
     } catch (RemoteException re) {
       throw re.unwrapRemoteException(InvalidToken.class,
           AccessControlException.class);
@@ -1687,6 +1690,16 @@ public class DFSClient implements java.io.Closeable {
     public long getVisibleLength() throws IOException {
       return ((DFSInputStream)in).getFileLength();
     }
+
+    /**
+     * Read up to maxLength bytes into a read-only buffer, without copying
+     * the data if the current block is mapped by a short circuit reader.
+     * @return the buffer, or null at the end of the file.
+     * @see DFSInputStream#readByteBuffer(int)
+     */
+    public ByteBuffer readByteBuffer(int maxLength) throws IOException {
+      return ((DFSInputStream)in).readByteBuffer(maxLength);
+    }
   }
   
   boolean shouldTryShortCircuitRead(InetSocketAddress targetAddr) {
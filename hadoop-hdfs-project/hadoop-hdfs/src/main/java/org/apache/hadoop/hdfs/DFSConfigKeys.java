@@ -64,6 +64,10 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final boolean DFS_DATANODE_SYNC_BEHIND_WRITES_DEFAULT = false;
   public static final String  DFS_DATANODE_DROP_CACHE_BEHIND_READS_KEY = "dfs.datanode.drop.cache.behind.reads";
   public static final boolean DFS_DATANODE_DROP_CACHE_BEHIND_READS_DEFAULT = false;
+  public static final String  DFS_DATANODE_BLOCK_CACHE_SIZE_KEY = "dfs.datanode.block.cache.size";
+  public static final long    DFS_DATANODE_BLOCK_CACHE_SIZE_DEFAULT = 0;
+  public static final String  DFS_DATANODE_BLOCK_CACHE_ADMISSION_READS_KEY = "dfs.datanode.block.cache.admission.reads";
+  public static final int     DFS_DATANODE_BLOCK_CACHE_ADMISSION_READS_DEFAULT = 2;
 
   public static final String  DFS_NAMENODE_HTTP_PORT_KEY = "dfs.http.port";
   public static final int     DFS_NAMENODE_HTTP_PORT_DEFAULT = 50070;
@@ -73,6 +77,18 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final String  DFS_NAMENODE_SERVICE_RPC_ADDRESS_KEY = "dfs.namenode.servicerpc-address";
   public static final String  DFS_NAMENODE_MAX_OBJECTS_KEY = "dfs.namenode.max.objects";
   public static final long    DFS_NAMENODE_MAX_OBJECTS_DEFAULT = 0;
+  public static final String  DFS_NAMENODE_FSLOCK_FAIR_KEY = "dfs.namenode.fslock.fair";
+  public static final boolean DFS_NAMENODE_FSLOCK_FAIR_DEFAULT = true;
+  public static final String  DFS_NAMENODE_BLOCKREPORT_CHUNK_SIZE_KEY = "dfs.namenode.blockreport.chunk.size";
+  public static final int     DFS_NAMENODE_BLOCKREPORT_CHUNK_SIZE_DEFAULT = 10000;
+  public static final String  DFS_NAMENODE_AUDIT_LOG_ASYNC_KEY = "dfs.namenode.audit.log.async";
+  public static final boolean DFS_NAMENODE_AUDIT_LOG_ASYNC_DEFAULT = false;
+  public static final String  DFS_NAMENODE_AUDIT_LOG_ASYNC_QUEUE_SIZE_KEY = "dfs.namenode.audit.log.async.queue.size";
+  public static final int     DFS_NAMENODE_AUDIT_LOG_ASYNC_QUEUE_SIZE_DEFAULT = 65536;
+  public static final String  DFS_NAMENODE_AUDIT_LOG_ASYNC_BLOCKING_KEY = "dfs.namenode.audit.log.async.blocking";
+  public static final boolean DFS_NAMENODE_AUDIT_LOG_ASYNC_BLOCKING_DEFAULT = true;
+  public static final String  DFS_NAMENODE_OPTIMISTIC_READS_ENABLED_KEY = "dfs.namenode.optimistic.reads.enabled";
+  public static final boolean DFS_NAMENODE_OPTIMISTIC_READS_ENABLED_DEFAULT = true;
   public static final String  DFS_NAMENODE_SAFEMODE_EXTENSION_KEY = "dfs.namenode.safemode.extension";
   public static final int     DFS_NAMENODE_SAFEMODE_EXTENSION_DEFAULT = 30000;
   public static final String  DFS_NAMENODE_SAFEMODE_THRESHOLD_PCT_KEY = "dfs.namenode.safemode.threshold-pct";
@@ -96,6 +112,14 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final int     DFS_NAMENODE_UPGRADE_PERMISSION_DEFAULT = 00777;
   public static final String  DFS_NAMENODE_HEARTBEAT_RECHECK_INTERVAL_KEY = "dfs.namenode.heartbeat.recheck-interval";
   public static final int     DFS_NAMENODE_HEARTBEAT_RECHECK_INTERVAL_DEFAULT = 5*60*1000;
+  public static final String  DFS_NAMENODE_AVOID_STALE_DATANODE_FOR_READ_KEY = "dfs.namenode.avoid.read.stale.datanode";
+  public static final boolean DFS_NAMENODE_AVOID_STALE_DATANODE_FOR_READ_DEFAULT = false;
+  public static final String  DFS_NAMENODE_STALE_DATANODE_INTERVAL_KEY = "dfs.namenode.stale.datanode.interval";
+  public static final long    DFS_NAMENODE_STALE_DATANODE_INTERVAL_DEFAULT = 30*1000;
+  public static final String  DFS_NAMENODE_AVOID_BUSY_DATANODE_FOR_READ_KEY = "dfs.namenode.avoid.read.busy.datanode";
+  public static final boolean DFS_NAMENODE_AVOID_BUSY_DATANODE_FOR_READ_DEFAULT = false;
+  public static final String  DFS_NAMENODE_BUSY_DATANODE_LOAD_FACTOR_KEY = "dfs.namenode.busy.datanode.load.factor";
+  public static final float   DFS_NAMENODE_BUSY_DATANODE_LOAD_FACTOR_DEFAULT = 2.0f;
   public static final String  DFS_CLIENT_HTTPS_KEYSTORE_RESOURCE_KEY = "dfs.client.https.keystore.resource";
   public static final String  DFS_CLIENT_HTTPS_KEYSTORE_RESOURCE_DEFAULT = "ssl-client.xml";
   public static final String  DFS_CLIENT_HTTPS_NEED_AUTH_KEY = "dfs.client.https.need-auth";
@@ -106,6 +130,8 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final long    DFS_NAMENODE_ACCESSTIME_PRECISION_DEFAULT = 3600000;
   public static final String  DFS_NAMENODE_REPLICATION_CONSIDERLOAD_KEY = "dfs.namenode.replication.considerLoad";
   public static final boolean DFS_NAMENODE_REPLICATION_CONSIDERLOAD_DEFAULT = true;
+  public static final String  DFS_NAMENODE_BLOCKPLACEMENT_LOAD_AWARE_CANDIDATES_KEY = "dfs.namenode.block-placement.load-aware.candidates";
+  public static final int     DFS_NAMENODE_BLOCKPLACEMENT_LOAD_AWARE_CANDIDATES_DEFAULT = 3;
   public static final String  DFS_NAMENODE_REPLICATION_INTERVAL_KEY = "dfs.namenode.replication.interval";
   public static final int     DFS_NAMENODE_REPLICATION_INTERVAL_DEFAULT = 3;
   public static final String  DFS_NAMENODE_REPLICATION_MIN_KEY = "dfs.namenode.replication.min";
@@ -114,6 +140,10 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final int     DFS_NAMENODE_REPLICATION_PENDING_TIMEOUT_SEC_DEFAULT = -1;
   public static final String  DFS_NAMENODE_REPLICATION_MAX_STREAMS_KEY = "dfs.namenode.replication.max-streams";
   public static final int     DFS_NAMENODE_REPLICATION_MAX_STREAMS_DEFAULT = 2;
+  public static final String  DFS_NAMENODE_REPLICATION_WORK_MULTIPLIER_PER_ITERATION_KEY = "dfs.namenode.replication.work.multiplier.per.iteration";
+  public static final int     DFS_NAMENODE_REPLICATION_WORK_MULTIPLIER_PER_ITERATION_DEFAULT = 2;
+  public static final String  DFS_NAMENODE_REPLICATION_CHOOSE_TARGET_THREADS_KEY = "dfs.namenode.replication.choose-target.threads";
+  public static final int     DFS_NAMENODE_REPLICATION_CHOOSE_TARGET_THREADS_DEFAULT = 1;
   public static final String  DFS_WEBHDFS_ENABLED_KEY = "dfs.webhdfs.enabled";
   public static final boolean DFS_WEBHDFS_ENABLED_DEFAULT = false;
   public static final String  DFS_PERMISSIONS_ENABLED_KEY = "dfs.permissions.enabled";
@@ -131,6 +161,8 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final int     DFS_NAMENODE_NUM_CHECKPOINTS_RETAINED_DEFAULT = 2;
   public static final String  DFS_NAMENODE_EDITS_DIR_MINIMUM_KEY = "dfs.namenode.edits.dir.minimum";
   public static final int     DFS_NAMENODE_EDITS_DIR_MINIMUM_DEFAULT = 1;
+  public static final String  DFS_NAMENODE_EDITS_ASYNC_LOGGING_KEY = "dfs.namenode.edits.asynclogging";
+  public static final boolean DFS_NAMENODE_EDITS_ASYNC_LOGGING_DEFAULT = false;
   
   public static final String  DFS_LIST_LIMIT = "dfs.ls.limit";
   public static final int     DFS_LIST_LIMIT_DEFAULT = 1000;
@@ -209,6 +241,8 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final String  DFS_DATANODE_HTTP_ADDRESS_DEFAULT = "0.0.0.0:50075";
   public static final String  DFS_DATANODE_MAX_RECEIVER_THREADS_KEY = "dfs.datanode.max.transfer.threads";
   public static final int     DFS_DATANODE_MAX_RECEIVER_THREADS_DEFAULT = 4096;
+  public static final String  DFS_DATANODE_XCEIVER_SELECTOR_ENABLED_KEY = "dfs.datanode.xceiver.selector.enabled";
+  public static final boolean DFS_DATANODE_XCEIVER_SELECTOR_ENABLED_DEFAULT = false;
   public static final String  DFS_DATANODE_NUMBLOCKS_KEY = "dfs.datanode.numblocks";
   public static final int     DFS_DATANODE_NUMBLOCKS_DEFAULT = 64;
   public static final String  DFS_DATANODE_SCAN_PERIOD_HOURS_KEY = "dfs.datanode.scan.period.hours";
@@ -269,6 +303,10 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final boolean DFS_CLIENT_READ_SHORTCIRCUIT_DEFAULT = false;
   public static final String DFS_CLIENT_READ_SHORTCIRCUIT_SKIP_CHECKSUM_KEY = "dfs.client.read.shortcircuit.skip.checksum";
   public static final boolean DFS_CLIENT_READ_SHORTCIRCUIT_SKIP_CHECKSUM_DEFAULT = false;
+  public static final String DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_KEY = "dfs.client.read.shortcircuit.mmap";
+  public static final boolean DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_DEFAULT = false;
+  public static final String DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_CACHE_SIZE_KEY = "dfs.client.read.shortcircuit.mmap.cache.size";
+  public static final int DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_CACHE_SIZE_DEFAULT = 256;
 
   // property for fsimage compression
   public static final String DFS_IMAGE_COMPRESS_KEY = "dfs.image.compress";
@@ -277,6 +315,14 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
                                    "dfs.image.compression.codec";
   public static final String DFS_IMAGE_COMPRESSION_CODEC_DEFAULT =
                                    "org.apache.hadoop.io.compress.DefaultCodec";
+  // read the image ahead of parsing in a separate thread
+  public static final String DFS_IMAGE_LOAD_PREFETCH_ENABLED_KEY =
+                                   "dfs.image.load.prefetch.enabled";
+  public static final boolean DFS_IMAGE_LOAD_PREFETCH_ENABLED_DEFAULT = true;
+  // decode edits ahead of applying them in a separate thread
+  public static final String DFS_NAMENODE_EDITS_LOAD_PREFETCH_ENABLED_KEY =
+                                   "dfs.namenode.edits.load.prefetch.enabled";
+  public static final boolean DFS_NAMENODE_EDITS_LOAD_PREFETCH_ENABLED_DEFAULT = true;
 
   public static final String DFS_IMAGE_TRANSFER_RATE_KEY =
                                            "dfs.image.transfer.bandwidthPerSec";
@@ -299,6 +345,8 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final String  DFS_SECONDARY_NAMENODE_KRB_HTTPS_USER_NAME_KEY = "dfs.secondary.namenode.kerberos.https.principal";
   public static final String  DFS_NAMENODE_NAME_CACHE_THRESHOLD_KEY = "dfs.namenode.name.cache.threshold";
   public static final int     DFS_NAMENODE_NAME_CACHE_THRESHOLD_DEFAULT = 10;
+  public static final String  DFS_NAMENODE_NAME_DICTIONARY_ENABLED_KEY = "dfs.namenode.name.dictionary.enabled";
+  public static final boolean DFS_NAMENODE_NAME_DICTIONARY_ENABLED_DEFAULT = false;
   
   public static final String DFS_FEDERATION_NAMESERVICES = "dfs.federation.nameservices";
   public static final String DFS_FEDERATION_NAMESERVICE_ID = "dfs.federation.nameservice.id";
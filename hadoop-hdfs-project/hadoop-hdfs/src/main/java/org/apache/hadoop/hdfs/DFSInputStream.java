@@ -20,6 +20,7 @@ package org.apache.hadoop.hdfs;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -576,6 +577,54 @@ public class DFSInputStream extends FSInputStream {
     return -1;
   }
 
+  /**
+   * Read up to maxLength bytes into a read-only buffer.  If the current
+   * block is mapped by a short circuit reader, the buffer is a view of the
+   * mapped block file and no data is copied.  Otherwise, or if reading the
+   * mapping fails, the data is read by {@link #read(byte[], int, int)}
+   * into a new buffer, so that the failures are handled in the same way.
+   *
+   * @return the buffer, or null at the end of the file.
+   */
+  public synchronized ByteBuffer readByteBuffer(int maxLength)
+      throws IOException {
+    dfsClient.checkOpen();
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (pos >= getFileLength()) {
+      return null;
+    }
+
+    try {
+      if (pos > blockEnd) {
+        currentNode = blockSeekTo(pos);
+      }
+      if (blockReader instanceof BlockReaderLocal
+          && ((BlockReaderLocal)blockReader).isMapped()) {
+        final int len = (int)Math.min(maxLength, blockEnd - pos + 1L);
+        final ByteBuffer data = ((BlockReaderLocal)blockReader).readMapped(len);
+        if (data != null) {
+          pos += data.remaining();
+          if (dfsClient.stats != null) {
+            dfsClient.stats.incrementBytesRead(data.remaining());
+          }
+          return data;
+        }
+      }
+    } catch (IOException e) {
+      if (DFSClient.LOG.isDebugEnabled()) {
+        DFSClient.LOG.debug("Failed to read " + src + " at " + pos
+            + " without copying, falling back to copying", e);
+      }
+    }
+
+    final byte[] buf = new byte[(int)Math.min(Math.max(maxLength, 0),
+        getFileLength() - pos)];
+    final int n = read(buf, 0, buf.length);
+    return n < 0? null: ByteBuffer.wrap(buf, 0, n).asReadOnlyBuffer();
+  }
+
   /**
    * Add corrupted block replica into map.
    * @param corruptedBlockMap 
@@ -719,6 +768,20 @@ public class DFSInputStream extends FSInputStream {
     reader.close();
   }
 
+  /**
+   * @return true unless the block is the last block of a file which was
+   *         under construction when its blocks were fetched, whose replica
+   *         may still be written, truncated or recovered.
+   */
+  private synchronized boolean isBlockComplete(ExtendedBlock block) {
+    if (!locatedBlocks.isUnderConstruction()) {
+      return true;
+    }
+    final LocatedBlock last = locatedBlocks.getLastLocatedBlock();
+    return last != null
+        && last.getBlock().getBlockId() != block.getBlockId();
+  }
+
   /**
    * Retrieve a BlockReader suitable for reading.
    * This method will reuse the cached connection to the DN if appropriate.
@@ -750,7 +813,8 @@ public class DFSInputStream extends FSInputStream {
     
     if (dfsClient.shouldTryShortCircuitRead(dnAddr)) {
       return DFSClient.getLocalBlockReader(dfsClient.conf, src, block,
-          blockToken, chosenNode, dfsClient.hdfsTimeout, startOffset);
+          blockToken, chosenNode, dfsClient.hdfsTimeout, startOffset,
+          isBlockComplete(block));
     }
     
     IOException err = null;
@@ -0,0 +1,182 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.BitSet;
+
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.hdfs.protocol.BlockLocalPathInfo;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.server.datanode.BlockMetadataHeader;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset;
+import org.apache.hadoop.util.DataChecksum;
+
+/**
+ * A finalized block file of a local datanode, mapped into memory for
+ * short circuit reads.  The readers of the block share the mapping, and
+ * they share the record of the checksum chunks which have been verified,
+ * so that each chunk is verified once.
+ *
+ * The mapping is released when this object is garbage collected.
+ */
+class MappedBlock {
+  private final String poolId;
+  private final long blockId;
+  private final long genStamp;
+
+  /** The read-only block data. */
+  private final ByteBuffer data;
+  /** The checksums, or null if they are not verified. */
+  private final ByteBuffer checksums;
+  private final DataChecksum checksum;
+  /** The chunks whose checksums have been verified. */
+  private final BitSet verified = new BitSet();
+
+  private MappedBlock(ExtendedBlock blk, ByteBuffer data,
+      DataChecksum checksum, ByteBuffer checksums) {
+    this.poolId = blk.getBlockPoolId();
+    this.blockId = blk.getBlockId();
+    this.genStamp = blk.getGenerationStamp();
+    this.data = data;
+    this.checksum = checksum;
+    this.checksums = checksums;
+  }
+
+  /**
+   * Map the files of a block.  Only the blocks the namenode reports
+   * complete are mapped, whose replicas are finalized and so are neither
+   * appended to nor truncated while the mapping is read.
+   * @return the mapped block, or null if the block file cannot be mapped
+   *         since its length is not the length of the block, as when the
+   *         block has been reopened for append, or it is too large.
+   */
+  static MappedBlock map(ExtendedBlock blk, BlockLocalPathInfo pathinfo,
+      boolean verifyChecksum) throws IOException {
+    final FileInputStream dataIn = new FileInputStream(pathinfo.getBlockPath());
+    try {
+      final FileChannel dataChannel = dataIn.getChannel();
+      final long length = dataChannel.size();
+      if (length != blk.getNumBytes() || length > Integer.MAX_VALUE) {
+        return null;
+      }
+      final ByteBuffer data = dataChannel.map(MapMode.READ_ONLY, 0, length);
+      if (!verifyChecksum) {
+        return new MappedBlock(blk, data, null, null);
+      }
+
+      final FileInputStream checksumIn =
+          new FileInputStream(pathinfo.getMetaPath());
+      try {
+        final BlockMetadataHeader header = BlockMetadataHeader.readHeader(
+            new DataInputStream(checksumIn));
+        if (header.getVersion() != FSDataset.METADATA_VERSION) {
+          DFSClient.LOG.warn("Wrong version (" + header.getVersion()
+              + ") for metadata file for " + blk + " ignoring ...");
+        }
+        // the checksums follow the header
+        final FileChannel checksumChannel = checksumIn.getChannel();
+        final long headerSize = checksumChannel.position();
+        final ByteBuffer checksums = checksumChannel.map(MapMode.READ_ONLY,
+            headerSize, checksumChannel.size() - headerSize);
+        return new MappedBlock(blk, data, header.getChecksum(), checksums);
+      } finally {
+        checksumIn.close();
+      }
+    } finally {
+      dataIn.close();
+    }
+  }
+
+  /** @return true if this is the mapping of the given block. */
+  boolean isMappingOf(ExtendedBlock blk) {
+    return blockId == blk.getBlockId()
+        && genStamp == blk.getGenerationStamp()
+        && data.capacity() == blk.getNumBytes()
+        && poolId.equals(blk.getBlockPoolId());
+  }
+
+  /** @return true if the checksums of the data are verified. */
+  boolean isVerifyingChecksum() {
+    return checksums != null;
+  }
+
+  /** @return the length of the block. */
+  int getLength() {
+    return data.capacity();
+  }
+
+  /**
+   * Get a read-only view of a range of the block data.  The checksums of
+   * the chunks in the range are verified unless they have already been.
+   */
+  ByteBuffer getData(int offset, int length, String filename)
+      throws ChecksumException {
+    if (checksums != null && length > 0) {
+      verify(offset, length, filename);
+    }
+    final ByteBuffer b = data.duplicate();
+    b.position(offset);
+    b.limit(offset + length);
+    return b.slice();
+  }
+
+  /**
+   * Verify the chunks in the range which have not been verified.
+   * The checksum object is not thread safe, so the verification is done
+   * with the lock held.
+   */
+  private void verify(int offset, int length, String filename)
+      throws ChecksumException {
+    final int bytesPerChecksum = checksum.getBytesPerChecksum();
+    final int last = (offset + length - 1) / bytesPerChecksum;
+    synchronized(verified) {
+      for(int start = verified.nextClearBit(offset / bytesPerChecksum);
+          start <= last; start = verified.nextClearBit(start)) {
+        final int next = verified.nextSetBit(start);
+        final int end = next < 0 || next > last? last + 1: next;
+        verifyChunks(start, end, filename);
+        verified.set(start, end);
+      }
+    }
+  }
+
+  /** Verify the chunks in [start, end). */
+  private void verifyChunks(int start, int end, String filename)
+      throws ChecksumException {
+    final int bytesPerChecksum = checksum.getBytesPerChecksum();
+    final int checksumSize = checksum.getChecksumSize();
+    final int dataStart = start * bytesPerChecksum;
+    if ((long)end * checksumSize > checksums.capacity()) {
+      throw new ChecksumException("Checksums of " + filename + " at "
+          + dataStart + " are missing from the metadata file", dataStart);
+    }
+    final ByteBuffer d = data.duplicate();
+    d.position(dataStart);
+    d.limit(Math.min(end * bytesPerChecksum, data.capacity()));
+    final ByteBuffer s = checksums.duplicate();
+    s.position(start * checksumSize);
+    s.limit(end * checksumSize);
+    checksum.verifyChunkedSums(d.slice(), s.slice(), filename, dataStart);
+  }
+}
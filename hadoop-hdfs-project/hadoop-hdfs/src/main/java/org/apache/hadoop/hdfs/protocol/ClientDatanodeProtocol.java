@@ -110,4 +110,20 @@ public interface ClientDatanodeProtocol extends VersionedProtocol {
    */
   BlockLocalPathInfo getBlockLocalPathInfo(ExtendedBlock block,
       Token<BlockTokenIdentifier> token) throws IOException;
+
+  /**
+   * Ask the datanode to load a finalized block into its block cache, so
+   * that it is read from memory.  The block is loaded in the background.
+   * Nothing is done if the datanode has no block cache, or the block does
+   * not fit in it.
+   *
+   * @param block
+   *          the specified block on the datanode
+   * @param token
+   *          the block access token.
+   * @throws IOException
+   *           if the block is not found on the datanode, or on error
+   */
+  void cacheBlock(ExtendedBlock block, Token<BlockTokenIdentifier> token)
+      throws IOException;
 }
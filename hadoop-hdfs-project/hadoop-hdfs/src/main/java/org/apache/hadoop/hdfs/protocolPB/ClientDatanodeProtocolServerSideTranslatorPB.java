@@ -22,6 +22,8 @@ import java.io.IOException;
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.hdfs.protocol.BlockLocalPathInfo;
 import org.apache.hadoop.hdfs.protocol.ClientDatanodeProtocol;
+import org.apache.hadoop.hdfs.protocol.proto.ClientDatanodeProtocolProtos.CacheBlockRequestProto;
+import org.apache.hadoop.hdfs.protocol.proto.ClientDatanodeProtocolProtos.CacheBlockResponseProto;
 import org.apache.hadoop.hdfs.protocol.proto.ClientDatanodeProtocolProtos.DeleteBlockPoolRequestProto;
 import org.apache.hadoop.hdfs.protocol.proto.ClientDatanodeProtocolProtos.DeleteBlockPoolResponseProto;
 import org.apache.hadoop.hdfs.protocol.proto.ClientDatanodeProtocolProtos.GetBlockLocalPathInfoRequestProto;
@@ -50,6 +52,8 @@ public class ClientDatanodeProtocolServerSideTranslatorPB implements
       RefreshNamenodesResponseProto.newBuilder().build();
   private final static DeleteBlockPoolResponseProto DELETE_BLOCKPOOL_RESP =
       DeleteBlockPoolResponseProto.newBuilder().build();
+  private final static CacheBlockResponseProto CACHE_BLOCK_RESP =
+      CacheBlockResponseProto.newBuilder().build();
   
   private final ClientDatanodeProtocol impl;
 
@@ -111,6 +115,18 @@ public class ClientDatanodeProtocolServerSideTranslatorPB implements
         .build();
   }
 
+  @Override
+  public CacheBlockResponseProto cacheBlock(RpcController unused,
+      CacheBlockRequestProto request) throws ServiceException {
+    try {
+      impl.cacheBlock(PBHelper.convert(request.getBlock()),
+          PBHelper.convert(request.getToken()));
+    } catch (IOException e) {
+      throw new ServiceException(e);
+    }
+    return CACHE_BLOCK_RESP;
+  }
+
   @Override
   public long getProtocolVersion(String protocol, long clientVersion)
       throws IOException {
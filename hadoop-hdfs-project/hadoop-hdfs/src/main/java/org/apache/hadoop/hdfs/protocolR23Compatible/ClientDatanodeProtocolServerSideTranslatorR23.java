@@ -126,4 +126,10 @@ public class ClientDatanodeProtocolServerSideTranslatorR23 implements
       Token<BlockTokenIdentifier> token) throws IOException {
     return server.getBlockLocalPathInfo(block, token);
   }
+
+  @Override
+  public void cacheBlock(ExtendedBlock block,
+      Token<BlockTokenIdentifier> token) throws IOException {
+    server.cacheBlock(block, token);
+  }
 }
\ No newline at end of file
@@ -159,4 +159,10 @@ public class ClientDatanodeProtocolTranslatorR23 implements
       Token<BlockTokenIdentifier> token) throws IOException {
     return rpcProxy.getBlockLocalPathInfo(block, token);
   }
+
+  @Override
+  public void cacheBlock(ExtendedBlock block,
+      Token<BlockTokenIdentifier> token) throws IOException {
+    rpcProxy.cacheBlock(block, token);
+  }
 }
@@ -87,6 +87,13 @@ public interface ClientDatanodeWireProtocol extends VersionedProtocol {
    */
   BlockLocalPathInfo getBlockLocalPathInfo(ExtendedBlock block,
       Token<BlockTokenIdentifier> token) throws IOException;
+
+  /**
+   * The specification of this method matches that of
+   * {@link org.apache.hadoop.hdfs.protocol.ClientDatanodeProtocol#cacheBlock(ExtendedBlock, Token)}
+   */
+  void cacheBlock(ExtendedBlock block, Token<BlockTokenIdentifier> token)
+      throws IOException;
   
   /**
    * This method is defined to get the protocol signature using 
@@ -66,8 +66,12 @@ public class BlockInfo extends Block implements LightWeightGSet.LinkedElement {
     this.inode = from.inode;
   }
 
+  /**
+   * @return the file of the block; null if the block belongs to no file,
+   *         or its file is deleted and waiting to be cleared
+   */
   public INodeFile getINode() {
-    return inode;
+    return inode == null || inode.isDeleted()? null: inode;
   }
 
   public void setINode(INodeFile inode) {
@@ -29,6 +29,12 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.HadoopIllegalArgumentException;
@@ -68,6 +74,7 @@ import org.apache.hadoop.net.Node;
 import org.apache.hadoop.util.Daemon;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Keeps information related to the blocks stored in the Hadoop cluster.
@@ -119,6 +126,22 @@ public class BlockManager {
 
   /**replicationRecheckInterval is how often namenode checks for new replication work*/
   private final long replicationRecheckInterval;
+
+  /**
+   * The maximum number of blocks of a block report processed
+   * in one hold of the namesystem write lock.
+   */
+  private final int blockReportChunkSize;
+
+  /**
+   * The number of under-replicated blocks scheduled in one iteration
+   * of the replication monitor, per live datanode.
+   */
+  private final int replicationWorkMultiplier;
+  /** The number of threads choosing replication targets. */
+  private final int replicationTargetThreads;
+  /** Chooses replication targets in parallel; null if single threaded. */
+  private final ExecutorService replicationTargetChooser;
   
   /**
    * Mapping: Block -> { INode, datanodes, self ref }
@@ -222,12 +245,45 @@ public class BlockManager {
     this.replicationRecheckInterval = 
       conf.getInt(DFSConfigKeys.DFS_NAMENODE_REPLICATION_INTERVAL_KEY, 
                   DFSConfigKeys.DFS_NAMENODE_REPLICATION_INTERVAL_DEFAULT) * 1000L;
+    this.blockReportChunkSize = conf.getInt(
+        DFSConfigKeys.DFS_NAMENODE_BLOCKREPORT_CHUNK_SIZE_KEY,
+        DFSConfigKeys.DFS_NAMENODE_BLOCKREPORT_CHUNK_SIZE_DEFAULT);
+    if (blockReportChunkSize <= 0) {
+      throw new IOException("Unexpected configuration parameters: "
+          + DFSConfigKeys.DFS_NAMENODE_BLOCKREPORT_CHUNK_SIZE_KEY
+          + " = " + blockReportChunkSize + " <= 0");
+    }
+    this.replicationWorkMultiplier = conf.getInt(
+        DFSConfigKeys.DFS_NAMENODE_REPLICATION_WORK_MULTIPLIER_PER_ITERATION_KEY,
+        DFSConfigKeys.DFS_NAMENODE_REPLICATION_WORK_MULTIPLIER_PER_ITERATION_DEFAULT);
+    if (replicationWorkMultiplier <= 0) {
+      throw new IOException("Unexpected configuration parameters: "
+          + DFSConfigKeys.DFS_NAMENODE_REPLICATION_WORK_MULTIPLIER_PER_ITERATION_KEY
+          + " = " + replicationWorkMultiplier + " <= 0");
+    }
+    this.replicationTargetThreads = conf.getInt(
+        DFSConfigKeys.DFS_NAMENODE_REPLICATION_CHOOSE_TARGET_THREADS_KEY,
+        DFSConfigKeys.DFS_NAMENODE_REPLICATION_CHOOSE_TARGET_THREADS_DEFAULT);
+    if (replicationTargetThreads <= 0) {
+      throw new IOException("Unexpected configuration parameters: "
+          + DFSConfigKeys.DFS_NAMENODE_REPLICATION_CHOOSE_TARGET_THREADS_KEY
+          + " = " + replicationTargetThreads + " <= 0");
+    }
+    this.replicationTargetChooser = replicationTargetThreads == 1? null
+        : Executors.newFixedThreadPool(replicationTargetThreads,
+            new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Replication target chooser #%d")
+                .build());
     LOG.info("defaultReplication = " + defaultReplication);
     LOG.info("maxReplication     = " + maxReplication);
     LOG.info("minReplication     = " + minReplication);
     LOG.info("maxReplicationStreams      = " + maxReplicationStreams);
     LOG.info("shouldCheckForEnoughRacks  = " + shouldCheckForEnoughRacks);
     LOG.info("replicationRecheckInterval = " + replicationRecheckInterval);
+    LOG.info("blockReportChunkSize       = " + blockReportChunkSize);
+    LOG.info("replicationWorkMultiplier  = " + replicationWorkMultiplier);
+    LOG.info("replicationTargetThreads   = " + replicationTargetThreads);
   }
 
   private static BlockTokenSecretManager createBlockTokenSecretManager(
@@ -281,6 +337,7 @@ public class BlockManager {
     blocksMap.close();
     datanodeManager.close();
     if (replicationThread != null) replicationThread.interrupt();
+    if (replicationTargetChooser != null) replicationTargetChooser.shutdownNow();
   }
 
   /** @return the datanodeManager */
@@ -757,6 +814,7 @@ public class BlockManager {
    
   /** Remove the blocks associated to the given datanode. */
   void removeBlocksAssociatedTo(final DatanodeDescriptor node) {
+    node.removeReportDelimiter();
     final Iterator<? extends Block> it = node.getBlockIterator();
     while(it.hasNext()) {
       removeStoredBlock(it.next(), node);
@@ -920,6 +978,7 @@ public class BlockManager {
    * @return number of blocks scheduled for replication during this iteration.
    */
   private int computeReplicationWork(int blocksToProcess) throws IOException {
+    final long startTime = Util.now();
     List<List<Block>> blocksToReplicate = null;
     namesystem.writeLock();
     try {
@@ -929,7 +988,10 @@ public class BlockManager {
     } finally {
       namesystem.writeUnlock();
     }
-    return computeReplicationWorkForBlocks(blocksToReplicate);
+    final int scheduled = computeReplicationWorkForBlocks(blocksToReplicate);
+    NameNode.getNameNodeMetrics().addReplicationWork(
+        scheduled, Util.now() - startTime);
+    return scheduled;
   }
 
   /** Replicate a set of blocks
@@ -946,7 +1008,7 @@ public class BlockManager {
     int additionalReplRequired;
 
     int scheduledWork = 0;
-    List<ReplicationWork> work = new LinkedList<ReplicationWork>();
+    List<ReplicationWork> work = new ArrayList<ReplicationWork>();
 
     namesystem.writeLock();
     try {
@@ -1006,22 +1068,12 @@ public class BlockManager {
       namesystem.writeUnlock();
     }
 
-    HashMap<Node, Node> excludedNodes
-        = new HashMap<Node, Node>();
-    for(ReplicationWork rw : work){
-      // Exclude all of the containing nodes from being targets.
-      // This list includes decommissioning or corrupt nodes.
-      excludedNodes.clear();
-      for (DatanodeDescriptor dn : rw.containingNodes) {
-        excludedNodes.put(dn, dn);
-      }
-
-      // choose replication targets: NOT HOLDING THE GLOBAL LOCK
-      // It is costly to extract the filename for which chooseTargets is called,
-      // so for now we pass in the Inode itself.
-      rw.targets = blockplacement.chooseTarget(rw.fileINode,
-          rw.additionalReplRequired, rw.srcNode, rw.liveReplicaNodes,
-          excludedNodes, rw.block.getNumBytes());
+    // choose replication targets: NOT HOLDING THE GLOBAL LOCK
+    try {
+      chooseTargets(work);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return 0;
     }
 
     namesystem.writeLock();
@@ -1129,6 +1181,64 @@ public class BlockManager {
     return scheduledWork;
   }
 
+  /**
+   * Choose the targets of the given replication work, in parallel
+   * if {@link #replicationTargetChooser} is set.
+   * @throws InterruptedException if interrupted while waiting for the
+   *         targets; some of the work may then have no targets chosen.
+   */
+  private void chooseTargets(final List<ReplicationWork> work)
+      throws InterruptedException {
+    final int numThreads = replicationTargetThreads;
+    if (replicationTargetChooser == null || work.size() < 2 * numThreads) {
+      chooseTargets(work, 0, work.size());
+      return;
+    }
+
+    // each task chooses the targets of a contiguous range of the work
+    final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for(int i = 0; i < numThreads; i++) {
+      final int from = (int)((long)work.size() * i / numThreads);
+      final int to = (int)((long)work.size() * (i + 1) / numThreads);
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          chooseTargets(work, from, to);
+          return null;
+        }
+      });
+    }
+    for(Future<Void> f : replicationTargetChooser.invokeAll(tasks)) {
+      try {
+        f.get();
+      } catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException)cause;
+        }
+        throw (Error)cause;
+      }
+    }
+  }
+
+  private void chooseTargets(List<ReplicationWork> work, int from, int to) {
+    final HashMap<Node, Node> excludedNodes = new HashMap<Node, Node>();
+    for(ReplicationWork rw : work.subList(from, to)) {
+      // Exclude all of the containing nodes from being targets.
+      // This list includes decommissioning or corrupt nodes.
+      excludedNodes.clear();
+      for (DatanodeDescriptor dn : rw.containingNodes) {
+        excludedNodes.put(dn, dn);
+      }
+
+      // It is costly to extract the filename for which chooseTargets is called,
+      // so for now we pass in the Inode itself.
+      rw.targets = blockplacement.chooseTarget(rw.fileINode,
+          rw.additionalReplRequired, rw.srcNode, rw.liveReplicaNodes,
+          excludedNodes, rw.block.getNumBytes());
+    }
+  }
+
   /**
    * Choose target datanodes according to the replication policy.
    * @throws IOException if the number of targets < minimum replication.
@@ -1273,67 +1383,138 @@ public class BlockManager {
   /**
    * The given datanode is reporting all its blocks.
    * Update the (machine-->blocklist) and (block-->machinelist) maps.
+   *
+   * The report is processed in chunks of at most
+   * {@link #blockReportChunkSize} blocks, each under the namesystem write
+   * lock, which is released between the chunks.
    */
   public void processReport(final DatanodeID nodeID, final String poolId,
       final BlockListAsLongs newReport) throws IOException {
-    namesystem.writeLock();
-    final long startTime = Util.now(); //after acquiring write lock
-    final long endTime;
-    try {
-      final DatanodeDescriptor node = datanodeManager.getDatanode(nodeID);
-      if (node == null || !node.isAlive) {
-        throw new IOException("ProcessReport from dead or unregistered node: "
-                              + nodeID.getName());
-      }
+    final long startTime = Util.now();
+    final BlockListAsLongs report = newReport == null?
+        new BlockListAsLongs(): newReport;
+    final BlockReportIterator itBR = report.getBlockReportIterator();
+    DatanodeDescriptor node = null;
+    boolean isFirstReport = false;
+    // the blocks of the node which have not been reported
+    List<BlockInfo> unreported = null;
+    long lockHoldTime = 0;
+    int numChunks = 0;
+
+    for(boolean done = false; !done; ) {
+      namesystem.writeLock();
+      final long lockTime = Util.now(); //after acquiring write lock
+      done = true;
+      try {
+        if (node == null) {
+          node = datanodeManager.getDatanode(nodeID);
+          if (node == null || !node.isAlive) {
+            throw new IOException("ProcessReport from dead or unregistered node: "
+                                  + nodeID.getName());
+          }
+          if (node.processingBlockReport) {
+            // fail the report, so that the datanode sends it again
+            NameNode.stateChangeLog.info("BLOCK* processReport: "
+                + "rejected block report from " + nodeID.getName()
+                + " because another report from it is being processed");
+            node = null;
+            throw new IOException("Block report from " + nodeID.getName()
+                + " rejected: a previous report from it is still being"
+                + " processed");
+          }
 
-      // To minimize startup time, we discard any second (or later) block reports
-      // that we receive while still in startup phase.
-      if (namesystem.isInStartupSafeMode() && node.numBlocks() > 0) {
-        NameNode.stateChangeLog.info("BLOCK* processReport: "
-            + "discarded non-initial block report from " + nodeID.getName()
-            + " because namenode still in startup phase");
-        return;
-      }
+          // To minimize startup time, we discard any second (or later) block reports
+          // that we receive while still in startup phase.
+          if (namesystem.isInStartupSafeMode() && node.numBlocks() > 0) {
+            NameNode.stateChangeLog.info("BLOCK* processReport: "
+                + "discarded non-initial block report from " + nodeID.getName()
+                + " because namenode still in startup phase");
+            node = null;
+            return;
+          }
 
-      if (node.numBlocks() == 0) {
-        // The first block report can be processed a lot more efficiently than
-        // ordinary block reports.  This shortens restart times.
-        processFirstBlockReport(node, newReport);
-      } else {
-        processReport(node, newReport);
+          // The first block report can be processed a lot more efficiently than
+          // ordinary block reports.  This shortens restart times.
+          isFirstReport = node.numBlocks() == 0;
+          node.startBlockReport(!isFirstReport);
+        } else if (datanodeManager.getDatanode(nodeID) != node
+            || !node.isAlive) {
+          throw new IOException("ProcessReport from dead or unregistered node: "
+              + nodeID.getName() + " while processing its report");
+        }
+
+        if (isFirstReport) {
+          processFirstBlockReport(node, itBR, blockReportChunkSize);
+          done = !itBR.hasNext();
+        } else if (itBR.hasNext()) {
+          processReport(node, itBR, blockReportChunkSize);
+          done = false;
+        } else {
+          if (unreported == null) {
+            unreported = node.removeReportDelimiter();
+            if (unreported == null) {
+              // the blocks of the node have been removed meanwhile
+              unreported = Collections.<BlockInfo>emptyList();
+            }
+          }
+          // Remove the blocks which have not been reported, unless they
+          // have been received or removed while the lock was released
+          final int n = Math.min(unreported.size(), blockReportChunkSize);
+          final List<BlockInfo> toRemove = unreported.subList(
+              unreported.size() - n, unreported.size());
+          for (BlockInfo b : toRemove) {
+            if (!node.isReceivedDuringReport(b)
+                && blocksMap.getStoredBlock(b) == b
+                && b.findDatanode(node) >= 0) {
+              removeStoredBlock(b, node);
+            }
+          }
+          toRemove.clear();
+          done = unreported.isEmpty();
+        }
+      } finally {
+        if (done && node != null) {
+          node.endBlockReport();
+        }
+        lockHoldTime += Util.now() - lockTime;
+        numChunks++;
+        namesystem.writeUnlock();
       }
-    } finally {
-      endTime = Util.now();
-      namesystem.writeUnlock();
     }
+    final long endTime = Util.now();
 
     // Log the block report processing stats from Namenode perspective
     NameNode.getNameNodeMetrics().addBlockReport((int) (endTime - startTime));
+    NameNode.getNameNodeMetrics().addBlockReportLockHold(lockHoldTime);
     NameNode.stateChangeLog.info("BLOCK* processReport: from "
-        + nodeID.getName() + ", blocks: " + newReport.getNumberOfBlocks()
-        + ", processing time: " + (endTime - startTime) + " msecs");
+        + nodeID.getName() + ", blocks: " + report.getNumberOfBlocks()
+        + ", processing time: " + (endTime - startTime) + " msecs"
+        + ", lock hold time: " + lockHoldTime + " msecs in "
+        + numChunks + " chunks");
   }
 
+  /**
+   * Process the next blocks of a block report, other than the first report
+   * of the node, moving them in front of the delimiter in the node's list.
+   * @param maxBlocks the maximum number of blocks to process
+   */
   private void processReport(final DatanodeDescriptor node,
-      final BlockListAsLongs report) throws IOException {
+      final BlockReportIterator itBR, final int maxBlocks) throws IOException {
     // Normal case:
     // Modify the (block-->datanode) map, according to the difference
     // between the old and new block report.
+    // The blocks not reported are removed once the whole report is processed.
     //
     Collection<BlockInfo> toAdd = new LinkedList<BlockInfo>();
-    Collection<Block> toRemove = new LinkedList<Block>();
     Collection<Block> toInvalidate = new LinkedList<Block>();
     Collection<BlockInfo> toCorrupt = new LinkedList<BlockInfo>();
     Collection<StatefulBlockInfo> toUC = new LinkedList<StatefulBlockInfo>();
-    reportDiff(node, report, toAdd, toRemove, toInvalidate, toCorrupt, toUC);
+    reportDiff(node, itBR, maxBlocks, toAdd, toInvalidate, toCorrupt, toUC);
 
     // Process the blocks on each queue
     for (StatefulBlockInfo b : toUC) { 
       addStoredBlockUnderConstruction(b.storedBlock, node, b.reportedState);
     }
-    for (Block b : toRemove) {
-      removeStoredBlock(b, node);
-    }
     for (BlockInfo b : toAdd) {
       addStoredBlock(b, node, null, true);
     }
@@ -1356,17 +1537,15 @@ public class BlockManager {
    * any invalid blocks, thereby deferring their processing until 
    * the next block report.
    * @param node - DatanodeDescriptor of the node that sent the report
-   * @param report - the initial block report, to be processed
+   * @param itBR - the remaining blocks of the initial block report
+   * @param maxBlocks - the maximum number of blocks to process
    * @throws IOException 
    */
   private void processFirstBlockReport(final DatanodeDescriptor node,
-      final BlockListAsLongs report) throws IOException {
-    if (report == null) return;
+      final BlockReportIterator itBR, final int maxBlocks) throws IOException {
     assert (namesystem.hasWriteLock());
-    assert (node.numBlocks() == 0);
-    BlockReportIterator itBR = report.getBlockReportIterator();
 
-    while(itBR.hasNext()) {
+    for(int i = 0; i < maxBlocks && itBR.hasNext(); i++) {
       Block iblk = itBR.next();
       ReplicaState reportedState = itBR.getCurrentReplicaState();
       BlockInfo storedBlock = blocksMap.getStoredBlock(iblk);
@@ -1394,25 +1573,17 @@ public class BlockManager {
   }
 
   private void reportDiff(DatanodeDescriptor dn, 
-      BlockListAsLongs newReport, 
+      BlockReportIterator itBR, int maxBlocks,
       Collection<BlockInfo> toAdd,              // add to DatanodeDescriptor
-      Collection<Block> toRemove,           // remove from DatanodeDescriptor
       Collection<Block> toInvalidate,       // should be removed from DN
       Collection<BlockInfo> toCorrupt,      // add to corrupt replicas list
       Collection<StatefulBlockInfo> toUC) { // add to under-construction list
-    // place a delimiter in the list which separates blocks 
-    // that have been reported from those that have not
-    BlockInfo delimiter = new BlockInfo(new Block(), 1);
-    boolean added = dn.addBlock(delimiter);
-    assert added : "Delimiting block cannot be present in the node";
-    int headIndex = 0; //currently the delimiter is in the head of the list
+    // The head of the list may have changed while the lock was released.
+    int headIndex = dn.getHead().findDatanode(dn);
     int curIndex;
 
-    if (newReport == null)
-      newReport = new BlockListAsLongs();
     // scan the report and process newly reported blocks
-    BlockReportIterator itBR = newReport.getBlockReportIterator();
-    while(itBR.hasNext()) {
+    for(int i = 0; i < maxBlocks && itBR.hasNext(); i++) {
       Block iblk = itBR.next();
       ReplicaState iState = itBR.getCurrentReplicaState();
       BlockInfo storedBlock = processReportedBlock(dn, iblk, iState,
@@ -1422,13 +1593,6 @@ public class BlockManager {
         headIndex = dn.moveBlockToHead(storedBlock, curIndex, headIndex);
       }
     }
-    // collect blocks that have not been reported
-    // all of them are next to the delimiter
-    Iterator<? extends Block> it = new DatanodeDescriptor.BlockIterator(
-        delimiter.getNext(0), dn);
-    while(it.hasNext())
-      toRemove.add(it.next());
-    dn.removeBlock(delimiter);
   }
 
   /**
@@ -2048,6 +2212,8 @@ public class BlockManager {
       throws IOException {
     // decrement number of blocks scheduled to this datanode.
     node.decBlocksScheduled();
+    // not to be removed as unreported by a block report being processed
+    node.blockReceived(block);
 
     // get the deletion hint node
     DatanodeDescriptor delHintNode = null;
@@ -2497,7 +2663,6 @@ public class BlockManager {
    */
   private class ReplicationMonitor implements Runnable {
     private static final int INVALIDATE_WORK_PCT_PER_ITERATION = 32;
-    private static final int REPLICATION_WORK_MULTIPLIER_PER_ITERATION = 2;
 
     @Override
     public void run() {
@@ -2538,8 +2703,7 @@ public class BlockManager {
       return workFound;
 
     final int numlive = heartbeatManager.getLiveDatanodeCount();
-    final int blocksToProcess = numlive
-        * ReplicationMonitor.REPLICATION_WORK_MULTIPLIER_PER_ITERATION;
+    final int blocksToProcess = numlive * replicationWorkMultiplier;
     final int nodesToProcess = (int) Math.ceil(numlive
         * ReplicationMonitor.INVALIDATE_WORK_PCT_PER_ITERATION / 100.0);
 
@@ -338,8 +338,7 @@ public class BlockPlacementPolicyDefault extends BlockPlacementPolicy {
     }
     boolean badTarget = false;
     while(numOfAvailableNodes > 0) {
-      DatanodeDescriptor chosenNode = 
-        (DatanodeDescriptor)(clusterMap.chooseRandom(nodes));
+      DatanodeDescriptor chosenNode = chooseDataNode(nodes, excludedNodes);
 
       Node oldNode = excludedNodes.put(chosenNode, chosenNode);
       if (oldNode == null) { // choosendNode was not in the excluded list
@@ -383,8 +382,7 @@ public class BlockPlacementPolicyDefault extends BlockPlacementPolicy {
     }
     boolean badTarget = false;
     while(numOfReplicas > 0 && numOfAvailableNodes > 0) {
-      DatanodeDescriptor chosenNode = 
-        (DatanodeDescriptor)(clusterMap.chooseRandom(nodes));
+      DatanodeDescriptor chosenNode = chooseDataNode(nodes, excludedNodes);
       Node oldNode = excludedNodes.put(chosenNode, chosenNode);
       if (oldNode == null) {
         numOfAvailableNodes--;
@@ -410,6 +408,20 @@ public class BlockPlacementPolicyDefault extends BlockPlacementPolicy {
     }
   }
     
+  /**
+   * Choose a datanode from the given scope to be checked as a target.
+   * The default implementation chooses uniformly at random, regardless
+   * of the excluded nodes.
+   * @param scope the scope of the network topology to choose from,
+   *              see {@link NetworkTopology#chooseRandom(String)}
+   * @param excludedNodes the nodes which have already been checked
+   * @return the chosen node, which the caller checks against excludedNodes
+   */
+  protected DatanodeDescriptor chooseDataNode(String scope,
+      HashMap<Node, Node> excludedNodes) {
+    return (DatanodeDescriptor)clusterMap.chooseRandom(scope);
+  }
+
   /* judge if a node is a good target.
    * return true if <i>node</i> has enough space, 
    * does not have too much load, and the rack does not have too many nodes
@@ -20,10 +20,12 @@ package org.apache.hadoop.hdfs.server.blockmanagement;
 import java.io.DataInput;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.Set;
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.hdfs.DeprecatedUTF8;
@@ -102,6 +104,24 @@ public class DatanodeDescriptor extends DatanodeInfo {
   // This is an optimization, because contains takes O(n) time on Arraylist
   public boolean isAlive = false;
   public boolean needKeyUpdate = false;
+  /**
+   * Whether a block report from this node is being processed.
+   * Guarded by the namesystem write lock.
+   */
+  boolean processingBlockReport = false;
+  /**
+   * While a block report is processed, the blocks of the node which have
+   * been reported are moved in front of this delimiter. It is neither
+   * counted by {@link #numBlocks()} nor returned by
+   * {@link #getBlockIterator()}. Guarded by the namesystem write lock.
+   */
+  private BlockInfo reportDelimiter = null;
+  /**
+   * The ids of the blocks received while a block report is processed,
+   * which must not be removed as unreported by it.
+   * Guarded by the namesystem write lock.
+   */
+  private Set<Long> receivedDuringReport = null;
 
   // A system administrator can tune the balancer bandwidth parameter
   // (dfs.balance.bandwidthPerSec) dynamically by calling
@@ -283,7 +303,64 @@ public class DatanodeDescriptor extends DatanodeInfo {
   }
 
   public int numBlocks() {
-    return numBlocks;
+    return reportDelimiter == null? numBlocks: numBlocks - 1;
+  }
+
+  /**
+   * Start processing a block report.
+   * @param delimit whether to add the report delimiter: the blocks of the
+   *        node are then unreported until they are moved in front of it.
+   */
+  void startBlockReport(boolean delimit) {
+    processingBlockReport = true;
+    receivedDuringReport = new HashSet<Long>();
+    if (delimit) {
+      reportDelimiter = new BlockInfo(new Block(), 1);
+      boolean added = addBlock(reportDelimiter);
+      assert added : "Delimiting block cannot be present in the node";
+    }
+  }
+
+  /**
+   * Remove the report delimiter, if any.
+   * @return the blocks which follow it, i.e. have not been reported,
+   *         or null if there is no delimiter.
+   */
+  List<BlockInfo> removeReportDelimiter() {
+    if (reportDelimiter == null) {
+      return null;
+    }
+    final List<BlockInfo> unreported = new ArrayList<BlockInfo>();
+    for(BlockInfo b = reportDelimiter.getNext(0); b != null;
+        b = b.getNext(b.findDatanode(this))) {
+      unreported.add(b);
+    }
+    removeBlock(reportDelimiter);
+    reportDelimiter = null;
+    return unreported;
+  }
+
+  /** Finish processing a block report. */
+  void endBlockReport() {
+    removeReportDelimiter();
+    receivedDuringReport = null;
+    processingBlockReport = false;
+  }
+
+  /** Note that the block has been received by the node. */
+  void blockReceived(Block b) {
+    if (receivedDuringReport != null) {
+      receivedDuringReport.add(b.getBlockId());
+    }
+  }
+
+  /**
+   * @return true if the block has been received since the block report
+   *         being processed was started.
+   */
+  boolean isReceivedDuringReport(Block b) {
+    return receivedDuringReport != null
+        && receivedDuringReport.contains(b.getBlockId());
   }
 
   /**
@@ -309,8 +386,13 @@ public class DatanodeDescriptor extends DatanodeInfo {
     private DatanodeDescriptor node;
       
     BlockIterator(BlockInfo head, DatanodeDescriptor dn) {
-      this.current = head;
       this.node = dn;
+      this.current = skipDelimiter(head);
+    }
+
+    private BlockInfo skipDelimiter(BlockInfo b) {
+      return b != null && b == node.reportDelimiter?
+          b.getNext(b.findDatanode(node)): b;
     }
 
     public boolean hasNext() {
@@ -319,7 +401,7 @@ public class DatanodeDescriptor extends DatanodeInfo {
 
     public BlockInfo next() {
       BlockInfo res = current;
-      current = current.getNext(current.findDatanode(node));
+      current = skipDelimiter(current.getNext(current.findDatanode(node)));
       return res;
     }
 
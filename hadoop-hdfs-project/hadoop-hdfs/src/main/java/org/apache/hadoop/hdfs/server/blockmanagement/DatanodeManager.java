@@ -25,6 +25,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -123,6 +124,15 @@ public class DatanodeManager {
   private final long heartbeatExpireInterval;
   /** Ask Datanode only up to this many blocks to delete. */
   final int blockInvalidateLimit;
+
+  /** Whether to list the stale datanodes last for reads. */
+  private final boolean avoidStaleDataNodesForRead;
+  /** The period without heartbeat after which a datanode is stale. */
+  private final long staleInterval;
+  /** Whether to list the busy datanodes last for reads. */
+  private final boolean avoidBusyDataNodesForRead;
+  /** A datanode is busy if its load exceeds this times the average. */
+  private final float busyLoadFactor;
   
   DatanodeManager(final BlockManager blockManager,
       final Namesystem namesystem, final Configuration conf
@@ -161,6 +171,24 @@ public class DatanodeManager {
         DFSConfigKeys.DFS_BLOCK_INVALIDATE_LIMIT_KEY, blockInvalidateLimit);
     LOG.info(DFSConfigKeys.DFS_BLOCK_INVALIDATE_LIMIT_KEY
         + "=" + this.blockInvalidateLimit);
+
+    this.avoidStaleDataNodesForRead = conf.getBoolean(
+        DFSConfigKeys.DFS_NAMENODE_AVOID_STALE_DATANODE_FOR_READ_KEY,
+        DFSConfigKeys.DFS_NAMENODE_AVOID_STALE_DATANODE_FOR_READ_DEFAULT);
+    this.staleInterval = conf.getLong(
+        DFSConfigKeys.DFS_NAMENODE_STALE_DATANODE_INTERVAL_KEY,
+        DFSConfigKeys.DFS_NAMENODE_STALE_DATANODE_INTERVAL_DEFAULT);
+    this.avoidBusyDataNodesForRead = conf.getBoolean(
+        DFSConfigKeys.DFS_NAMENODE_AVOID_BUSY_DATANODE_FOR_READ_KEY,
+        DFSConfigKeys.DFS_NAMENODE_AVOID_BUSY_DATANODE_FOR_READ_DEFAULT);
+    this.busyLoadFactor = conf.getFloat(
+        DFSConfigKeys.DFS_NAMENODE_BUSY_DATANODE_LOAD_FACTOR_KEY,
+        DFSConfigKeys.DFS_NAMENODE_BUSY_DATANODE_LOAD_FACTOR_DEFAULT);
+    if (avoidStaleDataNodesForRead && staleInterval <= 0) {
+      throw new HadoopIllegalArgumentException(
+          DFSConfigKeys.DFS_NAMENODE_STALE_DATANODE_INTERVAL_KEY + " = "
+          + staleInterval + " <= 0");
+    }
   }
 
   private Daemon decommissionthread = null;
@@ -200,16 +228,69 @@ public class DatanodeManager {
   /** Sort the located blocks by the distance to the target host. */
   public void sortLocatedBlocks(final String targethost,
       final List<LocatedBlock> locatedblocks) {
+    sortLocatedBlocks(getDatanodeByHost(targethost), locatedblocks);
+  }
+
+  void sortLocatedBlocks(final DatanodeDescriptor client,
+      final List<LocatedBlock> locatedblocks) {
+    final Comparator<DatanodeInfo> comparator =
+        avoidStaleDataNodesForRead || avoidBusyDataNodesForRead
+        ? new ReadOrderComparator(client) : DFSUtil.DECOM_COMPARATOR;
     //sort the blocks
-    final DatanodeDescriptor client = getDatanodeByHost(targethost);
     for (LocatedBlock b : locatedblocks) {
       networktopology.pseudoSortByDistance(client, b.getLocations());
       
       // Move decommissioned datanodes to the bottom
-      Arrays.sort(b.getLocations(), DFSUtil.DECOM_COMPARATOR);
+      Arrays.sort(b.getLocations(), comparator);
     }    
   }
 
+  /**
+   * Orders the replicas for a reader by the state of their datanodes:
+   * the decommissioned datanodes last, the stale ones before them and the
+   * busy ones before those, except for the reader's own datanode.
+   * The other datanodes come first, the nearer ones to the reader
+   * before the farther ones.
+   * The sort is stable, so the random order of the replicas
+   * at the same distance is kept.
+   */
+  private class ReadOrderComparator implements Comparator<DatanodeInfo> {
+    private final DatanodeDescriptor reader;
+    /** Datanodes with no heartbeat since are stale. */
+    private final long staleBefore;
+    /** Datanodes with more transfers are busy. */
+    private final double maxLoad;
+
+    ReadOrderComparator(DatanodeDescriptor reader) {
+      this.reader = reader;
+      this.staleBefore = now() - staleInterval;
+      final int live = heartbeatManager.getLiveDatanodeCount();
+      this.maxLoad = live == 0? Double.MAX_VALUE
+          : busyLoadFactor * heartbeatManager.getXceiverCount() / live;
+    }
+
+    private int rank(DatanodeInfo d) {
+      if (d.isDecommissioned()) {
+        return 5;
+      } else if (avoidStaleDataNodesForRead
+          && d.getLastUpdate() < staleBefore) {
+        return 4;
+      } else if (d == reader) {
+        return 0;
+      } else if (avoidBusyDataNodesForRead && d.getXceiverCount() > maxLoad) {
+        return 3;
+      } else if (reader != null && networktopology.isOnSameRack(reader, d)) {
+        return 1;
+      }
+      return 2;
+    }
+
+    @Override
+    public int compare(DatanodeInfo a, DatanodeInfo b) {
+      return rank(a) - rank(b);
+    }
+  }
+
   CyclicIteration<String, DatanodeDescriptor> getDatanodeCyclicIteration(
       final String firstkey) {
     return new CyclicIteration<String, DatanodeDescriptor>(
@@ -857,69 +938,75 @@ public class DatanodeManager {
       long capacity, long dfsUsed, long remaining, long blockPoolUsed,
       int xceiverCount, int maxTransfers, int failedVolumes
       ) throws IOException {
-    synchronized (heartbeatManager) {
-      synchronized (datanodeMap) {
-        DatanodeDescriptor nodeinfo = null;
-        try {
-          nodeinfo = getDatanode(nodeReg);
-        } catch(UnregisteredNodeException e) {
-          return new DatanodeCommand[]{RegisterCommand.REGISTER};
-        }
-        
-        // Check if this datanode should actually be shutdown instead. 
-        if (nodeinfo != null && nodeinfo.isDisallowed()) {
-          setDatanodeDead(nodeinfo);
-          throw new DisallowedDatanodeException(nodeinfo);
-        }
-         
-        if (nodeinfo == null || !nodeinfo.isAlive) {
-          return new DatanodeCommand[]{RegisterCommand.REGISTER};
-        }
+    final DatanodeDescriptor nodeinfo;
+    synchronized (datanodeMap) {
+      try {
+        nodeinfo = getDatanode(nodeReg);
+      } catch(UnregisteredNodeException e) {
+        return new DatanodeCommand[]{RegisterCommand.REGISTER};
+      }
+    }
+    if (nodeinfo == null) {
+      return new DatanodeCommand[]{RegisterCommand.REGISTER};
+    }
 
-        heartbeatManager.updateHeartbeat(nodeinfo, capacity, dfsUsed,
-            remaining, blockPoolUsed, xceiverCount, failedVolumes);
-        
-        //check lease recovery
-        BlockInfoUnderConstruction[] blocks = nodeinfo
-            .getLeaseRecoveryCommand(Integer.MAX_VALUE);
-        if (blocks != null) {
-          BlockRecoveryCommand brCommand = new BlockRecoveryCommand(
-              blocks.length);
-          for (BlockInfoUnderConstruction b : blocks) {
-            brCommand.add(new RecoveringBlock(
-                new ExtendedBlock(blockPoolId, b), b.getExpectedLocations(), b
-                    .getBlockRecoveryId()));
-          }
-          return new DatanodeCommand[] { brCommand };
-        }
+    // Only the heartbeats of the same datanode are serialized. The caller
+    // holds the namesystem read lock, so the datanode is neither registered
+    // nor removed meanwhile.
+    synchronized (heartbeatManager.getLock(nodeinfo)) {
+      // Check if this datanode should actually be shutdown instead. 
+      if (nodeinfo.isDisallowed()) {
+        setDatanodeDead(nodeinfo);
+        throw new DisallowedDatanodeException(nodeinfo);
+      }
 
-        final List<DatanodeCommand> cmds = new ArrayList<DatanodeCommand>();
-        //check pending replication
-        List<BlockTargetPair> pendingList = nodeinfo.getReplicationCommand(
-              maxTransfers);
-        if (pendingList != null) {
-          cmds.add(new BlockCommand(DatanodeProtocol.DNA_TRANSFER, blockPoolId,
-              pendingList));
-        }
-        //check block invalidation
-        Block[] blks = nodeinfo.getInvalidateBlocks(blockInvalidateLimit);
-        if (blks != null) {
-          cmds.add(new BlockCommand(DatanodeProtocol.DNA_INVALIDATE,
-              blockPoolId, blks));
-        }
-        
-        blockManager.addKeyUpdateCommand(cmds, nodeinfo);
+      if (!nodeinfo.isAlive) {
+        return new DatanodeCommand[]{RegisterCommand.REGISTER};
+      }
 
-        // check for balancer bandwidth update
-        if (nodeinfo.getBalancerBandwidth() > 0) {
-          cmds.add(new BalancerBandwidthCommand(nodeinfo.getBalancerBandwidth()));
-          // set back to 0 to indicate that datanode has been sent the new value
-          nodeinfo.setBalancerBandwidth(0);
+      heartbeatManager.updateHeartbeat(nodeinfo, capacity, dfsUsed,
+          remaining, blockPoolUsed, xceiverCount, failedVolumes);
+      
+      //check lease recovery
+      BlockInfoUnderConstruction[] blocks = nodeinfo
+          .getLeaseRecoveryCommand(Integer.MAX_VALUE);
+      if (blocks != null) {
+        BlockRecoveryCommand brCommand = new BlockRecoveryCommand(
+            blocks.length);
+        for (BlockInfoUnderConstruction b : blocks) {
+          brCommand.add(new RecoveringBlock(
+              new ExtendedBlock(blockPoolId, b), b.getExpectedLocations(), b
+                  .getBlockRecoveryId()));
         }
+        return new DatanodeCommand[] { brCommand };
+      }
 
-        if (!cmds.isEmpty()) {
-          return cmds.toArray(new DatanodeCommand[cmds.size()]);
-        }
+      final List<DatanodeCommand> cmds = new ArrayList<DatanodeCommand>();
+      //check pending replication
+      List<BlockTargetPair> pendingList = nodeinfo.getReplicationCommand(
+            maxTransfers);
+      if (pendingList != null) {
+        cmds.add(new BlockCommand(DatanodeProtocol.DNA_TRANSFER, blockPoolId,
+            pendingList));
+      }
+      //check block invalidation
+      Block[] blks = nodeinfo.getInvalidateBlocks(blockInvalidateLimit);
+      if (blks != null) {
+        cmds.add(new BlockCommand(DatanodeProtocol.DNA_INVALIDATE,
+            blockPoolId, blks));
+      }
+      
+      blockManager.addKeyUpdateCommand(cmds, nodeinfo);
+
+      // check for balancer bandwidth update
+      if (nodeinfo.getBalancerBandwidth() > 0) {
+        cmds.add(new BalancerBandwidthCommand(nodeinfo.getBalancerBandwidth()));
+        // set back to 0 to indicate that datanode has been sent the new value
+        nodeinfo.setBalancerBandwidth(0);
+      }
+
+      if (!cmds.isEmpty()) {
+        return cmds.toArray(new DatanodeCommand[cmds.size()]);
       }
     }
 
@@ -943,7 +1030,9 @@ public class DatanodeManager {
   public void setBalancerBandwidth(long bandwidth) throws IOException {
     synchronized(datanodeMap) {
       for (DatanodeDescriptor nodeInfo : datanodeMap.values()) {
-        nodeInfo.setBalancerBandwidth(bandwidth);
+        synchronized(heartbeatManager.getLock(nodeInfo)) {
+          nodeInfo.setBalancerBandwidth(bandwidth);
+        }
       }
     }
   }
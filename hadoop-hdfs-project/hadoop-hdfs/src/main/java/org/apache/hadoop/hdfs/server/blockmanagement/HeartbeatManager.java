@@ -19,6 +19,8 @@ package org.apache.hadoop.hdfs.server.blockmanagement;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -32,12 +34,18 @@ import org.apache.hadoop.util.Daemon;
 
 /**
  * Manage the heartbeats received from datanodes.
- * The datanode list and statistics are synchronized
- * by the heartbeat manager lock.
+ * The datanode list is synchronized by the heartbeat manager lock.
+ * The heartbeat state of a datanode is guarded by one of a set of locks,
+ * see {@link #getLock(DatanodeDescriptor)}, so the heartbeats from
+ * different datanodes are processed in parallel. The statistics are
+ * updated atomically and read without locking.
  */
 class HeartbeatManager implements DatanodeStatistics {
   static final Log LOG = LogFactory.getLog(HeartbeatManager.class);
 
+  /** The number of locks guarding the datanodes, a power of two. */
+  private static final int NUM_LOCKS = 256;
+
   /**
    * Stores a subset of the datanodeMap in DatanodeManager,
    * containing nodes that are considered alive.
@@ -46,8 +54,13 @@ class HeartbeatManager implements DatanodeStatistics {
    * It is synchronized by the heartbeat manager lock.
    */
   private final List<DatanodeDescriptor> datanodes = new ArrayList<DatanodeDescriptor>();
+  /** The size of {@link #datanodes}, to be read without the lock. */
+  private volatile int numLiveDatanodes = 0;
+
+  /** Locks guarding the heartbeat state of the datanodes. */
+  private final Object[] locks = new Object[NUM_LOCKS];
 
-  /** Statistics, which are synchronized by the heartbeat manager lock. */
+  /** Statistics, which are updated atomically. */
   private final Stats stats = new Stats();
 
   /** The time period to check for expired datanodes */
@@ -66,6 +79,9 @@ class HeartbeatManager implements DatanodeStatistics {
 
     this.namesystem = namesystem;
     this.blockManager = blockManager;
+    for(int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
   }
 
   void activate(Configuration conf) {
@@ -75,61 +91,75 @@ class HeartbeatManager implements DatanodeStatistics {
   void close() {
     heartbeatThread.interrupt();
   }
-  
-  synchronized int getLiveDatanodeCount() {
-    return datanodes.size();
+
+  /**
+   * @return the lock guarding the state of the datanode which its heartbeats
+   *         update, its isAlive and needKeyUpdate flags and its balancer
+   *         bandwidth. The heartbeat manager lock may be taken before it,
+   *         but not after.
+   */
+  Object getLock(final DatanodeDescriptor node) {
+    return locks[System.identityHashCode(node) & (locks.length - 1)];
+  }
+
+  int getLiveDatanodeCount() {
+    return numLiveDatanodes;
   }
 
   @Override
-  public synchronized long getCapacityTotal() {
-    return stats.capacityTotal;
+  public long getCapacityTotal() {
+    return stats.get(Stats.CAPACITY_TOTAL);
   }
 
   @Override
-  public synchronized long getCapacityUsed() {
-    return stats.capacityUsed;
+  public long getCapacityUsed() {
+    return stats.get(Stats.CAPACITY_USED);
   }
 
   @Override
-  public synchronized float getCapacityUsedPercent() {
-    return DFSUtil.getPercentUsed(stats.capacityUsed, stats.capacityTotal);
+  public float getCapacityUsedPercent() {
+    return DFSUtil.getPercentUsed(getCapacityUsed(), getCapacityTotal());
   }
 
   @Override
-  public synchronized long getCapacityRemaining() {
-    return stats.capacityRemaining;
+  public long getCapacityRemaining() {
+    return stats.get(Stats.CAPACITY_REMAINING);
   }
 
   @Override
-  public synchronized float getCapacityRemainingPercent() {
+  public float getCapacityRemainingPercent() {
     return DFSUtil.getPercentRemaining(
-        stats.capacityRemaining, stats.capacityTotal);
+        getCapacityRemaining(), getCapacityTotal());
   }
 
   @Override
-  public synchronized long getBlockPoolUsed() {
-    return stats.blockPoolUsed;
+  public long getBlockPoolUsed() {
+    return stats.get(Stats.BLOCK_POOL_USED);
   }
 
   @Override
-  public synchronized float getPercentBlockPoolUsed() {
-    return DFSUtil.getPercentUsed(stats.blockPoolUsed, stats.capacityTotal);
+  public float getPercentBlockPoolUsed() {
+    return DFSUtil.getPercentUsed(getBlockPoolUsed(), getCapacityTotal());
   }
 
   @Override
-  public synchronized long getCapacityUsedNonDFS() {
-    final long nonDFSUsed = stats.capacityTotal
-        - stats.capacityRemaining - stats.capacityUsed;
+  public long getCapacityUsedNonDFS() {
+    final long nonDFSUsed = getCapacityTotal()
+        - getCapacityRemaining() - getCapacityUsed();
     return nonDFSUsed < 0L? 0L : nonDFSUsed;
   }
 
   @Override
-  public synchronized int getXceiverCount() {
-    return stats.xceiverCount;
+  public int getXceiverCount() {
+    return (int)stats.get(Stats.XCEIVER_COUNT);
   }
 
+  /**
+   * The statistics are read one by one, so they may reflect different
+   * heartbeats.
+   */
   @Override
-  public synchronized long[] getStats() {
+  public long[] getStats() {
     return new long[] {getCapacityTotal(),
                        getCapacityUsed(),
                        getCapacityRemaining(),
@@ -140,8 +170,8 @@ class HeartbeatManager implements DatanodeStatistics {
   }
 
   @Override
-  public synchronized int getExpiredHeartbeats() {
-    return stats.expiredHeartbeats;
+  public int getExpiredHeartbeats() {
+    return stats.expiredHeartbeats.get();
   }
 
   synchronized void register(final DatanodeDescriptor d) {
@@ -149,7 +179,9 @@ class HeartbeatManager implements DatanodeStatistics {
       addDatanode(d);
 
       //update its timestamp
-      d.updateHeartbeat(0L, 0L, 0L, 0L, 0, 0);
+      synchronized(getLock(d)) {
+        d.updateHeartbeat(0L, 0L, 0L, 0L, 0, 0);
+      }
     }
   }
 
@@ -159,38 +191,51 @@ class HeartbeatManager implements DatanodeStatistics {
 
   synchronized void addDatanode(final DatanodeDescriptor d) {
     datanodes.add(d);
-    d.isAlive = true;
+    numLiveDatanodes = datanodes.size();
+    synchronized(getLock(d)) {
+      d.isAlive = true;
+    }
   }
 
   synchronized void removeDatanode(DatanodeDescriptor node) {
-    if (node.isAlive) {
+    synchronized(getLock(node)) {
+      if (!node.isAlive) {
+        return;
+      }
       stats.subtract(node);
-      datanodes.remove(node);
       node.isAlive = false;
     }
+    datanodes.remove(node);
+    numLiveDatanodes = datanodes.size();
   }
 
-  synchronized void updateHeartbeat(final DatanodeDescriptor node,
+  void updateHeartbeat(final DatanodeDescriptor node,
       long capacity, long dfsUsed, long remaining, long blockPoolUsed,
       int xceiverCount, int failedVolumes) {
-    stats.subtract(node);
-    node.updateHeartbeat(capacity, dfsUsed, remaining, blockPoolUsed,
-        xceiverCount, failedVolumes);
-    stats.add(node);
+    synchronized(getLock(node)) {
+      final long[] before = Stats.contribution(node);
+      node.updateHeartbeat(capacity, dfsUsed, remaining, blockPoolUsed,
+          xceiverCount, failedVolumes);
+      stats.addChange(before, node);
+    }
   }
 
-  synchronized void startDecommission(final DatanodeDescriptor node) {
-    stats.subtract(node);
-    node.startDecommission();
-    stats.add(node);
+  void startDecommission(final DatanodeDescriptor node) {
+    synchronized(getLock(node)) {
+      final long[] before = Stats.contribution(node);
+      node.startDecommission();
+      stats.addChange(before, node);
+    }
   }
 
-  synchronized void stopDecommission(final DatanodeDescriptor node) {
-    stats.subtract(node);
-    node.stopDecommission();
-    stats.add(node);
+  void stopDecommission(final DatanodeDescriptor node) {
+    synchronized(getLock(node)) {
+      final long[] before = Stats.contribution(node);
+      node.stopDecommission();
+      stats.addChange(before, node);
+    }
   }
-  
+
   /**
    * Check if there are any expired heartbeats, and if so,
    * whether any blocks have to be re-replicated.
@@ -211,8 +256,12 @@ class HeartbeatManager implements DatanodeStatistics {
       DatanodeID dead = null;
       synchronized(this) {
         for (DatanodeDescriptor d : datanodes) {
-          if (dm.isDatanodeDead(d)) {
-            stats.incrExpiredHeartbeats();
+          final boolean isDead;
+          synchronized(getLock(d)) {
+            isDead = dm.isDatanodeDead(d);
+          }
+          if (isDead) {
+            stats.expiredHeartbeats.incrementAndGet();
             dead = d;
             break;
           }
@@ -255,7 +304,9 @@ class HeartbeatManager implements DatanodeStatistics {
           if (blockManager.shouldUpdateBlockKey(now - lastBlockKeyUpdate)) {
             synchronized(HeartbeatManager.this) {
               for(DatanodeDescriptor d : datanodes) {
-                d.needKeyUpdate = true;
+                synchronized(getLock(d)) {
+                  d.needKeyUpdate = true;
+                }
               }
             }
             lastBlockKeyUpdate = now;
@@ -273,43 +324,56 @@ class HeartbeatManager implements DatanodeStatistics {
 
   /** Datanode statistics.
    * For decommissioning/decommissioned nodes, only used capacity is counted.
+   * A change of a node is added to each statistic atomically, so that
+   * the statistics are not locked by the heartbeats or their readers.
    */
   private static class Stats {
-    private long capacityTotal = 0L;
-    private long capacityUsed = 0L;
-    private long capacityRemaining = 0L;
-    private long blockPoolUsed = 0L;
-    private int xceiverCount = 0;
-
-    private int expiredHeartbeats = 0;
-
-    private void add(final DatanodeDescriptor node) {
-      capacityUsed += node.getDfsUsed();
-      blockPoolUsed += node.getBlockPoolUsed();
-      xceiverCount += node.getXceiverCount();
+    static final int CAPACITY_TOTAL = 0;
+    static final int CAPACITY_USED = 1;
+    static final int CAPACITY_REMAINING = 2;
+    static final int BLOCK_POOL_USED = 3;
+    static final int XCEIVER_COUNT = 4;
+    private static final int NUM_STATS = 5;
+
+    private final AtomicLongArray values = new AtomicLongArray(NUM_STATS);
+    private final AtomicInteger expiredHeartbeats = new AtomicInteger();
+
+    /** @return the contribution of the node to each statistic. */
+    private static long[] contribution(final DatanodeDescriptor node) {
+      final long[] c = new long[NUM_STATS];
+      c[CAPACITY_USED] = node.getDfsUsed();
+      c[BLOCK_POOL_USED] = node.getBlockPoolUsed();
+      c[XCEIVER_COUNT] = node.getXceiverCount();
       if (!(node.isDecommissionInProgress() || node.isDecommissioned())) {
-        capacityTotal += node.getCapacity();
-        capacityRemaining += node.getRemaining();
+        c[CAPACITY_TOTAL] = node.getCapacity();
+        c[CAPACITY_REMAINING] = node.getRemaining();
       } else {
-        capacityTotal += node.getDfsUsed();
+        c[CAPACITY_TOTAL] = node.getDfsUsed();
       }
+      return c;
     }
 
-    private void subtract(final DatanodeDescriptor node) {
-      capacityUsed -= node.getDfsUsed();
-      blockPoolUsed -= node.getBlockPoolUsed();
-      xceiverCount -= node.getXceiverCount();
-      if (!(node.isDecommissionInProgress() || node.isDecommissioned())) {
-        capacityTotal -= node.getCapacity();
-        capacityRemaining -= node.getRemaining();
-      } else {
-        capacityTotal -= node.getDfsUsed();
+    private long get(int stat) {
+      return values.get(stat);
+    }
+
+    /** Add the change of the node's contribution since before. */
+    private void addChange(final long[] before, final DatanodeDescriptor node) {
+      final long[] after = contribution(node);
+      for(int i = 0; i < NUM_STATS; i++) {
+        if (after[i] != before[i]) {
+          values.addAndGet(i, after[i] - before[i]);
+        }
       }
     }
-    
-    /** Increment expired heartbeat counter. */
-    private void incrExpiredHeartbeats() {
-      expiredHeartbeats++;
+
+    private void subtract(final DatanodeDescriptor node) {
+      final long[] c = contribution(node);
+      for(int i = 0; i < NUM_STATS; i++) {
+        if (c[i] != 0) {
+          values.addAndGet(i, -c[i]);
+        }
+      }
     }
   }
 }
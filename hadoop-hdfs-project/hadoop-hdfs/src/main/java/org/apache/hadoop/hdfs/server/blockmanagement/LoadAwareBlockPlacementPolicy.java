@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.blockmanagement;
+
+import java.util.HashMap;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.DFSUtil;
+import org.apache.hadoop.hdfs.server.namenode.FSClusterStats;
+import org.apache.hadoop.net.NetworkTopology;
+import org.apache.hadoop.net.Node;
+
+/**
+ * A block placement policy which places replicas on the same racks as
+ * {@link BlockPlacementPolicyDefault}, but prefers the less loaded
+ * datanodes of a rack.
+ *
+ * Instead of choosing a datanode uniformly at random, it samples a few
+ * datanodes of the scope and chooses one of them at random, each with a
+ * probability proportional to its weight; see {@link #getWeight}. The
+ * weight is based on what the datanodes report in their heartbeats: it
+ * decreases with the number of active transfers and of blocks scheduled
+ * to be written, and increases with the remaining space. Sampling keeps
+ * the cost of a choice constant, and the randomness keeps the datanodes
+ * with the lowest load from being chosen by all the writers in between
+ * two of their heartbeats.
+ */
+@InterfaceAudience.Private
+public class LoadAwareBlockPlacementPolicy extends BlockPlacementPolicyDefault {
+  /** The weight of a datanode with no remaining space, relative to 1. */
+  private static final double MIN_WEIGHT = 0.01;
+
+  private int numCandidates;
+
+  LoadAwareBlockPlacementPolicy(Configuration conf, FSClusterStats stats,
+      NetworkTopology clusterMap) {
+    initialize(conf, stats, clusterMap);
+  }
+
+  LoadAwareBlockPlacementPolicy() {
+  }
+
+  @Override
+  public void initialize(Configuration conf, FSClusterStats stats,
+      NetworkTopology clusterMap) {
+    super.initialize(conf, stats, clusterMap);
+    numCandidates = conf.getInt(
+        DFSConfigKeys.DFS_NAMENODE_BLOCKPLACEMENT_LOAD_AWARE_CANDIDATES_KEY,
+        DFSConfigKeys.DFS_NAMENODE_BLOCKPLACEMENT_LOAD_AWARE_CANDIDATES_DEFAULT);
+    if (numCandidates < 1) {
+      throw new IllegalArgumentException(
+          DFSConfigKeys.DFS_NAMENODE_BLOCKPLACEMENT_LOAD_AWARE_CANDIDATES_KEY
+          + " = " + numCandidates + " < 1");
+    }
+  }
+
+  @Override
+  protected DatanodeDescriptor chooseDataNode(String scope,
+      HashMap<Node, Node> excludedNodes) {
+    final DatanodeDescriptor[] candidates = new DatanodeDescriptor[numCandidates];
+    final double[] weights = new double[numCandidates];
+    double total = 0;
+    int n = 0;
+    for(int i = 0; i < numCandidates; i++) {
+      final DatanodeDescriptor node = super.chooseDataNode(scope, excludedNodes);
+      if (node == null) {
+        break;
+      }
+      if (!excludedNodes.containsKey(node)) {
+        candidates[n] = node;
+        weights[n] = getWeight(node);
+        total += weights[n];
+        n++;
+      }
+    }
+    if (n == 0) {
+      // leave it to the caller to skip an excluded node
+      return super.chooseDataNode(scope, excludedNodes);
+    }
+
+    double r = DFSUtil.getRandom().nextDouble() * total;
+    for(int i = 0; i < n - 1; i++) {
+      r -= weights[i];
+      if (r < 0) {
+        return candidates[i];
+      }
+    }
+    return candidates[n - 1];
+  }
+
+  /**
+   * The weight of a datanode, which is its remaining fraction of capacity
+   * divided by one plus its load. The load is the number of active
+   * transfers in its last heartbeat plus the number of blocks scheduled
+   * to be written to it since.
+   */
+  static double getWeight(DatanodeDescriptor node) {
+    final int load = node.getXceiverCount() + node.getBlocksScheduled();
+    return (MIN_WEIGHT + node.getRemainingPercent() / 100) / (1 + load);
+  }
+}
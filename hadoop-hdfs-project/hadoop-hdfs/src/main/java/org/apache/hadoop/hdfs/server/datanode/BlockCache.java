@@ -0,0 +1,336 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.protocol.HdfsConstants;
+import org.apache.hadoop.hdfs.server.common.HdfsServerConstants.ReplicaState;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.Daemon;
+import org.apache.hadoop.util.DataChecksum;
+
+/**
+ * A cache of the data and the checksums of hot finalized blocks, kept in
+ * direct buffers outside of the heap, so that {@link BlockSender} serves
+ * the reads of these blocks without reading the disk or the page cache.
+ *
+ * A block is cached after it has been read a number of times recently, or
+ * when a client asks for it, see {@link DataNode#cacheBlock}.  The counts
+ * of the recent reads are kept for a bounded number of blocks.  The blocks
+ * are loaded in the background, their checksums are verified once when
+ * they are loaded, and the least recently read blocks are evicted when
+ * the cache is full.
+ *
+ * A cached block is only served if the replica in the dataset is still
+ * the same finalized replica: a block which has been appended to has a
+ * new generation stamp, and a deleted block is not found in the dataset.
+ *
+ * This class is thread safe.
+ */
+class BlockCache {
+  private static final Log LOG = DataNode.LOG;
+
+  /** The number of blocks whose recent reads are counted. */
+  private static final int MAX_READ_COUNTS = 16 * 1024;
+  /** The maximum number of blocks waiting to be loaded. */
+  private static final int MAX_PENDING_LOADS = 64;
+  private static final long LOADER_KEEPALIVE_SECONDS = 60;
+
+  /** The data and the checksums of a cached block. */
+  static class CachedBlock {
+    private final String poolId;
+    private final long genStamp;
+    private final int checksumType;
+    private final int bytesPerChecksum;
+    /** The read-only block data. */
+    private final ByteBuffer data;
+    /** The read-only checksums, as in the metadata file after the header. */
+    private final ByteBuffer checksums;
+
+    private CachedBlock(String poolId, long genStamp, DataChecksum checksum,
+        ByteBuffer data, ByteBuffer checksums) {
+      this.poolId = poolId;
+      this.genStamp = genStamp;
+      this.checksumType = checksum.getChecksumType();
+      this.bytesPerChecksum = checksum.getBytesPerChecksum();
+      this.data = data.asReadOnlyBuffer();
+      this.checksums = checksums.asReadOnlyBuffer();
+    }
+
+    /** @return true if this is the cache of the given replica. */
+    private boolean isCacheOf(String bpid, Replica replica) {
+      return genStamp == replica.getGenerationStamp()
+          && data.capacity() == replica.getNumBytes()
+          && poolId.equals(bpid);
+    }
+
+    /** @return the number of bytes used by this block. */
+    private long getSize() {
+      return data.capacity() + checksums.capacity();
+    }
+
+    /** @return a new checksum object of the type of this block. */
+    DataChecksum newChecksum() {
+      return DataChecksum.newDataChecksum(checksumType, bytesPerChecksum);
+    }
+
+    /** @return a read-only view of a range of the block data. */
+    ByteBuffer getData(int offset, int length) {
+      final ByteBuffer b = data.duplicate();
+      b.position(offset);
+      b.limit(offset + length);
+      return b;
+    }
+
+    /** Copy a range of the block data. */
+    void getData(int offset, byte[] buf, int off, int length) {
+      getData(offset, length).get(buf, off, length);
+    }
+
+    /** Copy a range of the checksums. */
+    void getChecksums(int offset, byte[] buf, int off, int length) {
+      final ByteBuffer b = checksums.duplicate();
+      b.position(offset);
+      b.get(buf, off, length);
+    }
+  }
+
+  private final DataNode datanode;
+  /** The maximum number of bytes cached. */
+  private final long capacity;
+  /** The number of recent reads after which a block is cached. */
+  private final int admissionReads;
+
+  /** The cached blocks by block id, in access order. */
+  private final LinkedHashMap<Long, CachedBlock> blocks =
+      new LinkedHashMap<Long, CachedBlock>(16, 0.75f, true);
+  /** The number of bytes cached. */
+  private long used = 0;
+  /** The counts of the recent reads of the blocks which are not cached. */
+  private final LinkedHashMap<Long, Integer> readCounts =
+      new LinkedHashMap<Long, Integer>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+          return size() > MAX_READ_COUNTS;
+        }
+      };
+  /** The ids of the blocks being loaded. */
+  private final Set<Long> loading = new HashSet<Long>();
+  private final ThreadPoolExecutor loader;
+
+  BlockCache(DataNode datanode, long capacity, int admissionReads) {
+    this.datanode = datanode;
+    this.capacity = capacity;
+    this.admissionReads = Math.max(admissionReads, 1);
+    this.loader = new ThreadPoolExecutor(1, 1, LOADER_KEEPALIVE_SECONDS,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            // not in the thread group of the xceivers, whose threads are
+            // waited for on shutdown before the cache is shut down
+            final Thread t = new Daemon(r);
+            t.setName("Block cache loader");
+            return t;
+          }
+        });
+    loader.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Get the cached block of a finalized replica.  If it is not cached,
+   * the read is counted, and the block is loaded in the background once
+   * it has been read often enough.
+   * @return the cached block, or null if it is not cached.
+   */
+  synchronized CachedBlock get(ExtendedBlock b, Replica replica) {
+    final Long id = b.getBlockId();
+    final CachedBlock cached = blocks.get(id);
+    if (cached != null && cached.isCacheOf(b.getBlockPoolId(), replica)) {
+      datanode.metrics.incrBlockCacheHits();
+      return cached;
+    }
+    datanode.metrics.incrBlockCacheMisses();
+    if (cached != null) {
+      // the replica has changed
+      remove(id);
+    }
+
+    final Integer count = readCounts.get(id);
+    final int reads = count == null? 1: count + 1;
+    if (reads < admissionReads) {
+      readCounts.put(id, reads);
+    } else {
+      readCounts.remove(id);
+      load(new ExtendedBlock(b.getBlockPoolId(), b.getBlockId(),
+          replica.getNumBytes(), replica.getGenerationStamp()));
+    }
+    return null;
+  }
+
+  /**
+   * Load a block into the cache in the background, unless it is already
+   * cached or being loaded, it is too large or too many blocks are waiting
+   * to be loaded.
+   */
+  synchronized void load(ExtendedBlock b) {
+    final Long id = b.getBlockId();
+    if (b.getNumBytes() > capacity || blocks.containsKey(id)
+        || loading.size() >= MAX_PENDING_LOADS || !loading.add(id)) {
+      return;
+    }
+    final ExtendedBlock block = new ExtendedBlock(b);
+    loader.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final CachedBlock cached = read(block);
+          if (cached != null) {
+            add(block.getBlockId(), cached);
+          }
+        } catch (IOException e) {
+          LOG.warn("Failed to cache " + block, e);
+        } finally {
+          synchronized(BlockCache.this) {
+            loading.remove(block.getBlockId());
+          }
+        }
+      }
+    });
+  }
+
+  /** Add a block, evicting the least recently read blocks to make room. */
+  private synchronized void add(Long id, CachedBlock cached) {
+    remove(id);
+    for(Iterator<CachedBlock> i = blocks.values().iterator();
+        used + cached.getSize() > capacity && i.hasNext(); ) {
+      used -= i.next().getSize();
+      i.remove();
+      datanode.metrics.incrBlockCacheEvictions();
+    }
+    if (used + cached.getSize() <= capacity) {
+      blocks.put(id, cached);
+      used += cached.getSize();
+    }
+    datanode.metrics.setBlockCacheUsed(used);
+  }
+
+  private synchronized void remove(Long id) {
+    final CachedBlock removed = blocks.remove(id);
+    if (removed != null) {
+      used -= removed.getSize();
+      datanode.metrics.setBlockCacheUsed(used);
+    }
+  }
+
+  /** @return the number of cached blocks. */
+  synchronized int size() {
+    return blocks.size();
+  }
+
+  /** @return the number of bytes cached. */
+  synchronized long getUsed() {
+    return used;
+  }
+
+  /**
+   * Read the data and the checksums of a finalized replica,
+   * and verify the checksums.
+   * @return the cached block, or null if the replica is not finalized.
+   */
+  private CachedBlock read(ExtendedBlock b) throws IOException {
+    final FSDatasetInterface dataset = datanode.data;
+    final Replica replica = dataset == null? null
+        : dataset.getReplica(b.getBlockPoolId(), b.getBlockId());
+    if (replica == null || replica.getState() != ReplicaState.FINALIZED
+        || replica.getGenerationStamp() != b.getGenerationStamp()
+        || replica.getNumBytes() > capacity) {
+      return null;
+    }
+    b.setNumBytes(replica.getNumBytes());
+
+    final DataChecksum checksum;
+    final ByteBuffer checksums;
+    final DataInputStream checksumIn = new DataInputStream(
+        new BufferedInputStream(dataset.getMetaDataInputStream(b),
+            HdfsConstants.IO_FILE_BUFFER_SIZE));
+    try {
+      checksum = BlockMetadataHeader.readHeader(checksumIn).getChecksum();
+      final long numChunks = (b.getNumBytes() + checksum.getBytesPerChecksum()
+          - 1) / checksum.getBytesPerChecksum();
+      checksums = ByteBuffer.allocateDirect(
+          (int)numChunks * checksum.getChecksumSize());
+      readFully(Channels.newChannel(checksumIn), checksums, b);
+    } finally {
+      IOUtils.closeStream(checksumIn);
+    }
+
+    final ByteBuffer data = ByteBuffer.allocateDirect((int)b.getNumBytes());
+    final InputStream blockIn = dataset.getBlockInputStream(b, 0);
+    try {
+      readFully(blockIn instanceof FileInputStream?
+          ((FileInputStream)blockIn).getChannel(): Channels.newChannel(blockIn),
+          data, b);
+    } finally {
+      IOUtils.closeStream(blockIn);
+    }
+
+    checksum.verifyChunkedSums(data, checksums, b.toString(), 0);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Cached " + b);
+    }
+    return new CachedBlock(b.getBlockPoolId(), b.getGenerationStamp(),
+        checksum, data, checksums);
+  }
+
+  private static void readFully(ReadableByteChannel in, ByteBuffer buf,
+      ExtendedBlock b) throws IOException {
+    while (buf.hasRemaining()) {
+      if (in.read(buf) < 0) {
+        throw new EOFException("Unexpected end of file while caching " + b);
+      }
+    }
+    buf.flip();
+  }
+
+  void shutdown() {
+    loader.shutdownNow();
+  }
+}
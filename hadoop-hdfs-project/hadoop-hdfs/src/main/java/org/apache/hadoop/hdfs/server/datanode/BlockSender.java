@@ -35,6 +35,7 @@ import org.apache.hadoop.fs.ChecksumException;
 import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
 import org.apache.hadoop.hdfs.protocol.HdfsConstants;
 import org.apache.hadoop.hdfs.protocol.datatransfer.PacketHeader;
+import org.apache.hadoop.hdfs.server.common.HdfsServerConstants.ReplicaState;
 import org.apache.hadoop.hdfs.util.DataTransferThrottler;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.ReadaheadPool;
@@ -93,6 +94,9 @@ import org.apache.hadoop.util.DataChecksum;
  *    | 2 byte OP_STATUS_CHECKSUM_OK |
  *    +------------------------------+
  *  </pre>
+ *
+ *  A finalized block in the {@link BlockCache} of the datanode is sent
+ *  from the cache instead of the disk, unless the checksums are verified.
  */
 class BlockSender implements java.io.Closeable {
   static final Log LOG = DataNode.LOG;
@@ -116,6 +120,8 @@ class BlockSender implements java.io.Closeable {
   private final long replicaVisibleLength;
   /** Stream to read block data from */
   private InputStream blockIn;
+  /** The cached block being sent, or null if it is read from the disk */
+  private final BlockCache.CachedBlock cached;
   /** updated while using transferTo() */
   private long blockInPosition = -1;
   /** Stream to read checksum */
@@ -188,7 +194,7 @@ class BlockSender implements java.io.Closeable {
       this.readaheadLength = datanode.getDnConf().readaheadLength;
       this.shouldDropCacheBehindRead = datanode.getDnConf().dropCacheBehindReads;
       
-      synchronized(datanode.data) { 
+      synchronized(datanode.data.getBlockLock(block.getBlockId())) {
         this.replica = getReplica(block, datanode);
         this.replicaVisibleLength = replica.getVisibleLength();
       }
@@ -212,6 +218,12 @@ class BlockSender implements java.io.Closeable {
       if (DataNode.LOG.isDebugEnabled()) {
         DataNode.LOG.debug("block=" + block + ", replica=" + replica);
       }
+      // the cached blocks were verified when they were cached, so the
+      // senders which verify the checksums, e.g. for the block scanner,
+      // read the disk.
+      this.cached = !verifyChecksum && datanode.blockCache != null
+          && replica.getState() == ReplicaState.FINALIZED?
+          datanode.blockCache.get(block, replica): null;
 
       // transferToFully() fails on 32 bit platforms for block sizes >= 2GB,
       // use normal transfer in those cases
@@ -219,7 +231,9 @@ class BlockSender implements java.io.Closeable {
         (!is32Bit || length <= Integer.MAX_VALUE);
 
       DataChecksum csum;
-      if (!corruptChecksumOk || datanode.data.metaFileExists(block)) {
+      if (cached != null) {
+        csum = cached.newChecksum();
+      } else if (!corruptChecksumOk || datanode.data.metaFileExists(block)) {
         checksumIn = new DataInputStream(new BufferedInputStream(datanode.data
             .getMetaDataInputStream(block), HdfsConstants.IO_FILE_BUFFER_SIZE));
 
@@ -285,7 +299,7 @@ class BlockSender implements java.io.Closeable {
       endOffset = end;
 
       // seek to the right offsets
-      if (offset > 0) {
+      if (offset > 0 && cached == null) {
         long checksumSkip = (offset / chunkSize) * checksumSize;
         // note blockInStream is seeked when created below
         if (checksumSkip > 0) {
@@ -298,11 +312,13 @@ class BlockSender implements java.io.Closeable {
       if (DataNode.LOG.isDebugEnabled()) {
         DataNode.LOG.debug("replica=" + replica);
       }
-      blockIn = datanode.data.getBlockInputStream(block, offset); // seek to offset
-      if (blockIn instanceof FileInputStream) {
-        blockInFd = ((FileInputStream)blockIn).getFD();
-      } else {
-        blockInFd = null;
+      if (cached == null) {
+        blockIn = datanode.data.getBlockInputStream(block, offset); // seek to offset
+        if (blockIn instanceof FileInputStream) {
+          blockInFd = ((FileInputStream)blockIn).getFD();
+        } else {
+          blockInFd = null;
+        }
       }
     } catch (IOException ioe) {
       IOUtils.closeStream(this);
@@ -439,7 +455,10 @@ class BlockSender implements java.io.Closeable {
     int checksumOff = pkt.position();
     byte[] buf = pkt.array();
     
-    if (checksumSize > 0 && checksumIn != null) {
+    if (cached != null) {
+      cached.getChecksums((int)(offset / chunkSize) * checksumSize, buf,
+          checksumOff, checksumDataLen);
+    } else if (checksumSize > 0 && checksumIn != null) {
       readChecksum(buf, checksumOff, checksumDataLen);
 
       // write in progress that we need to use to get last checksum
@@ -455,7 +474,11 @@ class BlockSender implements java.io.Closeable {
     
     int dataOff = checksumOff + checksumDataLen;
     if (!transferTo) { // normal transfer
-      IOUtils.readFully(blockIn, buf, dataOff, dataLen);
+      if (cached != null) {
+        cached.getData((int)offset, buf, dataOff, dataLen);
+      } else {
+        IOUtils.readFully(blockIn, buf, dataOff, dataLen);
+      }
 
       if (verifyChecksum) {
         verifyChecksum(buf, dataOff, dataLen, numChunks, checksumOff);
@@ -468,9 +491,19 @@ class BlockSender implements java.io.Closeable {
         sockOut.write(buf, 0, dataOff); // First write checksum
         
         // no need to flush. since we know out is not a buffered stream. 
-        sockOut.transferToFully(((FileInputStream)blockIn).getChannel(), 
-                                blockInPosition, dataLen);
-        blockInPosition += dataLen;
+        if (cached != null) {
+          // write the data from the cache without copying it
+          for(ByteBuffer data = cached.getData((int)offset, dataLen);
+              data.hasRemaining(); ) {
+            if (sockOut.write(data) < 0) {
+              throw new IOException("The stream is closed");
+            }
+          }
+        } else {
+          sockOut.transferToFully(((FileInputStream)blockIn).getChannel(), 
+                                  blockInPosition, dataLen);
+          blockInPosition += dataLen;
+        }
       } else { 
         // normal transfer
         out.write(buf, 0, dataOff + dataLen);
@@ -600,10 +633,12 @@ class BlockSender implements java.io.Closeable {
       int pktSize = PacketHeader.PKT_HEADER_LEN;
       boolean transferTo = transferToAllowed && !verifyChecksum
           && baseStream instanceof SocketOutputStream
-          && blockIn instanceof FileInputStream;
+          && (blockIn instanceof FileInputStream || cached != null);
       if (transferTo) {
-        FileChannel fileChannel = ((FileInputStream)blockIn).getChannel();
-        blockInPosition = fileChannel.position();
+        if (cached == null) {
+          FileChannel fileChannel = ((FileInputStream)blockIn).getChannel();
+          blockInPosition = fileChannel.position();
+        }
         streamForSendChunks = baseStream;
         maxChunksPerPacket = numberOfChunks(TRANSFERTO_BUFFER_SIZE);
         
@@ -53,6 +53,8 @@ class DNConf {
   
 
   final long readaheadLength;
+  final long blockCacheSize;
+  final int blockCacheAdmissionReads;
   final long heartBeatInterval;
   final long blockReportInterval;
   final long deleteReportInterval;
@@ -89,6 +91,12 @@ class DNConf {
     dropCacheBehindReads = conf.getBoolean(
         DFSConfigKeys.DFS_DATANODE_DROP_CACHE_BEHIND_READS_KEY,
         DFSConfigKeys.DFS_DATANODE_DROP_CACHE_BEHIND_READS_DEFAULT);
+    blockCacheSize = conf.getLong(
+        DFSConfigKeys.DFS_DATANODE_BLOCK_CACHE_SIZE_KEY,
+        DFSConfigKeys.DFS_DATANODE_BLOCK_CACHE_SIZE_DEFAULT);
+    blockCacheAdmissionReads = conf.getInt(
+        DFSConfigKeys.DFS_DATANODE_BLOCK_CACHE_ADMISSION_READS_KEY,
+        DFSConfigKeys.DFS_DATANODE_BLOCK_CACHE_ADMISSION_READS_DEFAULT);
     
     this.blockReportInterval = conf.getLong(DFS_BLOCKREPORT_INTERVAL_MSEC_KEY,
     DFS_BLOCKREPORT_INTERVAL_MSEC_DEFAULT);
@@ -387,6 +387,8 @@ public class DataNode extends Configured
   private DataStorage storage = null;
   private HttpServer infoServer = null;
   DataNodeMetrics metrics;
+  /** The cache of hot blocks, or null if it is disabled. */
+  BlockCache blockCache = null;
   private InetSocketAddress selfAddr;
   
   private volatile String hostName; // Host name of this datanode
@@ -729,6 +731,10 @@ public class DataNode extends Configured
     initIpcServer(conf);
 
     metrics = DataNodeMetrics.create(conf, getMachineName());
+    if (dnConf.blockCacheSize > 0) {
+      blockCache = new BlockCache(this, dnConf.blockCacheSize,
+          dnConf.blockCacheAdmissionReads);
+    }
 
     blockPoolManager = new BlockPoolManager(conf);
   }
@@ -1138,6 +1144,22 @@ public class DataNode extends Configured
     return info;
   }
   
+  @Override
+  public void cacheBlock(ExtendedBlock block,
+      Token<BlockTokenIdentifier> token) throws IOException {
+    checkBlockToken(block, token, BlockTokenSecretManager.AccessMode.READ);
+    if (blockCache != null && data != null) {
+      final Replica replica = data.getReplica(block.getBlockPoolId(),
+          block.getBlockId());
+      if (replica == null) {
+        throw new ReplicaNotFoundException(block);
+      }
+      blockCache.load(new ExtendedBlock(block.getBlockPoolId(),
+          block.getBlockId(), replica.getNumBytes(),
+          replica.getGenerationStamp()));
+    }
+  }
+
   private void checkBlockToken(ExtendedBlock block, Token<BlockTokenIdentifier> token,
       AccessMode accessMode) throws IOException {
     if (isBlockTokenEnabled && UserGroupInformation.isSecurityEnabled()) {
@@ -1229,6 +1251,9 @@ public class DataNode extends Configured
         LOG.warn("Exception when unlocking storage: " + ie, ie);
       }
     }
+    if (blockCache != null) {
+      blockCache.shutdown();
+    }
     if (data != null) {
       data.shutdown();
     }
@@ -1296,7 +1321,16 @@ public class DataNode extends Configured
     
   /** Number of concurrent xceivers per node. */
   int getXceiverCount() {
-    return threadGroup == null ? 0 : threadGroup.activeCount();
+    if (threadGroup == null) {
+      return 0;
+    }
+    // the idle threads of the worker pool are not serving any transfer
+    int count = threadGroup.activeCount();
+    if (dataXceiverServer != null) {
+      count -= ((DataXceiverServer)dataXceiverServer.getRunnable())
+          .getIdleWorkerCount();
+    }
+    return count;
   }
     
   UpgradeManagerDatanode getUpgradeManagerDatanode(String bpid) {
@@ -2149,7 +2183,7 @@ public class DataNode extends Configured
     final BlockConstructionStage stage;
 
     //get replica information
-    synchronized(data) {
+    synchronized(data.getBlockLock(b.getBlockId())) {
       if (data.isValidRbw(b)) {
         stage = BlockConstructionStage.TRANSFER_RBW;
       } else if (data.isValidBlock(b)) {
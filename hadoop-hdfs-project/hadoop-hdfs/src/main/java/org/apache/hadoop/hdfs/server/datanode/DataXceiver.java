@@ -83,6 +83,7 @@ class DataXceiver extends Receiver implements Runnable {
   private final DataXceiverServer dataXceiverServer;
 
   private long opStartTime; //the start time of receiving an Op
+  private int opsProcessed = 0; //the number of ops processed
   
   public DataXceiver(Socket s, DataNode datanode, 
       DataXceiverServer dataXceiverServer) throws IOException {
@@ -124,7 +125,6 @@ class DataXceiver extends Receiver implements Runnable {
    * Read/write data from/to the DataXceiverServer.
    */
   public void run() {
-    int opsProcessed = 0;
     Op op = null;
     dataXceiverServer.childSockets.add(s);
     try {
@@ -178,12 +178,71 @@ class DataXceiver extends Receiver implements Runnable {
             + datanode.getXceiverCount());
       }
       updateCurrentThreadName("Cleaning up");
-      IOUtils.closeStream(in);
-      IOUtils.closeSocket(s);
-      dataXceiverServer.childSockets.remove(s);
+      close();
     }
   }
 
+  /**
+   * Process the operations which have arrived on the connection, for
+   * {@link DataXceiverSelector}.  Unlike {@link #run()}, it does not wait
+   * for the next operation, so that the thread can serve other connections
+   * while this one is idle.
+   *
+   * @return true if the connection is kept alive for more operations;
+   *         false if it has been closed.
+   */
+  boolean processReadyOps() {
+    Op op = null;
+    boolean keepAlive = false;
+    dataXceiverServer.childSockets.add(s);
+    try {
+      // The ops which have been read into the buffer along with the
+      // previous op are processed now, since the selector cannot see them.
+      do {
+        updateCurrentThreadName("Processing operation #" + (opsProcessed + 1));
+        try {
+          op = readOp();
+        } catch (IOException err) {
+          if (opsProcessed > 0 &&
+              (err instanceof EOFException || err instanceof ClosedChannelException)) {
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Cached " + s.toString() + " closing after " + opsProcessed + " ops");
+            }
+            return false;
+          }
+          throw err;
+        }
+        opStartTime = now();
+        processOp(op);
+        ++opsProcessed;
+      } while (!s.isClosed() && dnConf.socketKeepaliveTimeout > 0
+          && in.available() > 0);
+      keepAlive = !s.isClosed() && dnConf.socketKeepaliveTimeout > 0;
+    } catch (Throwable t) {
+      LOG.error(datanode.getMachineName() + ":DataXceiver error processing " +
+                ((op == null) ? "unknown" : op.name()) + " operation " +
+                " src: " + remoteAddress +
+                " dest: " + localAddress, t);
+    } finally {
+      if (!keepAlive) {
+        close();
+      }
+    }
+    return keepAlive;
+  }
+
+  /** @return the socket of the connection. */
+  Socket getSocket() {
+    return s;
+  }
+
+  /** Close the connection. */
+  void close() {
+    IOUtils.closeStream(in);
+    IOUtils.closeSocket(s);
+    dataXceiverServer.childSockets.remove(s);
+  }
+
   @Override
   public void readBlock(final ExtendedBlock block,
       final Token<BlockTokenIdentifier> blockToken,
@@ -0,0 +1,243 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.hadoop.util.Daemon;
+
+/**
+ * Waits for the operations on the data transfer connections with a
+ * selector, and processes them with a bounded pool of worker threads.
+ *
+ * With {@link DataXceiverServer} alone, each connection has its own thread,
+ * which waits for the next operation as long as the connection is kept
+ * alive.  Here a thread is used only while an operation is processed: an
+ * idle connection is registered with the selector, and handed to a worker
+ * once the next operation arrives.  The operations themselves are processed
+ * by {@link DataXceiver} as before, with blocking I/O.
+ *
+ * The connections which stay idle longer than the socket timeout, before
+ * their first operation, or the keepalive timeout, after it, are closed.
+ */
+class DataXceiverSelector implements Runnable {
+  public static final Log LOG = DataNode.LOG;
+
+  private static final String IDLE_WORKER_NAME = "DataXceiver worker";
+  /** The time an idle worker thread waits for work before exiting. */
+  private static final long WORKER_KEEPALIVE_SECONDS = 60;
+
+  /** A connection registered with the selector. */
+  private static class Connection {
+    private final DataXceiver xceiver;
+    private final SocketChannel channel;
+    private SelectionKey key;
+    /** The time at which the connection is closed if still idle. */
+    private long deadline;
+
+    Connection(DataXceiver xceiver) {
+      this.xceiver = xceiver;
+      this.channel = xceiver.getSocket().getChannel();
+    }
+  }
+
+  private final DataNode datanode;
+  private final Selector selector;
+  private final ThreadPoolExecutor workers;
+  /** The connections waiting to be registered, or re-registered. */
+  private final ConcurrentLinkedQueue<Connection> pending =
+      new ConcurrentLinkedQueue<Connection>();
+
+  /**
+   * @param datanode the datanode, whose thread group the workers join
+   * @param maxWorkers the maximum number of operations processed at once
+   */
+  DataXceiverSelector(final DataNode datanode, int maxWorkers)
+      throws IOException {
+    this.datanode = datanode;
+    this.selector = Selector.open();
+    this.workers = new ThreadPoolExecutor(0, maxWorkers,
+        WORKER_KEEPALIVE_SECONDS, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            final Thread t = new Daemon(datanode.threadGroup, r);
+            t.setName(IDLE_WORKER_NAME);
+            return t;
+          }
+        });
+  }
+
+  /**
+   * Add a new connection, whose socket has a channel.
+   * It is closed if no operation arrives within the socket timeout.
+   */
+  void add(DataXceiver xceiver) {
+    register(new Connection(xceiver), datanode.getDnConf().socketTimeout);
+  }
+
+  private void register(Connection c, int timeout) {
+    c.deadline = timeout > 0? System.currentTimeMillis() + timeout
+        : Long.MAX_VALUE;
+    pending.add(c);
+    selector.wakeup();
+  }
+
+  /** @return the number of worker threads waiting for work. */
+  int getIdleWorkerCount() {
+    return Math.max(0, workers.getPoolSize() - workers.getActiveCount());
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (datanode.shouldRun && selector.isOpen()) {
+        try {
+          registerPending();
+          selector.select(1000);
+          dispatchSelected();
+          closeExpired(System.currentTimeMillis());
+        } catch (IOException ie) {
+          LOG.warn(datanode.getMachineName() + ":DataXceiverSelector: ", ie);
+        } catch (OutOfMemoryError oome) {
+          // Wait for other transfers to complete, as DataXceiverServer does.
+          LOG.warn("DataNode is out of memory. Will retry in 30 seconds.",
+              oome);
+          try {
+            Thread.sleep(30 * 1000);
+          } catch (InterruptedException e) {
+            // ignore
+          }
+        }
+      }
+    } catch (Throwable t) {
+      LOG.error(datanode.getMachineName()
+          + ":DataXceiverSelector: Exiting due to: ", t);
+      datanode.shouldRun = false;
+    } finally {
+      shutdown();
+    }
+  }
+
+  private void registerPending() {
+    for(Connection c; (c = pending.poll()) != null; ) {
+      try {
+        if (c.key == null) {
+          c.channel.configureBlocking(false);
+          c.key = c.channel.register(selector, SelectionKey.OP_READ, c);
+        } else {
+          c.key.interestOps(SelectionKey.OP_READ);
+        }
+      } catch (IOException e) {
+        // ClosedChannelException among others
+        c.xceiver.close();
+      } catch (CancelledKeyException e) {
+        c.xceiver.close();
+      }
+    }
+  }
+
+  /** Hand the connections with an operation to the workers. */
+  private void dispatchSelected() {
+    for(Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+        i.hasNext(); ) {
+      final SelectionKey key = i.next();
+      i.remove();
+      final Connection c = (Connection)key.attachment();
+      try {
+        // The key stays registered, without interest, while the
+        // operation is processed.
+        key.interestOps(0);
+      } catch (CancelledKeyException e) {
+        c.xceiver.close();
+        continue;
+      }
+      try {
+        workers.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              if (c.xceiver.processReadyOps()) {
+                register(c, datanode.getDnConf().socketKeepaliveTimeout);
+              }
+            } finally {
+              Thread.currentThread().setName(IDLE_WORKER_NAME);
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        LOG.warn(datanode.getMachineName() + ":DataXceiverSelector: all "
+            + workers.getMaximumPoolSize() + " workers are busy, closing "
+            + c.xceiver.getSocket());
+        c.xceiver.close();
+      }
+    }
+  }
+
+  /** Close the idle connections which have expired. */
+  private void closeExpired(long now) {
+    for(SelectionKey key : selector.keys()) {
+      final Connection c = (Connection)key.attachment();
+      try {
+        if (key.interestOps() != 0 && now > c.deadline) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Closing idle connection " + c.xceiver.getSocket());
+          }
+          key.cancel();
+          c.xceiver.close();
+        }
+      } catch (CancelledKeyException e) {
+        // the connection is already closed
+      }
+    }
+  }
+
+  /** Wake up the selector thread, so that it sees the datanode stopping. */
+  void kill() {
+    selector.wakeup();
+  }
+
+  /** Close the idle connections and stop the workers. */
+  private void shutdown() {
+    try {
+      for(SelectionKey key : selector.keys()) {
+        ((Connection)key.attachment()).xceiver.close();
+      }
+      selector.close();
+    } catch (IOException e) {
+      LOG.warn(datanode.getMachineName()
+          + ":DataXceiverSelector: close exception", e);
+    }
+    for(Connection c; (c = pending.poll()) != null; ) {
+      c.xceiver.close();
+    }
+    workers.shutdownNow();
+  }
+}
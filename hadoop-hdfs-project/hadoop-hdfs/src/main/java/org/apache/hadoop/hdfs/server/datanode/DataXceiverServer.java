@@ -107,10 +107,13 @@ class DataXceiverServer implements Runnable {
    * i.e. either the actual block size or the default block size.
    */
   long estimateBlockSize;
+
+  /** Waits for the operations on idle connections, if enabled. */
+  final DataXceiverSelector selector;
   
   
   DataXceiverServer(ServerSocket ss, Configuration conf, 
-      DataNode datanode) {
+      DataNode datanode) throws IOException {
     
     this.ss = ss;
     this.datanode = datanode;
@@ -126,10 +129,24 @@ class DataXceiverServer implements Runnable {
     this.balanceThrottler = new BlockBalanceThrottler(
       conf.getLong(DFSConfigKeys.DFS_DATANODE_BALANCE_BANDWIDTHPERSEC_KEY, 
                    DFSConfigKeys.DFS_DATANODE_BALANCE_BANDWIDTHPERSEC_DEFAULT));
+
+    // the selector needs the channels of the sockets
+    this.selector = ss.getChannel() != null && conf.getBoolean(
+        DFSConfigKeys.DFS_DATANODE_XCEIVER_SELECTOR_ENABLED_KEY,
+        DFSConfigKeys.DFS_DATANODE_XCEIVER_SELECTOR_ENABLED_DEFAULT)?
+        new DataXceiverSelector(datanode, maxXceiverCount): null;
+  }
+
+  /** @return the number of idle threads of the selector's worker pool. */
+  int getIdleWorkerCount() {
+    return selector == null? 0: selector.getIdleWorkerCount();
   }
 
   @Override
   public void run() {
+    if (selector != null) {
+      new Daemon(datanode.threadGroup, selector).start();
+    }
     while (datanode.shouldRun) {
       Socket s = null;
       try {
@@ -144,8 +161,12 @@ class DataXceiverServer implements Runnable {
               + maxXceiverCount);
         }
 
-        new Daemon(datanode.threadGroup, new DataXceiver(s, datanode, this))
-            .start();
+        if (selector != null) {
+          selector.add(new DataXceiver(s, datanode, this));
+        } else {
+          new Daemon(datanode.threadGroup, new DataXceiver(s, datanode, this))
+              .start();
+        }
       } catch (SocketTimeoutException ignored) {
         // wake up to see if should continue to run
       } catch (AsynchronousCloseException ace) {
@@ -190,6 +211,9 @@ class DataXceiverServer implements Runnable {
     } catch (IOException ie) {
       LOG.warn(datanode.getMachineName() + ":DataXceiverServer.kill(): ", ie);
     }
+    if (selector != null) {
+      selector.kill();
+    }
 
     // close all the sockets that were accepted earlier
     synchronized (childSockets) {
@@ -32,12 +32,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.management.NotCompliantMBeanException;
 import javax.management.ObjectName;
@@ -73,6 +72,14 @@ import org.apache.hadoop.util.ReflectionUtils;
  * FSDataset manages a set of data blocks.  Each block
  * has a unique name and an extent on disk.
  *
+ * Locking: the operations on a replica are synchronized on the lock of
+ * its block id (see {@link #getBlockLock(long)}), so that the operations
+ * on different blocks, which are usually on different volumes, do not
+ * block each other.  The FSDataset object itself is only locked for
+ * adding and removing block pools.  The locks are acquired in the order
+ * FSDataset, block lock, {@link BlockPoolSlice}, {@link ReplicasMap};
+ * in particular, the FSDataset must not be locked while holding a block
+ * lock.
  ***************************************************/
 @InterfaceAudience.Private
 public class FSDataset implements FSDatasetInterface {
@@ -356,11 +363,7 @@ public class FSDataset implements FSDatasetInterface {
     }
     
     void decDfsUsed(long value) {
-      // The caller to this method (BlockFileDeleteTask.run()) does
-      // not have locked FSDataset.this yet.
-      synchronized(FSDataset.this) {
-        dfsUsage.decDfsUsed(value);
-      }
+      dfsUsage.decDfsUsed(value);
     }
     
     long getDfsUsed() throws IOException {
@@ -385,7 +388,12 @@ public class FSDataset implements FSDatasetInterface {
       return FSDataset.createTmpFile(b, f);
     }
 
-    File addBlock(Block b, File f) throws IOException {
+    /**
+     * Move a replica to the finalized directory.  It is synchronized on
+     * the slice since the replicas of different blocks are finalized
+     * concurrently.
+     */
+    synchronized File addBlock(Block b, File f) throws IOException {
       File blockFile = finalizedDir.addBlock(b, f);
       File metaFile = getMetaFile(blockFile , b.getGenerationStamp());
       dfsUsage.incDfsUsed(b.getNumBytes()+metaFile.length());
@@ -508,7 +516,7 @@ public class FSDataset implements FSDatasetInterface {
       }
     }
       
-    void clearPath(File f) {
+    synchronized void clearPath(File f) {
       finalizedDir.clearPath(f);
     }
       
@@ -522,7 +530,8 @@ public class FSDataset implements FSDatasetInterface {
   }
   
   class FSVolume {
-    private final Map<String, BlockPoolSlice> map = new HashMap<String, BlockPoolSlice>();
+    private final Map<String, BlockPoolSlice> map =
+        new ConcurrentHashMap<String, BlockPoolSlice>();
     private final File currentDir;    // <StorageDirectory>/current
     private final DF usage;           
     private final long reserved;
@@ -550,13 +559,9 @@ public class FSDataset implements FSDatasetInterface {
     }
     
     void decDfsUsed(String bpid, long value) {
-      // The caller to this method (BlockFileDeleteTask.run()) does
-      // not have locked FSDataset.this yet.
-      synchronized(FSDataset.this) {
-        BlockPoolSlice bp = map.get(bpid);
-        if (bp != null) {
-          bp.decDfsUsed(value);
-        }
+      BlockPoolSlice bp = map.get(bpid);
+      if (bp != null) {
+        bp.decDfsUsed(value);
       }
     }
     
@@ -613,9 +618,7 @@ public class FSDataset implements FSDatasetInterface {
      * Make a deep copy of the list of currently active BPIDs
      */
     String[] getBlockPoolList() {
-      synchronized(FSDataset.this) {
-        return map.keySet().toArray(new String[map.keySet().size()]);   
-      }
+      return map.keySet().toArray(new String[0]);
     }
       
     /**
@@ -1037,15 +1040,17 @@ public class FSDataset implements FSDatasetInterface {
   }
 
   @Override // FSDatasetInterface
-  public synchronized Block getStoredBlock(String bpid, long blkid)
+  public Block getStoredBlock(String bpid, long blkid)
       throws IOException {
-    File blockfile = findBlockFile(bpid, blkid);
-    if (blockfile == null) {
-      return null;
+    synchronized(getBlockLock(blkid)) {
+      File blockfile = findBlockFile(bpid, blkid);
+      if (blockfile == null) {
+        return null;
+      }
+      File metafile = findMetaFile(blockfile);
+      return new Block(blkid, blockfile.length(),
+          parseGenerationStamp(blockfile, metafile));
     }
-    File metafile = findMetaFile(blockfile);
-    return new Block(blkid, blockfile.length(),
-        parseGenerationStamp(blockfile, metafile));
   }
 
   /**
@@ -1122,6 +1127,11 @@ public class FSDataset implements FSDatasetInterface {
   // Used for synchronizing access to usage stats
   private final Object statsLock = new Object();
 
+  /** The number of block locks, a power of two. */
+  private static final int NUM_BLOCK_LOCKS = 1024;
+  /** The locks of the replicas, striped by block id. */
+  private final Object[] blockLocks = new Object[NUM_BLOCK_LOCKS];
+
   final boolean supportAppends;
 
   /**
@@ -1167,7 +1177,10 @@ public class FSDataset implements FSDatasetInterface {
       DataNode.LOG.info("FSDataset added volume - "
           + storage.getStorageDir(idx).getCurrentDir());
     }
-    volumeMap = new ReplicasMap(this);
+    for (int i = 0; i < blockLocks.length; i++) {
+      blockLocks[i] = new Object();
+    }
+    volumeMap = new ReplicasMap(new Object());
 
     BlockVolumeChoosingPolicy blockChooserImpl =
       (BlockVolumeChoosingPolicy) ReflectionUtils.newInstance(
@@ -1186,6 +1199,15 @@ public class FSDataset implements FSDatasetInterface {
     registerMBean(storage.getStorageID());
   }
 
+  /**
+   * Get the lock of the replicas with the given block id.
+   * The replicas with different block ids may share a lock.
+   */
+  @Override // FSDatasetInterface
+  public Object getBlockLock(long blockId) {
+    return blockLocks[(int)(blockId ^ (blockId >>> 32)) & (NUM_BLOCK_LOCKS - 1)];
+  }
+
   /**
    * Return the total space used by dfs datanode
    */
@@ -1357,21 +1379,23 @@ public class FSDataset implements FSDatasetInterface {
    * Returns handles to the block file and its metadata file
    */
   @Override // FSDatasetInterface
-  public synchronized BlockInputStreams getTmpInputStreams(ExtendedBlock b, 
+  public BlockInputStreams getTmpInputStreams(ExtendedBlock b, 
                           long blkOffset, long ckoff) throws IOException {
-    ReplicaInfo info = getReplicaInfo(b);
-    File blockFile = info.getBlockFile();
-    RandomAccessFile blockInFile = new RandomAccessFile(blockFile, "r");
-    if (blkOffset > 0) {
-      blockInFile.seek(blkOffset);
-    }
-    File metaFile = info.getMetaFile();
-    RandomAccessFile metaInFile = new RandomAccessFile(metaFile, "r");
-    if (ckoff > 0) {
-      metaInFile.seek(ckoff);
+    synchronized(getBlockLock(b.getBlockId())) {
+      ReplicaInfo info = getReplicaInfo(b);
+      File blockFile = info.getBlockFile();
+      RandomAccessFile blockInFile = new RandomAccessFile(blockFile, "r");
+      if (blkOffset > 0) {
+        blockInFile.seek(blkOffset);
+      }
+      File metaFile = info.getMetaFile();
+      RandomAccessFile metaInFile = new RandomAccessFile(metaFile, "r");
+      if (ckoff > 0) {
+        metaInFile.seek(ckoff);
+      }
+      return new BlockInputStreams(new FileInputStream(blockInFile.getFD()),
+                                  new FileInputStream(metaInFile.getFD()));
     }
-    return new BlockInputStreams(new FileInputStream(blockInFile.getFD()),
-                                new FileInputStream(metaInFile.getFD()));
   }
     
   /**
@@ -1475,33 +1499,35 @@ public class FSDataset implements FSDatasetInterface {
   }
 
   @Override  // FSDatasetInterface
-  public synchronized ReplicaInPipelineInterface append(ExtendedBlock b,
+  public ReplicaInPipelineInterface append(ExtendedBlock b,
       long newGS, long expectedBlockLen) throws IOException {
-    // If the block was successfully finalized because all packets
-    // were successfully processed at the Datanode but the ack for
-    // some of the packets were not received by the client. The client 
-    // re-opens the connection and retries sending those packets.
-    // The other reason is that an "append" is occurring to this block.
+    synchronized(getBlockLock(b.getBlockId())) {
+      // If the block was successfully finalized because all packets
+      // were successfully processed at the Datanode but the ack for
+      // some of the packets were not received by the client. The client 
+      // re-opens the connection and retries sending those packets.
+      // The other reason is that an "append" is occurring to this block.
     
-    // check the validity of the parameter
-    if (newGS < b.getGenerationStamp()) {
-      throw new IOException("The new generation stamp " + newGS + 
-          " should be greater than the replica " + b + "'s generation stamp");
-    }
-    ReplicaInfo replicaInfo = getReplicaInfo(b);
-    DataNode.LOG.info("Appending to replica " + replicaInfo);
-    if (replicaInfo.getState() != ReplicaState.FINALIZED) {
-      throw new ReplicaNotFoundException(
-          ReplicaNotFoundException.UNFINALIZED_REPLICA + b);
-    }
-    if (replicaInfo.getNumBytes() != expectedBlockLen) {
-      throw new IOException("Corrupted replica " + replicaInfo + 
-          " with a length of " + replicaInfo.getNumBytes() + 
-          " expected length is " + expectedBlockLen);
-    }
+      // check the validity of the parameter
+      if (newGS < b.getGenerationStamp()) {
+        throw new IOException("The new generation stamp " + newGS + 
+            " should be greater than the replica " + b + "'s generation stamp");
+      }
+      ReplicaInfo replicaInfo = getReplicaInfo(b);
+      DataNode.LOG.info("Appending to replica " + replicaInfo);
+      if (replicaInfo.getState() != ReplicaState.FINALIZED) {
+        throw new ReplicaNotFoundException(
+            ReplicaNotFoundException.UNFINALIZED_REPLICA + b);
+      }
+      if (replicaInfo.getNumBytes() != expectedBlockLen) {
+        throw new IOException("Corrupted replica " + replicaInfo + 
+            " with a length of " + replicaInfo.getNumBytes() + 
+            " expected length is " + expectedBlockLen);
+      }
 
-    return append(b.getBlockPoolId(), (FinalizedReplica)replicaInfo, newGS,
-        b.getNumBytes());
+      return append(b.getBlockPoolId(), (FinalizedReplica)replicaInfo, newGS,
+          b.getNumBytes());
+    }
   }
   
   /** Append to a finalized replica
@@ -1516,7 +1542,7 @@ public class FSDataset implements FSDatasetInterface {
    * @throws IOException if moving the replica from finalized directory 
    *         to rbw directory fails
    */
-  private synchronized ReplicaBeingWritten append(String bpid,
+  private ReplicaBeingWritten append(String bpid,
       FinalizedReplica replicaInfo, long newGS, long estimateBlockLen)
       throws IOException {
     // unlink the finalized replica
@@ -1616,34 +1642,38 @@ public class FSDataset implements FSDatasetInterface {
   }
   
   @Override  // FSDatasetInterface
-  public synchronized ReplicaInPipelineInterface recoverAppend(ExtendedBlock b,
+  public ReplicaInPipelineInterface recoverAppend(ExtendedBlock b,
       long newGS, long expectedBlockLen) throws IOException {
-    DataNode.LOG.info("Recover failed append to " + b);
+    synchronized(getBlockLock(b.getBlockId())) {
+      DataNode.LOG.info("Recover failed append to " + b);
 
-    ReplicaInfo replicaInfo = recoverCheck(b, newGS, expectedBlockLen);
+      ReplicaInfo replicaInfo = recoverCheck(b, newGS, expectedBlockLen);
 
-    // change the replica's state/gs etc.
-    if (replicaInfo.getState() == ReplicaState.FINALIZED ) {
-      return append(b.getBlockPoolId(), (FinalizedReplica) replicaInfo, newGS, 
-          b.getNumBytes());
-    } else { //RBW
-      bumpReplicaGS(replicaInfo, newGS);
-      return (ReplicaBeingWritten)replicaInfo;
+      // change the replica's state/gs etc.
+      if (replicaInfo.getState() == ReplicaState.FINALIZED ) {
+        return append(b.getBlockPoolId(), (FinalizedReplica) replicaInfo, newGS, 
+            b.getNumBytes());
+      } else { //RBW
+        bumpReplicaGS(replicaInfo, newGS);
+        return (ReplicaBeingWritten)replicaInfo;
+      }
     }
   }
 
   @Override // FSDatasetInterface
   public void recoverClose(ExtendedBlock b, long newGS,
       long expectedBlockLen) throws IOException {
-    DataNode.LOG.info("Recover failed close " + b);
-    // check replica's state
-    ReplicaInfo replicaInfo = recoverCheck(b, newGS,
-        expectedBlockLen);
-    // bump the replica's GS
-    bumpReplicaGS(replicaInfo, newGS);
-    // finalize the replica if RBW
-    if (replicaInfo.getState() == ReplicaState.RBW) {
-      finalizeReplica(b.getBlockPoolId(), replicaInfo);
+    synchronized(getBlockLock(b.getBlockId())) {
+      DataNode.LOG.info("Recover failed close " + b);
+      // check replica's state
+      ReplicaInfo replicaInfo = recoverCheck(b, newGS,
+          expectedBlockLen);
+      // bump the replica's GS
+      bumpReplicaGS(replicaInfo, newGS);
+      // finalize the replica if RBW
+      if (replicaInfo.getState() == ReplicaState.RBW) {
+        finalizeReplica(b.getBlockPoolId(), replicaInfo);
+      }
     }
   }
   
@@ -1675,149 +1705,157 @@ public class FSDataset implements FSDatasetInterface {
   }
 
   @Override // FSDatasetInterface
-  public synchronized ReplicaInPipelineInterface createRbw(ExtendedBlock b)
+  public ReplicaInPipelineInterface createRbw(ExtendedBlock b)
       throws IOException {
-    ReplicaInfo replicaInfo = volumeMap.get(b.getBlockPoolId(), 
-        b.getBlockId());
-    if (replicaInfo != null) {
-      throw new ReplicaAlreadyExistsException("Block " + b +
-      " already exists in state " + replicaInfo.getState() +
-      " and thus cannot be created.");
-    }
-    // create a new block
-    FSVolume v = volumes.getNextVolume(b.getNumBytes());
-    // create a rbw file to hold block in the designated volume
-    File f = v.createRbwFile(b.getBlockPoolId(), b.getLocalBlock());
-    ReplicaBeingWritten newReplicaInfo = new ReplicaBeingWritten(b.getBlockId(), 
-        b.getGenerationStamp(), v, f.getParentFile());
-    volumeMap.add(b.getBlockPoolId(), newReplicaInfo);
-    return newReplicaInfo;
+    synchronized(getBlockLock(b.getBlockId())) {
+      ReplicaInfo replicaInfo = volumeMap.get(b.getBlockPoolId(), 
+          b.getBlockId());
+      if (replicaInfo != null) {
+        throw new ReplicaAlreadyExistsException("Block " + b +
+        " already exists in state " + replicaInfo.getState() +
+        " and thus cannot be created.");
+      }
+      // create a new block
+      FSVolume v = volumes.getNextVolume(b.getNumBytes());
+      // create a rbw file to hold block in the designated volume
+      File f = v.createRbwFile(b.getBlockPoolId(), b.getLocalBlock());
+      ReplicaBeingWritten newReplicaInfo = new ReplicaBeingWritten(b.getBlockId(), 
+          b.getGenerationStamp(), v, f.getParentFile());
+      volumeMap.add(b.getBlockPoolId(), newReplicaInfo);
+      return newReplicaInfo;
+    }
   }
   
   @Override // FSDatasetInterface
-  public synchronized ReplicaInPipelineInterface recoverRbw(ExtendedBlock b,
+  public ReplicaInPipelineInterface recoverRbw(ExtendedBlock b,
       long newGS, long minBytesRcvd, long maxBytesRcvd)
       throws IOException {
-    DataNode.LOG.info("Recover the RBW replica " + b);
+    synchronized(getBlockLock(b.getBlockId())) {
+      DataNode.LOG.info("Recover the RBW replica " + b);
 
-    ReplicaInfo replicaInfo = getReplicaInfo(b.getBlockPoolId(), b.getBlockId());
+      ReplicaInfo replicaInfo = getReplicaInfo(b.getBlockPoolId(), b.getBlockId());
     
-    // check the replica's state
-    if (replicaInfo.getState() != ReplicaState.RBW) {
-      throw new ReplicaNotFoundException(
-          ReplicaNotFoundException.NON_RBW_REPLICA + replicaInfo);
-    }
-    ReplicaBeingWritten rbw = (ReplicaBeingWritten)replicaInfo;
+      // check the replica's state
+      if (replicaInfo.getState() != ReplicaState.RBW) {
+        throw new ReplicaNotFoundException(
+            ReplicaNotFoundException.NON_RBW_REPLICA + replicaInfo);
+      }
+      ReplicaBeingWritten rbw = (ReplicaBeingWritten)replicaInfo;
     
-    DataNode.LOG.info("Recovering replica " + rbw);
+      DataNode.LOG.info("Recovering replica " + rbw);
 
-    // Stop the previous writer
-    rbw.stopWriter();
-    rbw.setWriter(Thread.currentThread());
+      // Stop the previous writer
+      rbw.stopWriter();
+      rbw.setWriter(Thread.currentThread());
 
-    // check generation stamp
-    long replicaGenerationStamp = rbw.getGenerationStamp();
-    if (replicaGenerationStamp < b.getGenerationStamp() ||
-        replicaGenerationStamp > newGS) {
-      throw new ReplicaNotFoundException(
-          ReplicaNotFoundException.UNEXPECTED_GS_REPLICA + b +
-          ". Expected GS range is [" + b.getGenerationStamp() + ", " + 
-          newGS + "].");
-    }
+      // check generation stamp
+      long replicaGenerationStamp = rbw.getGenerationStamp();
+      if (replicaGenerationStamp < b.getGenerationStamp() ||
+          replicaGenerationStamp > newGS) {
+        throw new ReplicaNotFoundException(
+            ReplicaNotFoundException.UNEXPECTED_GS_REPLICA + b +
+            ". Expected GS range is [" + b.getGenerationStamp() + ", " + 
+            newGS + "].");
+      }
     
-    // check replica length
-    if (rbw.getBytesAcked() < minBytesRcvd || rbw.getNumBytes() > maxBytesRcvd){
-      throw new ReplicaNotFoundException("Unmatched length replica " + 
-          replicaInfo + ": BytesAcked = " + rbw.getBytesAcked() + 
-          " BytesRcvd = " + rbw.getNumBytes() + " are not in the range of [" + 
-          minBytesRcvd + ", " + maxBytesRcvd + "].");
-    }
+      // check replica length
+      if (rbw.getBytesAcked() < minBytesRcvd || rbw.getNumBytes() > maxBytesRcvd){
+        throw new ReplicaNotFoundException("Unmatched length replica " + 
+            replicaInfo + ": BytesAcked = " + rbw.getBytesAcked() + 
+            " BytesRcvd = " + rbw.getNumBytes() + " are not in the range of [" + 
+            minBytesRcvd + ", " + maxBytesRcvd + "].");
+      }
 
-    // bump the replica's generation stamp to newGS
-    bumpReplicaGS(rbw, newGS);
+      // bump the replica's generation stamp to newGS
+      bumpReplicaGS(rbw, newGS);
     
-    return rbw;
+      return rbw;
+    }
   }
   
   @Override // FSDatasetInterface
-  public synchronized ReplicaInPipelineInterface convertTemporaryToRbw(
+  public ReplicaInPipelineInterface convertTemporaryToRbw(
       final ExtendedBlock b) throws IOException {
-    final long blockId = b.getBlockId();
-    final long expectedGs = b.getGenerationStamp();
-    final long visible = b.getNumBytes();
-    DataNode.LOG.info("Convert replica " + b
-        + " from Temporary to RBW, visible length=" + visible);
-
-    final ReplicaInPipeline temp;
-    {
-      // get replica
-      final ReplicaInfo r = volumeMap.get(b.getBlockPoolId(), blockId);
-      if (r == null) {
-        throw new ReplicaNotFoundException(
-            ReplicaNotFoundException.NON_EXISTENT_REPLICA + b);
+    synchronized(getBlockLock(b.getBlockId())) {
+      final long blockId = b.getBlockId();
+      final long expectedGs = b.getGenerationStamp();
+      final long visible = b.getNumBytes();
+      DataNode.LOG.info("Convert replica " + b
+          + " from Temporary to RBW, visible length=" + visible);
+
+      final ReplicaInPipeline temp;
+      {
+        // get replica
+        final ReplicaInfo r = volumeMap.get(b.getBlockPoolId(), blockId);
+        if (r == null) {
+          throw new ReplicaNotFoundException(
+              ReplicaNotFoundException.NON_EXISTENT_REPLICA + b);
+        }
+        // check the replica's state
+        if (r.getState() != ReplicaState.TEMPORARY) {
+          throw new ReplicaAlreadyExistsException(
+              "r.getState() != ReplicaState.TEMPORARY, r=" + r);
+        }
+        temp = (ReplicaInPipeline)r;
       }
-      // check the replica's state
-      if (r.getState() != ReplicaState.TEMPORARY) {
+      // check generation stamp
+      if (temp.getGenerationStamp() != expectedGs) {
         throw new ReplicaAlreadyExistsException(
-            "r.getState() != ReplicaState.TEMPORARY, r=" + r);
+            "temp.getGenerationStamp() != expectedGs = " + expectedGs
+            + ", temp=" + temp);
       }
-      temp = (ReplicaInPipeline)r;
-    }
-    // check generation stamp
-    if (temp.getGenerationStamp() != expectedGs) {
-      throw new ReplicaAlreadyExistsException(
-          "temp.getGenerationStamp() != expectedGs = " + expectedGs
-          + ", temp=" + temp);
-    }
 
-    // TODO: check writer?
-    // set writer to the current thread
-    // temp.setWriter(Thread.currentThread());
+      // TODO: check writer?
+      // set writer to the current thread
+      // temp.setWriter(Thread.currentThread());
 
-    // check length
-    final long numBytes = temp.getNumBytes();
-    if (numBytes < visible) {
-      throw new IOException(numBytes + " = numBytes < visible = "
-          + visible + ", temp=" + temp);
-    }
-    // check volume
-    final FSVolume v = temp.getVolume();
-    if (v == null) {
-      throw new IOException("r.getVolume() = null, temp="  + temp);
-    }
+      // check length
+      final long numBytes = temp.getNumBytes();
+      if (numBytes < visible) {
+        throw new IOException(numBytes + " = numBytes < visible = "
+            + visible + ", temp=" + temp);
+      }
+      // check volume
+      final FSVolume v = temp.getVolume();
+      if (v == null) {
+        throw new IOException("r.getVolume() = null, temp="  + temp);
+      }
     
-    // move block files to the rbw directory
-    BlockPoolSlice bpslice = v.getBlockPoolSlice(b.getBlockPoolId());
-    final File dest = moveBlockFiles(b.getLocalBlock(), temp.getBlockFile(), 
-        bpslice.getRbwDir());
-    // create RBW
-    final ReplicaBeingWritten rbw = new ReplicaBeingWritten(
-        blockId, numBytes, expectedGs,
-        v, dest.getParentFile(), Thread.currentThread());
-    rbw.setBytesAcked(visible);
-    // overwrite the RBW in the volume map
-    volumeMap.add(b.getBlockPoolId(), rbw);
-    return rbw;
+      // move block files to the rbw directory
+      BlockPoolSlice bpslice = v.getBlockPoolSlice(b.getBlockPoolId());
+      final File dest = moveBlockFiles(b.getLocalBlock(), temp.getBlockFile(), 
+          bpslice.getRbwDir());
+      // create RBW
+      final ReplicaBeingWritten rbw = new ReplicaBeingWritten(
+          blockId, numBytes, expectedGs,
+          v, dest.getParentFile(), Thread.currentThread());
+      rbw.setBytesAcked(visible);
+      // overwrite the RBW in the volume map
+      volumeMap.add(b.getBlockPoolId(), rbw);
+      return rbw;
+    }
   }
 
   @Override // FSDatasetInterface
-  public synchronized ReplicaInPipelineInterface createTemporary(ExtendedBlock b)
+  public ReplicaInPipelineInterface createTemporary(ExtendedBlock b)
       throws IOException {
-    ReplicaInfo replicaInfo = volumeMap.get(b.getBlockPoolId(), b.getBlockId());
-    if (replicaInfo != null) {
-      throw new ReplicaAlreadyExistsException("Block " + b +
-          " already exists in state " + replicaInfo.getState() +
-          " and thus cannot be created.");
-    }
+    synchronized(getBlockLock(b.getBlockId())) {
+      ReplicaInfo replicaInfo = volumeMap.get(b.getBlockPoolId(), b.getBlockId());
+      if (replicaInfo != null) {
+        throw new ReplicaAlreadyExistsException("Block " + b +
+            " already exists in state " + replicaInfo.getState() +
+            " and thus cannot be created.");
+      }
     
-    FSVolume v = volumes.getNextVolume(b.getNumBytes());
-    // create a temporary file to hold block in the designated volume
-    File f = v.createTmpFile(b.getBlockPoolId(), b.getLocalBlock());
-    ReplicaInPipeline newReplicaInfo = new ReplicaInPipeline(b.getBlockId(), 
-        b.getGenerationStamp(), v, f.getParentFile());
-    volumeMap.add(b.getBlockPoolId(), newReplicaInfo);
+      FSVolume v = volumes.getNextVolume(b.getNumBytes());
+      // create a temporary file to hold block in the designated volume
+      File f = v.createTmpFile(b.getBlockPoolId(), b.getLocalBlock());
+      ReplicaInPipeline newReplicaInfo = new ReplicaInPipeline(b.getBlockId(), 
+          b.getGenerationStamp(), v, f.getParentFile());
+      volumeMap.add(b.getBlockPoolId(), newReplicaInfo);
     
-    return newReplicaInfo;
+      return newReplicaInfo;
+    }
   }
 
   /**
@@ -1838,17 +1876,19 @@ public class FSDataset implements FSDatasetInterface {
     channel.position(newPos);
   }
 
-  synchronized File createTmpFile(FSVolume vol, String bpid, Block blk) throws IOException {
-    if ( vol == null ) {
-      ReplicaInfo replica = volumeMap.get(bpid, blk);
-      if (replica != null) {
-        vol = volumeMap.get(bpid, blk).getVolume();
-      }
+  File createTmpFile(FSVolume vol, String bpid, Block blk) throws IOException {
+    synchronized(getBlockLock(blk.getBlockId())) {
       if ( vol == null ) {
-        throw new IOException("Could not find volume for block " + blk);
+        ReplicaInfo replica = volumeMap.get(bpid, blk);
+        if (replica != null) {
+          vol = volumeMap.get(bpid, blk).getVolume();
+        }
+        if ( vol == null ) {
+          throw new IOException("Could not find volume for block " + blk);
+        }
       }
+      return vol.createTmpFile(bpid, blk);
     }
-    return vol.createTmpFile(bpid, blk);
   }
 
   //
@@ -1863,17 +1903,19 @@ public class FSDataset implements FSDatasetInterface {
    * Complete the block write!
    */
   @Override // FSDatasetInterface
-  public synchronized void finalizeBlock(ExtendedBlock b) throws IOException {
-    ReplicaInfo replicaInfo = getReplicaInfo(b);
-    if (replicaInfo.getState() == ReplicaState.FINALIZED) {
-      // this is legal, when recovery happens on a file that has
-      // been opened for append but never modified
-      return;
+  public void finalizeBlock(ExtendedBlock b) throws IOException {
+    synchronized(getBlockLock(b.getBlockId())) {
+      ReplicaInfo replicaInfo = getReplicaInfo(b);
+      if (replicaInfo.getState() == ReplicaState.FINALIZED) {
+        // this is legal, when recovery happens on a file that has
+        // been opened for append but never modified
+        return;
+      }
+      finalizeReplica(b.getBlockPoolId(), replicaInfo);
     }
-    finalizeReplica(b.getBlockPoolId(), replicaInfo);
   }
   
-  private synchronized FinalizedReplica finalizeReplica(String bpid,
+  private FinalizedReplica finalizeReplica(String bpid,
       ReplicaInfo replicaInfo) throws IOException {
     FinalizedReplica newReplicaInfo = null;
     if (replicaInfo.getState() == ReplicaState.RUR &&
@@ -1900,17 +1942,19 @@ public class FSDataset implements FSDatasetInterface {
    * Remove the temporary block file (if any)
    */
   @Override // FSDatasetInterface
-  public synchronized void unfinalizeBlock(ExtendedBlock b) throws IOException {
-    ReplicaInfo replicaInfo = volumeMap.get(b.getBlockPoolId(), 
-        b.getLocalBlock());
-    if (replicaInfo != null && replicaInfo.getState() == ReplicaState.TEMPORARY) {
-      // remove from volumeMap
-      volumeMap.remove(b.getBlockPoolId(), b.getLocalBlock());
+  public void unfinalizeBlock(ExtendedBlock b) throws IOException {
+    synchronized(getBlockLock(b.getBlockId())) {
+      ReplicaInfo replicaInfo = volumeMap.get(b.getBlockPoolId(), 
+          b.getLocalBlock());
+      if (replicaInfo != null && replicaInfo.getState() == ReplicaState.TEMPORARY) {
+        // remove from volumeMap
+        volumeMap.remove(b.getBlockPoolId(), b.getLocalBlock());
       
-      // delete the on-disk temp file
-      if (delBlockFromDisk(replicaInfo.getBlockFile(), 
-          replicaInfo.getMetaFile(), b.getLocalBlock())) {
-        DataNode.LOG.warn("Block " + b + " unfinalized and removed. " );
+        // delete the on-disk temp file
+        if (delBlockFromDisk(replicaInfo.getBlockFile(), 
+            replicaInfo.getMetaFile(), b.getLocalBlock())) {
+          DataNode.LOG.warn("Block " + b + " unfinalized and removed. " );
+        }
       }
     }
   }
@@ -1953,7 +1997,7 @@ public class FSDataset implements FSDatasetInterface {
       return new BlockListAsLongs(finalized, uc);
     }
     
-    synchronized(this) {
+    synchronized(volumeMap.getMutext()) {
       for (ReplicaInfo b : volumeMap.replicas(bpid)) {
         switch(b.getState()) {
         case FINALIZED:
@@ -1973,21 +2017,24 @@ public class FSDataset implements FSDatasetInterface {
           assert false : "Illegal ReplicaInfo state.";
         }
       }
-      return new BlockListAsLongs(finalized, uc);
     }
+    // encode the report without holding the replicas map
+    return new BlockListAsLongs(finalized, uc);
   }
 
   /**
    * Get the list of finalized blocks from in-memory blockmap for a block pool.
    */
-  synchronized List<Block> getFinalizedBlocks(String bpid) {
-    ArrayList<Block> finalized = new ArrayList<Block>(volumeMap.size(bpid));
-    for (ReplicaInfo b : volumeMap.replicas(bpid)) {
-      if(b.getState() == ReplicaState.FINALIZED) {
-        finalized.add(new Block(b));
+  List<Block> getFinalizedBlocks(String bpid) {
+    synchronized(volumeMap.getMutext()) {
+      ArrayList<Block> finalized = new ArrayList<Block>(volumeMap.size(bpid));
+      for (ReplicaInfo b : volumeMap.replicas(bpid)) {
+        if(b.getState() == ReplicaState.FINALIZED) {
+          finalized.add(new Block(b));
+        }
       }
+      return finalized;
     }
-    return finalized;
   }
 
   /**
@@ -2070,7 +2117,7 @@ public class FSDataset implements FSDatasetInterface {
     for (int i = 0; i < invalidBlks.length; i++) {
       File f = null;
       FSVolume v;
-      synchronized (this) {
+      synchronized (getBlockLock(invalidBlks[i].getBlockId())) {
         f = getFile(bpid, invalidBlks[i]);
         ReplicaInfo dinfo = volumeMap.get(bpid, invalidBlks[i]);
         if (dinfo == null || 
@@ -2133,8 +2180,10 @@ public class FSDataset implements FSDatasetInterface {
   /**
    * Turn the block identifier into a filename; ignore generation stamp!!!
    */
-  public synchronized File getFile(String bpid, Block b) {
-    return getFile(bpid, b.getBlockId());
+  public File getFile(String bpid, Block b) {
+    synchronized(getBlockLock(b.getBlockId())) {
+      return getFile(bpid, b.getBlockId());
+    }
   }
 
   /**
@@ -2168,21 +2217,23 @@ public class FSDataset implements FSDatasetInterface {
     
     // Otherwise remove blocks for the failed volumes
     long mlsec = System.currentTimeMillis();
-    synchronized (this) {
+    synchronized (volumeMap.getMutext()) {
       for (FSVolume fv: failedVols) {
         for (String bpid : fv.map.keySet()) {
-          Iterator<ReplicaInfo> ib = volumeMap.replicas(bpid).iterator();
-          while(ib.hasNext()) {
-            ReplicaInfo b = ib.next();
+          List<ReplicaInfo> removed = new ArrayList<ReplicaInfo>();
+          for (ReplicaInfo b : volumeMap.replicas(bpid)) {
             totalBlocks++;
             // check if the volume block belongs to still valid
             if(b.getVolume() == fv) {
-              DataNode.LOG.warn("Removing replica " + bpid + ":" + b.getBlockId()
-                  + " on failed volume " + fv.currentDir.getAbsolutePath());
-              ib.remove();
-              removedBlocks++;
+              removed.add(b);
             }
           }
+          for (ReplicaInfo b : removed) {
+            DataNode.LOG.warn("Removing replica " + bpid + ":" + b.getBlockId()
+                + " on failed volume " + fv.currentDir.getAbsolutePath());
+            volumeMap.remove(bpid, b.getBlockId());
+            removedBlocks++;
+          }
         }
       }
     } // end of sync
@@ -2277,7 +2328,7 @@ public class FSDataset implements FSDatasetInterface {
       File diskMetaFile, FSVolume vol) {
     Block corruptBlock = null;
     ReplicaInfo memBlockInfo;
-    synchronized (this) {
+    synchronized (getBlockLock(blockId)) {
       memBlockInfo = volumeMap.get(bpid, blockId);
       if (memBlockInfo != null && memBlockInfo.getState() != ReplicaState.FINALIZED) {
         // Block is not finalized - ignore the difference
@@ -2418,16 +2469,20 @@ public class FSDataset implements FSDatasetInterface {
   }
 
   @Override 
-  public synchronized String getReplicaString(String bpid, long blockId) {
-    final Replica r = volumeMap.get(bpid, blockId);
-    return r == null? "null": r.toString();
+  public String getReplicaString(String bpid, long blockId) {
+    synchronized(getBlockLock(blockId)) {
+      final Replica r = volumeMap.get(bpid, blockId);
+      return r == null? "null": r.toString();
+    }
   }
 
   @Override // FSDatasetInterface
-  public synchronized ReplicaRecoveryInfo initReplicaRecovery(
+  public ReplicaRecoveryInfo initReplicaRecovery(
       RecoveringBlock rBlock) throws IOException {
-    return initReplicaRecovery(rBlock.getBlock().getBlockPoolId(),
-        volumeMap, rBlock.getBlock().getLocalBlock(), rBlock.getNewGenerationStamp());
+    synchronized(getBlockLock(rBlock.getBlock().getBlockId())) {
+      return initReplicaRecovery(rBlock.getBlock().getBlockPoolId(),
+          volumeMap, rBlock.getBlock().getLocalBlock(), rBlock.getNewGenerationStamp());
+    }
   }
 
   /** static version of {@link #initReplicaRecovery(Block, long)}. */
@@ -2497,46 +2552,48 @@ public class FSDataset implements FSDatasetInterface {
   }
 
   @Override // FSDatasetInterface
-  public synchronized ReplicaInfo updateReplicaUnderRecovery(
+  public ReplicaInfo updateReplicaUnderRecovery(
                                     final ExtendedBlock oldBlock,
                                     final long recoveryId,
                                     final long newlength) throws IOException {
-    //get replica
-    final ReplicaInfo replica = volumeMap.get(oldBlock.getBlockPoolId(), 
-        oldBlock.getBlockId());
-    DataNode.LOG.info("updateReplica: block=" + oldBlock
-        + ", recoveryId=" + recoveryId
-        + ", length=" + newlength
-        + ", replica=" + replica);
+    synchronized(getBlockLock(oldBlock.getBlockId())) {
+      //get replica
+      final ReplicaInfo replica = volumeMap.get(oldBlock.getBlockPoolId(), 
+          oldBlock.getBlockId());
+      DataNode.LOG.info("updateReplica: block=" + oldBlock
+          + ", recoveryId=" + recoveryId
+          + ", length=" + newlength
+          + ", replica=" + replica);
 
-    //check replica
-    if (replica == null) {
-      throw new ReplicaNotFoundException(oldBlock);
-    }
+      //check replica
+      if (replica == null) {
+        throw new ReplicaNotFoundException(oldBlock);
+      }
 
-    //check replica state
-    if (replica.getState() != ReplicaState.RUR) {
-      throw new IOException("replica.getState() != " + ReplicaState.RUR
-          + ", replica=" + replica);
-    }
+      //check replica state
+      if (replica.getState() != ReplicaState.RUR) {
+        throw new IOException("replica.getState() != " + ReplicaState.RUR
+            + ", replica=" + replica);
+      }
 
-    //check replica's byte on disk
-    if (replica.getBytesOnDisk() != oldBlock.getNumBytes()) {
-      throw new IOException("THIS IS NOT SUPPOSED TO HAPPEN:"
-          + " replica.getBytesOnDisk() != block.getNumBytes(), block="
-          + oldBlock + ", replica=" + replica);
-    }
+      //check replica's byte on disk
+      if (replica.getBytesOnDisk() != oldBlock.getNumBytes()) {
+        throw new IOException("THIS IS NOT SUPPOSED TO HAPPEN:"
+            + " replica.getBytesOnDisk() != block.getNumBytes(), block="
+            + oldBlock + ", replica=" + replica);
+      }
 
-    //check replica files before update
-    checkReplicaFiles(replica);
+      //check replica files before update
+      checkReplicaFiles(replica);
 
-    //update replica
-    final FinalizedReplica finalized = updateReplicaUnderRecovery(oldBlock
-        .getBlockPoolId(), (ReplicaUnderRecovery) replica, recoveryId, newlength);
+      //update replica
+      final FinalizedReplica finalized = updateReplicaUnderRecovery(oldBlock
+          .getBlockPoolId(), (ReplicaUnderRecovery) replica, recoveryId, newlength);
 
-    //check replica files after update
-    checkReplicaFiles(finalized);
-    return finalized;
+      //check replica files after update
+      checkReplicaFiles(finalized);
+      return finalized;
+    }
   }
 
   private FinalizedReplica updateReplicaUnderRecovery(
@@ -2571,16 +2628,18 @@ public class FSDataset implements FSDatasetInterface {
   }
 
   @Override // FSDatasetInterface
-  public synchronized long getReplicaVisibleLength(final ExtendedBlock block)
+  public long getReplicaVisibleLength(final ExtendedBlock block)
   throws IOException {
-    final Replica replica = getReplicaInfo(block.getBlockPoolId(), 
-        block.getBlockId());
-    if (replica.getGenerationStamp() < block.getGenerationStamp()) {
-      throw new IOException(
-          "replica.getGenerationStamp() < block.getGenerationStamp(), block="
-          + block + ", replica=" + replica);
+    synchronized(getBlockLock(block.getBlockId())) {
+      final Replica replica = getReplicaInfo(block.getBlockPoolId(), 
+          block.getBlockId());
+      if (replica.getGenerationStamp() < block.getGenerationStamp()) {
+        throw new IOException(
+            "replica.getGenerationStamp() < block.getGenerationStamp(), block="
+            + block + ", replica=" + replica);
+      }
+      return replica.getVisibleLength();
     }
-    return replica.getVisibleLength();
   }
   
   public synchronized void addBlockPool(String bpid, Configuration conf)
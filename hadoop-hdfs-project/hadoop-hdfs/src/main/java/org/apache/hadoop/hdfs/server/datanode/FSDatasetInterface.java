@@ -364,6 +364,13 @@ public interface FSDatasetInterface extends FSDatasetMBean {
    */
   long getReplicaVisibleLength(final ExtendedBlock block) throws IOException;
 
+  /**
+   * Get the lock held by the dataset while it changes the replicas with the
+   * given block id.  Holding it makes several calls about a replica see the
+   * same state of the replica.
+   */
+  public Object getBlockLock(long blockId);
+
   /**
    * Initialize a replica recovery.
    * @return actual state of the replica on this data-node or 
@@ -21,6 +21,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.fs.FileUtil;
@@ -38,6 +41,30 @@ abstract public class ReplicaInfo extends Block implements Replica {
   private FSVolume volume;      // volume where the replica belongs
   private File     dir;         // directory where block & meta files belong
 
+  /**
+   * The directories of the replicas.  There are far fewer directories than
+   * replicas, so the replicas in a directory share one File object instead
+   * of each having a copy of the path.
+   */
+  private static final Map<File, WeakReference<File>> dirs =
+      new WeakHashMap<File, WeakReference<File>>();
+
+  /** @return the File object shared by the replicas in the directory. */
+  static File internDir(File dir) {
+    if (dir == null) {
+      return null;
+    }
+    synchronized(dirs) {
+      final WeakReference<File> ref = dirs.get(dir);
+      final File interned = ref == null? null: ref.get();
+      if (interned != null) {
+        return interned;
+      }
+      dirs.put(dir, new WeakReference<File>(dir));
+      return dir;
+    }
+  }
+
   /**
    * Constructor for a zero length replica
    * @param blockId block id
@@ -72,7 +99,7 @@ abstract public class ReplicaInfo extends Block implements Replica {
       FSVolume vol, File dir) {
     super(blockId, len, genStamp);
     this.volume = vol;
-    this.dir = dir;
+    this.dir = internDir(dir);
   }
 
   /**
@@ -135,7 +162,7 @@ abstract public class ReplicaInfo extends Block implements Replica {
    * @param dir the parent directory where the replica is located
    */
   void setDir(File dir) {
-    this.dir = dir;
+    this.dir = internDir(dir);
   }
 
   /**
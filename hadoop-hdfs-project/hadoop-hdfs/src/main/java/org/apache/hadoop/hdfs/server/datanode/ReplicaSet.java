@@ -0,0 +1,189 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The replicas of a block pool, keyed by block id.
+ *
+ * The replicas are kept in an open addressing hash table with linear
+ * probing, which only has a reference for each slot: the key of a replica
+ * is its own block id, so that there are no entry objects and no boxed
+ * keys as in a {@link java.util.HashMap}.  The capacity is a power of two
+ * and the table is kept at most 3/4 full.
+ *
+ * This class is not thread safe.
+ */
+class ReplicaSet {
+  private static final int MIN_CAPACITY = 16;
+
+  private ReplicaInfo[] table = new ReplicaInfo[MIN_CAPACITY];
+  /** The number of bits of the table index. */
+  private int bits = Integer.numberOfTrailingZeros(MIN_CAPACITY);
+  private int size = 0;
+  /** Modification count, to detect concurrent modifications. */
+  private int modification = 0;
+
+  /** @return the index of the slot where the probing for the id starts. */
+  private int index(long blockId) {
+    // Fibonacci hashing, since the block ids are often consecutive
+    return (int)((blockId * 0x9E3779B97F4A7C15L) >>> (Long.SIZE - bits));
+  }
+
+  private int next(int i) {
+    return (i + 1) & (table.length - 1);
+  }
+
+  /** @return the slot of the replica with the given id, or -1. */
+  private int find(long blockId) {
+    for(int i = index(blockId); table[i] != null; i = next(i)) {
+      if (table[i].getBlockId() == blockId) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** @return the number of replicas. */
+  int size() {
+    return size;
+  }
+
+  /** @return the replica with the given block id, or null. */
+  ReplicaInfo get(long blockId) {
+    final int i = find(blockId);
+    return i < 0? null: table[i];
+  }
+
+  /**
+   * Add a replica, replacing the replica with the same block id.
+   * @return the replaced replica, or null if there was none.
+   */
+  ReplicaInfo put(ReplicaInfo replica) {
+    final long blockId = replica.getBlockId();
+    int i = index(blockId);
+    for(; table[i] != null; i = next(i)) {
+      if (table[i].getBlockId() == blockId) {
+        final ReplicaInfo previous = table[i];
+        table[i] = replica;
+        return previous;
+      }
+    }
+    table[i] = replica;
+    modification++;
+    if (++size > table.length - (table.length >> 2)) {
+      resize(table.length << 1);
+    }
+    return null;
+  }
+
+  /**
+   * Remove the replica with the given block id.
+   * @return the removed replica, or null if there was none.
+   */
+  ReplicaInfo remove(long blockId) {
+    int i = find(blockId);
+    if (i < 0) {
+      return null;
+    }
+    final ReplicaInfo removed = table[i];
+    // Shift back the following replicas of the cluster which would not be
+    // found any more, so that no deleted marker is needed.
+    for(int j = next(i); table[j] != null; j = next(j)) {
+      final int k = index(table[j].getBlockId());
+      if (i <= j? (k <= i || k > j): (k <= i && k > j)) {
+        table[i] = table[j];
+        i = j;
+      }
+    }
+    table[i] = null;
+    modification++;
+    if (--size < table.length >> 3 && table.length > MIN_CAPACITY) {
+      resize(table.length >> 1);
+    }
+    return removed;
+  }
+
+  private void resize(int capacity) {
+    final ReplicaInfo[] oldTable = table;
+    table = new ReplicaInfo[capacity];
+    bits = Integer.numberOfTrailingZeros(capacity);
+    for(ReplicaInfo r : oldTable) {
+      if (r != null) {
+        int i = index(r.getBlockId());
+        for(; table[i] != null; i = next(i));
+        table[i] = r;
+      }
+    }
+  }
+
+  /**
+   * @return a view of the replicas.  The view does not support removal,
+   *         and its iterators fail if the set is modified.
+   */
+  Collection<ReplicaInfo> values() {
+    return new AbstractCollection<ReplicaInfo>() {
+      @Override
+      public int size() {
+        return size;
+      }
+
+      @Override
+      public Iterator<ReplicaInfo> iterator() {
+        return new ReplicaIterator();
+      }
+    };
+  }
+
+  private class ReplicaIterator implements Iterator<ReplicaInfo> {
+    private final ReplicaInfo[] iterated = table;
+    private final int expectedModification = modification;
+    private int next = 0;
+
+    @Override
+    public boolean hasNext() {
+      if (modification != expectedModification) {
+        throw new ConcurrentModificationException();
+      }
+      for(; next < iterated.length; next++) {
+        if (iterated[next] != null) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public ReplicaInfo next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return iterated[next++];
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("remove");
+    }
+  }
+}
@@ -26,14 +26,14 @@ import org.apache.hadoop.hdfs.protocol.Block;
 
 /**
  * Maintains the replicas map. 
+ * The replicas of each block pool are kept in a {@link ReplicaSet}.
  */
 class ReplicasMap {
   // Object using which this class is synchronized
   private final Object mutex;
   
-  // Map of block pool Id to another map of block Id to ReplicaInfo.
-  private Map<String, Map<Long, ReplicaInfo>> map = 
-    new HashMap<String, Map<Long, ReplicaInfo>>();
+  // Map of block pool Id to the replicas of the block pool.
+  private Map<String, ReplicaSet> map = new HashMap<String, ReplicaSet>();
   
   ReplicasMap(Object mutex) {
     if (mutex == null) {
@@ -90,7 +90,7 @@ class ReplicasMap {
   ReplicaInfo get(String bpid, long blockId) {
     checkBlockPool(bpid);
     synchronized(mutex) {
-      Map<Long, ReplicaInfo> m = map.get(bpid);
+      ReplicaSet m = map.get(bpid);
       return m != null ? m.get(blockId) : null;
     }
   }
@@ -107,13 +107,13 @@ class ReplicasMap {
     checkBlockPool(bpid);
     checkBlock(replicaInfo);
     synchronized(mutex) {
-      Map<Long, ReplicaInfo> m = map.get(bpid);
+      ReplicaSet m = map.get(bpid);
       if (m == null) {
         // Add an entry for block pool if it does not exist already
-        m = new HashMap<Long, ReplicaInfo>();
+        m = new ReplicaSet();
         map.put(bpid, m);
       }
-      return  m.put(replicaInfo.getBlockId(), replicaInfo);
+      return  m.put(replicaInfo);
     }
   }
   
@@ -129,13 +129,12 @@ class ReplicasMap {
     checkBlockPool(bpid);
     checkBlock(block);
     synchronized(mutex) {
-      Map<Long, ReplicaInfo> m = map.get(bpid);
+      ReplicaSet m = map.get(bpid);
       if (m != null) {
-        Long key = Long.valueOf(block.getBlockId());
-        ReplicaInfo replicaInfo = m.get(key);
+        ReplicaInfo replicaInfo = m.get(block.getBlockId());
         if (replicaInfo != null &&
             block.getGenerationStamp() == replicaInfo.getGenerationStamp()) {
-          return m.remove(key);
+          return m.remove(block.getBlockId());
         } 
       }
     }
@@ -152,7 +151,7 @@ class ReplicasMap {
   ReplicaInfo remove(String bpid, long blockId) {
     checkBlockPool(bpid);
     synchronized(mutex) {
-      Map<Long, ReplicaInfo> m = map.get(bpid);
+      ReplicaSet m = map.get(bpid);
       if (m != null) {
         return m.remove(blockId);
       }
@@ -166,9 +165,8 @@ class ReplicasMap {
    * @return the number of replicas in the map
    */
   int size(String bpid) {
-    Map<Long, ReplicaInfo> m = null;
     synchronized(mutex) {
-      m = map.get(bpid);
+      ReplicaSet m = map.get(bpid);
       return m != null ? m.size() : 0;
     }
   }
@@ -178,25 +176,23 @@ class ReplicasMap {
    * This method is <b>not synchronized</b>. It needs to be synchronized
    * externally using the mutex, both for getting the replicas
    * values from the map and iterating over it. Mutex can be accessed using
-   * {@link #getMutext()} method.
+   * {@link #getMutext()} method.  The collection does not support
+   * removal; use {@link #remove(String, long)} after the iteration.
    * 
    * @param bpid block pool id
    * @return a collection of the replicas belonging to the block pool
    */
   Collection<ReplicaInfo> replicas(String bpid) {
-    Map<Long, ReplicaInfo> m = null;
-    m = map.get(bpid);
+    ReplicaSet m = map.get(bpid);
     return m != null ? m.values() : null;
   }
 
   void initBlockPool(String bpid) {
     checkBlockPool(bpid);
     synchronized(mutex) {
-      Map<Long, ReplicaInfo> m = map.get(bpid);
-      if (m == null) {
+      if (!map.containsKey(bpid)) {
         // Add an entry for block pool if it does not exist already
-        m = new HashMap<Long, ReplicaInfo>();
-        map.put(bpid, m);
+        map.put(bpid, new ReplicaSet());
       }
     }
   }
@@ -29,6 +29,7 @@ import org.apache.hadoop.metrics2.annotation.Metrics;
 import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
 import org.apache.hadoop.metrics2.lib.MetricsRegistry;
 import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.apache.hadoop.metrics2.lib.MutableGaugeLong;
 import org.apache.hadoop.metrics2.lib.MutableRate;
 import org.apache.hadoop.metrics2.source.JvmMetrics;
 
@@ -61,6 +62,10 @@ public class DataNodeMetrics {
   @Metric MutableCounterLong writesFromLocalClient;
   @Metric MutableCounterLong writesFromRemoteClient;
   @Metric MutableCounterLong blocksGetLocalPathInfo;
+  @Metric MutableCounterLong blockCacheHits;
+  @Metric MutableCounterLong blockCacheMisses;
+  @Metric MutableCounterLong blockCacheEvictions;
+  @Metric MutableGaugeLong blockCacheUsed;
   
   @Metric MutableCounterLong volumeFailures;
 
@@ -171,4 +176,21 @@ public class DataNodeMetrics {
   public void incrBlocksGetLocalPathInfo() {
     blocksGetLocalPathInfo.incr();
   }
+
+  public void incrBlockCacheHits() {
+    blockCacheHits.incr();
+  }
+
+  public void incrBlockCacheMisses() {
+    blockCacheMisses.incr();
+  }
+
+  public void incrBlockCacheEvictions() {
+    blockCacheEvictions.incr();
+  }
+
+  /** Set the number of bytes in the block cache */
+  public void setBlockCacheUsed(long bytes) {
+    blockCacheUsed.set(bytes);
+  }
 }
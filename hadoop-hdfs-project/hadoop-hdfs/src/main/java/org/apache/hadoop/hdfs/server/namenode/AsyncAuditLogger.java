@@ -0,0 +1,192 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.util.Daemon;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Writes audit events to a log in a background thread, so that the
+ * RPC handlers neither format the events nor wait for the log appenders.
+ *
+ * The handlers put the unformatted events into a bounded queue. The writer
+ * thread takes them from the queue in batches, formats them and writes them
+ * to the log in the order they were queued. When the queue is full, a handler
+ * either waits for space or drops its event, see {@link #blockWhenFull}.
+ */
+class AsyncAuditLogger {
+  /** The maximum number of events taken from the queue at once. */
+  static final int MAX_BATCH_SIZE = 1024;
+  /** How long the writer waits for events before checking for a stop. */
+  private static final long POLL_INTERVAL_MS = 100;
+
+  /** An audit event, as passed to {@link #logAuditEvent}. */
+  private static class AuditEvent {
+    final UserGroupInformation ugi;
+    final InetAddress addr;
+    final String cmd;
+    final String src;
+    final String dst;
+    final HdfsFileStatus stat;
+
+    AuditEvent(UserGroupInformation ugi, InetAddress addr, String cmd,
+        String src, String dst, HdfsFileStatus stat) {
+      this.ugi = ugi;
+      this.addr = addr;
+      this.cmd = cmd;
+      this.src = src;
+      this.dst = dst;
+      this.stat = stat;
+    }
+  }
+
+  private final Log log;
+  private final BlockingQueue<AuditEvent> queue;
+  /** Whether to wait for space in a full queue rather than drop events. */
+  private final boolean blockWhenFull;
+  private final AtomicLong droppedEvents = new AtomicLong();
+  private final Daemon writer;
+  private volatile boolean running = true;
+
+  AsyncAuditLogger(Log log, int queueSize, boolean blockWhenFull) {
+    Preconditions.checkArgument(queueSize > 0,
+        "Non-positive queue size: %s", queueSize);
+    this.log = log;
+    this.queue = new ArrayBlockingQueue<AuditEvent>(queueSize);
+    this.blockWhenFull = blockWhenFull;
+    this.writer = new Daemon(new Runnable() {
+      @Override
+      public void run() {
+        writeEvents();
+      }
+
+      @Override
+      public String toString() {
+        return "Audit log writer";
+      }
+    });
+    writer.start();
+  }
+
+  /**
+   * Queue an audit event to be written.
+   * Once this logger has been stopped, the event is written right away.
+   */
+  void logAuditEvent(UserGroupInformation ugi, InetAddress addr, String cmd,
+      String src, String dst, HdfsFileStatus stat) {
+    final AuditEvent e = new AuditEvent(ugi, addr, cmd, src, dst, stat);
+    if (!running) {
+      write(new StringBuilder(), e);
+      return;
+    }
+    if (!blockWhenFull) {
+      if (!queue.offer(e)) {
+        droppedEvents.incrementAndGet();
+      }
+      return;
+    }
+    try {
+      // check for a stop now and then, so as not to wait for ever
+      // for a writer which has exited
+      while (!queue.offer(e, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+        if (!running) {
+          write(new StringBuilder(), e);
+          return;
+        }
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      droppedEvents.incrementAndGet();
+    }
+  }
+
+  private void writeEvents() {
+    final List<AuditEvent> batch = new ArrayList<AuditEvent>(MAX_BATCH_SIZE);
+    final StringBuilder sb = new StringBuilder();
+    while (true) {
+      final AuditEvent first;
+      try {
+        first = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ie) {
+        continue;
+      }
+      if (first == null) {
+        if (!running) {
+          return;
+        }
+        continue;
+      }
+      batch.add(first);
+      queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+      for (AuditEvent e : batch) {
+        try {
+          write(sb, e);
+        } catch (Throwable t) {
+          FSNamesystem.LOG.warn("Failed to write audit event", t);
+        }
+      }
+      batch.clear();
+    }
+  }
+
+  private void write(StringBuilder sb, AuditEvent e) {
+    sb.setLength(0);
+    FSNamesystem.appendAuditEvent(sb, e.ugi, e.addr, e.cmd, e.src, e.dst,
+        e.stat);
+    log.info(sb.toString());
+  }
+
+  /** @return the number of events waiting to be written. */
+  int getQueueSize() {
+    return queue.size();
+  }
+
+  /** @return the number of events dropped because the queue was full. */
+  long getDroppedEvents() {
+    return droppedEvents.get();
+  }
+
+  /**
+   * Write the queued events and stop the writer thread.
+   */
+  void stop() {
+    running = false;
+    try {
+      writer.join();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+    // events queued while the writer was exiting
+    final StringBuilder sb = new StringBuilder();
+    for (AuditEvent e; (e = queue.poll()) != null; ) {
+      write(sb, e);
+    }
+  }
+}
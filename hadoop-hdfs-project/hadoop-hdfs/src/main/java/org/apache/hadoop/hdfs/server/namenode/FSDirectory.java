@@ -81,7 +81,8 @@ public class FSDirectory implements Closeable {
   private final int maxDirItems;
   private final int lsLimit;  // max list limit
 
-  // lock to protect the directory and BlockMap
+  // lock to protect the directory and BlockMap.  A thread holding it must
+  // not take the namesystem lock, which is taken first when both are needed.
   private ReentrantReadWriteLock dirLock;
   private Condition cond;
 
@@ -116,6 +117,19 @@ public class FSDirectory implements Closeable {
    */
   private final NameCache<ByteArray> nameCache;
 
+  /**
+   * Dictionary of all the names used in {@link INode},
+   * or null if the names are cached by {@link #nameCache} only.
+   */
+  private final NameDictionary nameDictionary;
+
+  /**
+   * The subtrees unlinked by {@link #unlink(String)} and not cleared yet.
+   * Guarded by the write lock.
+   */
+  private final List<DeletedSubtree> deletedSubtrees =
+      new ArrayList<DeletedSubtree>();
+
   FSDirectory(FSImage fsImage, FSNamesystem ns, Configuration conf) {
     this.dirLock = new ReentrantReadWriteLock(true); // fair
     this.cond = dirLock.writeLock().newCondition();
@@ -142,6 +156,15 @@ public class FSDirectory implements Closeable {
     NameNode.LOG.info("Caching file names occuring more than " + threshold
         + " times ");
     nameCache = new NameCache<ByteArray>(threshold);
+    if (conf.getBoolean(
+        DFSConfigKeys.DFS_NAMENODE_NAME_DICTIONARY_ENABLED_KEY,
+        DFSConfigKeys.DFS_NAMENODE_NAME_DICTIONARY_ENABLED_DEFAULT)) {
+      NameNode.LOG.info("Sharing the file and directory names occuring "
+          + threshold + " times or more");
+      nameDictionary = new NameDictionary(threshold);
+    } else {
+      nameDictionary = null;
+    }
     namesystem = ns;
   }
     
@@ -168,6 +191,10 @@ public class FSDirectory implements Closeable {
     try {
       setReady(true);
       this.nameCache.initialized();
+      if (nameDictionary != null) {
+        NameNode.LOG.info("Name dictionary has " + nameDictionary.size()
+            + " entries " + nameDictionary.getLookupCount() + " lookups");
+      }
       cond.signalAll();
     } finally {
       writeUnlock();
@@ -179,7 +206,7 @@ public class FSDirectory implements Closeable {
     ready = flag;
   }
 
-  private void incrDeletedFileCount(int count) {
+  void incrDeletedFileCount(int count) {
     if (getFSNamesystem() != null)
       NameNode.getNameNodeMetrics().incrFilesDeleted(count);
   }
@@ -191,6 +218,11 @@ public class FSDirectory implements Closeable {
     fsImage.close();
   }
 
+  /** @return true if the image has been loaded. */
+  boolean isReady() {
+    return ready;
+  }
+
   /**
    * Block until the object is ready to be used.
    */
@@ -579,6 +611,7 @@ public class FSDirectory implements Closeable {
       }
       srcChildName = srcChild.getLocalName();
       srcChild.setLocalName(dstComponents[dstInodes.length-1]);
+      cacheName(srcChild);
       
       // add src to the destination
       dstChild = addChildNoQuotaCheck(dstInodes, dstInodes.length - 1,
@@ -735,6 +768,7 @@ public class FSDirectory implements Closeable {
 
       INode dstChild = null;
       removedSrc.setLocalName(dstComponents[dstInodes.length - 1]);
+      cacheName(removedSrc);
       // add src as dst to complete rename
       dstChild = addChildNoQuotaCheck(dstInodes, dstInodes.length - 1,
           removedSrc, UNKNOWN_DISK_SPACE);
@@ -985,36 +1019,175 @@ public class FSDirectory implements Closeable {
   }
 
   /**
-   * Delete the target directory and collect the blocks under it
-   * 
-   * @param src Path of a directory to delete
-   * @param collectedBlocks Blocks under the deleted directory
-   * @return true on successful deletion; else false
+   * Unlink the target from the namespace, without clearing the deleted
+   * subtree or collecting its blocks, which is left to the caller: see
+   * {@link #reclaimDeleted(DeletedSubtree, int, List)}. Nothing of the
+   * subtree is visited, so the time taken does not depend on its size.
+   * <br>
+   * The space of the subtree is still counted in the quotas of its former
+   * ancestors, and the subtree is still reachable from the files and
+   * blocks in it, until it is reclaimed.
+   *
+   * @param src Path to delete
+   * @return the deleted subtree; null if nothing was deleted
    */
-  boolean delete(String src, List<Block>collectedBlocks) 
-    throws UnresolvedLinkException {
+  DeletedSubtree unlink(String src) throws UnresolvedLinkException {
     if (NameNode.stateChangeLog.isDebugEnabled()) {
-      NameNode.stateChangeLog.debug("DIR* FSDirectory.delete: " + src);
+      NameNode.stateChangeLog.debug("DIR* FSDirectory.unlink: " + src);
     }
     waitForReady();
     long now = now();
-    int filesRemoved;
+    DeletedSubtree deleted = null;
     writeLock();
     try {
-      filesRemoved = unprotectedDelete(src, collectedBlocks, now);
+      INode removed = unprotectedUnlink(src, now, false);
+      if (removed != null) {
+        deleted = new DeletedSubtree(removed);
+        deletedSubtrees.add(deleted);
+      }
     } finally {
       writeUnlock();
     }
-    if (filesRemoved <= 0) {
-      return false;
+    if (deleted == null) {
+      return null;
     }
-    incrDeletedFileCount(filesRemoved);
-    // Blocks will be deleted later by the caller of this method
     getFSNamesystem().removePathAndBlocks(src, null);
     fsImage.getEditLog().logDelete(src, now);
-    return true;
+    return deleted;
   }
-  
+
+  /**
+   * Clear a batch of the inodes of a subtree deleted by
+   * {@link #unlink(String)}, depth first, and collect the blocks of the
+   * files cleared. The space of the inodes cleared is released from the
+   * quotas of the former ancestors of the subtree.
+   * <br>
+   * The root of the subtree is cleared first, and then the blocks of the
+   * subtree no longer belong to a file: see {@link INode#isDeleted()}.
+   *
+   * @param deleted the subtree to reclaim
+   * @param max the number of inodes and blocks to clear at most, roughly
+   * @param collectedBlocks the blocks of the files cleared
+   * @return the number of inodes cleared
+   */
+  int reclaimDeleted(DeletedSubtree deleted, int max,
+      List<Block> collectedBlocks) {
+    final List<INode> pending = deleted.pending;
+    final INode.DirCounts counts = new INode.DirCounts();
+    int cleared = 0;
+    writeLock();
+    try {
+      while (!pending.isEmpty() && cleared + collectedBlocks.size() < max) {
+        final INode inode = pending.remove(pending.size() - 1);
+        if (inode.isDirectory()) {
+          // not spaceConsumedInTree(): its children are counted as cleared
+          counts.nsCount++;
+          ((INodeDirectory)inode).clearAndCollectChildren(pending);
+        } else {
+          inode.spaceConsumedInTree(counts);
+          inode.collectSubtreeBlocksAndClear(collectedBlocks);
+        }
+        cleared++;
+      }
+      if (!deleted.settled) {
+        updateCountOfAncestors(deleted.formerParent,
+            -counts.getNsCount(), -counts.getDsCount());
+      }
+      if (pending.isEmpty()) {
+        deletedSubtrees.remove(deleted);
+      }
+    } finally {
+      writeUnlock();
+    }
+    return cleared;
+  }
+
+  /**
+   * Release the space of the deleted subtrees which are not cleared yet
+   * from the quotas of their former ancestors. The namespace count of the
+   * root is then the number of inodes reachable, as recorded in an image.
+   */
+  void settleDeletedSubtrees() {
+    writeLock();
+    try {
+      settleDeletedSubtrees(null);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  /**
+   * Release the space of the deleted subtrees unlinked from the given inode
+   * or from its subtree, before the inode is moved, removed or has its
+   * quota changed: the quotas of the former ancestors could no longer be
+   * updated as those subtrees are cleared.
+   *
+   * @param inode the inode; null for all the deleted subtrees
+   */
+  private void settleDeletedSubtrees(INode inode) {
+    assert hasWriteLock();
+    for (DeletedSubtree deleted : deletedSubtrees) {
+      if (!deleted.settled && (inode == null || deleted.isUnder(inode))) {
+        final INode.DirCounts counts = new INode.DirCounts();
+        for (INode i : deleted.pending) {
+          i.spaceConsumedInTree(counts);
+        }
+        updateCountOfAncestors(deleted.formerParent,
+            -counts.getNsCount(), -counts.getDsCount());
+        deleted.settled = true;
+      }
+    }
+  }
+
+  /**
+   * A subtree unlinked from the namespace by {@link #unlink(String)}, and
+   * cleared in batches by {@link #reclaimDeleted(DeletedSubtree, int, List)}.
+   * <br>
+   * Its former parent stays in the namespace until it is cleared or
+   * settled, as any removal of the former parent or of one of its
+   * ancestors settles it first.
+   */
+  static class DeletedSubtree {
+    /** The directory the subtree was unlinked from */
+    private final INodeDirectory formerParent;
+    /** The inodes left to clear, whose subtrees are intact */
+    private final List<INode> pending = new ArrayList<INode>();
+    /**
+     * Set once the space of the inodes left to clear is released from
+     * the quotas of the former ancestors.
+     */
+    private boolean settled = false;
+
+    private DeletedSubtree(INode root) {
+      // removeChild() leaves the parent of the removed inode
+      this.formerParent = root.getParent();
+      pending.add(root);
+    }
+
+    /** @return the number of inodes left to clear */
+    int numPending() {
+      return pending.size();
+    }
+
+    /** @return whether the subtree has been cleared in full */
+    boolean isCleared() {
+      return pending.isEmpty();
+    }
+
+    /**
+     * @return whether the subtree was unlinked from the given inode or
+     *         from its subtree
+     */
+    private boolean isUnder(INode inode) {
+      for (INode i = formerParent; i != null; i = i.getParent()) {
+        if (i == inode) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
   /** Return if a directory is empty or not **/
   boolean isDirEmpty(String src) throws UnresolvedLinkException {
     boolean dirNotEmpty = true;
@@ -1076,6 +1249,30 @@ public class FSDirectory implements Closeable {
   int unprotectedDelete(String src, List<Block> collectedBlocks, 
       long mtime) throws UnresolvedLinkException {
     assert hasWriteLock();
+    INode targetNode = unprotectedUnlink(src, mtime, true);
+    if (targetNode == null) {
+      return 0;
+    }
+    int filesRemoved = targetNode.collectSubtreeBlocksAndClear(collectedBlocks);
+    if (NameNode.stateChangeLog.isDebugEnabled()) {
+      NameNode.stateChangeLog.debug("DIR* FSDirectory.unprotectedDelete: "
+          +src+" is removed");
+    }
+    return filesRemoved;
+  }
+
+  /**
+   * Remove a path from the name space, leaving the removed subtree intact.
+   * Update the count at each ancestor directory with quota
+   * @param src a string representation of a path to an inode
+   * @param mtime the time the inode is removed
+   * @param updateCount whether to update the counts now, or to leave it
+   *                    to {@link #reclaimDeleted(DeletedSubtree, int, List)}
+   * @return the removed inode; null if no inode is removed.
+   */
+  private INode unprotectedUnlink(String src, long mtime,
+      boolean updateCount) throws UnresolvedLinkException {
+    assert hasWriteLock();
     src = normalizePath(src);
 
     INode[] inodes =  rootDir.getExistingPathINodes(src, false);
@@ -1086,28 +1283,23 @@ public class FSDirectory implements Closeable {
         NameNode.stateChangeLog.debug("DIR* FSDirectory.unprotectedDelete: "
             +"failed to remove "+src+" because it does not exist");
       }
-      return 0;
+      return null;
     }
     if (inodes.length == 1) { // src is the root
       NameNode.stateChangeLog.warn("DIR* FSDirectory.unprotectedDelete: " +
           "failed to remove " + src +
           " because the root is not allowed to be deleted");
-      return 0;
+      return null;
     }
     int pos = inodes.length - 1;
     // Remove the node from the namespace
-    targetNode = removeChild(inodes, pos);
+    targetNode = removeChild(inodes, pos, updateCount);
     if (targetNode == null) {
-      return 0;
+      return null;
     }
     // set the parent's modification time
     inodes[pos-1].setModificationTime(mtime);
-    int filesRemoved = targetNode.collectSubtreeBlocksAndClear(collectedBlocks);
-    if (NameNode.stateChangeLog.isDebugEnabled()) {
-      NameNode.stateChangeLog.debug("DIR* FSDirectory.unprotectedDelete: "
-          +src+" is removed");
-    }
-    return filesRemoved;
+    return targetNode;
   }
 
   /**
@@ -1191,21 +1383,32 @@ public class FSDirectory implements Closeable {
    */
   HdfsFileStatus getFileInfo(String src, boolean resolveLink) 
       throws UnresolvedLinkException {
-    String srcs = normalizePath(src);
     readLock();
     try {
-      INode targetNode = rootDir.getNode(srcs, resolveLink);
-      if (targetNode == null) {
-        return null;
-      }
-      else {
-        return createFileStatus(HdfsFileStatus.EMPTY_NAME, targetNode);
-      }
+      return getFileInfoNoLock(src, resolveLink);
     } finally {
       readUnlock();
     }
   }
 
+  /**
+   * Same as {@link #getFileInfo(String, boolean)}, without locking.
+   * The result may be inconsistent, or a RuntimeException may be thrown,
+   * if the namespace is modified concurrently, so the caller must either
+   * hold the lock or validate the result afterwards.
+   */
+  HdfsFileStatus getFileInfoNoLock(String src, boolean resolveLink)
+      throws UnresolvedLinkException {
+    String srcs = normalizePath(src);
+    INode targetNode = rootDir.getNode(srcs, resolveLink);
+    if (targetNode == null) {
+      return null;
+    }
+    else {
+      return createFileStatus(HdfsFileStatus.EMPTY_NAME, targetNode);
+    }
+  }
+
   /**
    * Get the blocks associated with the file.
    */
@@ -1412,6 +1615,21 @@ public class FSDirectory implements Closeable {
     }
   }
   
+  /**
+   * Update the count of the given directory and of each of its ancestors
+   * with quota, without verification.
+   */
+  private void updateCountOfAncestors(INodeDirectory dir,
+      long nsDelta, long dsDelta) {
+    assert hasWriteLock();
+    for(INode i = dir; i != null; i = i.getParent()) {
+      if (i.isQuotaSet()) { // a directory with quota
+        ((INodeDirectoryWithQuota)i).unprotectedUpdateNumItemsInTree(
+            nsDelta, dsDelta);
+      }
+    }
+  }
+
   /** Return the name of the path represented by inodes at [0, pos] */
   private static String getFullPathName(INode[] inodes, int pos) {
     StringBuilder fullPathName = new StringBuilder();
@@ -1566,9 +1784,10 @@ public class FSDirectory implements Closeable {
       byte[] name, PermissionStatus permission,
       long timestamp) throws QuotaExceededException {
     assert hasWriteLock();
-    inodes[pos] = addChild(inodes, pos, 
-        new INodeDirectory(name, permission, timestamp),
-        -1);
+    final INodeDirectory newDir =
+        new INodeDirectory(name, permission, timestamp);
+    cacheName(newDir);
+    inodes[pos] = addChild(inodes, pos, newDir, -1);
   }
   
   /** Add a node child to the namespace. The full path name of the node is src.
@@ -1767,9 +1986,19 @@ public class FSDirectory implements Closeable {
    * Return the removed node; null if the removal fails.
    */
   private INode removeChild(INode[] pathComponents, int pos) {
+    return removeChild(pathComponents, pos, true);
+  }
+
+  /** Remove an inode at index pos from the namespace, like
+   * {@link #removeChild(INode[], int)}, but updating the count of each
+   * ancestor with quota only if updateCount is set.
+   */
+  private INode removeChild(INode[] pathComponents, int pos,
+      boolean updateCount) {
+    settleDeletedSubtrees(pathComponents[pos]);
     INode removedNode = 
       ((INodeDirectory)pathComponents[pos-1]).removeChild(pathComponents[pos]);
-    if (removedNode != null) {
+    if (removedNode != null && updateCount) {
       INode.DirCounts counts = new INode.DirCounts();
       removedNode.spaceConsumedInTree(counts);
       updateCountNoQuotaCheck(pathComponents, pos,
@@ -1916,6 +2145,8 @@ public class FSDirectory implements Closeable {
     } else if (targetNode.isRoot() && nsQuota == HdfsConstants.QUOTA_RESET) {
       throw new IllegalArgumentException("Cannot clear namespace quota on root.");
     } else { // a directory inode
+      // the counts of the directory are set or dropped
+      settleDeletedSubtrees(targetNode);
       INodeDirectory dirNode = (INodeDirectory)targetNode;
       long oldNsQuota = dirNode.getNsQuota();
       long oldDsQuota = dirNode.getDsQuota();
@@ -2179,9 +2410,14 @@ public class FSDirectory implements Closeable {
   
   /**
    * Caches frequently used file names to reuse file name objects and
-   * reduce heap size.
+   * reduce heap size.  With the name dictionary, the frequent names of
+   * all the inodes are shared, including the names created after startup.
    */
   void cacheName(INode inode) {
+    if (nameDictionary != null) {
+      inode.setLocalName(nameDictionary.intern(inode.getLocalNameBytes()));
+      return;
+    }
     // Name is cached only for files
     if (inode.isDirectory() || inode.isLink()) {
       return;
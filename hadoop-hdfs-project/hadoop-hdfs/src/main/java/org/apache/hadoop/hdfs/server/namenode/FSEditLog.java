@@ -43,6 +43,8 @@ import org.apache.hadoop.hdfs.server.namenode.metrics.NameNodeMetrics;
 import org.apache.hadoop.hdfs.server.protocol.NamenodeRegistration;
 import org.apache.hadoop.hdfs.server.protocol.RemoteEditLogManifest;
 import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.ipc.Server;
+import org.apache.hadoop.util.Daemon;
 import org.apache.hadoop.security.token.delegation.DelegationKey;
 import org.apache.hadoop.conf.Configuration;
 
@@ -98,6 +100,13 @@ public class FSEditLog  {
 
   // is an automatic sync scheduled?
   private volatile boolean isAutoSyncScheduled = false;
+
+  // sync the edits of RPC calls in the background, postponing their responses?
+  private boolean asyncLogSync;
+  // the syncs waiting for the background syncer, guarded by this
+  private List<PendingSync> pendingSyncs = new ArrayList<PendingSync>();
+  // the background syncer, started on first use
+  private Daemon syncer = null;
   
   // Used to exit in the event of a failure to sync to all journals. It's a
   // member variable so it can be swapped out for testing.
@@ -158,6 +167,9 @@ public class FSEditLog  {
   private void init(Configuration conf, NNStorage storage, Collection<URI> editsDirs) {
     isSyncRunning = false;
     this.conf = conf;
+    this.asyncLogSync = conf.getBoolean(
+        DFSConfigKeys.DFS_NAMENODE_EDITS_ASYNC_LOGGING_KEY,
+        DFSConfigKeys.DFS_NAMENODE_EDITS_ASYNC_LOGGING_DEFAULT);
     this.storage = storage;
     metrics = NameNode.getNameNodeMetrics();
     lastPrintTime = now();
@@ -226,6 +238,7 @@ public class FSEditLog  {
       waitForSyncToFinish();
       endCurrentLogSegment(true);
     }
+    stopSyncer();
     
     try {
       journalSet.close();
@@ -266,7 +279,7 @@ public class FSEditLog  {
     }
     
     // sync buffered edit log entries to persistent store
-    logSync();
+    logSyncNow();
   }
 
   /**
@@ -370,12 +383,31 @@ public class FSEditLog  {
       id.txid = txid;
     }
     // Then make sure we're synced up to this point
-    logSync();
+    logSyncNow();
   }
   
   /**
    * Sync all modifications done by this thread.
    *
+   * If {@link DFSConfigKeys#DFS_NAMENODE_EDITS_ASYNC_LOGGING_KEY} is set
+   * and this is called by an RPC handler, the sync is left to a background
+   * thread and the response to the RPC call is postponed until the sync
+   * is done, so that the handler can serve other calls meanwhile.
+   * The background thread syncs the edits of all the calls waiting for it
+   * at once. Otherwise the sync is done by the calling thread.
+   */
+  public void logSync() {
+    if (asyncLogSync && postponeSync()) {
+      return;
+    }
+    logSyncNow();
+  }
+
+  /**
+   * Sync all modifications done by this thread, in this thread, even if
+   * the sync is otherwise left to the background thread. To be used by the
+   * calls whose later work must not start before their edits are durable.
+   *
    * The internal concurrency design of this class is as follows:
    *   - Log items are written synchronized into an in-memory buffer,
    *     and each assigned a transaction ID.
@@ -401,7 +433,7 @@ public class FSEditLog  {
    * concurrency with sync() should be synchronized and also call
    * waitForSyncToFinish() before assuming they are running alone.
    */
-  public void logSync() {
+  void logSyncNow() {
     long syncStart = 0;
 
     // Fetch the transactionId of this thread. 
@@ -491,6 +523,112 @@ public class FSEditLog  {
     }
   }
 
+  /** A sync waiting for the background syncer. */
+  private static class PendingSync {
+    final long txid;
+    final Server.PostponedResponse response;
+
+    PendingSync(long txid, Server.PostponedResponse response) {
+      this.txid = txid;
+      this.response = response;
+    }
+  }
+
+  /**
+   * Leave the sync of the modifications done by this thread to
+   * the background syncer, postponing the response to the current RPC call
+   * until it is done.
+   *
+   * @return false if the modifications are synced already,
+   *         or this is not called inside an RPC call.
+   */
+  private boolean postponeSync() {
+    final long mytxid = myTransactionId.get().txid;
+    synchronized (this) {
+      if (mytxid <= synctxid || state == State.CLOSED) {
+        return false;
+      }
+      final Server.PostponedResponse response = Server.postponeResponse();
+      if (response == null) {
+        return false;
+      }
+      pendingSyncs.add(new PendingSync(mytxid, response));
+      if (syncer == null) {
+        startSyncer();
+      }
+      notifyAll();
+    }
+    return true;
+  }
+
+  private synchronized void startSyncer() {
+    syncer = new Daemon(new Syncer());
+    syncer.setName("Edit log syncer");
+    syncer.start();
+  }
+
+  /**
+   * Syncs the edits of the RPC calls waiting for it in batches,
+   * then sends their responses.
+   */
+  private class Syncer implements Runnable {
+    @Override
+    public void run() {
+      while (true) {
+        final List<PendingSync> batch;
+        synchronized (FSEditLog.this) {
+          while (pendingSyncs.isEmpty()) {
+            if (syncer != Thread.currentThread()) {
+              return;
+            }
+            try {
+              FSEditLog.this.wait();
+            } catch (InterruptedException ie) {
+              LOG.info(Thread.currentThread().getName() + " interrupted");
+              Thread.currentThread().interrupt();
+              if (syncer == Thread.currentThread()) {
+                // hand the syncs queued meanwhile, if any, to a new syncer
+                syncer = null;
+                if (!pendingSyncs.isEmpty()) {
+                  startSyncer();
+                }
+              }
+              return;
+            }
+          }
+          batch = pendingSyncs;
+          pendingSyncs = new ArrayList<PendingSync>();
+        }
+
+        long maxTxId = 0;
+        for (PendingSync p : batch) {
+          maxTxId = Math.max(maxTxId, p.txid);
+        }
+        myTransactionId.get().txid = maxTxId;
+        logSyncNow();
+        releaseResponses(batch);
+      }
+    }
+  }
+
+  private static void releaseResponses(List<PendingSync> syncs) {
+    for (PendingSync p : syncs) {
+      p.response.release();
+    }
+  }
+
+  /**
+   * Stop the background syncer, if any. The edits must have been synced:
+   * the responses still waiting for it are released.
+   */
+  private synchronized void stopSyncer() {
+    syncer = null;
+    notifyAll();
+    final List<PendingSync> remaining = pendingSyncs;
+    pendingSyncs = new ArrayList<PendingSync>();
+    releaseResponses(remaining);
+  }
+
   //
   // print statistics every 1 minute.
   //
@@ -797,7 +935,7 @@ public class FSEditLog  {
     if (writeHeaderTxn) {
       logEdit(LogSegmentOp.getInstance(
           FSEditLogOpCodes.OP_START_LOG_SEGMENT));
-      logSync();
+      logSyncNow();
     }
   }
 
@@ -813,7 +951,7 @@ public class FSEditLog  {
     if (writeEndTxn) {
       logEdit(LogSegmentOp.getInstance(
           FSEditLogOpCodes.OP_END_LOG_SEGMENT));
-      logSync();
+      logSyncNow();
     }
 
     printStatistics(true);
@@ -65,45 +65,67 @@ public abstract class FSEditLogOp {
   long txid;
 
 
-  @SuppressWarnings("deprecation")
   private static ThreadLocal<EnumMap<FSEditLogOpCodes, FSEditLogOp>> opInstances =
     new ThreadLocal<EnumMap<FSEditLogOpCodes, FSEditLogOp>>() {
       @Override
       protected EnumMap<FSEditLogOpCodes, FSEditLogOp> initialValue() {
         EnumMap<FSEditLogOpCodes, FSEditLogOp> instances 
           = new EnumMap<FSEditLogOpCodes, FSEditLogOp>(FSEditLogOpCodes.class);
-        instances.put(OP_ADD, new AddOp());
-        instances.put(OP_CLOSE, new CloseOp());
-        instances.put(OP_SET_REPLICATION, new SetReplicationOp());
-        instances.put(OP_CONCAT_DELETE, new ConcatDeleteOp());
-        instances.put(OP_RENAME_OLD, new RenameOldOp());
-        instances.put(OP_DELETE, new DeleteOp());
-        instances.put(OP_MKDIR, new MkdirOp());
-        instances.put(OP_SET_GENSTAMP, new SetGenstampOp());
-        instances.put(OP_DATANODE_ADD, new DatanodeAddOp());
-        instances.put(OP_DATANODE_REMOVE, new DatanodeRemoveOp());
-        instances.put(OP_SET_PERMISSIONS, new SetPermissionsOp());
-        instances.put(OP_SET_OWNER, new SetOwnerOp());
-        instances.put(OP_SET_NS_QUOTA, new SetNSQuotaOp());
-        instances.put(OP_CLEAR_NS_QUOTA, new ClearNSQuotaOp());
-        instances.put(OP_SET_QUOTA, new SetQuotaOp());
-        instances.put(OP_TIMES, new TimesOp());
-        instances.put(OP_SYMLINK, new SymlinkOp());
-        instances.put(OP_RENAME, new RenameOp());
-        instances.put(OP_REASSIGN_LEASE, new ReassignLeaseOp());
-        instances.put(OP_GET_DELEGATION_TOKEN, new GetDelegationTokenOp());
-        instances.put(OP_RENEW_DELEGATION_TOKEN, new RenewDelegationTokenOp());
-        instances.put(OP_CANCEL_DELEGATION_TOKEN, 
-                      new CancelDelegationTokenOp());
-        instances.put(OP_UPDATE_MASTER_KEY, new UpdateMasterKeyOp());
-        instances.put(OP_START_LOG_SEGMENT,
-                      new LogSegmentOp(OP_START_LOG_SEGMENT));
-        instances.put(OP_END_LOG_SEGMENT,
-                      new LogSegmentOp(OP_END_LOG_SEGMENT));
+        for (FSEditLogOpCodes opCode : FSEditLogOpCodes.values()) {
+          FSEditLogOp op = newInstance(opCode);
+          if (op != null) {
+            instances.put(opCode, op);
+          }
+        }
         return instances;
       }
   };
 
+  /**
+   * Create a new op of the given type.
+   * @return the op, or null if no op corresponds to the opcode
+   */
+  @SuppressWarnings("deprecation")
+  private static FSEditLogOp newInstance(FSEditLogOpCodes opCode) {
+    switch (opCode) {
+    case OP_ADD: return new AddOp();
+    case OP_CLOSE: return new CloseOp();
+    case OP_SET_REPLICATION: return new SetReplicationOp();
+    case OP_CONCAT_DELETE: return new ConcatDeleteOp();
+    case OP_RENAME_OLD: return new RenameOldOp();
+    case OP_DELETE: return new DeleteOp();
+    case OP_MKDIR: return new MkdirOp();
+    case OP_SET_GENSTAMP: return new SetGenstampOp();
+    case OP_DATANODE_ADD: return new DatanodeAddOp();
+    case OP_DATANODE_REMOVE: return new DatanodeRemoveOp();
+    case OP_SET_PERMISSIONS: return new SetPermissionsOp();
+    case OP_SET_OWNER: return new SetOwnerOp();
+    case OP_SET_NS_QUOTA: return new SetNSQuotaOp();
+    case OP_CLEAR_NS_QUOTA: return new ClearNSQuotaOp();
+    case OP_SET_QUOTA: return new SetQuotaOp();
+    case OP_TIMES: return new TimesOp();
+    case OP_SYMLINK: return new SymlinkOp();
+    case OP_RENAME: return new RenameOp();
+    case OP_REASSIGN_LEASE: return new ReassignLeaseOp();
+    case OP_GET_DELEGATION_TOKEN: return new GetDelegationTokenOp();
+    case OP_RENEW_DELEGATION_TOKEN: return new RenewDelegationTokenOp();
+    case OP_CANCEL_DELEGATION_TOKEN: return new CancelDelegationTokenOp();
+    case OP_UPDATE_MASTER_KEY: return new UpdateMasterKeyOp();
+    case OP_START_LOG_SEGMENT: return new LogSegmentOp(OP_START_LOG_SEGMENT);
+    case OP_END_LOG_SEGMENT: return new LogSegmentOp(OP_END_LOG_SEGMENT);
+    default: return null;
+    }
+  }
+
+  /**
+   * Make the given op, just returned by {@link Reader#readOp()} in the
+   * current thread, exclusively owned by the caller: later calls to
+   * readOp() in this thread will not re-use it.
+   */
+  static void detachInstance(FSEditLogOp op) {
+    opInstances.get().put(op.opCode, newInstance(op.opCode));
+  }
+
   /**
    * Constructor for an EditLog Op. EditLog ops cannot be constructed
    * directly, but only through Reader#readOp.
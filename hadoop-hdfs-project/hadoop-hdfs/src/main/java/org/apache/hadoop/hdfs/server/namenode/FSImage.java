@@ -650,6 +650,9 @@ public class FSImage implements Closeable {
 
     long startingTxId = getLastAppliedTxId() + 1;
     int numLoaded = 0;
+    final boolean prefetch = conf.getBoolean(
+        DFSConfigKeys.DFS_NAMENODE_EDITS_LOAD_PREFETCH_ENABLED_KEY,
+        DFSConfigKeys.DFS_NAMENODE_EDITS_LOAD_PREFETCH_ENABLED_DEFAULT);
 
     try {    
       FSEditLogLoader loader = new FSEditLogLoader(target);
@@ -657,6 +660,10 @@ public class FSImage implements Closeable {
       // Load latest edits
       for (EditLogInputStream editIn : editStreams) {
         LOG.info("Reading " + editIn + " expecting start txid #" + startingTxId);
+        if (prefetch) {
+          // closed by the loader along with editIn
+          editIn = new PrefetchingEditLogInputStream(editIn);
+        }
         int thisNumLoaded = loader.loadFSEdits(editIn, startingTxId);
         startingTxId += thisNumLoaded;
         numLoaded += thisNumLoaded;
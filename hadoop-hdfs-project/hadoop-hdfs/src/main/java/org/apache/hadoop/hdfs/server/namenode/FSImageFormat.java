@@ -38,6 +38,7 @@ import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.DFSUtil;
 import org.apache.hadoop.hdfs.protocol.HdfsConstants;
 import org.apache.hadoop.hdfs.protocol.LayoutVersion;
@@ -45,6 +46,7 @@ import org.apache.hadoop.hdfs.protocol.LayoutVersion.Feature;
 import org.apache.hadoop.hdfs.server.blockmanagement.BlockInfo;
 import org.apache.hadoop.hdfs.server.common.GenerationStamp;
 import org.apache.hadoop.hdfs.server.common.InconsistentFSStateException;
+import org.apache.hadoop.hdfs.util.PrefetchingInputStream;
 import org.apache.hadoop.io.MD5Hash;
 import org.apache.hadoop.io.Text;
 
@@ -65,6 +67,11 @@ class FSImageFormat {
    * information about the image that was loaded, if loading was successful.
    */
   static class Loader {
+    /** Size of the buffers read ahead of the parsing thread. */
+    private static final int PREFETCH_BUFFER_SIZE = 1024 * 1024;
+    /** Number of buffers read ahead of the parsing thread. */
+    private static final int PREFETCH_NUM_BUFFERS = 4;
+
     private final Configuration conf;
     /** which namesystem this loader is working for */
     private final FSNamesystem namesystem;
@@ -177,6 +184,13 @@ class FSImageFormat {
           compression = FSImageCompression.createNoopCompression();
         }
         in = compression.unwrapInputStream(fin);
+        if (conf.getBoolean(DFSConfigKeys.DFS_IMAGE_LOAD_PREFETCH_ENABLED_KEY,
+            DFSConfigKeys.DFS_IMAGE_LOAD_PREFETCH_ENABLED_DEFAULT)) {
+          // read, digest and decompress the image in a separate thread
+          in = new DataInputStream(new PrefetchingInputStream(in,
+              PREFETCH_BUFFER_SIZE, PREFETCH_NUM_BUFFERS,
+              "FSImage prefetcher for " + curFile));
+        }
 
         LOG.info("Loading image file " + curFile + " using " + compression);
 
@@ -270,6 +284,7 @@ class FSImageFormat {
      }
 
      int numChildren = in.readInt();
+     ((INodeDirectory)parent).initChildren(numChildren);
      for(int i=0; i<numChildren; i++) {
        // load single inode
        byte[] localName = new byte[in.readShort()];
@@ -26,6 +26,12 @@ import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_BYTES_PER_CHECKSUM_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_CLIENT_WRITE_PACKET_SIZE_DEFAULT;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_CLIENT_WRITE_PACKET_SIZE_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_ACCESSTIME_PRECISION_KEY;
+import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_AUDIT_LOG_ASYNC_BLOCKING_DEFAULT;
+import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_AUDIT_LOG_ASYNC_BLOCKING_KEY;
+import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_AUDIT_LOG_ASYNC_DEFAULT;
+import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_AUDIT_LOG_ASYNC_KEY;
+import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_AUDIT_LOG_ASYNC_QUEUE_SIZE_DEFAULT;
+import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_AUDIT_LOG_ASYNC_QUEUE_SIZE_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_DELEGATION_KEY_UPDATE_INTERVAL_DEFAULT;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_DELEGATION_KEY_UPDATE_INTERVAL_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_DELEGATION_TOKEN_MAX_LIFETIME_DEFAULT;
@@ -34,9 +40,13 @@ import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_DELEGATION_TOKEN
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_DELEGATION_TOKEN_RENEW_INTERVAL_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_EDITS_DIR_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_EDITS_DIR_REQUIRED_KEY;
+import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_FSLOCK_FAIR_DEFAULT;
+import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_FSLOCK_FAIR_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_MAX_OBJECTS_DEFAULT;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_MAX_OBJECTS_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_NAME_DIR_KEY;
+import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_OPTIMISTIC_READS_ENABLED_DEFAULT;
+import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_OPTIMISTIC_READS_ENABLED_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_REPLICATION_MIN_DEFAULT;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_REPLICATION_MIN_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_REPL_QUEUE_THRESHOLD_PCT_KEY;
@@ -84,6 +94,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.management.NotCompliantMBeanException;
@@ -199,11 +210,23 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
       }
   };
 
-  private static final void logAuditEvent(UserGroupInformation ugi,
+  private void logAuditEvent(UserGroupInformation ugi,
       InetAddress addr, String cmd, String src, String dst,
       HdfsFileStatus stat) {
+    if (asyncAuditLogger != null) {
+      asyncAuditLogger.logAuditEvent(ugi, addr, cmd, src, dst, stat);
+      return;
+    }
     final StringBuilder sb = auditBuffer.get();
     sb.setLength(0);
+    appendAuditEvent(sb, ugi, addr, cmd, src, dst, stat);
+    auditLog.info(sb);
+  }
+
+  /** Append the audit log message of the given event. */
+  static void appendAuditEvent(StringBuilder sb, UserGroupInformation ugi,
+      InetAddress addr, String cmd, String src, String dst,
+      HdfsFileStatus stat) {
     sb.append("ugi=").append(ugi).append("\t");
     sb.append("ip=").append(addr).append("\t");
     sb.append("cmd=").append(cmd).append("\t");
@@ -217,7 +240,6 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
       sb.append(stat.getGroup()).append(":");
       sb.append(stat.getPermission());
     }
-    auditLog.info(sb);
   }
 
   /**
@@ -235,9 +257,13 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
    */
   public static final Log auditLog = LogFactory.getLog(
       FSNamesystem.class.getName() + ".audit");
+  // writes to auditLog in the background if enabled, see logAuditEvent
+  private AsyncAuditLogger asyncAuditLogger = null;
 
   static final int DEFAULT_MAX_CORRUPT_FILEBLOCKS_RETURNED = 100;
   static int BLOCK_DELETION_INCREMENT = 1000;
+  // inodes of deleted subtrees queued for clearing, see reclaimDeleted
+  private final AtomicLong pendingReclaimINodes = new AtomicLong();
   private boolean isPermissionEnabled;
   private UserGroupInformation fsOwner;
   private String supergroup;
@@ -293,8 +319,16 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
   // precision of access times.
   private long accessTimePrecision = 0;
 
-  // lock to protect FSNamesystem.
+  // lock to protect FSNamesystem.  The whole namespace is guarded by this
+  // one lock, so mutations of unrelated subtrees are serialized; see the
+  // mixedDisjoint operation of NNThroughputBenchmark.  It is taken before
+  // the lock of FSDirectory, never while holding that lock.
   private ReentrantReadWriteLock fsLock;
+  // incremented when the write lock is acquired and when it is released,
+  // so it is odd while the write lock is held
+  private final AtomicLong writeLockVersion = new AtomicLong();
+  // serve some reads without the lock, see getFileInfo
+  private boolean optimisticReads;
 
   
   /**
@@ -364,7 +398,21 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
     this.systemStart = now();
     this.blockManager = new BlockManager(this, this, conf);
     this.datanodeStatistics = blockManager.getDatanodeManager().getDatanodeStatistics();
-    this.fsLock = new ReentrantReadWriteLock(true); // fair locking
+    boolean fair = conf.getBoolean(DFS_NAMENODE_FSLOCK_FAIR_KEY,
+        DFS_NAMENODE_FSLOCK_FAIR_DEFAULT);
+    LOG.info("fsLock is fair: " + fair);
+    this.fsLock = new ReentrantReadWriteLock(fair);
+    this.optimisticReads = conf.getBoolean(
+        DFS_NAMENODE_OPTIMISTIC_READS_ENABLED_KEY,
+        DFS_NAMENODE_OPTIMISTIC_READS_ENABLED_DEFAULT);
+    if (conf.getBoolean(DFS_NAMENODE_AUDIT_LOG_ASYNC_KEY,
+        DFS_NAMENODE_AUDIT_LOG_ASYNC_DEFAULT)) {
+      this.asyncAuditLogger = new AsyncAuditLogger(auditLog,
+          conf.getInt(DFS_NAMENODE_AUDIT_LOG_ASYNC_QUEUE_SIZE_KEY,
+              DFS_NAMENODE_AUDIT_LOG_ASYNC_QUEUE_SIZE_DEFAULT),
+          conf.getBoolean(DFS_NAMENODE_AUDIT_LOG_ASYNC_BLOCKING_KEY,
+              DFS_NAMENODE_AUDIT_LOG_ASYNC_BLOCKING_DEFAULT));
+    }
     setConfigurationParameters(conf);
     dtSecretManager = createDelegationTokenSecretManager(conf);
     this.dir = new FSDirectory(fsImage, this, conf);
@@ -488,9 +536,15 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
   @Override
   public void writeLock() {
     this.fsLock.writeLock().lock();
+    if (fsLock.getWriteHoldCount() == 1) {
+      writeLockVersion.incrementAndGet();
+    }
   }
   @Override
   public void writeUnlock() {
+    if (fsLock.getWriteHoldCount() == 1) {
+      writeLockVersion.incrementAndGet();
+    }
     this.fsLock.writeLock().unlock();
   }
   @Override
@@ -595,6 +649,9 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
         if (dir != null) {
           dir.close();
         }
+        if (asyncAuditLogger != null) {
+          asyncAuditLogger.stop();
+        }
       } catch (InterruptedException ie) {
       } catch (IOException ie) {
         LOG.error("Error closing FSDirectory", ie);
@@ -1946,7 +2003,9 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
   /**
    * Remove a file/directory from the namespace.
    * <p>
-   * For large directories, deletion is incremental. The blocks under
+   * The target is unlinked from the namespace, then its subtree is cleared
+   * and its blocks deleted once the delete is synced to the edit log. For
+   * large directories, deletion is incremental. The blocks under
    * the directory are collected and deleted a small number at a time holding
    * the {@link FSNamesystem} lock.
    * <p>
@@ -1958,8 +2017,8 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
       boolean enforcePermission)
       throws AccessControlException, SafeModeException, UnresolvedLinkException,
              IOException {
-    boolean deleteNow = false;
-    ArrayList<Block> collectedBlocks = new ArrayList<Block>();
+    final FSDirectory.DeletedSubtree deleted;
+    int filesRemoved = 0;
 
     writeLock();
     try {
@@ -1972,29 +2031,33 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
       if (enforcePermission && isPermissionEnabled) {
         checkPermission(src, false, null, FsAction.WRITE, null, FsAction.ALL);
       }
-      // Unlink the target directory from directory tree
-      if (!dir.delete(src, collectedBlocks)) {
+      // Unlink the target directory from directory tree, without visiting
+      // its subtree
+      deleted = dir.unlink(src);
+      if (deleted == null) {
         return false;
       }
-      deleteNow = collectedBlocks.size() <= BLOCK_DELETION_INCREMENT;
-      if (deleteNow) { // Perform small deletes right away
-        removeBlocks(collectedBlocks);
-      }
+      pendingReclaimINodes.incrementAndGet();
     } finally {
       writeUnlock();
     }
 
-    getEditLog().logSync();
+    // No block may be removed before the delete is durable: the blocks
+    // would be lost if the namenode restarted without the delete.
+    getEditLog().logSyncNow();
 
-    writeLock();
-    try {
-      if (!deleteNow) {
-        removeBlocks(collectedBlocks); // Incremental deletion of blocks
+    // Incremental deletion, releasing the lock between batches. The blocks
+    // stay in blocksMap until their batch is cleared, but from the first
+    // batch on they no longer belong to a file.
+    while (!deleted.isCleared()) {
+      writeLock();
+      try {
+        filesRemoved += reclaimDeleted(deleted);
+      } finally {
+        writeUnlock();
       }
-    } finally {
-      writeUnlock();
     }
-    collectedBlocks.clear();
+    dir.incrDeletedFileCount(filesRemoved);
     if (NameNode.stateChangeLog.isDebugEnabled()) {
       NameNode.stateChangeLog.debug("DIR* Namesystem.delete: "
         + src +" is removed");
@@ -2002,19 +2065,44 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
     return true;
   }
 
-  /** From the given list, incrementally remove the blocks from blockManager */
-  private void removeBlocks(List<Block> blocks) {
+  /**
+   * Clear a batch of about {@link #BLOCK_DELETION_INCREMENT} inodes and
+   * blocks of a deleted subtree, and remove the blocks from blockManager.
+   * The subtree is cleared depth first, so the inodes left to clear stay
+   * few unless the subtree has large directories.
+   *
+   * @param deleted the subtree, which has been unlinked from the namespace
+   * @return the number of inodes cleared
+   */
+  private int reclaimDeleted(FSDirectory.DeletedSubtree deleted) {
     assert hasWriteLock();
-    int start = 0;
-    int end = 0;
-    while (start < blocks.size()) {
-      end = BLOCK_DELETION_INCREMENT + start;
-      end = end > blocks.size() ? blocks.size() : end;
-      for (int i=start; i<end; i++) {
-        blockManager.removeBlock(blocks.get(i));
-      }
-      start = end;
+    final int pendingBefore = deleted.numPending();
+    final List<Block> blocks = new ArrayList<Block>();
+    final int cleared = dir.reclaimDeleted(deleted, BLOCK_DELETION_INCREMENT,
+        blocks);
+    for (Block b : blocks) {
+      blockManager.removeBlock(b);
     }
+    pendingReclaimINodes.addAndGet(deleted.numPending() - pendingBefore);
+    return cleared;
+  }
+
+  @Metric({"PendingReclaimINodes",
+      "Number of inodes of deleted subtrees queued for clearing"})
+  public long getPendingReclaimINodes() {
+    return pendingReclaimINodes.get();
+  }
+
+  @Metric({"AuditLogQueueSize",
+      "Number of audit events waiting to be written"})
+  public long getAuditLogQueueSize() {
+    return asyncAuditLogger == null? 0: asyncAuditLogger.getQueueSize();
+  }
+
+  @Metric({"AuditLogDroppedEvents",
+      "Number of audit events dropped because the queue was full"})
+  public long getAuditLogDroppedEvents() {
+    return asyncAuditLogger == null? 0: asyncAuditLogger.getDroppedEvents();
   }
   
   void removePathAndBlocks(String src, List<Block> blocks) {
@@ -2043,11 +2131,35 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
    */
   HdfsFileStatus getFileInfo(String src, boolean resolveLink) 
     throws AccessControlException, UnresolvedLinkException {
+    if (!DFSUtil.isValidName(src)) {
+      throw new InvalidPathException("Invalid file name: " + src);
+    }
+    if (optimisticReads && dir.isReady()) {
+      // Try without the lock first, so as not to queue behind writers.
+      // The read is valid if no writer held the lock while it was done.
+      final long version = writeLockVersion.get();
+      if ((version & 1) == 0) {
+        try {
+          final HdfsFileStatus stat = getFileInfoNoLock(src, resolveLink);
+          if (validateOptimisticRead(version)) {
+            return stat;
+          }
+        } catch (AccessControlException ace) {
+          if (validateOptimisticRead(version)) {
+            throw ace;
+          }
+        } catch (UnresolvedLinkException ule) {
+          if (validateOptimisticRead(version)) {
+            throw ule;
+          }
+        } catch (RuntimeException re) {
+          // the namespace was seen in an inconsistent state
+        }
+      }
+    }
+
     readLock();
     try {
-      if (!DFSUtil.isValidName(src)) {
-        throw new InvalidPathException("Invalid file name: " + src);
-      }
       if (isPermissionEnabled) {
         checkTraverse(src);
       }
@@ -2057,6 +2169,32 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
     }
   }
 
+  /**
+   * Get the file info without holding the lock.
+   * The result must be validated with {@link #validateOptimisticRead(long)}.
+   */
+  private HdfsFileStatus getFileInfoNoLock(String src, boolean resolveLink)
+      throws AccessControlException, UnresolvedLinkException {
+    if (isPermissionEnabled) {
+      FSPermissionChecker pc = new FSPermissionChecker(
+          fsOwner.getShortUserName(), supergroup);
+      if (!pc.isSuper) {
+        pc.checkPermission(src, dir.rootDir, false, null, null, null, null);
+      }
+    }
+    return dir.getFileInfoNoLock(src, resolveLink);
+  }
+
+  /**
+   * @return true if the write lock has not been held since
+   *         writeLockVersion had the given value.
+   */
+  private boolean validateOptimisticRead(long version) {
+    // The CAS orders the reads done before it with the next write lock
+    // acquisition; a plain volatile read would not.
+    return writeLockVersion.compareAndSet(version, version);
+  }
+
   /**
    * Create all the necessary directories
    */
@@ -2394,6 +2532,10 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
         throw new IOException("Block (=" + lastblock + ") not found");
       }
       INodeFile iFile = storedBlock.getINode();
+      if (iFile == null) {
+        throw new IOException("Block (=" + lastblock
+            + ") does not belong to any file; it may have been deleted");
+      }
       if (!iFile.isUnderConstruction() || storedBlock.isComplete()) {
         throw new IOException("Unexpected block (=" + lastblock
                               + ") since the file (=" + iFile.getLocalName()
@@ -2777,6 +2919,13 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
    * @throws IOException if 
    */
   void saveNamespace() throws AccessControlException, IOException {
+    // The deletes being reclaimed must not be counted in the image
+    writeLock();
+    try {
+      dir.settleDeletedSubtrees();
+    } finally {
+      writeUnlock();
+    }
     readLock();
     try {
       checkSuperuserPrivilege();
@@ -3402,7 +3551,7 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
     long numUCBlocks = 0;
     readLock();
     try {
-      for (Lease lease : leaseManager.getSortedLeases()) {
+      for (Lease lease : leaseManager.getLeases()) {
         for (String path : lease.getPaths()) {
           INode node;
           try {
@@ -3927,7 +4076,7 @@ public class FSNamesystem implements Namesystem, FSClusterStats,
     synchronized (leaseManager) {
       out.writeInt(leaseManager.countPath()); // write the size
 
-      for (Lease lease : leaseManager.getSortedLeases()) {
+      for (Lease lease : leaseManager.getLeases()) {
         for(String path : lease.getPaths()) {
           // verify that path exists in namespace
           INode node;
@@ -131,6 +131,22 @@ public abstract class INode implements Comparable<byte[]>, FSInodeInfo {
     return name.length == 0;
   }
 
+  /**
+   * Check whether this inode has been deleted, i.e. the root is no longer
+   * reached from it. A deleted subtree is cleared in batches, and the
+   * inodes not cleared yet are only found deleted this way.
+   */
+  public boolean isDeleted() {
+    INode inode = this;
+    while (!inode.isRoot()) {
+      inode = inode.parent;
+      if (inode == null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /** Set the {@link PermissionStatus} */
   protected void setPermissionStatus(PermissionStatus ps) {
     setUser(ps.getUserName());
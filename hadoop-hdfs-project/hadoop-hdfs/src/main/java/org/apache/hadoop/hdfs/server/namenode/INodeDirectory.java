@@ -27,12 +27,21 @@ import org.apache.hadoop.fs.permission.PermissionStatus;
 import org.apache.hadoop.hdfs.DFSUtil;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.protocol.UnresolvedPathException;
+import org.apache.hadoop.hdfs.util.SegmentedList;
 
 /**
  * Directory INode class.
  */
 class INodeDirectory extends INode {
   protected static final int DEFAULT_FILES_PER_DIRECTORY = 5;
+  /**
+   * Directories with more children than this keep them in a
+   * {@link SegmentedList}, so that adding or removing a child does not
+   * shift all the children following it.
+   */
+  static final int LARGE_DIRECTORY_THRESHOLD = 4096;
+  /** Segment size of the children list of a large directory. */
+  static final int LARGE_DIRECTORY_SEGMENT_CAPACITY = 1024;
   final static String ROOT_NAME = "";
 
   private List<INode> children;
@@ -60,6 +69,10 @@ class INodeDirectory extends INode {
   INodeDirectory(INodeDirectory other) {
     super(other);
     this.children = other.getChildren();
+    // the copy replaces the other as the parent of the children
+    for (INode child : children) {
+      child.parent = this;
+    }
   }
   
   /**
@@ -273,6 +286,11 @@ class INodeDirectory extends INode {
     int low = Collections.binarySearch(children, node.name);
     if(low >= 0)
       return null;
+    if (children.size() >= LARGE_DIRECTORY_THRESHOLD
+        && !(children instanceof SegmentedList)) {
+      children = new SegmentedList<INode>(children,
+          LARGE_DIRECTORY_SEGMENT_CAPACITY);
+    }
     node.parent = this;
     children.add(-low - 1, node);
     // update modification time of the parent directory
@@ -284,6 +302,24 @@ class INodeDirectory extends INode {
     return node;
   }
 
+  /**
+   * Allocate the children list with exactly the given capacity.
+   * Used when the number of children is known in advance, e.g. while
+   * loading the image, to avoid the slack and the repeated copying of
+   * a list grown one child at a time. Large directories get a
+   * {@link SegmentedList} right away.
+   * Has no effect if the directory already has children.
+   * 
+   * @param capacity expected number of children
+   */
+  void initChildren(int capacity) {
+    if (children == null) {
+      children = capacity > LARGE_DIRECTORY_THRESHOLD
+          ? new SegmentedList<INode>(LARGE_DIRECTORY_SEGMENT_CAPACITY)
+          : new ArrayList<INode>(capacity);
+    }
+  }
+
   /**
    * Add new INode to the file tree.
    * Find the parent and insert 
@@ -435,4 +471,17 @@ class INodeDirectory extends INode {
     children = null;
     return total;
   }
+
+  /**
+   * Clear this directory like {@link #collectSubtreeBlocksAndClear(List)},
+   * but without recursing into the children: they are added to the given
+   * list instead, to be cleared by the caller.
+   */
+  void clearAndCollectChildren(List<INode> v) {
+    if (children != null) {
+      v.addAll(children);
+    }
+    parent = null;
+    children = null;
+  }
 }
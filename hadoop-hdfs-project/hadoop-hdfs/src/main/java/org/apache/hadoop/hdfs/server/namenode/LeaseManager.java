@@ -20,11 +20,9 @@ package org.apache.hadoop.hdfs.server.namenode;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
-import java.util.SortedSet;
-import java.util.TreeMap;
 import java.util.TreeSet;
 
 import org.apache.commons.logging.Log;
@@ -72,15 +70,19 @@ public class LeaseManager {
   // Used for handling lock-leases
   // Mapping: leaseHolder -> Lease
   //
-  private SortedMap<String, Lease> leases = new TreeMap<String, Lease>();
-  // Set of: Lease
-  private SortedSet<Lease> sortedLeases = new TreeSet<Lease>();
+  // The map iterates over the leases in the order they were last renewed,
+  // which is also the order they expire in since all the leases have the
+  // same limits.  A lease is moved to the end by removing and putting it
+  // back when it is renewed.
+  //
+  private final LinkedHashMap<String, Lease> leases
+      = new LinkedHashMap<String, Lease>();
 
   // 
-  // Map path names to leases. It is protected by the sortedLeases lock.
-  // The map stores pathnames in lexicographical order.
+  // Map path names to leases.
+  // The index finds the paths under a directory without scanning the others.
   //
-  private SortedMap<String, Lease> sortedLeasesByPath = new TreeMap<String, Lease>();
+  private final PathIndex<Lease> leasesByPath = new PathIndex<Lease>();
 
   LeaseManager(FSNamesystem fsnamesystem) {this.fsnamesystem = fsnamesystem;}
 
@@ -88,22 +90,19 @@ public class LeaseManager {
     return leases.get(holder);
   }
   
-  SortedSet<Lease> getSortedLeases() {return sortedLeases;}
+  /** @return the leases, from the least to the most recently renewed */
+  Collection<Lease> getLeases() {return leases.values();}
 
   /** @return the lease containing src */
-  public Lease getLeaseByPath(String src) {return sortedLeasesByPath.get(src);}
+  public synchronized Lease getLeaseByPath(String src) {
+    return leasesByPath.get(src);
+  }
 
   /** @return the number of leases currently in the system */
-  public synchronized int countLease() {return sortedLeases.size();}
+  public synchronized int countLease() {return leases.size();}
 
   /** @return the number of paths contained in all leases */
-  synchronized int countPath() {
-    int count = 0;
-    for(Lease lease : sortedLeases) {
-      count += lease.getPaths().size();
-    }
-    return count;
-  }
+  synchronized int countPath() {return leasesByPath.size();}
   
   /**
    * Adds (or re-adds) the lease for the specified file.
@@ -113,11 +112,10 @@ public class LeaseManager {
     if (lease == null) {
       lease = new Lease(holder);
       leases.put(holder, lease);
-      sortedLeases.add(lease);
     } else {
       renewLease(lease);
     }
-    sortedLeasesByPath.put(src, lease);
+    leasesByPath.put(src, lease);
     lease.paths.add(src);
     return lease;
   }
@@ -126,15 +124,14 @@ public class LeaseManager {
    * Remove the specified lease and src.
    */
   synchronized void removeLease(Lease lease, String src) {
-    sortedLeasesByPath.remove(src);
+    leasesByPath.remove(src);
     if (!lease.removePath(src)) {
       LOG.error(src + " not found in lease.paths (=" + lease.paths + ")");
     }
 
     if (!lease.hasPath()) {
-      leases.remove(lease.holder);
-      if (!sortedLeases.remove(lease)) {
-        LOG.error(lease + " not found in sortedLeases");
+      if (leases.remove(lease.holder) == null) {
+        LOG.error(lease + " not found in leases");
       }
     }
   }
@@ -184,9 +181,9 @@ public class LeaseManager {
   }
   synchronized void renewLease(Lease lease) {
     if (lease != null) {
-      sortedLeases.remove(lease);
+      leases.remove(lease.holder);
       lease.renew();
-      sortedLeases.add(lease);
+      leases.put(lease.holder, lease);
     }
   }
 
@@ -308,7 +305,7 @@ public class LeaseManager {
     }
 
     final int len = overwrite.length();
-    for(Map.Entry<String, Lease> entry : findLeaseWithPrefixPath(src, sortedLeasesByPath)) {
+    for(Map.Entry<String, Lease> entry : findLeaseWithPrefixPath(src)) {
       final String oldpath = entry.getKey();
       final Lease lease = entry.getValue();
       //overwrite must be a prefix of oldpath
@@ -317,13 +314,13 @@ public class LeaseManager {
         LOG.debug("changeLease: replacing " + oldpath + " with " + newpath);
       }
       lease.replacePath(oldpath, newpath);
-      sortedLeasesByPath.remove(oldpath);
-      sortedLeasesByPath.put(newpath, lease);
+      leasesByPath.remove(oldpath);
+      leasesByPath.put(newpath, lease);
     }
   }
 
   synchronized void removeLeaseWithPrefixPath(String prefix) {
-    for(Map.Entry<String, Lease> entry : findLeaseWithPrefixPath(prefix, sortedLeasesByPath)) {
+    for(Map.Entry<String, Lease> entry : findLeaseWithPrefixPath(prefix)) {
       if (LOG.isDebugEnabled()) {
         LOG.debug(LeaseManager.class.getSimpleName()
             + ".removeLeaseWithPrefixPath: entry=" + entry);
@@ -332,25 +329,12 @@ public class LeaseManager {
     }
   }
 
-  static private List<Map.Entry<String, Lease>> findLeaseWithPrefixPath(
-      String prefix, SortedMap<String, Lease> path2lease) {
+  private List<Map.Entry<String, Lease>> findLeaseWithPrefixPath(
+      String prefix) {
     if (LOG.isDebugEnabled()) {
       LOG.debug(LeaseManager.class.getSimpleName() + ".findLease: prefix=" + prefix);
     }
-
-    List<Map.Entry<String, Lease>> entries = new ArrayList<Map.Entry<String, Lease>>();
-    final int srclen = prefix.length();
-
-    for(Map.Entry<String, Lease> entry : path2lease.tailMap(prefix).entrySet()) {
-      final String p = entry.getKey();
-      if (!p.startsWith(prefix)) {
-        return entries;
-      }
-      if (p.length() == srclen || p.charAt(srclen) == Path.SEPARATOR_CHAR) {
-        entries.add(entry);
-      }
-    }
-    return entries;
+    return leasesByPath.getSubtree(prefix);
   }
 
   public void setLeasePeriod(long softLimit, long hardLimit) {
@@ -392,8 +376,8 @@ public class LeaseManager {
   /** Check the leases beginning from the oldest. */
   private synchronized void checkLeases() {
     assert fsnamesystem.hasWriteLock();
-    for(; sortedLeases.size() > 0; ) {
-      final Lease oldest = sortedLeases.first();
+    for(; !leases.isEmpty(); ) {
+      final Lease oldest = leases.values().iterator().next();
       if (!oldest.expiredHardLimit()) {
         return;
       }
@@ -433,8 +417,7 @@ public class LeaseManager {
   public synchronized String toString() {
     return getClass().getSimpleName() + "= {"
         + "\n leases=" + leases
-        + "\n sortedLeases=" + sortedLeases
-        + "\n sortedLeasesByPath=" + sortedLeasesByPath
+        + "\n leasesByPath=" + leasesByPath.getSubtree(Path.SEPARATOR)
         + "\n}";
   }
 }
@@ -0,0 +1,208 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+/**
+ * A dictionary of the names used in {@link INode}, so that the inodes
+ * with the same frequent name share one byte[] object.
+ *
+ * Like {@link NameCache}, only the names used more than a threshold number
+ * of times are added to the dictionary: an entry takes more heap than a
+ * short name, so adding the names used once would increase the heap used.
+ * Unlike {@link NameCache}, the dictionary is used for the whole life of
+ * the namenode, including the names created after the image is loaded.
+ * The uses of the names not in the dictionary are counted approximately,
+ * in a fixed number of counters indexed by the hash of the names, which
+ * are halved periodically so that the names used rarely over a long time
+ * are not added.
+ *
+ * The dictionary refers to the names weakly: a name is dropped from the
+ * dictionary once no inode uses it any more, so that the dictionary does
+ * not grow with the names of deleted files.
+ *
+ * The dictionary is divided into segments by the hash of the names,
+ * each with its own lock, so that it can be used concurrently.
+ *
+ * This class is thread safe.
+ */
+class NameDictionary {
+  /** The number of segments, a power of two. */
+  private static final int NUM_SEGMENTS = 64;
+  private static final int SEGMENT_SHIFT =
+      Integer.SIZE - Integer.numberOfTrailingZeros(NUM_SEGMENTS);
+  /** The number of use counters of a segment, 2^COUNTER_BITS. */
+  private static final int COUNTER_BITS = 14;
+  /** The counters of a segment are halved after this many counted uses. */
+  private static final int COUNTER_HALVING_PERIOD = 4 << COUNTER_BITS;
+
+  /** A weak reference to a name, chained in a hash table bucket. */
+  private static class Entry extends WeakReference<byte[]> {
+    private final int hash;
+    private Entry next;
+
+    Entry(byte[] name, int hash, Entry next, ReferenceQueue<byte[]> queue) {
+      super(name, queue);
+      this.hash = hash;
+      this.next = next;
+    }
+  }
+
+  /** A hash table of the names, which expunges the collected names. */
+  private static class Segment {
+    private final ReferenceQueue<byte[]> queue = new ReferenceQueue<byte[]>();
+    private Entry[] table = new Entry[16];
+    private int size = 0;
+    private long lookups = 0;
+    /** The approximate use counts of the names not in the table. */
+    private final byte[] counters = new byte[1 << COUNTER_BITS];
+    private int counted = 0;
+
+    synchronized byte[] intern(byte[] name, int hash, int threshold) {
+      expunge();
+      for(Entry e = table[hash & (table.length - 1)]; e != null; e = e.next) {
+        if (e.hash == hash) {
+          final byte[] existing = e.get();
+          if (existing != null && Arrays.equals(existing, name)) {
+            lookups++;
+            return existing;
+          }
+        }
+      }
+
+      // Index the counters with other bits of the hash than the table
+      final int c = (hash * 0x9E3779B9) >>> (Integer.SIZE - COUNTER_BITS);
+      if (++counted == COUNTER_HALVING_PERIOD) {
+        for(int j = 0; j < counters.length; j++) {
+          counters[j] >>= 1;
+        }
+        counted = 0;
+      }
+      if (++counters[c] < threshold) {
+        return name;
+      }
+      counters[c] = 0;
+
+      final int i = hash & (table.length - 1);
+      table[i] = new Entry(name, hash, table[i], queue);
+      if (++size > table.length - (table.length >> 2)) {
+        resize();
+      }
+      return name;
+    }
+
+    synchronized int size() {
+      expunge();
+      return size;
+    }
+
+    synchronized long getLookupCount() {
+      return lookups;
+    }
+
+    /** Remove the entries of the names which have been collected. */
+    private void expunge() {
+      for(Reference<? extends byte[]> r; (r = queue.poll()) != null; ) {
+        final Entry x = (Entry)r;
+        final int i = x.hash & (table.length - 1);
+        Entry prev = null;
+        for(Entry e = table[i]; e != null; prev = e, e = e.next) {
+          if (e == x) {
+            if (prev == null) {
+              table[i] = e.next;
+            } else {
+              prev.next = e.next;
+            }
+            size--;
+            break;
+          }
+        }
+      }
+    }
+
+    /** Double the size of the table. */
+    private void resize() {
+      final Entry[] newTable = new Entry[table.length << 1];
+      for(Entry e : table) {
+        for(Entry next; e != null; e = next) {
+          next = e.next;
+          final int i = e.hash & (newTable.length - 1);
+          e.next = newTable[i];
+          newTable[i] = e;
+        }
+      }
+      table = newTable;
+    }
+  }
+
+  private final Segment[] segments = new Segment[NUM_SEGMENTS];
+  /** The number of uses of a name for it to be added. */
+  private final int threshold;
+
+  /**
+   * @param threshold the number of uses of a name for it to be added, at
+   *          most {@link Byte#MAX_VALUE}; 1 to add all the names
+   */
+  NameDictionary(int threshold) {
+    this.threshold = Math.max(1, Math.min(threshold, Byte.MAX_VALUE));
+    for(int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment();
+    }
+  }
+
+  private static int hash(byte[] name) {
+    final int h = Arrays.hashCode(name);
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Count a use of a name, and add it to the dictionary once it has been
+   * used often enough, unless an equal name is already there.
+   * @return the name in the dictionary equal to the given name; the given
+   *         name if there is none.
+   */
+  byte[] intern(byte[] name) {
+    if (name == null) {
+      return null;
+    }
+    final int hash = hash(name);
+    return segments[hash >>> SEGMENT_SHIFT].intern(name, hash, threshold);
+  }
+
+  /** @return the number of names in the dictionary. */
+  int size() {
+    int size = 0;
+    for(Segment s : segments) {
+      size += s.size();
+    }
+    return size;
+  }
+
+  /** @return the number of names found in the dictionary. */
+  long getLookupCount() {
+    long lookups = 0;
+    for(Segment s : segments) {
+      lookups += s.getLookupCount();
+    }
+    return lookups;
+  }
+}
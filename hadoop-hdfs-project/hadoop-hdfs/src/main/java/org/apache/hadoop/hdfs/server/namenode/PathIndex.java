@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A map from absolute paths to values, kept as a tree of path components,
+ * so that the entries under a directory are found without looking at
+ * the other entries.
+ *
+ * Getting, putting and removing a path take time proportional to its
+ * depth. Finding the entries under a path additionally takes time
+ * proportional to the number of those entries.
+ *
+ * This class does not support null values.
+ *
+ * This class is not thread safe.
+ *
+ * @param <V> Value type
+ */
+class PathIndex<V> {
+  private static class Node<V> {
+    /** The children by name, null if there is none. */
+    private HashMap<String, Node<V>> children;
+    /** The value of the path ending at this node, or null. */
+    private V value;
+    /** The number of values in this subtree. */
+    private int size;
+
+    Node<V> getChild(String name) {
+      return children == null? null: children.get(name);
+    }
+
+    Node<V> getOrAddChild(String name) {
+      if (children == null) {
+        children = new HashMap<String, Node<V>>(4);
+      }
+      Node<V> child = children.get(name);
+      if (child == null) {
+        child = new Node<V>();
+        children.put(name, child);
+      }
+      return child;
+    }
+
+    void removeChild(String name) {
+      children.remove(name);
+      if (children.isEmpty()) {
+        children = null;
+      }
+    }
+  }
+
+  private final Node<V> root = new Node<V>();
+
+  /**
+   * @return the names of the path components,
+   *         where the first one is the empty name of the root.
+   */
+  private static String[] getNames(String path) {
+    final String[] names = INode.getPathNames(path);
+    return names.length == 0? new String[]{""}: names;
+  }
+
+  /** @return the nodes along the path, null where there is none. */
+  private Node<V>[] getNodes(String[] names, boolean add) {
+    @SuppressWarnings("unchecked")
+    final Node<V>[] nodes = new Node[names.length];
+    nodes[0] = root;
+    for(int i = 1; i < names.length; i++) {
+      nodes[i] = add? nodes[i - 1].getOrAddChild(names[i])
+          : nodes[i - 1].getChild(names[i]);
+      if (nodes[i] == null) {
+        break;
+      }
+    }
+    return nodes;
+  }
+
+  /** @return the number of paths with a value. */
+  int size() {
+    return root.size;
+  }
+
+  /** @return the value of the path, or null if there is none. */
+  V get(String path) {
+    final Node<V>[] nodes = getNodes(getNames(path), false);
+    final Node<V> last = nodes[nodes.length - 1];
+    return last == null? null: last.value;
+  }
+
+  /**
+   * Set the value of the path.
+   * @return the previous value of the path, or null if there was none.
+   */
+  V put(String path, V value) {
+    if (value == null) {
+      throw new NullPointerException("Null value is not supported.");
+    }
+    final Node<V>[] nodes = getNodes(getNames(path), true);
+    final Node<V> last = nodes[nodes.length - 1];
+    final V previous = last.value;
+    last.value = value;
+    if (previous == null) {
+      for(Node<V> n : nodes) {
+        n.size++;
+      }
+    }
+    return previous;
+  }
+
+  /**
+   * Remove the value of the path.
+   * @return the removed value, or null if there was none.
+   */
+  V remove(String path) {
+    final String[] names = getNames(path);
+    final Node<V>[] nodes = getNodes(names, false);
+    final Node<V> last = nodes[nodes.length - 1];
+    if (last == null || last.value == null) {
+      return null;
+    }
+    final V removed = last.value;
+    last.value = null;
+    for(int i = nodes.length - 1; i >= 0; i--) {
+      if (--nodes[i].size == 0 && i > 0) {
+        nodes[i - 1].removeChild(names[i]);
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * @return the entries of the path and of the paths under it,
+   *         in no particular order.
+   */
+  List<Map.Entry<String, V>> getSubtree(String path) {
+    final List<Map.Entry<String, V>> entries =
+        new ArrayList<Map.Entry<String, V>>();
+    final Node<V>[] nodes = getNodes(getNames(path), false);
+    final Node<V> last = nodes[nodes.length - 1];
+    if (last != null) {
+      final String prefix = path.length() > 1
+          && path.charAt(path.length() - 1) == Path.SEPARATOR_CHAR?
+          path.substring(0, path.length() - 1): path;
+      addEntries(prefix, last, entries);
+    }
+    return entries;
+  }
+
+  private static <V> void addEntries(String path, Node<V> node,
+      List<Map.Entry<String, V>> entries) {
+    if (node.value != null) {
+      entries.add(new AbstractMap.SimpleImmutableEntry<String, V>(
+          path, node.value));
+    }
+    if (node.children != null) {
+      final String parent = path.equals(Path.SEPARATOR)? "": path;
+      for(Map.Entry<String, Node<V>> e : node.children.entrySet()) {
+        addEntries(parent + Path.SEPARATOR_CHAR + e.getKey(), e.getValue(),
+            entries);
+      }
+    }
+  }
+}
@@ -0,0 +1,194 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.hadoop.util.Daemon;
+
+/**
+ * An {@link EditLogInputStream} which reads and decodes the ops of
+ * another stream in a background thread, ahead of the thread applying
+ * them to the namespace.
+ *
+ * The ops returned by {@link #readOp()} are never re-used, and
+ * {@link #getPosition()} returns the position of the underlying stream
+ * just after the last op returned.
+ * An error reading the underlying stream is rethrown by readOp()
+ * once the ops read before it have been returned.
+ */
+class PrefetchingEditLogInputStream extends EditLogInputStream {
+  /** Default number of ops which may be read ahead. */
+  static final int DEFAULT_QUEUE_SIZE = 1024;
+
+  /** An op read ahead, or the end of the underlying stream. */
+  private static class Entry {
+    /** The op read, or null at the end of the stream. */
+    final FSEditLogOp op;
+    /** Stream position after the op. */
+    final long position;
+    /** Error which ended the stream, if any. */
+    final Throwable error;
+
+    Entry(FSEditLogOp op, long position, Throwable error) {
+      this.op = op;
+      this.position = position;
+      this.error = error;
+    }
+  }
+
+  private final EditLogInputStream in;
+  private final BlockingQueue<Entry> queue;
+  private final Daemon prefetcher;
+  private volatile boolean closed = false;
+
+  /** Position after the last op returned. */
+  private long position;
+  /** The entry which ended the stream, once it has been reached. */
+  private Entry end = null;
+
+  PrefetchingEditLogInputStream(EditLogInputStream in) {
+    this(in, DEFAULT_QUEUE_SIZE);
+  }
+
+  PrefetchingEditLogInputStream(EditLogInputStream in, int queueSize) {
+    this.in = in;
+    this.position = in.getPosition();
+    this.queue = new ArrayBlockingQueue<Entry>(queueSize);
+    this.prefetcher = new Daemon(new Runnable() {
+      @Override
+      public void run() {
+        prefetch();
+      }
+
+      @Override
+      public String toString() {
+        return "Edit log prefetcher for " + PrefetchingEditLogInputStream.this.in;
+      }
+    });
+    prefetcher.start();
+  }
+
+  private void prefetch() {
+    try {
+      while (!closed) {
+        FSEditLogOp op;
+        try {
+          op = in.readOp();
+        } catch (Throwable t) {
+          queue.put(new Entry(null, in.getPosition(), t));
+          return;
+        }
+        if (op == null) {
+          queue.put(new Entry(null, in.getPosition(), null));
+          return;
+        }
+        FSEditLogOp.detachInstance(op);
+        queue.put(new Entry(op, in.getPosition(), null));
+      }
+    } catch (InterruptedException ie) {
+      // closed
+    }
+  }
+
+  @Override
+  public FSEditLogOp readOp() throws IOException {
+    if (end == null) {
+      final Entry e;
+      try {
+        e = queue.take();
+      } catch (InterruptedException ie) {
+        throw (IOException)new InterruptedIOException(
+            "Interrupted while waiting for edits from " + in).initCause(ie);
+      }
+      position = e.position;
+      if (e.op != null) {
+        return e.op;
+      }
+      end = e;
+    }
+
+    final Throwable t = end.error;
+    if (t == null) {
+      return null;
+    } else if (t instanceof IOException) {
+      throw (IOException)t;
+    } else if (t instanceof RuntimeException) {
+      throw (RuntimeException)t;
+    } else if (t instanceof Error) {
+      throw (Error)t;
+    }
+    throw new IOException("Failed to read edits from " + in, t);
+  }
+
+  @Override
+  public long getPosition() {
+    return position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    prefetcher.interrupt();
+    try {
+      prefetcher.join();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    } finally {
+      in.close();
+    }
+  }
+
+  @Override
+  public long getFirstTxId() throws IOException {
+    return in.getFirstTxId();
+  }
+
+  @Override
+  public long getLastTxId() throws IOException {
+    return in.getLastTxId();
+  }
+
+  @Override
+  public int getVersion() throws IOException {
+    return in.getVersion();
+  }
+
+  @Override
+  public long length() throws IOException {
+    return in.length();
+  }
+
+  @Override // JournalStream
+  public String getName() {
+    return in.getName();
+  }
+
+  @Override // JournalStream
+  public JournalType getType() {
+    return in.getType();
+  }
+
+  @Override
+  public String toString() {
+    return in.toString();
+  }
+}
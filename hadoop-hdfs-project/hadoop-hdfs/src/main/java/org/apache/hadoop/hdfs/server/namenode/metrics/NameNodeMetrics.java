@@ -60,6 +60,11 @@ public class NameNodeMetrics {
   @Metric("Journal transactions batched in sync")
   MutableCounterLong transactionsBatchedInSync;
   @Metric("Block report") MutableRate blockReport;
+  @Metric("Namesystem lock hold time of block reports")
+  MutableRate blockReportLockHold;
+  @Metric("Replication work computation") MutableRate replicationWork;
+  @Metric("Blocks scheduled for replication")
+  MutableCounterLong blocksScheduledForReplication;
 
   @Metric("Duration in SafeMode at startup") MutableGaugeInt safeModeTime;
   @Metric("Time loading FS Image at startup") MutableGaugeInt fsImageLoadTime;
@@ -156,6 +161,15 @@ public class NameNodeMetrics {
     blockReport.add(latency);
   }
 
+  public void addBlockReportLockHold(long time) {
+    blockReportLockHold.add(time);
+  }
+
+  public void addReplicationWork(int scheduledBlocks, long time) {
+    blocksScheduledForReplication.incr(scheduledBlocks);
+    replicationWork.add(time);
+  }
+
   public void setSafeModeTime(long elapsed) {
     safeModeTime.set((int) elapsed);
   }
@@ -0,0 +1,210 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An InputStream which reads the underlying stream ahead of the caller
+ * in a background thread.
+ *
+ * The background thread fills a fixed number of buffers, which are
+ * handed to the reading thread in order and recycled once consumed.
+ * Whatever work the underlying stream does per byte, such as disk I/O,
+ * checksumming or decompression, thus proceeds in parallel with
+ * the caller's processing of the data.
+ *
+ * An exception thrown by the underlying stream is rethrown to the caller
+ * after all the data read before it has been consumed.
+ *
+ * Only one thread may read from this stream.
+ */
+@InterfaceAudience.Private
+@InterfaceStability.Evolving
+public class PrefetchingInputStream extends InputStream {
+  /** Marks the end of the underlying stream in the queue. */
+  private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+  private final InputStream in;
+  private final BlockingQueue<ByteBuffer> filled;
+  private final BlockingQueue<byte[]> free;
+  private final Thread prefetcher;
+
+  /** Set by the prefetcher before it queues {@link #EOF} on failure. */
+  private volatile Throwable error = null;
+  private volatile boolean closed = false;
+  /** The buffer being consumed by the reader. */
+  private ByteBuffer current = null;
+
+  /**
+   * Start reading the given stream ahead.
+   *
+   * @param in the stream to read
+   * @param bufferSize size of each buffer
+   * @param numBuffers number of buffers which may be read ahead
+   * @param name name of the background thread
+   */
+  public PrefetchingInputStream(InputStream in, int bufferSize,
+      int numBuffers, String name) {
+    Preconditions.checkArgument(bufferSize > 0,
+        "Non-positive buffer size: ", bufferSize);
+    Preconditions.checkArgument(numBuffers > 0,
+        "Non-positive number of buffers: ", numBuffers);
+    this.in = in;
+    this.filled = new ArrayBlockingQueue<ByteBuffer>(numBuffers + 1);
+    this.free = new ArrayBlockingQueue<byte[]>(numBuffers);
+    for (int i = 0; i < numBuffers; i++) {
+      free.add(new byte[bufferSize]);
+    }
+    this.prefetcher = new Thread(new Prefetcher(), name);
+    prefetcher.setDaemon(true);
+    prefetcher.start();
+  }
+
+  /**
+   * Reads the underlying stream into free buffers until it is exhausted,
+   * it fails, or this stream is closed.
+   */
+  private class Prefetcher implements Runnable {
+    @Override
+    public void run() {
+      try {
+        while (!closed) {
+          final byte[] buf = free.take();
+          int n = 0;
+          int r = 0;
+          Throwable failure = null;
+          try {
+            while (n < buf.length
+                && (r = in.read(buf, n, buf.length - n)) >= 0) {
+              n += r;
+            }
+          } catch (Throwable t) {
+            failure = t;
+          }
+          // deliver the data read before a failure first
+          if (n > 0) {
+            filled.put(ByteBuffer.wrap(buf, 0, n));
+          }
+          if (failure != null) {
+            error = failure;
+            filled.put(EOF);
+            return;
+          }
+          if (r < 0) {
+            filled.put(EOF);
+            return;
+          }
+        }
+      } catch (InterruptedException ie) {
+        // closed by the reader
+      }
+    }
+  }
+
+  /**
+   * Make sure {@link #current} has remaining data.
+   * @return false if the end of the stream has been reached.
+   */
+  private boolean nextBuffer() throws IOException {
+    if (current == EOF) {
+      checkError();
+      return false;
+    }
+    if (current != null) {
+      if (current.hasRemaining()) {
+        return true;
+      }
+      free.add(current.array());
+    }
+    try {
+      current = filled.take();
+    } catch (InterruptedException ie) {
+      current = null;
+      throw (IOException)new InterruptedIOException(
+          "Interrupted while waiting for data").initCause(ie);
+    }
+    return nextBuffer();
+  }
+
+  private void checkError() throws IOException {
+    final Throwable t = error;
+    if (t == null) {
+      return;
+    }
+    if (t instanceof IOException) {
+      throw (IOException)t;
+    }
+    throw new IOException("Failed to read ahead", t);
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!nextBuffer()) {
+      return -1;
+    }
+    return current.get() & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!nextBuffer()) {
+      return -1;
+    }
+    final int n = Math.min(len, current.remaining());
+    current.get(b, off, n);
+    return n;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return current == null ? 0 : current.remaining();
+  }
+
+  /**
+   * Stop the background thread and close the underlying stream.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    prefetcher.interrupt();
+    try {
+      prefetcher.join();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    } finally {
+      in.close();
+    }
+  }
+}
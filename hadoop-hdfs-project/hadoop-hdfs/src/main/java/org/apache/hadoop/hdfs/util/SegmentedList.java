@@ -0,0 +1,243 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.RandomAccess;
+
+import org.apache.hadoop.HadoopIllegalArgumentException;
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * A {@link java.util.List} for large numbers of elements,
+ * which stores the elements in a sequence of bounded segments.
+ *
+ * Inserting or removing an element in the middle of the list
+ * only shifts the elements of one segment and the start offsets
+ * of the following segments, rather than all the following elements
+ * as {@link ArrayList} does.
+ * A positional lookup is a binary search over the segment offsets.
+ * With segments of size S, inserts and removals take O(S + n/S) time
+ * and lookups take O(log(n/S)) time.
+ *
+ * A full segment is split in two when an element is inserted into it,
+ * except that appending to a full last segment starts a new segment,
+ * so that a list built in order has no unused slots.
+ * Empty segments are removed.
+ *
+ * This class is not thread safe.
+ *
+ * @param <E> Element type
+ */
+@InterfaceAudience.Private
+public class SegmentedList<E> extends AbstractList<E> implements RandomAccess {
+  /** The segments holding the elements, in list order. */
+  private final ArrayList<ArrayList<E>> segments;
+  /** offsets[i] is the list index of the first element of segment i. */
+  private int[] offsets;
+  /** Maximum number of elements in a segment. */
+  private final int segmentCapacity;
+  /** The number of elements in the list. */
+  private int size = 0;
+
+  /**
+   * @param segmentCapacity Maximum number of elements in a segment.
+   */
+  public SegmentedList(int segmentCapacity) {
+    if (segmentCapacity < 2) {
+      throw new HadoopIllegalArgumentException(
+          "segmentCapacity = " + segmentCapacity + " < 2");
+    }
+    this.segmentCapacity = segmentCapacity;
+    this.segments = new ArrayList<ArrayList<E>>();
+    this.offsets = new int[4];
+  }
+
+  /**
+   * Create a list containing the elements of the given collection,
+   * in the order they are returned by its iterator.
+   * The segments are filled to half of their capacity,
+   * leaving room for insertions.
+   *
+   * @param c the elements of the list
+   * @param segmentCapacity Maximum number of elements in a segment.
+   */
+  public SegmentedList(Collection<? extends E> c, int segmentCapacity) {
+    this(segmentCapacity);
+    final int fill = Math.max(1, segmentCapacity / 2);
+    ArrayList<E> segment = null;
+    for(Iterator<? extends E> i = c.iterator(); i.hasNext(); ) {
+      if (segment == null || segment.size() == fill) {
+        segment = new ArrayList<E>(segmentCapacity);
+        insertSegment(segments.size(), segment, size);
+      }
+      segment.add(i.next());
+      size++;
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public E get(int index) {
+    checkIndex(index);
+    final int s = segmentOf(index);
+    return segments.get(s).get(index - offsets[s]);
+  }
+
+  @Override
+  public E set(int index, E element) {
+    checkIndex(index);
+    final int s = segmentOf(index);
+    return segments.get(s).set(index - offsets[s], element);
+  }
+
+  @Override
+  public void add(int index, E element) {
+    if (index < 0 || index > size) {
+      throw new IndexOutOfBoundsException("index=" + index + ", size=" + size);
+    }
+    modCount++;
+    final int numSegments = segments.size();
+    if (numSegments == 0) {
+      insertSegment(0, newSegment(element), 0);
+      size++;
+      return;
+    }
+    if (index == size) {
+      final ArrayList<E> last = segments.get(numSegments - 1);
+      if (last.size() >= segmentCapacity) {
+        // append: start a new segment instead of splitting the last one
+        insertSegment(numSegments, newSegment(element), size);
+      } else {
+        last.add(element);
+      }
+      size++;
+      return;
+    }
+
+    final int s = segmentOf(index);
+    final ArrayList<E> segment = segments.get(s);
+    segment.add(index - offsets[s], element);
+    shiftOffsets(s + 1, 1);
+    size++;
+    if (segment.size() > segmentCapacity) {
+      splitSegment(s);
+    }
+  }
+
+  @Override
+  public E remove(int index) {
+    checkIndex(index);
+    modCount++;
+    final int s = segmentOf(index);
+    final ArrayList<E> segment = segments.get(s);
+    final E removed = segment.remove(index - offsets[s]);
+    shiftOffsets(s + 1, -1);
+    size--;
+    if (segment.isEmpty()) {
+      removeSegment(s);
+    }
+    return removed;
+  }
+
+  @Override
+  public void clear() {
+    modCount++;
+    segments.clear();
+    offsets = new int[4];
+    size = 0;
+  }
+
+  /** @return the number of segments, for testing. */
+  int getNumSegments() {
+    return segments.size();
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("index=" + index + ", size=" + size);
+    }
+  }
+
+  private ArrayList<E> newSegment(E element) {
+    final ArrayList<E> segment = new ArrayList<E>(segmentCapacity);
+    segment.add(element);
+    return segment;
+  }
+
+  /**
+   * @return the index of the segment containing the given list index,
+   *         i.e. the last segment whose offset is not greater than it.
+   */
+  private int segmentOf(int index) {
+    int low = 0;
+    int high = segments.size() - 1;
+    while (low < high) {
+      final int mid = (low + high + 1) >>> 1;
+      if (offsets[mid] <= index) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  /** Add delta to the offsets of the segments from the given one on. */
+  private void shiftOffsets(int from, int delta) {
+    final int numSegments = segments.size();
+    for(int i = from; i < numSegments; i++) {
+      offsets[i] += delta;
+    }
+  }
+
+  /** Insert a segment starting at the given list index. */
+  private void insertSegment(int s, ArrayList<E> segment, int offset) {
+    final int numSegments = segments.size();
+    if (numSegments == offsets.length) {
+      offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+    }
+    System.arraycopy(offsets, s, offsets, s + 1, numSegments - s);
+    offsets[s] = offset;
+    segments.add(s, segment);
+  }
+
+  private void removeSegment(int s) {
+    final int numSegments = segments.size();
+    System.arraycopy(offsets, s + 1, offsets, s, numSegments - s - 1);
+    segments.remove(s);
+  }
+
+  /** Move the upper half of the given segment to a new segment. */
+  private void splitSegment(int s) {
+    final ArrayList<E> segment = segments.get(s);
+    final int half = segment.size() / 2;
+    final ArrayList<E> upper = new ArrayList<E>(segmentCapacity);
+    upper.addAll(segment.subList(half, segment.size()));
+    segment.subList(half, segment.size()).clear();
+    insertSegment(s + 1, upper, offsets[s] + half);
+  }
+}
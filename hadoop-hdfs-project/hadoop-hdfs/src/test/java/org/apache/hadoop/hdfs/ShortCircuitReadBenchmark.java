@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.security.UserGroupInformation;
+
+/**
+ * ShortCircuitReadBenchmark compares the throughput of reading a file
+ * through the datanode, through the short circuit reader, through the
+ * short circuit reader with mapped blocks, and through
+ * {@link DFSClient.DFSDataInputStream#readByteBuffer(int)} with mapped
+ * blocks, which does not copy the data.
+ *
+ * The file is read once before the measured runs, so that its blocks are
+ * in the page cache of the OS for all the readers.
+ *
+ * Input arguments:
+ * <ul>
+ * <li>fileSizeMB - size of the file in MB, default 256</li>
+ * <li>iterations - number of times the file is read by each reader,
+ *     default 10</li>
+ * <li>checksum - whether the checksums are verified, default true</li>
+ * <li>bufferSize - size of the reads in bytes, default 65536</li>
+ * </ul>
+ */
+public class ShortCircuitReadBenchmark {
+  private static final String[] MODES = {"remote", "local", "local-mmap",
+      "local-mmap-bytebuffer"};
+
+  public static void main(String[] args) throws Exception {
+    final int fileSizeMB = args.length > 0? Integer.parseInt(args[0]): 256;
+    final int iterations = args.length > 1? Integer.parseInt(args[1]): 10;
+    final boolean checksum = args.length > 2?
+        Boolean.parseBoolean(args[2]): true;
+    final int bufferSize = args.length > 3? Integer.parseInt(args[3]): 65536;
+    System.out.println("fileSizeMB = " + fileSizeMB + ", iterations = "
+        + iterations + ", checksum = " + checksum + ", bufferSize = "
+        + bufferSize);
+
+    final Configuration conf = new HdfsConfiguration();
+    conf.set(DFSConfigKeys.DFS_BLOCK_LOCAL_PATH_ACCESS_USER_KEY,
+        UserGroupInformation.getCurrentUser().getShortUserName());
+    final MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf)
+        .numDataNodes(1).build();
+    try {
+      cluster.waitActive();
+      final Path file = new Path("/benchmark.dat");
+      final long fileSize = (long)fileSizeMB << 20;
+      DFSTestUtil.createFile(cluster.getFileSystem(), file, fileSize,
+          (short)1, 0xBEEFL);
+
+      for(String mode : MODES) {
+        final Configuration clientConf = new Configuration(conf);
+        clientConf.setBoolean(DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_KEY,
+            !mode.equals("remote"));
+        clientConf.setBoolean(
+            DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_SKIP_CHECKSUM_KEY,
+            !checksum);
+        clientConf.setBoolean(
+            DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_KEY,
+            mode.startsWith("local-mmap"));
+        final boolean byteBuffers = mode.endsWith("bytebuffer");
+
+        final FileSystem fs = FileSystem.newInstance(cluster.getURI(),
+            clientConf);
+        try {
+          fs.setVerifyChecksum(checksum);
+          read(fs, file, fileSize, bufferSize, byteBuffers); // warm up
+          final long start = System.nanoTime();
+          for(int i = 0; i < iterations; i++) {
+            read(fs, file, fileSize, bufferSize, byteBuffers);
+          }
+          final long nanos = Math.max(System.nanoTime() - start, 1);
+          System.out.println(mode + ": " + (iterations * fileSize * 1000
+              / nanos) + " MB/s");
+        } finally {
+          fs.close();
+        }
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  private static void read(FileSystem fs, Path file, long fileSize,
+      int bufferSize, boolean byteBuffers) throws Exception {
+    final FSDataInputStream in = fs.open(file);
+    long nread = 0;
+    long sum = 0;
+    try {
+      if (byteBuffers) {
+        final DFSClient.DFSDataInputStream dfsIn =
+            (DFSClient.DFSDataInputStream)in;
+        for(ByteBuffer b; (b = dfsIn.readByteBuffer(bufferSize)) != null; ) {
+          nread += b.remaining();
+          // touch the data as a copying reader does
+          for(int i = b.position(); i < b.limit(); i += 4096) {
+            sum += b.get(i);
+          }
+        }
+      } else {
+        final byte[] buf = new byte[bufferSize];
+        for(int n; (n = in.read(buf)) > 0; ) {
+          nread += n;
+          for(int i = 0; i < n; i += 4096) {
+            sum += buf[i];
+          }
+        }
+      }
+    } finally {
+      in.close();
+    }
+    if (nread != fileSize) {
+      throw new IllegalStateException("Read " + nread + " bytes but the file"
+          + " has " + fileSize + " bytes (sum " + sum + ")");
+    }
+  }
+}
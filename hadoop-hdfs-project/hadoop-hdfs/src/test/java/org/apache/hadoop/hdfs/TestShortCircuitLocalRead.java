@@ -21,9 +21,11 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.PrivilegedExceptionAction;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumException;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
@@ -56,6 +58,7 @@ public class TestShortCircuitLocalRead {
   static final long seed = 0xDEADBEEFL;
   static final int blockSize = 5120;
   boolean simulatedStorage = false;
+  boolean mmap = false;
   
   // creates a file but does not close it
   static FSDataOutputStream createFile(FileSystem fileSys, Path name, int repl)
@@ -112,20 +115,55 @@ public class TestShortCircuitLocalRead {
   }
 
   /**
-   * Test that file data can be read by reading the block file
-   * directly from the local store.
+   * Read the file by {@link DFSClient.DFSDataInputStream#readByteBuffer(int)}.
+   * @return the number of buffers which are views of mapped blocks.
    */
-  public void doTestShortCircuitRead(boolean ignoreChecksum, int size,
-      int readOffset) throws IOException {
+  static int checkFileContentByteBuffers(FileSystem fs, Path name,
+      byte[] expected, int readOffset, int bufferSize) throws IOException {
+    DFSClient.DFSDataInputStream stm =
+        (DFSClient.DFSDataInputStream)fs.open(name);
+    stm.seek(readOffset);
+    byte[] actual = new byte[expected.length-readOffset];
+    int nread = 0;
+    int mapped = 0;
+    for(ByteBuffer b; (b = stm.readByteBuffer(bufferSize)) != null; ) {
+      assertTrue(b.isReadOnly());
+      assertTrue(b.remaining() <= bufferSize);
+      if (b.isDirect()) {
+        mapped++;
+      }
+      int n = b.remaining();
+      b.get(actual, nread, n);
+      nread += n;
+    }
+    Assert.assertEquals(actual.length, nread);
+    checkData(actual, readOffset, expected, "Read ByteBuffers");
+    stm.close();
+    return mapped;
+  }
+
+  private Configuration newConfiguration(boolean ignoreChecksum)
+      throws IOException {
     Configuration conf = new Configuration();
     conf.setBoolean(DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_KEY, true);
     conf.setBoolean(DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_SKIP_CHECKSUM_KEY,
         ignoreChecksum);
+    conf.setBoolean(DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_KEY, mmap);
     conf.set(DFSConfigKeys.DFS_BLOCK_LOCAL_PATH_ACCESS_USER_KEY,
         UserGroupInformation.getCurrentUser().getShortUserName());
     if (simulatedStorage) {
       conf.setBoolean(SimulatedFSDataset.CONFIG_PROPERTY_SIMULATED, true);
     }
+    return conf;
+  }
+
+  /**
+   * Test that file data can be read by reading the block file
+   * directly from the local store.
+   */
+  public void doTestShortCircuitRead(boolean ignoreChecksum, int size,
+      int readOffset) throws IOException {
+    Configuration conf = newConfiguration(ignoreChecksum);
     MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1)
         .format(true).build();
     FileSystem fs = cluster.getFileSystem();
@@ -144,6 +182,9 @@ public class TestShortCircuitLocalRead {
       stm.write(fileData);
       stm.close();
       checkFileContent(fs, file1, fileData, readOffset);
+      int mapped = checkFileContentByteBuffers(fs, file1, fileData,
+          readOffset, 1000);
+      Assert.assertEquals(mmap, mapped > 0);
     } finally {
       fs.close();
       cluster.shutdown();
@@ -180,6 +221,89 @@ public class TestShortCircuitLocalRead {
     doTestShortCircuitRead(true, 10*blockSize+100, 777);
   }
    
+  @Test
+  public void testMappedLocalRead() throws IOException {
+    mmap = true;
+    doTestShortCircuitRead(false, 3*blockSize+100, 0);
+    doTestShortCircuitRead(true, 3*blockSize+100, 0);
+    doTestShortCircuitRead(false, 13, 5);
+    doTestShortCircuitRead(false, 10*blockSize+100, 777);
+    doTestShortCircuitRead(true, 10*blockSize+100, 777);
+  }
+
+  /**
+   * The last block of a file being written is not mapped, since its replica
+   * may be truncated by a recovery; the complete blocks are.
+   */
+  @Test
+  public void testLastBlockBeingWrittenNotMapped() throws IOException {
+    mmap = true;
+    Configuration conf = newConfiguration(false);
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1)
+        .format(true).build();
+    FileSystem fs = cluster.getFileSystem();
+    try {
+      final int size = 2*blockSize + 100;
+      byte[] fileData = AppendTestUtil.randomBytes(seed, size);
+      Path file1 = new Path("filelocal.dat");
+      FSDataOutputStream out = createFile(fs, file1, 1);
+      out.write(fileData);
+      out.hflush();
+
+      DFSClient.DFSDataInputStream stm =
+          (DFSClient.DFSDataInputStream)fs.open(file1);
+      byte[] actual = new byte[size];
+      int nread = 0;
+      int mappedBytes = 0;
+      for(ByteBuffer b; (b = stm.readByteBuffer(blockSize)) != null; ) {
+        int n = b.remaining();
+        if (b.isDirect()) {
+          mappedBytes += n;
+        }
+        b.get(actual, nread, n);
+        nread += n;
+      }
+      stm.close();
+      Assert.assertEquals(size, nread);
+      checkData(actual, 0, fileData, "Read ByteBuffers");
+      Assert.assertEquals(2*blockSize, mappedBytes);
+      out.close();
+    } finally {
+      fs.close();
+      cluster.shutdown();
+    }
+  }
+
+  /** A corrupt mapped block is detected by the checksums. */
+  @Test
+  public void testMappedLocalReadCorruptBlock() throws IOException {
+    mmap = true;
+    Configuration conf = newConfiguration(false);
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1)
+        .format(true).build();
+    FileSystem fs = cluster.getFileSystem();
+    try {
+      Path file1 = new Path("filelocal.dat");
+      DFSTestUtil.createFile(fs, file1, blockSize, (short)1, seed);
+      ExtendedBlock blk = DFSTestUtil.getFirstBlock(fs, file1);
+      Assert.assertEquals(1, cluster.corruptBlockOnDataNodes(blk));
+
+      DFSClient.DFSDataInputStream stm =
+          (DFSClient.DFSDataInputStream)fs.open(file1);
+      try {
+        while (stm.readByteBuffer(blockSize) != null);
+        Assert.fail("The corrupt block should not be read");
+      } catch (ChecksumException e) {
+        // expected
+      } finally {
+        stm.close();
+      }
+    } finally {
+      fs.close();
+      cluster.shutdown();
+    }
+  }
+
   @Test
   public void testGetBlockLocalPathInfo() throws IOException, InterruptedException {
     final Configuration conf = new Configuration();
@@ -129,6 +129,47 @@ public class TestBlockManager {
   }
   
 
+  /**
+   * Test that targets chosen by several threads are as good as
+   * those chosen by the replication monitor itself.
+   */
+  @Test
+  public void testParallelTargetSelection() throws Exception {
+    conf.setInt(DFSConfigKeys.DFS_NAMENODE_REPLICATION_CHOOSE_TARGET_THREADS_KEY,
+        4);
+    conf.setInt(DFSConfigKeys.DFS_NAMENODE_REPLICATION_MAX_STREAMS_KEY, 1000);
+    bm = new BlockManager(fsn, fsn, conf);
+    addNodes(nodes);
+
+    // blocks with two replicas on rack A need a third one on rack B
+    final int numBlocks = 100;
+    final List<Block> blocks = new ArrayList<Block>();
+    for (int i = 0; i < numBlocks; i++) {
+      blocks.add(addBlockOnNodes(i, nodes(0, 1)));
+    }
+    final List<List<Block>> list_all = new ArrayList<List<Block>>();
+    list_all.add(new ArrayList<Block>()); // for priority 0
+    list_all.add(blocks); // for priority 1
+
+    assertEquals(numBlocks, bm.computeReplicationWorkForBlocks(list_all));
+    int numRepls = 0;
+    for (DatanodeDescriptor dn : nodes) {
+      List<BlockTargetPair> repls = dn.getReplicationCommand(numBlocks);
+      if (repls == null) {
+        continue;
+      }
+      assertTrue("Source of replication should be one of the nodes the block " +
+          "was on. Was: " + dn, nodes(0, 1).contains(dn));
+      for (BlockTargetPair repl : repls) {
+        assertEquals(1, repl.targets.length);
+        assertTrue("Destination of replication should be on the other rack. " +
+            "Was: " + repl.targets[0], rackB.contains(repl.targets[0]));
+        numRepls++;
+      }
+    }
+    assertEquals(numBlocks, numRepls);
+  }
+
   /**
    * Regression test for HDFS-1480
    * - Cluster has 2 racks, A and B, each with three nodes.
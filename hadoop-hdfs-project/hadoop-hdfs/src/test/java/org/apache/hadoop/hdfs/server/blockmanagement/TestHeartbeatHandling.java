@@ -18,6 +18,7 @@
 package org.apache.hadoop.hdfs.server.blockmanagement;
 
 import java.util.ArrayList;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
@@ -26,6 +27,7 @@ import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.HdfsConfiguration;
 import org.apache.hadoop.hdfs.MiniDFSCluster;
 import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.DatanodeID;
 import org.apache.hadoop.hdfs.server.common.GenerationStamp;
 import org.apache.hadoop.hdfs.server.datanode.DataNodeTestUtils;
 import org.apache.hadoop.hdfs.server.namenode.FSNamesystem;
@@ -114,4 +116,90 @@ public class TestHeartbeatHandling extends TestCase {
       cluster.shutdown();
     }
   }
+
+  /**
+   * Test that the statistics are the sums over the datanodes after
+   * concurrent heartbeats and decommissioning of the datanodes.
+   */
+  public void testConcurrentHeartbeats() throws Exception {
+    final HeartbeatManager hm =
+        new HeartbeatManager(null, null, new HdfsConfiguration());
+    final DatanodeDescriptor[] nodes = new DatanodeDescriptor[100];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = new DatanodeDescriptor(new DatanodeID("h" + i + ":5020"));
+      hm.addDatanode(nodes[i]);
+    }
+
+    final Thread[] threads = new Thread[8];
+    final Throwable[] errors = new Throwable[threads.length];
+    for (int t = 0; t < threads.length; t++) {
+      final int id = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            final Random r = new Random(id);
+            for (int i = 0; i < 10000; i++) {
+              final DatanodeDescriptor d = nodes[r.nextInt(nodes.length)];
+              if (i % 100 == 0) {
+                if (d.isDecommissionInProgress()) {
+                  hm.stopDecommission(d);
+                } else {
+                  hm.startDecommission(d);
+                }
+              } else {
+                hm.updateHeartbeat(d, 1000 + r.nextInt(1000), r.nextInt(500),
+                    r.nextInt(500), r.nextInt(500), r.nextInt(10), 0);
+              }
+            }
+          } catch (Throwable e) {
+            errors[id] = e;
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (int t = 0; t < threads.length; t++) {
+      threads[t].join();
+      assertNull("Thread " + t + " failed: " + errors[t], errors[t]);
+    }
+    assertStats(hm, nodes, nodes.length);
+
+    for (int i = 0; i < nodes.length; i += 2) {
+      hm.removeDatanode(nodes[i]);
+    }
+    assertEquals(nodes.length / 2, hm.getLiveDatanodeCount());
+    assertStats(hm, nodes, nodes.length / 2);
+  }
+
+  private static void assertStats(HeartbeatManager hm,
+      DatanodeDescriptor[] nodes, int numLive) {
+    long capacityTotal = 0;
+    long capacityUsed = 0;
+    long capacityRemaining = 0;
+    long blockPoolUsed = 0;
+    int xceiverCount = 0;
+    int live = 0;
+    for (DatanodeDescriptor d : nodes) {
+      if (!d.isAlive) {
+        continue;
+      }
+      live++;
+      capacityUsed += d.getDfsUsed();
+      blockPoolUsed += d.getBlockPoolUsed();
+      xceiverCount += d.getXceiverCount();
+      if (d.isDecommissionInProgress() || d.isDecommissioned()) {
+        capacityTotal += d.getDfsUsed();
+      } else {
+        capacityTotal += d.getCapacity();
+        capacityRemaining += d.getRemaining();
+      }
+    }
+    assertEquals(numLive, live);
+    assertEquals(capacityTotal, hm.getCapacityTotal());
+    assertEquals(capacityUsed, hm.getCapacityUsed());
+    assertEquals(capacityRemaining, hm.getCapacityRemaining());
+    assertEquals(blockPoolUsed, hm.getBlockPoolUsed());
+    assertEquals(xceiverCount, hm.getXceiverCount());
+  }
 }
@@ -0,0 +1,263 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.blockmanagement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.protocol.DatanodeID;
+import org.apache.hadoop.hdfs.protocol.HdfsConstants;
+import org.apache.hadoop.hdfs.server.namenode.FSClusterStats;
+import org.apache.hadoop.net.NetworkTopology;
+import org.junit.Test;
+
+/**
+ * Simulate writes to a cluster where some datanodes are busier than the
+ * others, and compare the load of the datanodes with
+ * {@link LoadAwareBlockPlacementPolicy} and with
+ * {@link BlockPlacementPolicyDefault}.
+ */
+public class TestLoadAwareBlockPlacementPolicy {
+  private static final Log LOG =
+      LogFactory.getLog(TestLoadAwareBlockPlacementPolicy.class);
+  private static final long BLOCK_SIZE = 1024;
+  private static final long CAPACITY =
+      1000 * HdfsConstants.MIN_BLOCKS_FOR_WRITE * BLOCK_SIZE;
+  private static final String FILENAME = "/dummyfile.txt";
+
+  /** A cluster of datanodes, some of which have a background load. */
+  static class SimulatedCluster implements FSClusterStats {
+    final NetworkTopology clusterMap = new NetworkTopology();
+    final DatanodeDescriptor[] nodes;
+    /** The transfers on each node other than the simulated writes. */
+    final int[] backgroundLoad;
+    /** The simulated writes in progress on each node. */
+    final int[] writes;
+
+    SimulatedCluster(int numRacks, int nodesPerRack, int numHotNodes,
+        int hotLoad) {
+      nodes = new DatanodeDescriptor[numRacks * nodesPerRack];
+      backgroundLoad = new int[nodes.length];
+      writes = new int[nodes.length];
+      for(int i = 0; i < nodes.length; i++) {
+        nodes[i] = new DatanodeDescriptor(new DatanodeID("h" + i + ":5020"),
+            "/r" + (i % numRacks));
+        clusterMap.add(nodes[i]);
+        backgroundLoad[i] = i < numHotNodes ? hotLoad : 0;
+      }
+      heartbeat();
+    }
+
+    /** All the datanodes send a heartbeat with their current load. */
+    void heartbeat() {
+      for(int i = 0; i < nodes.length; i++) {
+        nodes[i].updateHeartbeat(CAPACITY, 0L, CAPACITY, 0L,
+            backgroundLoad[i] + writes[i], 0);
+      }
+    }
+
+    int indexOf(DatanodeDescriptor node) {
+      for(int i = 0; i < nodes.length; i++) {
+        if (nodes[i] == node) {
+          return i;
+        }
+      }
+      throw new IllegalArgumentException("Unknown node " + node);
+    }
+
+    @Override
+    public int getTotalLoad() {
+      int total = 0;
+      for(DatanodeDescriptor d : nodes) {
+        total += d.getXceiverCount();
+      }
+      return total;
+    }
+  }
+
+  /** The outcome of a simulation. */
+  static class Result {
+    /** The fraction of the replicas placed on the hot nodes. */
+    double hotFraction;
+    /** The highest load of any datanode, averaged over the heartbeats. */
+    double meanMaxLoad;
+
+    @Override
+    public String toString() {
+      return String.format("hot node replicas = %.1f%%, mean max load = %.2f",
+          100 * hotFraction, meanMaxLoad);
+    }
+  }
+
+  /**
+   * Simulate writes from outside the cluster.
+   * Between two heartbeats, the given number of blocks is written, each
+   * to three datanodes, and each write lasts the given number of heartbeats.
+   */
+  static Result simulate(BlockPlacementPolicy policy, SimulatedCluster cluster,
+      int numHotNodes, int heartbeats, int blocksPerHeartbeat,
+      int writeDuration) {
+    final LinkedList<List<DatanodeDescriptor[]>> inProgress =
+        new LinkedList<List<DatanodeDescriptor[]>>();
+    long replicas = 0;
+    long hotReplicas = 0;
+    long sumMaxLoad = 0;
+    for(int h = 0; h < heartbeats; h++) {
+      if (inProgress.size() == writeDuration) {
+        // the oldest writes complete
+        for(DatanodeDescriptor[] targets : inProgress.removeFirst()) {
+          for(DatanodeDescriptor d : targets) {
+            cluster.writes[cluster.indexOf(d)]--;
+            d.decBlocksScheduled();
+          }
+        }
+      }
+
+      final List<DatanodeDescriptor[]> started =
+          new ArrayList<DatanodeDescriptor[]>();
+      for(int b = 0; b < blocksPerHeartbeat; b++) {
+        final DatanodeDescriptor[] targets = policy.chooseTarget(FILENAME, 3,
+            null, new ArrayList<DatanodeDescriptor>(), BLOCK_SIZE);
+        for(DatanodeDescriptor d : targets) {
+          final int i = cluster.indexOf(d);
+          cluster.writes[i]++;
+          d.incBlocksScheduled();
+          replicas++;
+          if (i < numHotNodes) {
+            hotReplicas++;
+          }
+        }
+        started.add(targets);
+      }
+      inProgress.addLast(started);
+
+      cluster.heartbeat();
+      int maxLoad = 0;
+      for(DatanodeDescriptor d : cluster.nodes) {
+        maxLoad = Math.max(maxLoad, d.getXceiverCount());
+      }
+      sumMaxLoad += maxLoad;
+    }
+
+    final Result r = new Result();
+    r.hotFraction = (double)hotReplicas / replicas;
+    r.meanMaxLoad = (double)sumMaxLoad / heartbeats;
+    return r;
+  }
+
+  /** Run the simulation with both policies and log the results. */
+  static Result[] compare(Configuration conf, int numRacks, int nodesPerRack,
+      int numHotNodes, int hotLoad, int heartbeats, int blocksPerHeartbeat,
+      int writeDuration) {
+    final Result[] results = new Result[2];
+    for(int p = 0; p < 2; p++) {
+      final SimulatedCluster cluster = new SimulatedCluster(
+          numRacks, nodesPerRack, numHotNodes, hotLoad);
+      final BlockPlacementPolicy policy = p == 0
+          ? new BlockPlacementPolicyDefault(conf, cluster, cluster.clusterMap)
+          : new LoadAwareBlockPlacementPolicy(conf, cluster, cluster.clusterMap);
+      results[p] = simulate(policy, cluster, numHotNodes, heartbeats,
+          blocksPerHeartbeat, writeDuration);
+      LOG.info(policy.getClass().getSimpleName() + ": " + results[p]);
+    }
+    return results;
+  }
+
+  /** Writes avoid the busy datanodes, and the load peaks are lower. */
+  @Test
+  public void testFewerWritesToHotNodes() {
+    final int numHotNodes = 8;
+    final Result[] r = compare(new HdfsConfiguration(),
+        4, 8, numHotNodes, 4, 1000, 8, 4);
+    // without load awareness, the hot nodes get their share
+    assertTrue(r[0].hotFraction > 0.15);
+    assertTrue(r[1].hotFraction < r[0].hotFraction);
+    assertTrue(r[1].meanMaxLoad < r[0].meanMaxLoad);
+  }
+
+  /** The replicas are placed on the racks as by the default policy. */
+  @Test
+  public void testPlacement() {
+    final SimulatedCluster cluster = new SimulatedCluster(3, 2, 0, 0);
+    final LoadAwareBlockPlacementPolicy policy =
+        new LoadAwareBlockPlacementPolicy(new HdfsConfiguration(),
+            cluster, cluster.clusterMap);
+    for(int i = 0; i < 100; i++) {
+      final DatanodeDescriptor[] targets = policy.chooseTarget(FILENAME, 3,
+          cluster.nodes[0], new ArrayList<DatanodeDescriptor>(), BLOCK_SIZE);
+      assertEquals(3, targets.length);
+      assertEquals(cluster.nodes[0], targets[0]);
+      assertFalse(cluster.clusterMap.isOnSameRack(targets[0], targets[1]));
+      assertTrue(cluster.clusterMap.isOnSameRack(targets[1], targets[2]));
+      assertFalse(targets[1] == targets[2]);
+    }
+
+    // all the nodes are needed
+    final DatanodeDescriptor[] targets = policy.chooseTarget(FILENAME, 6,
+        null, new ArrayList<DatanodeDescriptor>(), BLOCK_SIZE);
+    assertEquals(6, targets.length);
+  }
+
+  @Test
+  public void testWeight() {
+    final DatanodeDescriptor d = new DatanodeDescriptor(
+        new DatanodeID("h1:5020"), "/r1");
+    d.updateHeartbeat(CAPACITY, 0L, CAPACITY, 0L, 0, 0);
+    final double idle = LoadAwareBlockPlacementPolicy.getWeight(d);
+    d.updateHeartbeat(CAPACITY, 0L, CAPACITY, 0L, 3, 0);
+    final double busy = LoadAwareBlockPlacementPolicy.getWeight(d);
+    assertTrue(busy < idle);
+    d.incBlocksScheduled();
+    assertTrue(LoadAwareBlockPlacementPolicy.getWeight(d) < busy);
+    d.updateHeartbeat(CAPACITY, CAPACITY / 2, CAPACITY / 2, 0L, 3, 0);
+    assertTrue(LoadAwareBlockPlacementPolicy.getWeight(d) < busy);
+  }
+
+  /**
+   * Run the simulation.
+   * Usage: TestLoadAwareBlockPlacementPolicy [numRacks nodesPerRack
+   *   numHotNodes hotLoad heartbeats blocksPerHeartbeat writeDuration
+   *   [candidates]]
+   */
+  public static void main(String[] args) {
+    final Configuration conf = new HdfsConfiguration();
+    if (args.length > 7) {
+      conf.setInt(
+          DFSConfigKeys.DFS_NAMENODE_BLOCKPLACEMENT_LOAD_AWARE_CANDIDATES_KEY,
+          Integer.parseInt(args[7]));
+    }
+    if (args.length >= 7) {
+      compare(conf, Integer.parseInt(args[0]), Integer.parseInt(args[1]),
+          Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+          Integer.parseInt(args[4]), Integer.parseInt(args[5]),
+          Integer.parseInt(args[6]));
+    } else {
+      compare(conf, 20, 20, 40, 8, 10000, 100, 4);
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.blockmanagement;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.DatanodeID;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.hdfs.server.namenode.FSNamesystem;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Test the order of the replicas returned to readers.
+ */
+public class TestSortLocatedBlocks {
+  private static final int NUM_TEST_ITERS = 30;
+  private static final long CAPACITY = 1L << 40;
+
+  private DatanodeManager dm;
+  private final DatanodeDescriptor[] nodes = new DatanodeDescriptor[8];
+
+  /** Half of the nodes on each of two racks, all with a load of 1. */
+  private void setupCluster(Configuration conf) throws IOException {
+    final FSNamesystem fsn = Mockito.mock(FSNamesystem.class);
+    Mockito.doReturn(true).when(fsn).hasWriteLock();
+    dm = new BlockManager(fsn, fsn, conf).getDatanodeManager();
+    for(int i = 0; i < nodes.length; i++) {
+      nodes[i] = new DatanodeDescriptor(new DatanodeID("h" + i + ":5020"),
+          i < nodes.length / 2? "/rackA": "/rackB");
+      dm.getNetworkTopology().add(nodes[i]);
+      dm.getHeartbeatManager().addDatanode(nodes[i]);
+      setLoad(nodes[i], 1);
+    }
+  }
+
+  private void setLoad(DatanodeDescriptor d, int xceiverCount) {
+    dm.getHeartbeatManager().updateHeartbeat(d, CAPACITY, 0L, CAPACITY, 0L,
+        xceiverCount, 0);
+  }
+
+  /** Sort the locations of a block for the reader. */
+  private DatanodeInfo[] sort(DatanodeDescriptor reader,
+      DatanodeDescriptor... locations) {
+    final LocatedBlock b = new LocatedBlock("bp", new Block(1),
+        Arrays.copyOf(locations, locations.length, DatanodeInfo[].class));
+    final List<LocatedBlock> blocks = Arrays.asList(b);
+    dm.sortLocatedBlocks(reader, blocks);
+    return b.getLocations();
+  }
+
+  /** Without the options, only the distance and decommissioning count. */
+  @Test
+  public void testDefaultOrder() throws Exception {
+    setupCluster(new HdfsConfiguration());
+    setLoad(nodes[1], 100);
+    nodes[3].setDecommissioned();
+    for(int i = 0; i < NUM_TEST_ITERS; i++) {
+      final DatanodeInfo[] sorted = sort(nodes[0],
+          nodes[3], nodes[4], nodes[1], nodes[0]);
+      assertSame(nodes[0], sorted[0]);
+      assertSame(nodes[1], sorted[1]);
+      assertSame(nodes[3], sorted[3]);
+    }
+  }
+
+  @Test
+  public void testStaleLast() throws Exception {
+    final Configuration conf = new HdfsConfiguration();
+    conf.setBoolean(
+        DFSConfigKeys.DFS_NAMENODE_AVOID_STALE_DATANODE_FOR_READ_KEY, true);
+    setupCluster(conf);
+    nodes[0].setLastUpdate(0);
+    nodes[1].setLastUpdate(0);
+    nodes[6].setDecommissioned();
+    for(int i = 0; i < NUM_TEST_ITERS; i++) {
+      // even the reader's own datanode, if stale
+      assertArrayEquals(
+          new DatanodeInfo[] {nodes[2], nodes[4], nodes[0], nodes[6]},
+          sort(nodes[0], nodes[6], nodes[0], nodes[4], nodes[2]));
+      // no reader in the cluster
+      final DatanodeInfo[] sorted = sort(null,
+          nodes[1], nodes[6], nodes[4], nodes[5]);
+      assertSame(nodes[1], sorted[2]);
+      assertSame(nodes[6], sorted[3]);
+    }
+  }
+
+  @Test
+  public void testBusyLast() throws Exception {
+    final Configuration conf = new HdfsConfiguration();
+    conf.setBoolean(
+        DFSConfigKeys.DFS_NAMENODE_AVOID_BUSY_DATANODE_FOR_READ_KEY, true);
+    setupCluster(conf);
+    // the average load is 5.75, busy above 11.5
+    setLoad(nodes[0], 20);
+    setLoad(nodes[1], 20);
+    for(int i = 0; i < NUM_TEST_ITERS; i++) {
+      // the reader's own datanode, even if busy,
+      // then the datanodes on other racks before the busy one on its rack
+      assertArrayEquals(
+          new DatanodeInfo[] {nodes[0], nodes[4], nodes[1]},
+          sort(nodes[0], nodes[1], nodes[4], nodes[0]));
+      // the datanodes on the reader's rack first
+      assertArrayEquals(
+          new DatanodeInfo[] {nodes[5], nodes[3], nodes[0]},
+          sort(nodes[7], nodes[3], nodes[0], nodes[5]));
+    }
+  }
+}
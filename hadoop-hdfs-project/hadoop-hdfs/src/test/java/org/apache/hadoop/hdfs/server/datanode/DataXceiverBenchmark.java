@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+
+/**
+ * DataXceiverBenchmark measures the read throughput of a datanode and the
+ * number of its transfer threads, with many concurrent readers which keep
+ * their connections alive, as region servers do.  It runs once with a
+ * thread per connection and once with {@link DataXceiverSelector}.
+ *
+ * Each reader has its own client, and reads random ranges of a file with
+ * positional reads, pausing between them.
+ *
+ * Input arguments:
+ * <ul>
+ * <li>seconds - duration of each run, default 20</li>
+ * <li>readers - number of readers, default 200</li>
+ * <li>readSize - size of each read in bytes, default 65536</li>
+ * <li>pauseMillis - pause between two reads of a reader, default 10</li>
+ * </ul>
+ */
+public class DataXceiverBenchmark {
+  private static final long FILE_SIZE = 64L << 20;
+  private static final Path FILE = new Path("/benchmark");
+
+  private static void run(boolean selector, int seconds, int numReaders,
+      final int readSize, final int pauseMillis) throws Exception {
+    final Configuration conf = new HdfsConfiguration();
+    conf.setBoolean(
+        DFSConfigKeys.DFS_DATANODE_XCEIVER_SELECTOR_ENABLED_KEY, selector);
+    // keep the idle connections open for the whole run
+    conf.setInt(DFSConfigKeys.DFS_DATANODE_SOCKET_REUSE_KEEPALIVE_KEY,
+        seconds * 1000);
+    final MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf)
+        .numDataNodes(1).build();
+    try {
+      cluster.waitActive();
+      final DataNode dn = cluster.getDataNodes().get(0);
+      DFSTestUtil.createFile(cluster.getFileSystem(), FILE, FILE_SIZE,
+          (short)1, 0L);
+
+      final AtomicBoolean running = new AtomicBoolean(true);
+      final AtomicLong bytesRead = new AtomicLong();
+      final AtomicLong errors = new AtomicLong();
+      final Thread[] readers = new Thread[numReaders];
+      for (int i = 0; i < readers.length; i++) {
+        final int id = i;
+        readers[i] = new Thread() {
+          @Override
+          public void run() {
+            final Random r = new Random(id);
+            final byte[] buf = new byte[readSize];
+            try {
+              final FileSystem fs = FileSystem.newInstance(
+                  cluster.getFileSystem().getUri(), conf);
+              final FSDataInputStream in = fs.open(FILE);
+              try {
+                while (running.get()) {
+                  in.readFully(r.nextInt((int)(FILE_SIZE - readSize)), buf);
+                  bytesRead.addAndGet(readSize);
+                  Thread.sleep(pauseMillis);
+                }
+              } finally {
+                in.close();
+                fs.close();
+              }
+            } catch (Exception e) {
+              errors.incrementAndGet();
+            }
+          }
+        };
+        readers[i].start();
+      }
+
+      // sample the number of transfer threads
+      final long start = System.currentTimeMillis();
+      final long end = start + seconds * 1000L;
+      int maxThreads = 0;
+      long sumThreads = 0;
+      int samples = 0;
+      for (long now = start; now < end; now = System.currentTimeMillis()) {
+        final int threads = dn.threadGroup.activeCount();
+        maxThreads = Math.max(maxThreads, threads);
+        sumThreads += threads;
+        samples++;
+        Thread.sleep(100);
+      }
+      final long bytes = bytesRead.get();
+      running.set(false);
+      for (Thread t : readers) {
+        t.join();
+      }
+
+      System.out.println((selector? "selector": "thread per connection")
+          + ": " + (bytes / seconds / (1 << 20)) + " MB/s, transfer threads"
+          + " avg " + (sumThreads / Math.max(samples, 1)) + " max "
+          + maxThreads + ", reader errors " + errors.get());
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    final int seconds = args.length > 0? Integer.parseInt(args[0]): 20;
+    final int readers = args.length > 1? Integer.parseInt(args[1]): 200;
+    final int readSize = args.length > 2? Integer.parseInt(args[2]): 65536;
+    final int pauseMillis = args.length > 3? Integer.parseInt(args[3]): 10;
+
+    System.out.println("seconds = " + seconds + ", readers = " + readers
+        + ", readSize = " + readSize + ", pauseMillis = " + pauseMillis);
+    run(false, seconds, readers, readSize, pauseMillis);
+    run(true, seconds, readers, readSize, pauseMillis);
+  }
+}
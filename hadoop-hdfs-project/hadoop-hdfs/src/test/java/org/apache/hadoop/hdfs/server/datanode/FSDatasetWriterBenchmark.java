@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+
+/**
+ * FSDatasetWriterBenchmark measures how many replicas a datanode with
+ * many volumes can create and finalize concurrently, and how long its
+ * block reports take meanwhile.
+ *
+ * The writers call {@link FSDataset} directly, so that the benchmark
+ * measures the dataset rather than the data transfer protocol.  Each
+ * writer writes a small replica, finalizes it and starts the next one,
+ * while another thread generates block reports.
+ *
+ * Input arguments:
+ * <ul>
+ * <li>seconds - duration of the run, default 20</li>
+ * <li>volumes - number of volumes, default 12</li>
+ * <li>writers - number of writers, default 48</li>
+ * <li>replicaSize - size of each replica in bytes, default 65536</li>
+ * </ul>
+ */
+public class FSDatasetWriterBenchmark {
+  public static void main(String[] args) throws Exception {
+    final int seconds = args.length > 0? Integer.parseInt(args[0]): 20;
+    final int numVolumes = args.length > 1? Integer.parseInt(args[1]): 12;
+    final int numWriters = args.length > 2? Integer.parseInt(args[2]): 48;
+    final int replicaSize = args.length > 3? Integer.parseInt(args[3]): 65536;
+    System.out.println("seconds = " + seconds + ", volumes = " + numVolumes
+        + ", writers = " + numWriters + ", replicaSize = " + replicaSize);
+
+    final Configuration conf = new HdfsConfiguration();
+    final File base = new File(MiniDFSCluster.getBaseDirectory(),
+        "writer-benchmark");
+    FileUtil.fullyDelete(base);
+    final StringBuilder dirs = new StringBuilder();
+    for (int i = 0; i < numVolumes; i++) {
+      final File dir = new File(base, "data" + i);
+      if (!dir.mkdirs()) {
+        throw new IllegalStateException("Failed to create " + dir);
+      }
+      dirs.append(i == 0? "": ",").append(dir.toURI());
+    }
+    conf.set(DFSConfigKeys.DFS_DATANODE_DATA_DIR_KEY, dirs.toString());
+
+    final MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf)
+        .manageDataDfsDirs(false).numDataNodes(1).build();
+    try {
+      cluster.waitActive();
+      final FSDataset dataSet = (FSDataset)cluster.getDataNodes().get(0).data;
+      final String bpid = cluster.getNamesystem().getBlockPoolId();
+      final byte[] data = new byte[replicaSize];
+
+      final AtomicBoolean running = new AtomicBoolean(true);
+      final AtomicLong nextBlockId = new AtomicLong(1000000L);
+      final AtomicLong replicas = new AtomicLong();
+      final AtomicLong errors = new AtomicLong();
+      final Thread[] writers = new Thread[numWriters];
+      for (int i = 0; i < writers.length; i++) {
+        writers[i] = new Thread() {
+          @Override
+          public void run() {
+            while (running.get()) {
+              final ExtendedBlock b = new ExtendedBlock(bpid,
+                  nextBlockId.getAndIncrement(), 0, 1001);
+              try {
+                TestWriteToReplica.writeReplica(dataSet, b, data);
+                replicas.incrementAndGet();
+              } catch (Exception e) {
+                errors.incrementAndGet();
+              }
+            }
+          }
+        };
+        writers[i].start();
+      }
+
+      // generate block reports during the run
+      final long start = System.currentTimeMillis();
+      final long end = start + seconds * 1000L;
+      long reports = 0;
+      long reportMillis = 0;
+      long maxReportMillis = 0;
+      for (long now = start; now < end; now = System.currentTimeMillis()) {
+        dataSet.getBlockReport(bpid);
+        final long millis = System.currentTimeMillis() - now;
+        reports++;
+        reportMillis += millis;
+        maxReportMillis = Math.max(maxReportMillis, millis);
+      }
+      final long created = replicas.get();
+      running.set(false);
+      for (Thread t : writers) {
+        t.join();
+      }
+
+      System.out.println(created / seconds + " replicas/s, "
+          + (created * replicaSize / seconds / (1 << 20)) + " MB/s, "
+          + reports + " block reports of avg "
+          + (reportMillis / Math.max(reports, 1)) + " ms max "
+          + maxReportMillis + " ms, writer errors " + errors.get());
+    } finally {
+      cluster.shutdown();
+      FileUtil.fullyDelete(base);
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * ReplicasMapBenchmark measures the heap used by the replicas of a block
+ * pool and the time to look them up, with a HashMap of boxed block ids
+ * and a path per replica as before, and with {@link ReplicaSet} and the
+ * shared directories of {@link ReplicaInfo}.
+ *
+ * The replicas are spread over the directories of a datanode with
+ * 12 volumes and 64x64 subdirectories in each.  The heap is measured
+ * after a few garbage collections, so run with a large enough -Xmx and
+ * nothing else in the JVM.
+ *
+ * Input arguments:
+ * <ul>
+ * <li>replicas - number of replicas, default 5000000</li>
+ * <li>lookups - number of random lookups, default 10000000</li>
+ * </ul>
+ */
+public class ReplicasMapBenchmark {
+  private static final int NUM_VOLUMES = 12;
+  private static final int NUM_SUBDIRS = 64;
+
+  private static long usedHeap() throws InterruptedException {
+    final Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  /** A new File object for the directory of the replica. */
+  private static File getDir(long blockId) {
+    final int volume = (int)(blockId % NUM_VOLUMES);
+    final int subdir = (int)(blockId / NUM_VOLUMES % (NUM_SUBDIRS * NUM_SUBDIRS));
+    return new File("/data/" + volume + "/current/BP-1/current/finalized/subdir"
+        + subdir / NUM_SUBDIRS + "/subdir" + subdir % NUM_SUBDIRS);
+  }
+
+  private static long[] randomIds(int n, long seed) {
+    final Random r = new Random(seed);
+    final long[] ids = new long[n];
+    for (int i = 0; i < n; i++) {
+      ids[i] = r.nextLong() & Long.MAX_VALUE;
+    }
+    return ids;
+  }
+
+  private static void print(String name, long bytes, int numReplicas,
+      long lookupNanos, int numLookups) {
+    System.out.println(name + ": " + (bytes >> 20) + " MB, "
+        + (bytes / numReplicas) + " bytes/replica, "
+        + (lookupNanos / numLookups) + " ns/lookup");
+  }
+
+  /** A plain replica with a private copy of the directory path. */
+  private static class UnsharedReplica extends FinalizedReplica {
+    private final File dir;
+
+    UnsharedReplica(long blockId) {
+      super(blockId, 1, 1001, null, null);
+      this.dir = getDir(blockId);
+    }
+
+    @Override
+    File getDir() {
+      return dir;
+    }
+  }
+
+  private static void runHashMap(long[] ids, long[] lookups)
+      throws InterruptedException {
+    final long before = usedHeap();
+    final Map<Long, ReplicaInfo> map = new HashMap<Long, ReplicaInfo>();
+    for (long id : ids) {
+      map.put(id, new UnsharedReplica(id));
+    }
+    final long bytes = usedHeap() - before;
+
+    long found = 0;
+    final long start = System.nanoTime();
+    for (long id : lookups) {
+      if (map.get(id) != null) {
+        found++;
+      }
+    }
+    final long nanos = System.nanoTime() - start;
+    print("HashMap (found " + found + ")", bytes, ids.length, nanos,
+        lookups.length);
+  }
+
+  private static void runReplicaSet(long[] ids, long[] lookups)
+      throws InterruptedException {
+    final long before = usedHeap();
+    final ReplicaSet set = new ReplicaSet();
+    for (long id : ids) {
+      set.put(new FinalizedReplica(id, 1, 1001, null, getDir(id)));
+    }
+    final long bytes = usedHeap() - before;
+
+    long found = 0;
+    final long start = System.nanoTime();
+    for (long id : lookups) {
+      if (set.get(id) != null) {
+        found++;
+      }
+    }
+    final long nanos = System.nanoTime() - start;
+    print("ReplicaSet (found " + found + ")", bytes, ids.length, nanos,
+        lookups.length);
+  }
+
+  public static void main(String[] args) throws Exception {
+    final int numReplicas = args.length > 0? Integer.parseInt(args[0]): 5000000;
+    final int numLookups = args.length > 1? Integer.parseInt(args[1]): 10000000;
+    System.out.println("replicas = " + numReplicas + ", lookups = " + numLookups);
+
+    final long[] ids = randomIds(numReplicas, 0);
+    // half of the lookups find a replica
+    final long[] lookups = randomIds(numLookups, 1);
+    final Random r = new Random(2);
+    for (int i = 0; i < lookups.length; i += 2) {
+      lookups[i] = ids[r.nextInt(ids.length)];
+    }
+
+    runHashMap(ids, lookups);
+    runReplicaSet(ids, lookups);
+  }
+}
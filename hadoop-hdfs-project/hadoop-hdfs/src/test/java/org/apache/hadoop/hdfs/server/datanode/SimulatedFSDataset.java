@@ -958,6 +958,12 @@ public class SimulatedFSDataset  implements FSDatasetInterface, Configurable{
     return block.getNumBytes();
   }
 
+  @Override // FSDatasetInterface
+  public Object getBlockLock(long blockId) {
+    // the replica operations are synchronized on the dataset
+    return this;
+  }
+
   @Override // FSDatasetInterface
   public void addBlockPool(String bpid, Configuration conf) {
     Map<Block, BInfo> map = new HashMap<Block, BInfo>();
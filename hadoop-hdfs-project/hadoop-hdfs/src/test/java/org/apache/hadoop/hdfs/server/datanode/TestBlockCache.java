@@ -0,0 +1,185 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.apache.hadoop.test.MetricsAsserts.getLongCounter;
+import static org.apache.hadoop.test.MetricsAsserts.getMetrics;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.DFSUtil;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.ClientDatanodeProtocol;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.ipc.RPC;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test that the blocks in the {@link BlockCache} are read from the cache.
+ */
+public class TestBlockCache {
+  private static final int BLOCK_SIZE = 64 * 1024;
+  private static final int NUM_BLOCKS = 3;
+  /** The size of a cached block, including its checksums. */
+  private static final int CACHED_BLOCK_SIZE =
+      BLOCK_SIZE + BLOCK_SIZE / 512 * 4;
+
+  private MiniDFSCluster cluster;
+  private FileSystem fs;
+  private DataNode datanode;
+
+  private void startCluster(long cacheSize) throws IOException {
+    Configuration conf = new HdfsConfiguration();
+    conf.setLong(DFSConfigKeys.DFS_BLOCK_SIZE_KEY, BLOCK_SIZE);
+    conf.setLong(DFSConfigKeys.DFS_DATANODE_BLOCK_CACHE_SIZE_KEY, cacheSize);
+    conf.setInt(DFSConfigKeys.DFS_DATANODE_BLOCK_CACHE_ADMISSION_READS_KEY, 2);
+    cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+    cluster.waitActive();
+    fs = cluster.getFileSystem();
+    datanode = cluster.getDataNodes().get(0);
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    startCluster(NUM_BLOCKS * CACHED_BLOCK_SIZE);
+  }
+
+  @After
+  public void tearDown() {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  private static byte[] readFile(FileSystem fs, Path file) throws IOException {
+    byte[] data = new byte[(int)fs.getFileStatus(file).getLen()];
+    FSDataInputStream in = fs.open(file);
+    try {
+      IOUtils.readFully(in, data, 0, data.length);
+    } finally {
+      in.close();
+    }
+    return data;
+  }
+
+  private void waitForCachedBlocks(int expected) throws InterruptedException {
+    while (datanode.blockCache.size() != expected) {
+      Thread.sleep(100);
+    }
+  }
+
+  private long getCounter(String name) {
+    return getLongCounter(name, getMetrics(datanode.getMetrics().name()));
+  }
+
+  /** The blocks read often enough are cached and then read from the cache. */
+  @Test(timeout=60000)
+  public void testHotBlocksCached() throws Exception {
+    Path file = new Path("/hot");
+    DFSTestUtil.createFile(fs, file, NUM_BLOCKS * BLOCK_SIZE, (short)1, 1L);
+
+    // the first read does not admit the blocks
+    byte[] expected = readFile(fs, file);
+    assertEquals(0, datanode.blockCache.size());
+    // the second one does
+    assertArrayEquals(expected, readFile(fs, file));
+    waitForCachedBlocks(NUM_BLOCKS);
+    assertEquals(NUM_BLOCKS * CACHED_BLOCK_SIZE, datanode.blockCache.getUsed());
+
+    long hits = getCounter("BlockCacheHits");
+    assertArrayEquals(expected, readFile(fs, file));
+    assertEquals(hits + NUM_BLOCKS, getCounter("BlockCacheHits"));
+
+    // reads at an offset
+    FSDataInputStream in = fs.open(file);
+    try {
+      byte[] buf = new byte[1000];
+      int offset = BLOCK_SIZE + 777;
+      in.readFully(offset, buf);
+      for(int i = 0; i < buf.length; i++) {
+        assertEquals(expected[offset + i], buf[i]);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /** A block appended to is read from the disk until it is cached again. */
+  @Test(timeout=60000)
+  public void testAppendedBlockNotServedFromCache() throws Exception {
+    Path file = new Path("/appended");
+    DFSTestUtil.createFile(fs, file, BLOCK_SIZE / 2, (short)1, 1L);
+    readFile(fs, file);
+    readFile(fs, file);
+    waitForCachedBlocks(1);
+
+    FSDataOutputStream out = fs.append(file);
+    out.write(new byte[] {1, 2, 3});
+    out.close();
+    byte[] data = readFile(fs, file);
+    assertEquals(BLOCK_SIZE / 2 + 3, data.length);
+    assertEquals(3, data[data.length - 1]);
+  }
+
+  /** The least recently read blocks are evicted when the cache is full. */
+  @Test(timeout=60000)
+  public void testEviction() throws Exception {
+    tearDown();
+    startCluster(2 * CACHED_BLOCK_SIZE);
+    Path file = new Path("/evicted");
+    DFSTestUtil.createFile(fs, file, NUM_BLOCKS * BLOCK_SIZE, (short)1, 1L);
+
+    // ask the datanode to cache all the blocks through its RPC interface
+    FSDataInputStream in = fs.open(file);
+    List<LocatedBlock> blocks = DFSTestUtil.getAllBlocks(in);
+    in.close();
+    ClientDatanodeProtocol proxy = DFSUtil.createClientDatanodeProtocolProxy(
+        blocks.get(0).getLocations()[0], cluster.getConfiguration(0), 60000,
+        blocks.get(0));
+    try {
+      for(LocatedBlock b : blocks) {
+        proxy.cacheBlock(b.getBlock(), b.getBlockToken());
+      }
+    } finally {
+      RPC.stopProxy(proxy);
+    }
+    while (getCounter("BlockCacheEvictions") < 1) {
+      Thread.sleep(100);
+    }
+    waitForCachedBlocks(2);
+    assertEquals(2 * CACHED_BLOCK_SIZE, datanode.blockCache.getUsed());
+
+    // the file is still read correctly
+    byte[] data = readFile(fs, file);
+    assertEquals(NUM_BLOCKS * BLOCK_SIZE, data.length);
+  }
+}
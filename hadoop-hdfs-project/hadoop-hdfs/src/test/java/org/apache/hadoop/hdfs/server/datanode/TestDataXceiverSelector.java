@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.Test;
+
+/** Test the data transfer with {@link DataXceiverSelector}. */
+public class TestDataXceiverSelector {
+  private static final short REPLICATION = 2;
+  private static final int KEEPALIVE = 1000;
+
+  private static DataXceiverServer getServer(DataNode dn) {
+    return (DataXceiverServer)dn.dataXceiverServer.getRunnable();
+  }
+
+  @Test(timeout=120000)
+  public void testWriteAndRead() throws Exception {
+    final HdfsConfiguration conf = new HdfsConfiguration();
+    conf.setBoolean(
+        DFSConfigKeys.DFS_DATANODE_XCEIVER_SELECTOR_ENABLED_KEY, true);
+    conf.setInt(DFSConfigKeys.DFS_DATANODE_SOCKET_REUSE_KEEPALIVE_KEY,
+        KEEPALIVE);
+    conf.setLong(DFSConfigKeys.DFS_BLOCK_SIZE_KEY, 1 << 20);
+    final MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf
+        ).numDataNodes(REPLICATION).build();
+    try {
+      cluster.waitActive();
+      for (DataNode dn : cluster.getDataNodes()) {
+        assertNotNull(getServer(dn).selector);
+      }
+      final FileSystem fs = cluster.getFileSystem();
+
+      // write a file of several blocks through the pipeline
+      final Path p = new Path("/foo");
+      final byte[] data = new byte[(3 << 20) + 12345];
+      new Random().nextBytes(data);
+      final FSDataOutputStream out = fs.create(p, REPLICATION);
+      out.write(data);
+      out.close();
+
+      // read it from several threads, reusing the cached connections
+      final Thread[] readers = new Thread[8];
+      final Throwable[] errors = new Throwable[readers.length];
+      for (int t = 0; t < readers.length; t++) {
+        final int id = t;
+        readers[t] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              final Random r = new Random(id);
+              final FSDataInputStream in = fs.open(p);
+              try {
+                final byte[] buf = new byte[4096];
+                for (int i = 0; i < 100; i++) {
+                  final int pos = r.nextInt(data.length - buf.length);
+                  in.readFully(pos, buf);
+                  assertTrue(Arrays.equals(
+                      Arrays.copyOfRange(data, pos, pos + buf.length), buf));
+                }
+              } finally {
+                in.close();
+              }
+            } catch (Throwable e) {
+              errors[id] = e;
+            }
+          }
+        };
+        readers[t].start();
+      }
+      for (int t = 0; t < readers.length; t++) {
+        readers[t].join();
+        assertNull("reader " + t + " failed: " + errors[t], errors[t]);
+      }
+
+      // the idle connections are closed after the keepalive timeout
+      for (DataNode dn : cluster.getDataNodes()) {
+        final DataXceiverServer server = getServer(dn);
+        while (!server.childSockets.isEmpty()) {
+          Thread.sleep(KEEPALIVE / 2);
+        }
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
@@ -71,7 +71,7 @@ public class TestDirectoryScanner extends TestCase {
 
   /** Truncate a block file */
   private long truncateBlockFile() throws IOException {
-    synchronized (fds) {
+    synchronized(fds.volumeMap.getMutext()) {
       for (ReplicaInfo b : fds.volumeMap.replicas(bpid)) {
         File f = b.getBlockFile();
         File mf = b.getMetaFile();
@@ -90,7 +90,7 @@ public class TestDirectoryScanner extends TestCase {
 
   /** Delete a block file */
   private long deleteBlockFile() {
-    synchronized(fds) {
+    synchronized(fds.volumeMap.getMutext()) {
       for (ReplicaInfo b : fds.volumeMap.replicas(bpid)) {
         File f = b.getBlockFile();
         File mf = b.getMetaFile();
@@ -106,7 +106,7 @@ public class TestDirectoryScanner extends TestCase {
 
   /** Delete block meta file */
   private long deleteMetaFile() {
-    synchronized(fds) {
+    synchronized(fds.volumeMap.getMutext()) {
       for (ReplicaInfo b : fds.volumeMap.replicas(bpid)) {
         File file = b.getMetaFile();
         // Delete a metadata file
@@ -0,0 +1,136 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test {@link ReplicaSet} against a HashMap.
+ */
+public class TestReplicaSet {
+  private static ReplicaInfo newReplica(long blockId) {
+    return new FinalizedReplica(blockId, 0, 1, null, null);
+  }
+
+  private static void assertSameReplicas(Map<Long, ReplicaInfo> expected,
+      ReplicaSet set) {
+    assertEquals(expected.size(), set.size());
+    assertEquals(expected.size(), set.values().size());
+    final Map<ReplicaInfo, Boolean> iterated =
+        new IdentityHashMap<ReplicaInfo, Boolean>();
+    for(ReplicaInfo r : set.values()) {
+      assertSame(expected.get(r.getBlockId()), r);
+      assertNull(iterated.put(r, true));
+    }
+    assertEquals(expected.size(), iterated.size());
+  }
+
+  @Test
+  public void testRandomOperations() {
+    final long seed = new Random().nextLong();
+    final Random r = new Random(seed);
+    final ReplicaSet set = new ReplicaSet();
+    final Map<Long, ReplicaInfo> expected = new HashMap<Long, ReplicaInfo>();
+
+    for(int i = 0; i < 100000; i++) {
+      // a small range of ids, so that there are replacements and collisions
+      final long id = r.nextInt(5000) - 1000;
+      final String msg = "seed=" + seed + ", i=" + i + ", id=" + id;
+      if (r.nextInt(3) == 0) {
+        assertSame(msg, expected.remove(id), set.remove(id));
+      } else {
+        final ReplicaInfo replica = newReplica(id);
+        assertSame(msg, expected.put(id, replica), set.put(replica));
+      }
+      assertSame(msg, expected.get(id), set.get(id));
+      if (i % 10000 == 0) {
+        assertSameReplicas(expected, set);
+      }
+    }
+    assertSameReplicas(expected, set);
+
+    // remove everything, which shrinks the table
+    for(Long id : expected.keySet()) {
+      assertSame(expected.get(id), set.remove(id));
+    }
+    assertEquals(0, set.size());
+    assertEquals(0, set.values().size());
+  }
+
+  @Test
+  public void testConsecutiveIds() {
+    final ReplicaSet set = new ReplicaSet();
+    final Map<Long, ReplicaInfo> expected = new HashMap<Long, ReplicaInfo>();
+    for(long id = 1L << 40; id < (1L << 40) + 100000; id++) {
+      final ReplicaInfo replica = newReplica(id);
+      expected.put(id, replica);
+      set.put(replica);
+    }
+    assertSameReplicas(expected, set);
+    assertNull(set.get(0));
+  }
+
+  @Test
+  public void testIterator() {
+    final ReplicaSet set = new ReplicaSet();
+    set.put(newReplica(1));
+    set.put(newReplica(2));
+
+    Iterator<ReplicaInfo> i = set.values().iterator();
+    i.next();
+    try {
+      i.remove();
+      fail("Expected exception not thrown");
+    } catch (UnsupportedOperationException expected) { }
+
+    // replacing a replica is not a structural modification
+    set.put(newReplica(1));
+    i.next();
+
+    i = set.values().iterator();
+    set.remove(1);
+    try {
+      i.hasNext();
+      fail("Expected exception not thrown");
+    } catch (ConcurrentModificationException expected) { }
+  }
+
+  @Test
+  public void testSharedDir() {
+    final ReplicaInfo r1 = new FinalizedReplica(1, 0, 1, null,
+        new File("/data/current/finalized"));
+    final ReplicaInfo r2 = new FinalizedReplica(2, 0, 1, null,
+        new File("/data/current/finalized"));
+    assertSame(r1.getDir(), r2.getDir());
+    r2.setDir(new File("/data/current/rbw"));
+    assertEquals(new File("/data/current/rbw"), r2.getDir());
+  }
+}
@@ -18,11 +18,21 @@
 package org.apache.hadoop.hdfs.server.datanode;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.hadoop.hdfs.HdfsConfiguration;
 import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.BlockListAsLongs;
 import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
 import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSVolume;
+import org.apache.hadoop.hdfs.server.datanode.FSDatasetInterface.BlockWriteStreams;
+import org.apache.hadoop.util.DataChecksum;
 import org.apache.hadoop.util.DiskChecker.DiskOutOfSpaceException;
 import org.junit.Assert;
 import org.junit.Test;
@@ -118,6 +128,84 @@ public class TestWriteToReplica {
       cluster.shutdown();
     }
   }
+
+  /** Write and finalize a small replica. */
+  static void writeReplica(FSDataset dataSet, ExtendedBlock b, byte[] data)
+      throws IOException {
+    final ReplicaInPipelineInterface r = dataSet.createRbw(b);
+    final BlockWriteStreams out = r.createStreams(true,
+        DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32, 512));
+    try {
+      out.dataOut.write(data);
+    } finally {
+      out.close();
+    }
+    r.setNumBytes(data.length);
+    r.setBytesAcked(data.length);
+    b.setNumBytes(data.length);
+    dataSet.finalizeBlock(b);
+  }
+
+  // test concurrent writers and block reports
+  @Test
+  public void testConcurrentWriters() throws Exception {
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(new HdfsConfiguration()).build();
+    final int numWriters = 8;
+    final int numBlocks = 100;
+    ExecutorService executor = Executors.newFixedThreadPool(numWriters + 1);
+    try {
+      cluster.waitActive();
+      DataNode dn = cluster.getDataNodes().get(0);
+      final FSDataset dataSet = (FSDataset)dn.data;
+      final String bpid = cluster.getNamesystem().getBlockPoolId();
+      final byte[] data = new byte[1024];
+
+      List<Future<Void>> writers = new ArrayList<Future<Void>>();
+      for (int t = 0; t < numWriters; t++) {
+        final int writer = t;
+        writers.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            for (int i = 0; i < numBlocks; i++) {
+              writeReplica(dataSet, new ExtendedBlock(bpid,
+                  1000000L + writer * numBlocks + i, 0, 1001), data);
+            }
+            return null;
+          }
+        }));
+      }
+      // block reports run concurrently with the writers
+      final AtomicBoolean writing = new AtomicBoolean(true);
+      Future<Integer> reporter = executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() {
+          int reports = 0;
+          for (; writing.get(); reports++) {
+            dataSet.getBlockReport(bpid);
+          }
+          return reports;
+        }
+      });
+      for (Future<Void> f : writers) {
+        f.get();
+      }
+      writing.set(false);
+      Assert.assertTrue(reporter.get() > 0);
+
+      BlockListAsLongs report = dataSet.getBlockReport(bpid);
+      Assert.assertEquals(numWriters * numBlocks,
+          report.getNumberOfBlocks());
+      for (int i = 0; i < numWriters * numBlocks; i++) {
+        ExtendedBlock b = new ExtendedBlock(bpid, 1000000L + i, data.length,
+            1001);
+        Assert.assertTrue("block " + b, dataSet.isValidBlock(b));
+        Assert.assertEquals(data.length, dataSet.getLength(b));
+      }
+    } finally {
+      executor.shutdownNow();
+      cluster.shutdown();
+    }
+  }
   
   /**
    * Generate testing environment and return a collection of blocks
@@ -0,0 +1,195 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.common.GenerationStamp;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.AddOp;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.CloseOp;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.MkdirOp;
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.SetGenstampOp;
+
+/**
+ * EditLogReplayBenchmark measures how many ops per second the namenode
+ * replays from an edits file, with the ops decoded in the replaying thread
+ * and with the ops decoded ahead by {@link PrefetchingEditLogInputStream},
+ * as when dfs.namenode.edits.load.prefetch.enabled is set.
+ *
+ * The edits file is generated once with the ops the namenode logs for the
+ * creation of files: a mkdir for each directory, then for each file a new
+ * generation stamp, the open of the file and its close with one block.
+ * Each run replays the file into the namesystem of a newly formatted
+ * cluster, and the runs of the two modes alternate.  The edits file is in
+ * the page cache of the OS for all the runs but the first.
+ *
+ * Input arguments:
+ * <ul>
+ * <li>files - number of files created by the edits, default 250000,
+ *     that is 1000000 ops</li>
+ * <li>iterations - number of runs of each mode, default 3</li>
+ * <li>filesPerDir - number of files in each directory, default 1000</li>
+ * </ul>
+ */
+public class EditLogReplayBenchmark {
+  private static final String[] MODES = {"inline", "prefetch"};
+
+  public static void main(String[] args) throws Exception {
+    final int numFiles = args.length > 0? Integer.parseInt(args[0]): 250000;
+    final int iterations = args.length > 1? Integer.parseInt(args[1]): 3;
+    final int filesPerDir = args.length > 2? Integer.parseInt(args[2]): 1000;
+    System.out.println("files = " + numFiles + ", iterations = "
+        + iterations + ", filesPerDir = " + filesPerDir);
+
+    final File base = new File(MiniDFSCluster.getBaseDirectory(),
+        "replay-benchmark");
+    FileUtil.fullyDelete(base);
+    if (!base.mkdirs()) {
+      throw new IllegalStateException("Failed to create " + base);
+    }
+    final File edits = new File(base, "edits");
+    final long numOps = writeEdits(edits, numFiles, filesPerDir);
+    System.out.println("Generated " + numOps + " ops, " + edits.length()
+        + " bytes");
+
+    final Configuration conf = new HdfsConfiguration();
+    final long[] nanos = new long[MODES.length];
+    for(int i = 0; i < iterations; i++) {
+      for(int m = 0; m < MODES.length; m++) {
+        final long n = replay(conf, edits, numOps, m == 1);
+        System.out.println(MODES[m] + " run " + i + ": "
+            + (numOps * 1000000000L / n) + " ops/s");
+        nanos[m] += n;
+      }
+    }
+    for(int m = 0; m < MODES.length; m++) {
+      System.out.println(MODES[m] + ": " + (iterations * numOps
+          * 1000000000L / nanos[m]) + " ops/s");
+    }
+    FileUtil.fullyDelete(base);
+  }
+
+  /**
+   * Write the edits creating the files.
+   * @return the number of ops written.
+   */
+  private static long writeEdits(File edits, int numFiles, int filesPerDir)
+      throws IOException {
+    final PermissionStatus permissions = PermissionStatus.createImmutable(
+        "user", "supergroup", FsPermission.getDefault());
+    final long blockSize = 64L << 20;
+    final short replication = 3;
+    final EditLogFileOutputStream out = new EditLogFileOutputStream(edits,
+        1 << 20);
+    long txid = 0;
+    try {
+      out.create();
+      String dir = null;
+      for(int i = 0; i < numFiles; i++) {
+        if (i % filesPerDir == 0) {
+          dir = "/dir" + (i / filesPerDir);
+          final MkdirOp mkdir = MkdirOp.getInstance()
+              .setPath(dir)
+              .setTimestamp(i)
+              .setPermissionStatus(permissions);
+          write(out, mkdir, ++txid);
+        }
+        final String path = dir + "/file" + i;
+        final long genStamp = GenerationStamp.FIRST_VALID_STAMP + i;
+        write(out, SetGenstampOp.getInstance().setGenerationStamp(genStamp),
+            ++txid);
+
+        final AddOp add = AddOp.getInstance()
+            .setPath(path)
+            .setReplication(replication)
+            .setModificationTime(i)
+            .setAccessTime(i)
+            .setBlockSize(blockSize)
+            .setBlocks(new Block[0])
+            .setPermissionStatus(permissions)
+            .setClientName("client")
+            .setClientMachine("machine");
+        write(out, add, ++txid);
+
+        final CloseOp close = CloseOp.getInstance()
+            .setPath(path)
+            .setReplication(replication)
+            .setModificationTime(i)
+            .setAccessTime(i)
+            .setBlockSize(blockSize)
+            .setBlocks(new Block[] {new Block(1000000L + i, blockSize,
+                genStamp)})
+            .setPermissionStatus(permissions);
+        write(out, close, ++txid);
+
+        if (i % 256 == 255) {
+          out.setReadyToFlush();
+          out.flush();
+        }
+      }
+      out.setReadyToFlush();
+      out.flush();
+    } finally {
+      out.close();
+    }
+    return txid;
+  }
+
+  private static void write(EditLogOutputStream out, FSEditLogOp op,
+      long txid) throws IOException {
+    op.setTransactionId(txid);
+    out.write(op);
+  }
+
+  /**
+   * Replay the edits into the namesystem of a newly formatted cluster.
+   * @return the time taken by the replay in nanoseconds.
+   */
+  private static long replay(Configuration conf, File edits, long numOps,
+      boolean prefetch) throws IOException {
+    final MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf)
+        .numDataNodes(0).format(true).build();
+    try {
+      cluster.waitActive();
+      final FSEditLogLoader loader =
+          new FSEditLogLoader(cluster.getNamesystem());
+      EditLogInputStream in = new EditLogFileInputStream(edits);
+      if (prefetch) {
+        in = new PrefetchingEditLogInputStream(in);
+      }
+      final long start = System.nanoTime();
+      final int loaded = loader.loadFSEdits(in, 1);
+      final long nanos = Math.max(System.nanoTime() - start, 1);
+      if (loaded != numOps) {
+        throw new IllegalStateException("Replayed " + loaded
+            + " ops but the edits have " + numOps);
+      }
+      return nanos;
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.security.auth.login.LoginException;
 
@@ -492,6 +493,8 @@ public class NNThroughputBenchmark {
     protected FileNameGenerator nameGenerator;
     protected String[][] fileNames;
     private boolean closeUponCreate;
+    private long usedHeapBefore;  // heap used after inputs are generated
+    private long usedHeapAfter;   // heap used after files are created
 
     CreateFileStats(List<String> args) {
       super();
@@ -537,6 +540,22 @@ public class NNThroughputBenchmark {
           fileNames[idx][jdx] = nameGenerator.
                                   getNextFileName("ThroughputBench");
       }
+      usedHeapBefore = getUsedHeap();
+    }
+
+    void benchmark() throws IOException {
+      super.benchmark();
+      usedHeapAfter = getUsedHeap();
+    }
+
+    /**
+     * Heap used by the name-node process after a full garbage collection.
+     * The name-node runs in the same JVM as the benchmark.
+     */
+    private long getUsedHeap() {
+      Runtime rt = Runtime.getRuntime();
+      System.gc();
+      return rt.totalMemory() - rt.freeMemory();
     }
 
     void dummyActionNoSynch(int daemonId, int fileIdx) {
@@ -574,6 +593,10 @@ public class NNThroughputBenchmark {
       LOG.info("nrThreads = " + numThreads);
       LOG.info("nrFilesPerDir = " + nameGenerator.getFilesPerDirectory());
       printStats();
+      if(OP_CREATE_NAME.equals(getOpName()) && getNumOpsExecuted() > 0) {
+        LOG.info("Heap per file: "
+            + (usedHeapAfter - usedHeapBefore) / getNumOpsExecuted());
+      }
     }
   }
 
@@ -751,6 +774,223 @@ public class NNThroughputBenchmark {
     }
   }
 
+  /**
+   * Mixed read/write statistics on disjoint subtrees.
+   *
+   * Each thread creates files under its own subtree of the base directory,
+   * and follows every create with a number of getBlockLocations() calls
+   * on files of the same subtree.
+   * Since threads never touch each other's directories, the throughput
+   * of this benchmark as the number of threads grows shows how much
+   * the name-node serializes mutations of unrelated parts of the namespace.
+   */
+  class MixedDisjointStats extends CreateFileStats {
+    // Operation types
+    static final String OP_MIXED_DISJOINT_NAME = "mixedDisjoint";
+    static final String OP_MIXED_DISJOINT_USAGE =
+      "-op " + OP_MIXED_DISJOINT_NAME +
+      " [-threads T] [-files N] [-filesPerDir P] [-readsPerWrite R]";
+
+    private int readsPerWrite;  // number of reads following each create
+
+    // Latency histogram of the read calls: bucket i counts the calls
+    // which took less than 2^i microseconds and not less than 2^(i-1).
+    private static final int NUM_LATENCY_BUCKETS = 40;
+    private final AtomicLongArray readLatencies =
+        new AtomicLongArray(NUM_LATENCY_BUCKETS);
+
+    MixedDisjointStats(List<String> args) {
+      super(args);
+    }
+
+    String getOpName() {
+      return OP_MIXED_DISJOINT_NAME;
+    }
+
+    void parseArguments(List<String> args) {
+      readsPerWrite = 1;
+      int rpwIndex = args.indexOf("-readsPerWrite");
+      if(rpwIndex >= 0) {
+        if(args.size() <= rpwIndex + 1)
+          printUsage();
+        readsPerWrite = Integer.parseInt(args.get(rpwIndex+1));
+        args.remove(rpwIndex+1);
+        args.remove(rpwIndex);
+      }
+      super.parseArguments(args);
+    }
+
+    /**
+     * Generate file names so that each thread owns a separate subtree.
+     */
+    void generateInputs(int[] opsPerThread) throws IOException {
+      assert opsPerThread.length == numThreads : "Error opsPerThread.length";
+      nameNodeProto.setSafeMode(HdfsConstants.SafeModeAction.SAFEMODE_LEAVE);
+      LOG.info("Generate " + numOpsRequired + " intputs for " + getOpName());
+      fileNames = new String[numThreads][];
+      for(int idx=0; idx < numThreads; idx++) {
+        FileNameGenerator subtreeGenerator = new FileNameGenerator(
+            getBaseDir() + "/subtree" + idx,
+            nameGenerator.getFilesPerDirectory());
+        int threadOps = opsPerThread[idx];
+        fileNames[idx] = new String[threadOps];
+        for(int jdx=0; jdx < threadOps; jdx++)
+          fileNames[idx][jdx] = subtreeGenerator.
+                                  getNextFileName("ThroughputBench");
+      }
+    }
+
+    /**
+     * Create and close a file, then read back the most recently
+     * created files of the same subtree, each with getFileInfo
+     * and getBlockLocations.
+     */
+    long executeOp(int daemonId, int inputIdx, String clientName)
+    throws IOException {
+      String fileName = fileNames[daemonId][inputIdx];
+      long start = System.currentTimeMillis();
+      nameNodeProto.create(fileName, FsPermission.getDefault(),
+          clientName, new EnumSetWritable<CreateFlag>(EnumSet
+              .of(CreateFlag.CREATE, CreateFlag.OVERWRITE)), true, replication, BLOCK_SIZE);
+      for(boolean written = false; !written;
+        written = nameNodeProto.complete(fileName, clientName, null));
+      for(int r = 0; r < readsPerWrite; r++) {
+        String readName = fileNames[daemonId][Math.max(0, inputIdx - r)];
+        long readStart = System.nanoTime();
+        nameNodeProto.getFileInfo(readName);
+        long readEnd = System.nanoTime();
+        addReadLatency(readEnd - readStart);
+        nameNodeProto.getBlockLocations(readName, 0L, BLOCK_SIZE);
+        addReadLatency(System.nanoTime() - readEnd);
+      }
+      long end = System.currentTimeMillis();
+      return end-start;
+    }
+
+    private void addReadLatency(long nanos) {
+      int bucket = 64 - Long.numberOfLeadingZeros(nanos / 1000);
+      readLatencies.incrementAndGet(Math.min(bucket, NUM_LATENCY_BUCKETS - 1));
+    }
+
+    /**
+     * Print the read latency histogram and the bucket
+     * of some percentiles.
+     */
+    private void printReadLatencies() {
+      long total = 0;
+      for(int i = 0; i < NUM_LATENCY_BUCKETS; i++)
+        total += readLatencies.get(i);
+      if(total == 0)
+        return;
+      LOG.info("Read latency histogram (microseconds):");
+      double[] percentiles = {0.5, 0.9, 0.99, 0.999};
+      int p = 0;
+      long count = 0;
+      for(int i = 0; i < NUM_LATENCY_BUCKETS; i++) {
+        long n = readLatencies.get(i);
+        if(n == 0)
+          continue;
+        count += n;
+        LOG.info("  < " + (1L << i) + ": " + n);
+        for(; p < percentiles.length && count >= percentiles[p] * total; p++)
+          LOG.info("p" + (percentiles[p] * 100) + " < " + (1L << i));
+      }
+    }
+
+    void printResults() {
+      LOG.info("--- " + getOpName() + " inputs ---");
+      LOG.info("nrFiles = " + numOpsRequired);
+      LOG.info("nrThreads = " + numThreads);
+      LOG.info("nrFilesPerDir = " + nameGenerator.getFilesPerDirectory());
+      LOG.info("readsPerWrite = " + readsPerWrite);
+      printStats();
+      printReadLatencies();
+    }
+  }
+
+  /**
+   * Lease statistics.
+   *
+   * Before the measurement, a number of files is created and left open,
+   * spread over several clients, so that the name-node holds many leases.
+   * Each operation then creates a file, renames it and deletes it,
+   * which adds, changes and removes the lease of the file.
+   */
+  class LeaseStats extends CreateFileStats {
+    // Operation types
+    static final String OP_LEASE_NAME = "lease";
+    static final String OP_LEASE_USAGE =
+      "-op " + OP_LEASE_NAME +
+      " [-threads T] [-files N] [-filesPerDir P] [-openFiles F]";
+
+    private int nrOpenFiles;  // number of files kept open during the run
+
+    LeaseStats(List<String> args) {
+      super(args);
+    }
+
+    String getOpName() {
+      return OP_LEASE_NAME;
+    }
+
+    void parseArguments(List<String> args) {
+      nrOpenFiles = 10000;
+      int ofIndex = args.indexOf("-openFiles");
+      if(ofIndex >= 0) {
+        if(args.size() <= ofIndex + 1)
+          printUsage();
+        nrOpenFiles = Integer.parseInt(args.get(ofIndex+1));
+        args.remove(ofIndex+1);
+        args.remove(ofIndex);
+      }
+      super.parseArguments(args);
+    }
+
+    /**
+     * Create the files which stay open, then generate the names
+     * of the files to create, rename and delete.
+     */
+    void generateInputs(int[] opsPerThread) throws IOException {
+      super.generateInputs(opsPerThread);
+      LOG.info("Create " + nrOpenFiles + " open files for " + getOpName());
+      FileNameGenerator openGenerator = new FileNameGenerator(
+          getBaseDir() + "/open", nameGenerator.getFilesPerDirectory());
+      for(int idx=0; idx < nrOpenFiles; idx++) {
+        nameNodeProto.create(openGenerator.getNextFileName("ThroughputBench"),
+            FsPermission.getDefault(), getClientName(idx % numThreads),
+            new EnumSetWritable<CreateFlag>(EnumSet.of(CreateFlag.CREATE)),
+            true, replication, BLOCK_SIZE);
+      }
+    }
+
+    /**
+     * Create a file, rename it and delete it.
+     */
+    @SuppressWarnings("deprecation")
+    long executeOp(int daemonId, int inputIdx, String clientName)
+    throws IOException {
+      String fileName = fileNames[daemonId][inputIdx];
+      String destName = fileName + ".r";
+      long start = System.currentTimeMillis();
+      nameNodeProto.create(fileName, FsPermission.getDefault(),
+          clientName, new EnumSetWritable<CreateFlag>(EnumSet
+              .of(CreateFlag.CREATE, CreateFlag.OVERWRITE)), true, replication, BLOCK_SIZE);
+      nameNodeProto.rename(fileName, destName);
+      nameNodeProto.delete(destName, false);
+      long end = System.currentTimeMillis();
+      return end-start;
+    }
+
+    void printResults() {
+      LOG.info("--- " + getOpName() + " inputs ---");
+      LOG.info("nrFiles = " + numOpsRequired);
+      LOG.info("nrThreads = " + numThreads);
+      LOG.info("nrFilesPerDir = " + nameGenerator.getFilesPerDirectory());
+      LOG.info("nrOpenFiles = " + nrOpenFiles);
+      printStats();
+    }
+  }
+
   /**
    * Minimal data-node simulator.
    */
@@ -1039,6 +1279,90 @@ public class NNThroughputBenchmark {
     }
   }   // end BlockReportStats
 
+  /**
+   * Heartbeat statistics.
+   * 
+   * The data-nodes are registered first. Then each thread sends heartbeats
+   * on behalf of its share of the data-nodes, in turn.
+   */
+  class HeartbeatStats extends OperationStatsBase {
+    static final String OP_HEARTBEAT_NAME = "heartbeat";
+    static final String OP_HEARTBEAT_USAGE = 
+      "-op heartbeat [-datanodes N] [-threads T] [-heartbeats H]";
+
+    private int numDatanodes;
+    private TinyDatanode[] datanodes;
+
+    HeartbeatStats(List<String> args) {
+      super();
+      this.numDatanodes = 100;
+      // set heartbeat interval to 3 min, so that expiration were 40 min
+      config.setLong(DFSConfigKeys.DFS_HEARTBEAT_INTERVAL_KEY, 3 * 60);
+      parseArguments(args);
+    }
+
+    String getOpName() {
+      return OP_HEARTBEAT_NAME;
+    }
+
+    void parseArguments(List<String> args) {
+      boolean ignoreUnrelatedOptions = verifyOpArgument(args);
+      for (int i = 2; i < args.size(); i++) {       // parse command line
+        if(args.get(i).equals("-heartbeats")) {
+          if(i+1 == args.size())  printUsage();
+          numOpsRequired = Integer.parseInt(args.get(++i));
+        } else if(args.get(i).equals("-datanodes")) {
+          if(i+1 == args.size())  printUsage();
+          numDatanodes = Integer.parseInt(args.get(++i));
+        } else if(args.get(i).equals("-threads")) {
+          if(i+1 == args.size())  printUsage();
+          numThreads = Integer.parseInt(args.get(++i));
+        } else if(!ignoreUnrelatedOptions)
+          printUsage();
+      }
+    }
+
+    void generateInputs(int[] ignore) throws IOException {
+      datanodes = new TinyDatanode[numDatanodes];
+      for(int idx=0; idx < numDatanodes; idx++) {
+        datanodes[idx] = new TinyDatanode(idx, 0);
+        datanodes[idx].register();
+        datanodes[idx].sendHeartbeat();
+      }
+    }
+
+    /**
+     * Does not require the argument
+     */
+    String getExecutionArgument(int daemonId) {
+      return null;
+    }
+
+    /**
+     * Thread daemonId sends the heartbeats of data-nodes
+     * daemonId, daemonId + numThreads, ...
+     */
+    long executeOp(int daemonId, int inputIdx, String ignore) throws IOException {
+      assert daemonId < numThreads : "Wrong daemonId.";
+      final int perThread = (numDatanodes - daemonId + numThreads - 1) / numThreads;
+      if(perThread <= 0)  // more threads than data-nodes
+        return 0;
+      TinyDatanode dn = datanodes[daemonId + (inputIdx % perThread) * numThreads];
+      long start = System.currentTimeMillis();
+      dn.sendHeartbeat();
+      long end = System.currentTimeMillis();
+      return end-start;
+    }
+
+    void printResults() {
+      LOG.info("--- " + getOpName() + " inputs ---");
+      LOG.info("heartbeats = " + numOpsRequired);
+      LOG.info("datanodes = " + numDatanodes);
+      LOG.info("nrThreads = " + numThreads);
+      printStats();
+    }
+  }   // end HeartbeatStats
+
   /**
    * Measures how fast replication monitor can compute data-node work.
    * 
@@ -1048,14 +1372,17 @@ public class NNThroughputBenchmark {
     static final String OP_REPLICATION_NAME = "replication";
     static final String OP_REPLICATION_USAGE = 
       "-op replication [-datanodes T] [-nodesToDecommission D] " +
-      "[-nodeReplicationLimit C] [-totalBlocks B] [-replication R]";
+      "[-nodesToKill K] [-nodeReplicationLimit C] [-totalBlocks B] " +
+      "[-replication R]";
 
     private BlockReportStats blockReportObject;
     private int numDatanodes;
     private int nodesToDecommission;
+    private int nodesToKill;
     private int nodeReplicationLimit;
     private int totalBlocks;
     private int numDecommissionedBlocks;
+    private int numKilledBlocks;
     private int numPendingBlocks;
 
     ReplicationStats(List<String> args) {
@@ -1063,13 +1390,15 @@ public class NNThroughputBenchmark {
       numThreads = 1;
       numDatanodes = 3;
       nodesToDecommission = 1;
+      nodesToKill = 0;
       nodeReplicationLimit = 100;
       totalBlocks = 100;
       parseArguments(args);
       // number of operations is 4 times the number of decommissioned
       // blocks divided by the number of needed replications scanned 
       // by the replication monitor in one iteration
-      numOpsRequired = (totalBlocks*replication*nodesToDecommission*2)
+      numOpsRequired = (totalBlocks*replication
+            *(nodesToDecommission + nodesToKill)*2)
             / (numDatanodes*numDatanodes);
 
       String[] blkReportArgs = {
@@ -1079,6 +1408,7 @@ public class NNThroughputBenchmark {
         "-blocksPerFile", String.valueOf(numDatanodes)};
       blockReportObject = new BlockReportStats(Arrays.asList(blkReportArgs));
       numDecommissionedBlocks = 0;
+      numKilledBlocks = 0;
       numPendingBlocks = 0;
     }
 
@@ -1095,6 +1425,9 @@ public class NNThroughputBenchmark {
         } else if(args.get(i).equals("-nodesToDecommission")) {
           if(i+1 == args.size())  printUsage();
           nodesToDecommission = Integer.parseInt(args.get(++i));
+        } else if(args.get(i).equals("-nodesToKill")) {
+          if(i+1 == args.size())  printUsage();
+          nodesToKill = Integer.parseInt(args.get(++i));
         } else if(args.get(i).equals("-nodeReplicationLimit")) {
           if(i+1 == args.size())  printUsage();
           nodeReplicationLimit = Integer.parseInt(args.get(++i));
@@ -1130,6 +1463,8 @@ public class NNThroughputBenchmark {
       }
       // decommission data-nodes
       decommissionNodes();
+      // lose data-nodes, as when a rack fails
+      killNodes();
       // set node replication limit
       BlockManagerTestUtil.setNodeReplicationLimit(namesystem.getBlockManager(),
           nodeReplicationLimit);
@@ -1152,6 +1487,23 @@ public class NNThroughputBenchmark {
       nameNodeProto.refreshNodes();
     }
 
+    /**
+     * Remove the data-nodes preceding the decommissioned ones,
+     * as if their heartbeats were lost.
+     */
+    private void killNodes() throws IOException {
+      int nrDatanodes = blockReportObject.getNumDatanodes();
+      numKilledBlocks = 0;
+      for(int i=0; i < nodesToKill; i++) {
+        TinyDatanode dn =
+          blockReportObject.datanodes[nrDatanodes-1-nodesToDecommission-i];
+        numKilledBlocks += dn.nrBlocks;
+        nameNode.getNamesystem().getBlockManager().getDatanodeManager()
+            .removeDatanode(dn.dnRegistration);
+        LOG.info("Datanode " + dn.getName() + " is killed.");
+      }
+    }
+
     /**
      * Does not require the argument
      */
@@ -1184,10 +1536,12 @@ public class NNThroughputBenchmark {
       LOG.info("numOpsRequired = " + numOpsRequired);
       LOG.info("datanodes = " + numDatanodes + " " + blockDistribution);
       LOG.info("decommissioned datanodes = " + nodesToDecommission);
+      LOG.info("killed datanodes = " + nodesToKill);
       LOG.info("datanode replication limit = " + nodeReplicationLimit);
       LOG.info("total blocks = " + totalBlocks);
       printStats();
       LOG.info("decommissioned blocks = " + numDecommissionedBlocks);
+      LOG.info("killed blocks = " + numKilledBlocks);
       LOG.info("pending replications = " + numPendingBlocks);
       LOG.info("replications per sec: " + getBlocksPerSecond());
     }
@@ -1206,7 +1560,10 @@ public class NNThroughputBenchmark {
         + " | \n\t" + DeleteFileStats.OP_DELETE_USAGE
         + " | \n\t" + FileStatusStats.OP_FILE_STATUS_USAGE
         + " | \n\t" + RenameFileStats.OP_RENAME_USAGE
+        + " | \n\t" + MixedDisjointStats.OP_MIXED_DISJOINT_USAGE
+        + " | \n\t" + LeaseStats.OP_LEASE_USAGE
         + " | \n\t" + BlockReportStats.OP_BLOCK_REPORT_USAGE
+        + " | \n\t" + HeartbeatStats.OP_HEARTBEAT_USAGE
         + " | \n\t" + ReplicationStats.OP_REPLICATION_USAGE
         + " | \n\t" + CleanAllStats.OP_CLEAN_USAGE
         + " | \n\t" + GENERAL_OPTIONS_USAGE
@@ -1250,10 +1607,22 @@ public class NNThroughputBenchmark {
         opStat = bench.new RenameFileStats(args);
         ops.add(opStat);
       }
+      if(runAll || MixedDisjointStats.OP_MIXED_DISJOINT_NAME.equals(type)) {
+        opStat = bench.new MixedDisjointStats(args);
+        ops.add(opStat);
+      }
+      if(runAll || LeaseStats.OP_LEASE_NAME.equals(type)) {
+        opStat = bench.new LeaseStats(args);
+        ops.add(opStat);
+      }
       if(runAll || BlockReportStats.OP_BLOCK_REPORT_NAME.equals(type)) {
         opStat = bench.new BlockReportStats(args);
         ops.add(opStat);
       }
+      if(runAll || HeartbeatStats.OP_HEARTBEAT_NAME.equals(type)) {
+        opStat = bench.new HeartbeatStats(args);
+        ops.add(opStat);
+      }
       if(runAll || ReplicationStats.OP_REPLICATION_NAME.equals(type)) {
         opStat = bench.new ReplicationStats(args);
         ops.add(opStat);
@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.logging.impl.NoOpLog;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.junit.Test;
+
+/**
+ * Test writing audit events in the background.
+ */
+public class TestAsyncAuditLogger {
+  /** A log which keeps the messages written to it. */
+  static class RecordingLog extends NoOpLog {
+    private static final long serialVersionUID = 1L;
+
+    final List<String> messages =
+        Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    public boolean isInfoEnabled() {
+      return true;
+    }
+
+    @Override
+    public void info(Object message) {
+      messages.add(message.toString());
+    }
+  }
+
+  private static final UserGroupInformation UGI =
+      UserGroupInformation.createRemoteUser("user");
+
+  private static String expected(InetAddress addr, String src) {
+    final StringBuilder sb = new StringBuilder();
+    FSNamesystem.appendAuditEvent(sb, UGI, addr, "open", src, null, null);
+    return sb.toString();
+  }
+
+  /** Events are written in order, and all of them once stopped. */
+  @Test(timeout=60000)
+  public void testEventsWrittenInOrder() throws Exception {
+    final RecordingLog log = new RecordingLog();
+    final InetAddress addr = InetAddress.getByName("127.0.0.1");
+    final AsyncAuditLogger logger = new AsyncAuditLogger(log, 100, true);
+    final int n = 10 * AsyncAuditLogger.MAX_BATCH_SIZE;
+    for (int i = 0; i < n; i++) {
+      logger.logAuditEvent(UGI, addr, "open", "/file" + i, null, null);
+    }
+    logger.stop();
+
+    assertEquals(n, log.messages.size());
+    for (int i = 0; i < n; i++) {
+      assertEquals(expected(addr, "/file" + i), log.messages.get(i));
+    }
+    assertEquals(0, logger.getDroppedEvents());
+    assertEquals(0, logger.getQueueSize());
+
+    // written right away after stop
+    logger.logAuditEvent(UGI, addr, "open", "/last", null, null);
+    assertEquals(expected(addr, "/last"), log.messages.get(n));
+  }
+
+  /** Events are dropped when the queue is full, if so configured. */
+  @Test(timeout=60000)
+  public void testDropWhenFull() throws Exception {
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final RecordingLog log = new RecordingLog() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public void info(Object message) {
+        writing.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        super.info(message);
+      }
+    };
+    final InetAddress addr = InetAddress.getByName("127.0.0.1");
+    final int queueSize = 2;
+    final AsyncAuditLogger logger = new AsyncAuditLogger(log, queueSize, false);
+
+    // the writer takes the first event and waits in the log
+    logger.logAuditEvent(UGI, addr, "open", "/file0", null, null);
+    writing.await();
+    for (int i = 1; i <= queueSize + 3; i++) {
+      logger.logAuditEvent(UGI, addr, "open", "/file" + i, null, null);
+    }
+    assertEquals(queueSize, logger.getQueueSize());
+    assertEquals(3, logger.getDroppedEvents());
+
+    release.countDown();
+    logger.stop();
+    assertEquals(queueSize + 1, log.messages.size());
+    for (int i = 0; i <= queueSize; i++) {
+      assertEquals(expected(addr, "/file" + i), log.messages.get(i));
+    }
+  }
+}
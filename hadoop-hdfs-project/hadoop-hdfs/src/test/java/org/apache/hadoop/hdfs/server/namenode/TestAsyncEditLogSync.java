@@ -0,0 +1,168 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.spy;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.blockmanagement.BlockManager;
+import org.apache.hadoop.hdfs.server.namenode.JournalSet.JournalAndStream;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Test the asynchronous edit log sync enabled by
+ * {@link DFSConfigKeys#DFS_NAMENODE_EDITS_ASYNC_LOGGING_KEY}.
+ */
+public class TestAsyncEditLogSync {
+  /** Block the flushes of the first journal until allowed. */
+  private static void blockFlushes(FSEditLog editLog,
+      final CountDownLatch flushStarted, final CountDownLatch allowFlush) {
+    final JournalAndStream jas = editLog.getJournals().get(0);
+    final EditLogOutputStream spyStream = spy(jas.getCurrentStream());
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        flushStarted.countDown();
+        allowFlush.await();
+        invocation.callRealMethod();
+        return null;
+      }
+    }).when(spyStream).flush();
+    jas.setCurrentStreamForTests(spyStream);
+  }
+
+  /**
+   * The response to a call is postponed until its edits are synced,
+   * and the handler serves other calls meanwhile.
+   */
+  @Test(timeout=120000)
+  public void testResponsePostponedUntilSynced() throws Exception {
+    final Configuration conf = new HdfsConfiguration();
+    conf.setBoolean(DFSConfigKeys.DFS_NAMENODE_EDITS_ASYNC_LOGGING_KEY, true);
+    // a single handler, so that the other calls are only served
+    // if the handler is not waiting for the sync
+    conf.setInt(DFSConfigKeys.DFS_NAMENODE_HANDLER_COUNT_KEY, 1);
+    final MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf)
+        .numDataNodes(0).build();
+    final CountDownLatch flushStarted = new CountDownLatch(1);
+    final CountDownLatch allowFlush = new CountDownLatch(1);
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      cluster.waitActive();
+      final FileSystem fs = cluster.getFileSystem();
+      final FSEditLog editLog = cluster.getNamesystem().getEditLog();
+
+      blockFlushes(editLog, flushStarted, allowFlush);
+
+      final Path dir = new Path("/testAsyncSync");
+      final Future<Boolean> mkdirs = executor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          return fs.mkdirs(dir);
+        }
+      });
+      assertTrue(flushStarted.await(60, TimeUnit.SECONDS));
+
+      // the mkdir is applied and logged, but not synced nor responded to
+      final long txid = editLog.getLastWrittenTxId();
+      assertTrue(editLog.getSyncTxId() < txid);
+      assertTrue(fs.exists(dir));
+      Thread.sleep(500);
+      assertFalse(mkdirs.isDone());
+
+      allowFlush.countDown();
+      assertTrue(mkdirs.get());
+      assertTrue(editLog.getSyncTxId() >= txid);
+    } finally {
+      allowFlush.countDown();
+      executor.shutdown();
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * A delete is synced by the calling handler, and the blocks deleted are
+   * neither removed nor invalidated before the delete is durable.
+   */
+  @Test(timeout=120000)
+  public void testDeleteBlocksRemovedOnceSynced() throws Exception {
+    final Configuration conf = new HdfsConfiguration();
+    conf.setBoolean(DFSConfigKeys.DFS_NAMENODE_EDITS_ASYNC_LOGGING_KEY, true);
+    conf.setLong(DFSConfigKeys.DFS_BLOCK_SIZE_KEY, 1024);
+    final MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf)
+        .numDataNodes(1).build();
+    final CountDownLatch flushStarted = new CountDownLatch(1);
+    final CountDownLatch allowFlush = new CountDownLatch(1);
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      cluster.waitActive();
+      final FileSystem fs = cluster.getFileSystem();
+      final FSNamesystem fsn = cluster.getNamesystem();
+      final BlockManager bm = fsn.getBlockManager();
+      final Path file = new Path("/testAsyncSync/file");
+      DFSTestUtil.createFile(fs, file, 4096, (short)1, 0L);
+      final Block block = DFSTestUtil.getFirstBlock(fs, file).getLocalBlock();
+
+      final FSEditLog editLog = fsn.getEditLog();
+      blockFlushes(editLog, flushStarted, allowFlush);
+      final Future<Boolean> delete = executor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          return fs.delete(file.getParent(), true);
+        }
+      });
+      assertTrue(flushStarted.await(60, TimeUnit.SECONDS));
+
+      // the delete is applied and logged, but its blocks are kept
+      final long txid = editLog.getLastWrittenTxId();
+      assertTrue(editLog.getSyncTxId() < txid);
+      assertFalse(fs.exists(file));
+      Thread.sleep(500);
+      assertFalse(delete.isDone());
+      assertNotNull(bm.getStoredBlock(block));
+      assertEquals(0, bm.getPendingDeletionBlocksCount());
+
+      allowFlush.countDown();
+      assertTrue(delete.get());
+      assertTrue(editLog.getSyncTxId() >= txid);
+      assertNull(bm.getStoredBlock(block));
+    } finally {
+      allowFlush.countDown();
+      executor.shutdown();
+      cluster.shutdown();
+    }
+  }
+}
@@ -0,0 +1,214 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.BlockListAsLongs;
+import org.apache.hadoop.hdfs.server.blockmanagement.BlockInfo;
+import org.apache.hadoop.hdfs.server.blockmanagement.BlockManager;
+import org.apache.hadoop.hdfs.server.blockmanagement.DatanodeDescriptor;
+import org.apache.hadoop.hdfs.server.common.GenerationStamp;
+import org.apache.hadoop.hdfs.server.common.HdfsServerConstants.NamenodeRole;
+import org.apache.hadoop.hdfs.server.protocol.DatanodeRegistration;
+import org.apache.hadoop.hdfs.server.protocol.ReceivedDeletedBlockInfo;
+import org.apache.hadoop.test.GenericTestUtils;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Test the processing of a block report in chunks, between which the
+ * namesystem lock is released and other calls from the datanode are
+ * processed.
+ */
+public class TestChunkedBlockReport {
+  private static final int CHUNK_SIZE = 2;
+  private static final int NUM_BLOCKS = 10;
+  private static final String POOL_ID = "BP-TestChunkedBlockReport";
+
+  private FSNamesystem fsn;
+  private BlockManager bm;
+  private DatanodeRegistration nodeReg;
+  private DatanodeDescriptor node;
+  private final List<BlockInfo> blocks = new ArrayList<BlockInfo>();
+
+  /** The depth of the mocked namesystem write lock. */
+  private int lockDepth = 0;
+  /** Run once when the write lock is next released. */
+  private Runnable onUnlock = null;
+
+  @BeforeClass
+  public static void initMetrics() {
+    NameNode.initMetrics(new HdfsConfiguration(), NamenodeRole.NAMENODE);
+  }
+
+  @Before
+  public void setup() throws IOException {
+    final Configuration conf = new HdfsConfiguration();
+    conf.setInt(DFSConfigKeys.DFS_NAMENODE_BLOCKREPORT_CHUNK_SIZE_KEY,
+        CHUNK_SIZE);
+    fsn = Mockito.mock(FSNamesystem.class);
+    Mockito.doReturn(true).when(fsn).hasWriteLock();
+    Mockito.doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        lockDepth++;
+        return null;
+      }
+    }).when(fsn).writeLock();
+    Mockito.doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        if (--lockDepth == 0 && onUnlock != null) {
+          final Runnable r = onUnlock;
+          onUnlock = null;
+          r.run();
+        }
+        return null;
+      }
+    }).when(fsn).writeUnlock();
+    bm = new BlockManager(fsn, fsn, conf);
+
+    nodeReg = new DatanodeRegistration("h1:5020");
+    bm.getDatanodeManager().registerDatanode(nodeReg);
+    node = bm.getDatanodeManager().getDatanode(nodeReg);
+
+    final INodeFile iNode = Mockito.mock(INodeFile.class);
+    Mockito.doReturn((short)1).when(iNode).getReplication();
+    for(int i = 1; i <= NUM_BLOCKS; i++) {
+      blocks.add(bm.addINode(new BlockInfo(
+          new Block(i, 0, GenerationStamp.FIRST_VALID_STAMP), 1), iNode));
+    }
+    // the first report of the node
+    bm.processReport(nodeReg, POOL_ID, report(blocks));
+    assertEquals(NUM_BLOCKS, node.numBlocks());
+  }
+
+  private static BlockListAsLongs report(List<BlockInfo> blocks) {
+    final List<Block> reported = new ArrayList<Block>();
+    for(BlockInfo b : blocks) {
+      reported.add(new Block(b));
+    }
+    return new BlockListAsLongs(reported, null);
+  }
+
+  private int liveReplicas(Block b) {
+    return bm.countNodes(b).liveReplicas();
+  }
+
+  /**
+   * A replica received between the chunks of a report which does not
+   * include it is not removed as unreported; the other replicas not
+   * reported are.
+   */
+  @Test
+  public void testBlockReceivedDuringReport() throws IOException {
+    final BlockInfo received = blocks.get(NUM_BLOCKS - 3);
+    onUnlock = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          bm.blockReceivedAndDeleted(nodeReg, POOL_ID,
+              new ReceivedDeletedBlockInfo[] {
+                  new ReceivedDeletedBlockInfo(new Block(received), "")});
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    final List<BlockInfo> reported = blocks.subList(0, NUM_BLOCKS / 2);
+    bm.processReport(nodeReg, POOL_ID, report(reported));
+    assertNull("Not run between the chunks of the report", onUnlock);
+
+    for(BlockInfo b : blocks) {
+      final int expected = reported.contains(b) || b == received? 1: 0;
+      assertEquals("Replicas of " + b, expected, liveReplicas(b));
+    }
+    assertEquals(reported.size() + 1, node.numBlocks());
+  }
+
+  /**
+   * The delimiter placed in the list of blocks of the node during a report
+   * is neither counted nor iterated over.
+   */
+  @Test
+  public void testDelimiterHidden() throws IOException {
+    final List<Block> iterated = new ArrayList<Block>();
+    onUnlock = new Runnable() {
+      @Override
+      public void run() {
+        assertEquals(NUM_BLOCKS, node.numBlocks());
+        for(Iterator<BlockInfo> i = node.getBlockIterator(); i.hasNext(); ) {
+          iterated.add(i.next());
+        }
+      }
+    };
+    bm.processReport(nodeReg, POOL_ID, report(blocks));
+    assertNull("Not run between the chunks of the report", onUnlock);
+
+    assertEquals(NUM_BLOCKS, iterated.size());
+    assertTrue(iterated.containsAll(blocks));
+    assertEquals(NUM_BLOCKS, node.numBlocks());
+  }
+
+  /**
+   * A report from a node whose previous report is being processed is
+   * rejected with an error, so that the datanode sends it again.
+   */
+  @Test
+  public void testOverlappingReportRejected() throws IOException {
+    final List<IOException> errors = new ArrayList<IOException>();
+    onUnlock = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          bm.processReport(nodeReg, POOL_ID, new BlockListAsLongs());
+        } catch (IOException e) {
+          errors.add(e);
+        }
+      }
+    };
+    bm.processReport(nodeReg, POOL_ID, report(blocks));
+    assertNull("Not run between the chunks of the report", onUnlock);
+
+    assertEquals(1, errors.size());
+    GenericTestUtils.assertExceptionContains(
+        "still being processed", errors.get(0));
+    // the first report has been processed in full
+    for(BlockInfo b : blocks) {
+      assertEquals("Replicas of " + b, 1, liveReplicas(b));
+    }
+
+    // and a report is accepted once it is done
+    bm.processReport(nodeReg, POOL_ID, new BlockListAsLongs());
+    assertEquals(0, node.numBlocks());
+  }
+}
@@ -17,20 +17,37 @@
  */
 package org.apache.hadoop.hdfs.server.namenode;
 
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.spy;
+
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
 import org.apache.hadoop.hdfs.HdfsConfiguration;
 import org.apache.hadoop.hdfs.MiniDFSCluster;
 import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.HdfsConstants;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.hdfs.server.blockmanagement.BlockInfo;
+import org.apache.hadoop.hdfs.server.blockmanagement.BlockManager;
+import org.apache.hadoop.hdfs.server.namenode.JournalSet.JournalAndStream;
 import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 
 /**
@@ -136,6 +153,8 @@ public class TestLargeDirectoryDelete {
     FSNamesystem.BLOCK_DELETION_INCREMENT = 1;
     mc.getFileSystem().delete(new Path("/root"), true); // recursive delete
     final long end = System.currentTimeMillis();
+    // the deleted subtree has been cleared completely
+    Assert.assertEquals(0, mc.getNamesystem().getPendingReclaimINodes());
     threads[0].endThread();
     threads[1].endThread();
     LOG.info("Deletion took " + (end - start) + "msecs");
@@ -205,6 +224,219 @@ public class TestLargeDirectoryDelete {
     }
   }
   
+  /**
+   * Create /dir with 3 sub directories and 10 files of 3 blocks in them,
+   * 14 inodes in all.
+   * @return the blocks of the files
+   */
+  private List<Block> createSubtree() throws IOException {
+    final FileSystem fs = mc.getFileSystem();
+    final List<Block> blocks = new ArrayList<Block>();
+    for (int i = 0; i < 10; i++) {
+      final Path file = new Path("/dir/sub" + (i % 3) + "/file" + i);
+      createFile(file.toString(), 3);
+      final FSDataInputStream in = fs.open(file);
+      try {
+        for (LocatedBlock b : DFSTestUtil.getAllBlocks(in)) {
+          blocks.add(b.getBlock().getLocalBlock());
+        }
+      } finally {
+        in.close();
+      }
+    }
+    Assert.assertEquals(30, blocks.size());
+    return blocks;
+  }
+
+  /**
+   * The blocks of the deleted files are kept, and still belong to their
+   * files, until the delete is synced to the edit log. The lock hold which
+   * unlinks the subtree visits nothing of it, so its length does not
+   * depend on the size of the subtree.
+   */
+  @Test(timeout=120000)
+  public void testDeletedBlocksKeptUntilSynced() throws Throwable {
+    mc = new MiniDFSCluster.Builder(CONF).build();
+    final CountDownLatch syncStarted = new CountDownLatch(1);
+    final CountDownLatch allowSync = new CountDownLatch(1);
+    try {
+      mc.waitActive();
+      final FileSystem fs = mc.getFileSystem();
+      final List<Block> blocks = createSubtree();
+      final long inodes = mc.getNamesystem().dir.totalInodes();
+
+      // Hold the delete back in logSync, which runs before any batch
+      final FSNamesystem namesystem = mc.getNamesystem();
+      final JournalAndStream jas =
+          namesystem.getEditLog().getJournals().get(0);
+      final EditLogOutputStream spyStream = spy(jas.getCurrentStream());
+      doAnswer(new Answer<Void>() {
+        @Override
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+          syncStarted.countDown();
+          allowSync.await();
+          invocation.callRealMethod();
+          return null;
+        }
+      }).when(spyStream).flush();
+      jas.setCurrentStreamForTests(spyStream);
+
+      FSNamesystem.BLOCK_DELETION_INCREMENT = 1;
+      final TestThread deleter = new TestThread() {
+        @Override
+        protected void execute() throws Throwable {
+          Assert.assertTrue(fs.delete(new Path("/dir"), true));
+        }
+      };
+      deleter.start();
+      Assert.assertTrue(syncStarted.await(60, TimeUnit.SECONDS));
+
+      final BlockManager bm = namesystem.getBlockManager();
+      namesystem.readLock();
+      try {
+        // nothing is reclaimed before the delete is durable, and the
+        // unlink has not counted the inodes of the subtree either
+        Assert.assertEquals(1, namesystem.getPendingReclaimINodes());
+        Assert.assertEquals(inodes, namesystem.dir.totalInodes());
+        Assert.assertEquals(0, bm.getPendingDeletionBlocksCount());
+        for (Block b : blocks) {
+          final BlockInfo storedBlock = bm.getStoredBlock(b);
+          Assert.assertNotNull(storedBlock);
+          Assert.assertNotNull(storedBlock.getINode());
+        }
+      } finally {
+        namesystem.readUnlock();
+      }
+
+      allowSync.countDown();
+      deleter.join();
+      deleter.rethrow();
+      Assert.assertEquals(0, namesystem.getPendingReclaimINodes());
+      Assert.assertEquals(inodes - 14, namesystem.dir.totalInodes());
+      for (Block b : blocks) {
+        Assert.assertNull(bm.getStoredBlock(b));
+      }
+    } finally {
+      allowSync.countDown();
+      mc.shutdown();
+    }
+  }
+
+  /**
+   * Between the batches of a delete, the blocks of the deleted files which
+   * are still in the blocks map belong to no file, and the space of the
+   * inodes cleared is released from the quotas.
+   */
+  @Test(timeout=120000)
+  public void testDeletedBlocksNotLiveBetweenBatches() throws Throwable {
+    mc = new MiniDFSCluster.Builder(CONF).build();
+    try {
+      mc.waitActive();
+      final List<Block> blocks = createSubtree();
+      final FSNamesystem namesystem = mc.getNamesystem();
+      final FSDirectory fsdir = namesystem.dir;
+      final BlockManager bm = namesystem.getBlockManager();
+      final long inodes = fsdir.totalInodes();
+      final List<Block> collected = new ArrayList<Block>();
+
+      namesystem.writeLock();
+      try {
+        final FSDirectory.DeletedSubtree deleted = fsdir.unlink("/dir");
+        Assert.assertEquals(1, deleted.numPending());
+        Assert.assertEquals(inodes, fsdir.totalInodes());
+
+        // the first batch clears the root of the subtree only
+        Assert.assertEquals(1, fsdir.reclaimDeleted(deleted, 1, collected));
+        Assert.assertEquals(3, deleted.numPending());
+        Assert.assertEquals(inodes - 1, fsdir.totalInodes());
+        Assert.assertTrue(collected.isEmpty());
+        for (Block b : blocks) {
+          final BlockInfo storedBlock = bm.getStoredBlock(b);
+          Assert.assertNotNull(storedBlock);
+          Assert.assertNull(storedBlock.getINode());
+        }
+
+        while (!deleted.isCleared()) {
+          fsdir.reclaimDeleted(deleted, 1, collected);
+        }
+        Assert.assertEquals(inodes - 14, fsdir.totalInodes());
+        Assert.assertEquals(blocks.size(), collected.size());
+        for (Block b : collected) {
+          bm.removeBlock(b);
+        }
+      } finally {
+        namesystem.writeUnlock();
+      }
+      namesystem.getEditLog().logSync();
+      for (Block b : blocks) {
+        Assert.assertNull(bm.getStoredBlock(b));
+      }
+    } finally {
+      mc.shutdown();
+    }
+  }
+
+  /**
+   * The space of a deleted subtree left to clear is released from the
+   * quotas of its former ancestors before one of them is moved, so that it
+   * is neither released from the quotas of the new ancestors nor counted
+   * forever in the old ones.
+   */
+  @Test(timeout=120000)
+  public void testDeletedSubtreeSettledWhenAncestorMoved() throws Throwable {
+    mc = new MiniDFSCluster.Builder(CONF).build();
+    try {
+      mc.waitActive();
+      final DistributedFileSystem fs =
+          (DistributedFileSystem)mc.getFileSystem();
+      createSubtree();
+      fs.setQuota(new Path("/dir"), 100, HdfsConstants.QUOTA_DONT_SET);
+      final FSNamesystem namesystem = mc.getNamesystem();
+      final FSDirectory fsdir = namesystem.dir;
+      final long inodes = fsdir.totalInodes();
+      Assert.assertEquals(14, numItemsInTree(fsdir, "/dir"));
+      final List<Block> collected = new ArrayList<Block>();
+
+      // /dir/sub0 has 4 files, 5 inodes in all
+      final FSDirectory.DeletedSubtree deleted;
+      namesystem.writeLock();
+      try {
+        deleted = fsdir.unlink("/dir/sub0");
+        fsdir.reclaimDeleted(deleted, 1, collected);
+      } finally {
+        namesystem.writeUnlock();
+      }
+      Assert.assertEquals(4, deleted.numPending());
+      Assert.assertEquals(13, numItemsInTree(fsdir, "/dir"));
+      Assert.assertEquals(inodes - 1, fsdir.totalInodes());
+
+      Assert.assertTrue(fs.rename(new Path("/dir"), new Path("/moved")));
+      Assert.assertEquals(9, numItemsInTree(fsdir, "/moved"));
+      Assert.assertEquals(inodes - 5, fsdir.totalInodes());
+
+      namesystem.writeLock();
+      try {
+        while (!deleted.isCleared()) {
+          fsdir.reclaimDeleted(deleted, 1, collected);
+        }
+        for (Block b : collected) {
+          namesystem.getBlockManager().removeBlock(b);
+        }
+      } finally {
+        namesystem.writeUnlock();
+      }
+      Assert.assertEquals(9, numItemsInTree(fsdir, "/moved"));
+      Assert.assertEquals(inodes - 5, fsdir.totalInodes());
+    } finally {
+      mc.shutdown();
+    }
+  }
+
+  private static long numItemsInTree(FSDirectory fsdir, String path)
+      throws IOException {
+    return ((INodeDirectoryWithQuota)fsdir.getINode(path)).numItemsInTree();
+  }
+
   @Test
   public void largeDelete() throws Throwable {
     mc = new MiniDFSCluster.Builder(CONF).build();
@@ -0,0 +1,148 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.hdfs.DFSUtil;
+import org.junit.Test;
+
+/**
+ * Test for {@link NameDictionary} class
+ */
+public class TestNameDictionary {
+  private static byte[] bytes(String s) {
+    return DFSUtil.string2Bytes(s);
+  }
+
+  @Test
+  public void testIntern() {
+    NameDictionary dict = new NameDictionary(1);
+    String[] names = {"part-00000", "part-00001", "_SUCCESS", "", "a"};
+    byte[][] interned = new byte[names.length][];
+    for (int i = 0; i < names.length; i++) {
+      interned[i] = bytes(names[i]);
+      assertSame(interned[i], dict.intern(interned[i]));
+    }
+    assertEquals(0, dict.getLookupCount());
+
+    for (int i = 0; i < names.length; i++) {
+      // An equal name is replaced by the name in the dictionary
+      assertSame(interned[i], dict.intern(bytes(names[i])));
+    }
+    assertEquals(names.length, dict.getLookupCount());
+    assertEquals(names.length, dict.size());
+    assertNull(dict.intern(null));
+  }
+
+  @Test
+  public void testManyNames() {
+    NameDictionary dict = new NameDictionary(1);
+    List<byte[]> interned = new ArrayList<byte[]>();
+    for (int i = 0; i < 100000; i++) {
+      interned.add(dict.intern(bytes("file" + i)));
+    }
+    assertEquals(interned.size(), dict.size());
+    for (int i = 0; i < interned.size(); i++) {
+      assertSame(interned.get(i), dict.intern(bytes("file" + i)));
+    }
+  }
+
+  /** The names which are no longer used are dropped. */
+  @Test(timeout=60000)
+  public void testUnusedNamesDropped() throws Exception {
+    NameDictionary dict = new NameDictionary(1);
+    byte[] used = dict.intern(bytes("used"));
+    for (int i = 0; i < 1000; i++) {
+      dict.intern(bytes("unused" + i));
+    }
+    while (dict.size() > 1) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    assertSame(used, dict.intern(bytes("used")));
+  }
+
+  /** All the threads get the same name. */
+  @Test
+  public void testConcurrentIntern() throws Exception {
+    final NameDictionary dict = new NameDictionary(1);
+    final int numNames = 1000;
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<byte[][]>> results = new ArrayList<Future<byte[][]>>();
+      for (int t = 0; t < 8; t++) {
+        results.add(executor.submit(new Callable<byte[][]>() {
+          @Override
+          public byte[][] call() {
+            byte[][] interned = new byte[numNames][];
+            for (int i = 0; i < numNames; i++) {
+              interned[i] = dict.intern(bytes("name" + i));
+            }
+            return interned;
+          }
+        }));
+      }
+      byte[][] first = results.get(0).get();
+      for (Future<byte[][]> f : results) {
+        byte[][] interned = f.get();
+        for (int i = 0; i < numNames; i++) {
+          assertSame(first[i], interned[i]);
+        }
+      }
+      assertEquals(numNames, dict.size());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /** A name is added once it has been used the threshold number of times. */
+  @Test
+  public void testThreshold() {
+    NameDictionary dict = new NameDictionary(3);
+    byte[] first = bytes("part-00000");
+    assertSame(first, dict.intern(first));
+    byte[] second = bytes("part-00000");
+    assertSame(second, dict.intern(second));
+    assertEquals(0, dict.size());
+
+    byte[] third = bytes("part-00000");
+    assertSame(third, dict.intern(third));
+    assertEquals(1, dict.size());
+    assertSame(third, dict.intern(bytes("part-00000")));
+    assertEquals(1, dict.getLookupCount());
+  }
+
+  /** The names used once are not added, but for a few hash collisions. */
+  @Test
+  public void testUniqueNamesNotAdded() {
+    NameDictionary dict = new NameDictionary(3);
+    final int numNames = 100000;
+    for (int i = 0; i < numNames; i++) {
+      dict.intern(bytes("file" + i));
+    }
+    assertTrue("size=" + dict.size(), dict.size() < numNames / 100);
+  }
+}
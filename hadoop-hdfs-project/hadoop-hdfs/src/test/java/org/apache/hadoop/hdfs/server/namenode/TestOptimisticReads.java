@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test getFileInfo without the namesystem lock.
+ */
+public class TestOptimisticReads {
+  private MiniDFSCluster cluster;
+  private FileSystem fs;
+  private FSNamesystem namesystem;
+
+  @Before
+  public void setUp() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    conf.setBoolean(DFSConfigKeys.DFS_NAMENODE_FSLOCK_FAIR_KEY, true);
+    conf.setBoolean(
+        DFSConfigKeys.DFS_NAMENODE_OPTIMISTIC_READS_ENABLED_KEY, true);
+    cluster = new MiniDFSCluster.Builder(conf).numDataNodes(0).build();
+    cluster.waitActive();
+    fs = cluster.getFileSystem();
+    namesystem = cluster.getNamesystem();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  /** Reads see the result of the writes done before them. */
+  @Test
+  public void testReadAfterWrite() throws Exception {
+    final Path dir = new Path("/testReadAfterWrite");
+    assertNull(namesystem.getFileInfo(dir.toString(), false));
+    fs.mkdirs(dir);
+    HdfsFileStatus stat = namesystem.getFileInfo(dir.toString(), false);
+    assertNotNull(stat);
+
+    final FsPermission perm = new FsPermission((short)0700);
+    fs.setPermission(dir, perm);
+    stat = namesystem.getFileInfo(dir.toString(), false);
+    assertEquals(perm, stat.getPermission());
+
+    fs.delete(dir, true);
+    assertNull(namesystem.getFileInfo(dir.toString(), false));
+  }
+
+  /**
+   * With a fair lock, a reader taking the read lock waits behind
+   * a queued writer. An optimistic read does not.
+   */
+  @Test(timeout=60000)
+  public void testReadDoesNotQueueBehindWriter() throws Exception {
+    final String dir = "/testReadDoesNotQueueBehindWriter";
+    fs.mkdirs(new Path(dir));
+
+    namesystem.readLock();
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        namesystem.writeLock();
+        namesystem.writeUnlock();
+      }
+    };
+    try {
+      writer.start();
+      // wait for the writer to queue for the lock
+      while (writer.getState() != Thread.State.WAITING) {
+        Thread.sleep(10);
+      }
+
+      final AtomicReference<HdfsFileStatus> result =
+          new AtomicReference<HdfsFileStatus>();
+      Thread reader = new Thread() {
+        @Override
+        public void run() {
+          try {
+            result.set(namesystem.getFileInfo(dir, false));
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      reader.start();
+      reader.join(10000);
+      assertFalse("Read waited for the writer", reader.isAlive());
+      assertNotNull(result.get());
+    } finally {
+      namesystem.readUnlock();
+    }
+    writer.join();
+  }
+}
@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * Test {@link PathIndex} against a sorted map.
+ */
+public class TestPathIndex {
+  private static final String[] NAMES = {"a", "b", "ab", "a.b", "c"};
+
+  private static String randomPath(Random r) {
+    final int depth = r.nextInt(4);
+    if (depth == 0) {
+      return "/";
+    }
+    final StringBuilder b = new StringBuilder();
+    for(int i = 0; i < depth; i++) {
+      b.append('/').append(NAMES[r.nextInt(NAMES.length)]);
+    }
+    return b.toString();
+  }
+
+  /** The entries of the path and of the paths under it, by a scan. */
+  private static TreeMap<String, Integer> getSubtree(
+      TreeMap<String, Integer> map, String path) {
+    final TreeMap<String, Integer> subtree = new TreeMap<String, Integer>();
+    final String dir = path.endsWith("/")? path: path + "/";
+    for(Map.Entry<String, Integer> e : map.entrySet()) {
+      final String p = e.getKey();
+      if (p.equals(path) || p.startsWith(dir)) {
+        subtree.put(p, e.getValue());
+      }
+    }
+    return subtree;
+  }
+
+  private static TreeMap<String, Integer> toMap(
+      List<Map.Entry<String, Integer>> entries) {
+    final TreeMap<String, Integer> map = new TreeMap<String, Integer>();
+    for(Map.Entry<String, Integer> e : entries) {
+      assertNull(map.put(e.getKey(), e.getValue()));
+    }
+    return map;
+  }
+
+  @Test
+  public void testRandomOperations() {
+    final long seed = new Random().nextLong();
+    final Random r = new Random(seed);
+    final PathIndex<Integer> index = new PathIndex<Integer>();
+    final TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+
+    for(int i = 0; i < 10000; i++) {
+      final String path = randomPath(r);
+      final String msg = "seed=" + seed + ", i=" + i + ", path=" + path;
+      switch(r.nextInt(4)) {
+      case 0:
+      case 1:
+        assertEquals(msg, expected.put(path, i), index.put(path, i));
+        break;
+      case 2:
+        assertEquals(msg, expected.remove(path), index.remove(path));
+        break;
+      default:
+        assertEquals(msg, getSubtree(expected, path),
+            toMap(index.getSubtree(path)));
+      }
+      assertEquals(msg, expected.get(path), index.get(path));
+      assertEquals(msg, expected.size(), index.size());
+    }
+
+    // remove everything
+    for(String path : getSubtree(expected, "/").keySet()) {
+      assertEquals(expected.get(path), index.remove(path));
+    }
+    assertEquals(0, index.size());
+    assertEquals(0, index.getSubtree("/").size());
+  }
+
+  @Test
+  public void testSubtree() {
+    final PathIndex<Integer> index = new PathIndex<Integer>();
+    index.put("/a", 1);
+    index.put("/a/b", 2);
+    index.put("/ab", 3);
+    index.put("/a/b/c", 4);
+
+    final TreeMap<String, Integer> a = toMap(index.getSubtree("/a"));
+    assertEquals("{/a=1, /a/b=2, /a/b/c=4}", a.toString());
+    assertEquals(a, toMap(index.getSubtree("/a/")));
+    assertEquals("{/a/b/c=4}", toMap(index.getSubtree("/a/b/c")).toString());
+    assertEquals(0, index.getSubtree("/a/c").size());
+    assertEquals(4, index.getSubtree("/").size());
+
+    assertEquals(Integer.valueOf(2), index.remove("/a/b"));
+    assertNull(index.get("/a/b"));
+    assertEquals(Integer.valueOf(4), index.get("/a/b/c"));
+    assertEquals(3, index.size());
+  }
+}
@@ -0,0 +1,218 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hdfs.server.namenode.FSEditLogOp.MkdirOp;
+import org.apache.hadoop.hdfs.server.namenode.JournalStream.JournalType;
+import org.junit.Test;
+
+/**
+ * Test {@link PrefetchingEditLogInputStream} against a stream of
+ * generated ops.
+ */
+public class TestPrefetchingEditLogInputStream {
+  /**
+   * A stream of mkdir ops with txids 1 to numOps, which fails with the
+   * given error instead of returning op number failAt.  Like the real
+   * streams, it re-uses the op instance of the reading thread.
+   */
+  private static class GeneratedEditLogInputStream extends EditLogInputStream {
+    private final int numOps;
+    private final int failAt;
+    private final Throwable error;
+    private volatile long position = 0;
+    private volatile boolean closed = false;
+
+    GeneratedEditLogInputStream(int numOps, int failAt, Throwable error) {
+      this.numOps = numOps;
+      this.failAt = failAt;
+      this.error = error;
+    }
+
+    @Override
+    public FSEditLogOp readOp() throws IOException {
+      final long txid = position + 1;
+      if (txid == failAt) {
+        if (error instanceof IOException) {
+          throw (IOException)error;
+        }
+        throw (RuntimeException)error;
+      }
+      if (txid > numOps) {
+        return null;
+      }
+      final MkdirOp op = MkdirOp.getInstance().setPath("/dir" + txid);
+      op.setTransactionId(txid);
+      position = txid;
+      return op;
+    }
+
+    @Override
+    public long getPosition() {
+      return position;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+
+    @Override
+    public long getFirstTxId() {
+      return 1;
+    }
+
+    @Override
+    public long getLastTxId() {
+      return numOps;
+    }
+
+    @Override
+    public int getVersion() {
+      return 0;
+    }
+
+    @Override
+    public long length() {
+      return numOps;
+    }
+
+    @Override
+    public String getName() {
+      return "generated";
+    }
+
+    @Override
+    public JournalType getType() {
+      return JournalType.FILE;
+    }
+  }
+
+  /** Read the ops up to the end or the error, checking their order. */
+  private static List<FSEditLogOp> readOps(EditLogInputStream in)
+      throws IOException {
+    final List<FSEditLogOp> ops = new ArrayList<FSEditLogOp>();
+    for(FSEditLogOp op; (op = in.readOp()) != null; ) {
+      final long txid = ops.size() + 1;
+      assertEquals(txid, op.getTransactionId());
+      assertEquals(txid, in.getPosition());
+      ops.add(op);
+    }
+    return ops;
+  }
+
+  @Test
+  public void testOpOrder() throws IOException {
+    final int numOps = 10000;
+    final GeneratedEditLogInputStream generated =
+        new GeneratedEditLogInputStream(numOps, -1, null);
+    final PrefetchingEditLogInputStream in =
+        new PrefetchingEditLogInputStream(generated, 16);
+    try {
+      final List<FSEditLogOp> ops = readOps(in);
+      assertEquals(numOps, ops.size());
+      // the ops returned are not re-used by the prefetcher
+      for(int i = 0; i < ops.size(); i++) {
+        assertEquals("/dir" + (i + 1), ((MkdirOp)ops.get(i)).path);
+      }
+
+      // the end of the stream is returned again
+      assertNull(in.readOp());
+      assertEquals(numOps, in.getPosition());
+    } finally {
+      in.close();
+    }
+    assertTrue(generated.closed);
+  }
+
+  @Test
+  public void testEmptyStream() throws IOException {
+    final PrefetchingEditLogInputStream in = new PrefetchingEditLogInputStream(
+        new GeneratedEditLogInputStream(0, -1, null));
+    try {
+      assertNull(in.readOp());
+      assertEquals(0, in.getPosition());
+    } finally {
+      in.close();
+    }
+  }
+
+  /** A read error is thrown after all the ops read before it. */
+  @Test
+  public void testIOException() throws IOException {
+    final IOException error = new IOException("corrupt op");
+    final PrefetchingEditLogInputStream in = new PrefetchingEditLogInputStream(
+        new GeneratedEditLogInputStream(100, 51, error), 4);
+    try {
+      try {
+        readOps(in);
+        fail("Expected " + error);
+      } catch (IOException e) {
+        assertSame(error, e);
+      }
+      assertEquals(50, in.getPosition());
+
+      // the error is thrown again
+      try {
+        in.readOp();
+        fail("Expected " + error);
+      } catch (IOException e) {
+        assertSame(error, e);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testRuntimeException() throws IOException {
+    final RuntimeException error = new IllegalStateException("bad op");
+    final PrefetchingEditLogInputStream in = new PrefetchingEditLogInputStream(
+        new GeneratedEditLogInputStream(100, 1, error));
+    try {
+      in.readOp();
+      fail("Expected " + error);
+    } catch (RuntimeException e) {
+      assertSame(error, e);
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Closing the stream stops a prefetcher blocked on a full queue. */
+  @Test(timeout=60000)
+  public void testCloseBeforeEnd() throws Exception {
+    final GeneratedEditLogInputStream generated =
+        new GeneratedEditLogInputStream(10000, -1, null);
+    final PrefetchingEditLogInputStream in =
+        new PrefetchingEditLogInputStream(generated, 2);
+    assertEquals(1, in.readOp().getTransactionId());
+    while (generated.getPosition() < 3) {
+      Thread.sleep(10);
+    }
+    in.close();
+    assertTrue(generated.closed);
+    assertTrue(generated.getPosition() < 10000);
+  }
+}
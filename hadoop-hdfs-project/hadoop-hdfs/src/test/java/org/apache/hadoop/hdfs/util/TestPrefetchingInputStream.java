@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestPrefetchingInputStream {
+  private static final Random RAND = new Random();
+
+  private static byte[] randomBytes(int len) {
+    byte[] data = new byte[len];
+    RAND.nextBytes(data);
+    return data;
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[37];
+    for(int n; (n = in.read(buf, 0, buf.length)) >= 0; ) {
+      out.write(buf, 0, n);
+      // mix single byte reads in
+      int b = in.read();
+      if (b < 0) {
+        break;
+      }
+      out.write(b);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testReadAll() throws IOException {
+    for (int len : new int[] {0, 1, 63, 64, 65, 1000, 100000}) {
+      byte[] data = randomBytes(len);
+      InputStream in = new PrefetchingInputStream(
+          new ByteArrayInputStream(data), 64, 3, "test");
+      try {
+        assertTrue("len=" + len, Arrays.equals(data, readFully(in)));
+        // the end of stream is sticky
+        assertEquals(-1, in.read());
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  /** Closing before the end stops the prefetcher. */
+  @Test(timeout=10000)
+  public void testEarlyClose() throws IOException {
+    byte[] data = randomBytes(100000);
+    InputStream in = new PrefetchingInputStream(
+        new ByteArrayInputStream(data), 16, 2, "test");
+    assertEquals(data[0] & 0xff, in.read());
+    in.close();
+  }
+
+  /** Errors are rethrown after the data read before them. */
+  @Test
+  public void testError() throws IOException {
+    final byte[] data = randomBytes(1000);
+    InputStream failing = new ByteArrayInputStream(data) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        int n = super.read(b, off, len);
+        if (n < 0) {
+          throw new IllegalStateException("failed");
+        }
+        return n;
+      }
+    };
+    InputStream in = new PrefetchingInputStream(failing, 64, 2, "test");
+    byte[] buf = new byte[data.length + 1];
+    int off = 0;
+    try {
+      for(int n; (n = in.read(buf, off, buf.length - off)) > 0; ) {
+        off += n;
+      }
+      fail("IOException expected");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    } finally {
+      in.close();
+    }
+    assertEquals(data.length, off);
+    assertTrue(Arrays.equals(data, Arrays.copyOf(buf, data.length)));
+  }
+}
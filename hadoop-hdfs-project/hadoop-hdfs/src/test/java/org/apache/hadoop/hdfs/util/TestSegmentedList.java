@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestSegmentedList {
+  private static final int SEGMENT_CAPACITY = 8;
+
+  /** Appending in order fills segments completely. */
+  @Test
+  public void testAppend() {
+    SegmentedList<Integer> list = new SegmentedList<Integer>(SEGMENT_CAPACITY);
+    for (int i = 0; i < 100; i++) {
+      list.add(i);
+    }
+    assertEquals(100, list.size());
+    assertEquals((100 + SEGMENT_CAPACITY - 1) / SEGMENT_CAPACITY,
+        list.getNumSegments());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, list.get(i).intValue());
+    }
+  }
+
+  /** Copying a collection preserves its order. */
+  @Test
+  public void testCopy() {
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int i = 0; i < 37; i++) {
+      expected.add(i);
+    }
+    SegmentedList<Integer> list =
+        new SegmentedList<Integer>(expected, SEGMENT_CAPACITY);
+    assertEquals(expected, list);
+    assertEquals(10, list.getNumSegments());
+  }
+
+  /**
+   * Random inserts, removals and replacements
+   * give the same result as an ArrayList.
+   */
+  @Test
+  public void testRandomOperations() {
+    final Random r = new Random();
+    final long seed = r.nextLong();
+    r.setSeed(seed);
+    System.out.println("seed=" + seed);
+
+    List<Integer> expected = new ArrayList<Integer>();
+    SegmentedList<Integer> list = new SegmentedList<Integer>(SEGMENT_CAPACITY);
+    for (int i = 0; i < 10000; i++) {
+      final int op = r.nextInt(10);
+      if (op < 6 || expected.isEmpty()) {
+        final int index = r.nextInt(expected.size() + 1);
+        expected.add(index, i);
+        list.add(index, i);
+      } else if (op < 9) {
+        final int index = r.nextInt(expected.size());
+        assertEquals(expected.remove(index), list.remove(index));
+      } else {
+        final int index = r.nextInt(expected.size());
+        assertEquals(expected.set(index, -i), list.set(index, -i));
+      }
+      assertEquals(expected.size(), list.size());
+    }
+    assertEquals(expected, list);
+
+    // removing all the elements removes all the segments
+    while (!list.isEmpty()) {
+      list.remove(r.nextInt(list.size()));
+    }
+    assertEquals(0, list.getNumSegments());
+  }
+
+  /** Binary search works on the list kept in sorted order. */
+  @Test
+  public void testSortedInsert() {
+    final Random r = new Random();
+    SegmentedList<Integer> list = new SegmentedList<Integer>(SEGMENT_CAPACITY);
+    for (int i = 0; i < 1000; i++) {
+      final Integer value = r.nextInt(500);
+      final int low = Collections.binarySearch(list, value);
+      if (low < 0) {
+        list.add(-low - 1, value);
+      }
+    }
+    for (int i = 1; i < list.size(); i++) {
+      assertTrue(list.get(i - 1) < list.get(i));
+    }
+  }
+}